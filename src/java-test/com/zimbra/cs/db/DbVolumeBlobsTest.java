@@ -19,6 +19,7 @@ package com.zimbra.cs.db;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -525,4 +526,58 @@ public class DbVolumeBlobsTest {
         }
     }
 
+
+    @Test
+    public void updateProcessedBatched() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Volume vol = VolumeManager.getInstance().getCurrentMessageVolume();
+        int count = Db.getINClauseBatchSize() + 3; // more than one statement
+        for (int i = 1; i <= count; i++) {
+            DbVolumeBlobs.addBlobReference(conn, new MailboxBlobInfo(null, mbox.getId(), i, 1,
+                    String.valueOf(vol.getId()), "digest" + i));
+        }
+        List<BlobReference> blobs = DbVolumeBlobs.getBlobReferences(conn, vol);
+        Assert.assertEquals(count, blobs.size());
+        List<Long> ids = new ArrayList<Long>();
+        long skipped = blobs.get(0).getId();
+        for (BlobReference blob : blobs) {
+            Assert.assertFalse(blob.isProcessed());
+            if (blob.getId() != skipped) {
+                ids.add(blob.getId());
+            }
+        }
+
+        DbVolumeBlobs.updateProcessed(conn, ids, true);
+
+        for (BlobReference blob : DbVolumeBlobs.getBlobReferences(conn, vol)) {
+            Assert.assertEquals(blob.getId() != skipped, blob.isProcessed());
+        }
+    }
+
+    @Test
+    public void blobReferencesByDigests() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Volume vol = VolumeManager.getInstance().getCurrentMessageVolume();
+        int count = Db.getINClauseBatchSize() + 3; // more than one statement
+        List<String> digests = new ArrayList<String>();
+        for (int i = 1; i <= count; i++) {
+            String digest = "digest" + (i % (count - 1)); // the first and last share a digest
+            DbVolumeBlobs.addBlobReference(conn, new MailboxBlobInfo(null, mbox.getId(), i, 1,
+                    String.valueOf(vol.getId()), digest));
+            if (!digests.contains(digest)) {
+                digests.add(digest);
+            }
+        }
+        digests.add("missing");
+
+        Map<String, List<BlobReference>> blobs = DbVolumeBlobs.getBlobReferences(conn, digests, vol);
+        Assert.assertEquals(count - 1, blobs.size());
+        Assert.assertFalse(blobs.containsKey("missing"));
+        Assert.assertEquals(2, blobs.get("digest1").size());
+        for (Map.Entry<String, List<BlobReference>> entry : blobs.entrySet()) {
+            for (BlobReference blob : entry.getValue()) {
+                Assert.assertEquals(entry.getKey(), blob.getDigest());
+            }
+        }
+    }
 }
@@ -0,0 +1,134 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.Pair;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.store.StoreManager;
+import com.zimbra.cs.store.file.FileBlobStore;
+
+/**
+ * Unit test for {@link ImapPartOffsets}.
+ */
+public final class ImapPartOffsetsTest {
+
+    private StoreManager originalStoreManager;
+    private Mailbox mbox;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        MailboxTestUtil.initProvisioning();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        // the offsets are only recorded for content read straight from a blob file
+        originalStoreManager = StoreManager.getInstance();
+        StoreManager.setInstance(new FileBlobStore());
+        StoreManager.getInstance().startup();
+        mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        StoreManager.getInstance().shutdown();
+        StoreManager.setInstance(originalStoreManager);
+    }
+
+    private Message addMessage(String attachment) throws Exception {
+        String raw = "From: test@zimbra.com\r\n" +
+                "Subject: " + attachment + "\r\n" +
+                "MIME-Version: 1.0\r\n" +
+                "Content-Type: multipart/mixed; boundary=\"BOUNDARY\"\r\n" +
+                "\r\n" +
+                "--BOUNDARY\r\n" +
+                "Content-Type: text/plain\r\n" +
+                "\r\n" +
+                "see attached\r\n" +
+                "--BOUNDARY\r\n" +
+                "Content-Type: application/octet-stream; name=a.bin\r\n" +
+                "Content-Transfer-Encoding: base64\r\n" +
+                "\r\n" +
+                attachment + "\r\n" +
+                "--BOUNDARY--\r\n";
+        return mbox.addMessage(null, new ParsedMessage(raw.getBytes(), false),
+                new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX), null);
+    }
+
+    private static String attachment(char c) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append(new String(new char[76]).replace('\0', c)).append("\r\n");
+        }
+        return sb.toString().trim();
+    }
+
+    private static byte[] read(Pair<Long, InputStream> contents) throws Exception {
+        Assert.assertNotNull(contents);
+        byte[] data = ByteUtil.getContent(contents.getSecond(), contents.getFirst().intValue());
+        Assert.assertEquals(contents.getFirst().longValue(), data.length);
+        return data;
+    }
+
+    @Test
+    public void recordedOnFetch() throws Exception {
+        Message msg = addMessage(attachment('A'));
+        Assert.assertNull(ImapPartOffsets.getContent(msg, "2"));
+
+        byte[] expected = read(new ImapPartSpecifier("BODY", "2", "").getContent(msg.getMimeMessage()));
+        Assert.assertTrue(Arrays.equals(expected, read(new ImapPartSpecifier("BODY", "2", "").getContent(msg))));
+
+        // now read from the recorded range
+        Assert.assertTrue(Arrays.equals(expected, read(ImapPartOffsets.getContent(msg, "2"))));
+        Assert.assertTrue(Arrays.equals(expected, read(new ImapPartSpecifier("BODY", "2", "").getContent(msg))));
+        Assert.assertNull("other part", ImapPartOffsets.getContent(msg, "1"));
+    }
+
+    @Test
+    public void partial() throws Exception {
+        Message msg = addMessage(attachment('B'));
+        byte[] expected = read(new ImapPartSpecifier("BODY", "2", "").getContent(msg.getMimeMessage()));
+        read(new ImapPartSpecifier("BODY", "2", "").getContent(msg));
+
+        for (int start = 0; start < expected.length; start += 1000) {
+            int end = Math.min(start + 1000, expected.length);
+            byte[] chunk = read(new ImapPartSpecifier("BODY", "2", "", start, 1000).getContent(msg));
+            Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(expected, start, end), chunk));
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link Fragment}.
+ */
+public final class FragmentTest {
+
+    @Test
+    public void quotedReply() {
+        Assert.assertEquals("Sounds good. ... See you",
+                Fragment.getFragment("Sounds good.\n\nOn Monday, Bob wrote:\n> lunch?\n> at noon\n\nSee you\n", false));
+        Assert.assertEquals("Sounds good.", Fragment.getFragment("Sounds good.\n-- \nBob\n", false));
+    }
+
+    @Test
+    public void onlyQuoted() {
+        Assert.assertEquals("--Original Message-- lunch?",
+                Fragment.getFragment("--Original Message--\nFrom: Bob\nSubject: hi\n\nlunch?\n", false));
+    }
+
+    @Test
+    public void appointment() {
+        Assert.assertEquals("Agenda",
+                Fragment.getFragment("When: Monday\nWhere: Room 1\n\n*~*~*~*~*~*~*~*~*~*\n\nAgenda\n", true));
+    }
+
+    @Test
+    public void longQuotedThread() {
+        StringBuilder content = new StringBuilder("On Monday, Bob wrote:\n");
+        for (int i = 0; i < 100000; i++) {
+            content.append("> quoted line ").append(i).append('\n');
+        }
+        content.append("\nthe reply\n");
+        long start = System.currentTimeMillis();
+        Assert.assertEquals("the reply", Fragment.getFragment(content.toString(), false));
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+}
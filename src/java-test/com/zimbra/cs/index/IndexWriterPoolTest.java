@@ -0,0 +1,72 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link IndexWriterPool}.
+ */
+public final class IndexWriterPoolTest {
+
+    @Test
+    public void ramBufferBudget() {
+        IndexWriterPool pool = new IndexWriterPool(10, 0, 64, 1, 0);
+        Assert.assertEquals(16.0, pool.getRAMBufferSizeMB(16.0), 0.0);
+        pool.writerOpened();
+        pool.writerOpened();
+        pool.writerOpened();
+        Assert.assertEquals(16.0, pool.getRAMBufferSizeMB(16.0), 0.0);
+        pool.writerOpened();
+        Assert.assertEquals(12.8, pool.getRAMBufferSizeMB(16.0), 0.001);
+        pool.writerClosed();
+        Assert.assertEquals(16.0, pool.getRAMBufferSizeMB(16.0), 0.0);
+
+        IndexWriterPool unlimited = new IndexWriterPool(10, 0, 0, 1, 0);
+        for (int i = 0; i < 100; i++) {
+            unlimited.writerOpened();
+        }
+        Assert.assertEquals(16.0, unlimited.getRAMBufferSizeMB(16.0), 0.0);
+    }
+
+    @Test
+    public void mergeThrottle() {
+        IndexWriterPool pool = new IndexWriterPool(10, 0, 0, 1, 1024 * 1024);
+        Assert.assertFalse(IndexWriterPool.isMerging());
+        pool.beginMerge();
+        try {
+            Assert.assertTrue(IndexWriterPool.isMerging());
+            long start = System.currentTimeMillis();
+            pool.pause(256 * 1024);
+            pool.pause(256 * 1024);
+            pool.pause(256 * 1024);
+            Assert.assertTrue(System.currentTimeMillis() - start >= 400); // 512KB at 1MB/s
+        } finally {
+            pool.endMerge();
+        }
+        Assert.assertFalse(IndexWriterPool.isMerging());
+    }
+
+    @Test
+    public void emptyPool() {
+        IndexWriterPool pool = new IndexWriterPool(10, 1000, 0, 1, 0);
+        Assert.assertFalse(pool.evictEldest());
+        pool.sweep();
+        Assert.assertEquals(0, pool.getIdleCount());
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link ItemIdBitmap}.
+ */
+public final class ItemIdBitmapTest {
+
+    @Test
+    public void addContains() {
+        ItemIdBitmap ids = new ItemIdBitmap();
+        Assert.assertTrue(ids.isEmpty());
+        Assert.assertTrue(ids.add(257));
+        Assert.assertTrue(ids.add(3));
+        Assert.assertTrue(ids.add(70000));
+        Assert.assertFalse(ids.add(3));
+        Assert.assertEquals(3, ids.cardinality());
+        Assert.assertTrue(ids.contains(3));
+        Assert.assertTrue(ids.contains(257));
+        Assert.assertTrue(ids.contains(70000));
+        Assert.assertFalse(ids.contains(4));
+        Assert.assertFalse(ids.contains(70000 - 65536));
+        Assert.assertFalse(ids.contains(-1));
+    }
+
+    @Test
+    public void denseChunk() {
+        ItemIdBitmap ids = new ItemIdBitmap();
+        for (int i = 0; i < ItemIdBitmap.ARRAY_MAX * 3; i += 2) {
+            Assert.assertTrue(ids.add(i));
+        }
+        Assert.assertEquals(ItemIdBitmap.ARRAY_MAX * 3 / 2, ids.cardinality());
+        for (int i = 0; i < ItemIdBitmap.ARRAY_MAX * 3; i++) {
+            Assert.assertEquals(i % 2 == 0, ids.contains(i));
+        }
+        Assert.assertFalse(ids.add(0));
+    }
+
+    @Test
+    public void clear() {
+        ItemIdBitmap ids = new ItemIdBitmap();
+        ids.add(42);
+        ids.clear();
+        Assert.assertTrue(ids.isEmpty());
+        Assert.assertFalse(ids.contains(42));
+        Assert.assertTrue(ids.add(42));
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link ItemMatches}.
+ */
+public final class ItemMatchesTest {
+
+    @Test
+    public void items() {
+        ItemMatches matches = new ItemMatches();
+        Assert.assertTrue(matches.isEmpty());
+        matches.addItem(10);
+        matches.addItem(0); // not an item
+        Assert.assertFalse(matches.isEmpty());
+        Assert.assertTrue(matches.matchesItem(10));
+        Assert.assertFalse(matches.matchesItem(0));
+        Assert.assertFalse(matches.matchesItem(11));
+        // a part of a matched message matches
+        Assert.assertTrue(matches.matchesPart(10, "2"));
+        Assert.assertFalse(matches.matchesPart(11, "2"));
+    }
+
+    @Test
+    public void parts() {
+        ItemMatches matches = new ItemMatches();
+        matches.addPart(10, "2");
+        matches.addPart(20, LuceneFields.L_PARTNAME_TOP);
+        Assert.assertFalse(matches.isEmpty());
+        // the whole message matches any of its parts
+        Assert.assertTrue(matches.matchesItem(10));
+        Assert.assertTrue(matches.matchesItem(20));
+        // a part only matches the same part
+        Assert.assertTrue(matches.matchesPart(10, "2"));
+        Assert.assertFalse(matches.matchesPart(10, "1"));
+        Assert.assertFalse(matches.matchesPart(11, "2"));
+        // the top-level part is named "" in MessagePartHit
+        Assert.assertTrue(matches.matchesPart(20, ""));
+        Assert.assertTrue(matches.matchesPart(20, LuceneFields.L_PARTNAME_TOP));
+        Assert.assertFalse(matches.matchesPart(20, "1"));
+    }
+}
@@ -64,6 +64,31 @@ public final class LuceneDirectoryTest {
         Assert.assertEquals(5, ZimbraPerf.COUNTER_IDX_BYTES_READ.getTotal() - total);
     }
 
+    @Test
+    public void cachedRead() throws IOException {
+        byte[] data = new byte[LuceneBlockCache.BLOCK_SIZE * 2 + 100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        FileOutputStream out = new FileOutputStream(new File(tmpDir, "cachedRead"));
+        out.write(data);
+        out.close();
+
+        LuceneDirectory dir = LuceneDirectory.open(tmpDir, "cached");
+        Assert.assertTrue(dir.isCached());
+        long total = ZimbraPerf.COUNTER_IDX_BYTES_READ.getTotal();
+        for (int pass = 0; pass < 2; pass++) { // 2nd pass is served from the cache
+            IndexInput in = dir.openInput("cachedRead");
+            byte[] buf = new byte[data.length];
+            in.readBytes(buf, 0, buf.length);
+            Assert.assertArrayEquals(data, buf);
+            in.seek(LuceneBlockCache.BLOCK_SIZE + 1);
+            Assert.assertEquals((byte) (LuceneBlockCache.BLOCK_SIZE + 1), in.readByte());
+            in.close();
+        }
+        Assert.assertEquals((data.length + 1) * 2, ZimbraPerf.COUNTER_IDX_BYTES_READ.getTotal() - total);
+    }
+
     @Test
     public void write() throws IOException {
         long count = ZimbraPerf.COUNTER_IDX_BYTES_WRITTEN.getCount();
@@ -16,6 +16,27 @@
  */
 package com.zimbra.cs.index;
 
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.lucene.analysis.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mime.ParsedMessage;
+
 /**
  * Unit test for {@link LuceneIndex}.
  */
@@ -27,4 +48,80 @@ public final class LuceneIndexTest extends AbstractIndexStoreTest {
         // Default for LC.zimbra_class_index_store_factory.value() is USUALLY this
         return "com.zimbra.cs.index.LuceneIndex$Factory";
     }
+
+    @Test
+    public void checkSegments() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        List<Integer> ids = Lists.newArrayList();
+        for (int i = 0; i < 3; i++) {
+            ids.add(mbox.addMessage(null, new ParsedMessage(("Subject: test " + i).getBytes(), false), dopt, null)
+                    .getId());
+        }
+        mbox.index.indexDeferredItems();
+
+        LuceneIndex index = (LuceneIndex) mbox.index.getIndexStore();
+        Assert.assertEquals(Collections.emptyList(), index.checkSegments(null));
+        Assert.assertEquals(Collections.emptyList(), index.getUnindexedIds(ids));
+        Assert.assertEquals(Collections.singletonList(1000000), index.getUnindexedIds(Lists.newArrayList(1000000)));
+    }
+
+    @Test
+    public void dropSegmentsEvictsSearcher() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        for (int i = 0; i < 2; i++) { // one segment per batch
+            mbox.addMessage(null, new ParsedMessage(("Subject: test " + i).getBytes(), false), dopt, null);
+            mbox.index.indexDeferredItems();
+        }
+        LuceneIndex index = (LuceneIndex) mbox.index.getIndexStore();
+        ZimbraIndexSearcher searcher = index.openSearcher();
+        int before = searcher.getIndexReader().numDocs();
+        searcher.close();
+
+        SegmentInfos infos = new SegmentInfos();
+        infos.read(index.getDirectory());
+        Assert.assertTrue(infos.size() > 1);
+        index.evict(); // release the writer
+        Assert.assertEquals(1, index.dropSegments(Collections.singleton(infos.info(0).name)));
+
+        searcher = index.openSearcher();
+        try {
+            Assert.assertTrue(searcher.getIndexReader().numDocs() < before);
+        } finally {
+            searcher.close();
+        }
+    }
+
+    @Test
+    public void dropSegments() throws Exception {
+        RAMDirectory dir = new RAMDirectory();
+        for (int i = 0; i < 2; i++) { // one segment per commit
+            IndexWriter writer = new IndexWriter(dir,
+                    new IndexWriterConfig(LuceneIndex.VERSION, new KeywordAnalyzer()));
+            for (int j = 0; j <= i; j++) {
+                Document doc = new Document();
+                doc.add(new Field(LuceneFields.L_MAILBOX_BLOB_ID, String.valueOf(i * 10 + j), Field.Store.YES,
+                        Field.Index.NOT_ANALYZED));
+                writer.addDocument(doc);
+            }
+            writer.close();
+        }
+        SegmentInfos infos = new SegmentInfos();
+        infos.read(dir);
+        Assert.assertEquals(2, infos.size());
+        String first = infos.info(0).name;
+
+        Assert.assertEquals(1, new LuceneIndexRepair(dir, Collections.singleton(first)).repair());
+
+        infos = new SegmentInfos();
+        infos.read(dir);
+        Assert.assertEquals(1, infos.size());
+        IndexReader reader = IndexReader.open(dir);
+        try {
+            Assert.assertEquals(2, reader.numDocs());
+        } finally {
+            reader.close();
+        }
+    }
 }
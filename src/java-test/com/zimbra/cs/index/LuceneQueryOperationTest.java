@@ -27,6 +27,9 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.google.common.collect.Lists;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.soap.Element;
+import com.zimbra.common.soap.MailConstants;
 import com.zimbra.common.soap.SoapProtocol;
 import com.zimbra.cs.account.MockProvisioning;
 import com.zimbra.cs.account.Provisioning;
@@ -170,4 +173,99 @@ public final class LuceneQueryOperationTest {
         results.close();
     }
 
+    @Test
+    public void prefixQuery() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        List<Integer> expecteds = Lists.newArrayList();
+        for (String word : new String[] {"invoice", "invoices", "invoiced", "invoicing"}) {
+            Message msg = mbox.addMessage(null, new ParsedMessage(("Subject: " + word).getBytes(), false), dopt, null);
+            expecteds.add(msg.getId());
+        }
+        mbox.addMessage(null, new ParsedMessage("Subject: inventory".getBytes(), false), dopt, null);
+        MailboxTestUtil.index(mbox);
+
+        String max = LC.zimbra_index_wildcard_max_terms_expanded.value();
+        LC.zimbra_index_wildcard_max_terms_expanded.setDefault("2");
+        try {
+            SearchParams params = new SearchParams();
+            params.setQueryString("subject:invo*");
+            params.setTypes(EnumSet.of(MailItem.Type.MESSAGE));
+            params.setSortBy(SortBy.NONE);
+            ZimbraQuery query = new ZimbraQuery(new OperationContext(mbox), SoapProtocol.Soap12, mbox, params);
+            ZimbraQueryResults results = query.execute();
+            List<Integer> matches = Lists.newArrayList();
+            while (results.hasNext()) {
+                matches.add(results.getNext().getItemId());
+            }
+            results.close();
+            Collections.sort(matches);
+            Assert.assertEquals(expecteds, matches); // not limited by the expansion limit
+        } finally {
+            LC.zimbra_index_wildcard_max_terms_expanded.setDefault(max);
+        }
+    }
+
+    @Test
+    public void cursorDateRange() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        List<Message> msgs = Lists.newArrayList();
+        for (int i = 0; i < 4; i++) {
+            msgs.add(mbox.addMessage(null, new ParsedMessage(("Subject: invoice " + i).getBytes(),
+                    1000000000000L + i * 60000L, false), dopt, null));
+        }
+        mbox.addMessage(null, new ParsedMessage("Subject: receipt".getBytes(), 1000000000000L, false), dopt, null);
+        MailboxTestUtil.index(mbox);
+
+        SearchParams params = new SearchParams();
+        params.setQueryString("invoice");
+        params.setTypes(EnumSet.of(MailItem.Type.MESSAGE));
+        params.setSortBy(SortBy.DATE_DESC);
+        Element cursor = new Element.XMLElement(MailConstants.E_CURSOR)
+                .addAttribute(MailConstants.A_ID, msgs.get(2).getId())
+                .addAttribute(MailConstants.A_SORTVAL, msgs.get(2).getDate());
+        params.parseCursor(cursor, mbox.getAccountId());
+        ZimbraQuery query = new ZimbraQuery(new OperationContext(mbox), SoapProtocol.Soap12, mbox, params);
+        ZimbraQueryResults results = query.execute();
+        List<Integer> matches = Lists.newArrayList();
+        while (results.hasNext()) {
+            matches.add(results.getNext().getItemId());
+        }
+        results.close();
+        // the cursor is inclusive, ResultsPager skips the cursor item itself
+        Assert.assertEquals(Lists.newArrayList(msgs.get(2).getId(), msgs.get(1).getId(), msgs.get(0).getId()),
+                matches);
+    }
+
+    @Test
+    public void cursorDateRangeAfterSetDate() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        Message early = mbox.addMessage(null, new ParsedMessage("Subject: invoice".getBytes(),
+                1000000000000L, false), dopt, null);
+        Message late = mbox.addMessage(null, new ParsedMessage("Subject: invoice".getBytes(),
+                1000000600000L, false), dopt, null);
+        MailboxTestUtil.index(mbox);
+        // move the early message past the cursor, the index must follow
+        mbox.setDate(null, early.getId(), MailItem.Type.MESSAGE, 1000001200000L);
+
+        SearchParams params = new SearchParams();
+        params.setQueryString("invoice");
+        params.setTypes(EnumSet.of(MailItem.Type.MESSAGE));
+        params.setSortBy(SortBy.DATE_ASC);
+        Element cursor = new Element.XMLElement(MailConstants.E_CURSOR)
+                .addAttribute(MailConstants.A_ID, late.getId())
+                .addAttribute(MailConstants.A_SORTVAL, late.getDate());
+        params.parseCursor(cursor, mbox.getAccountId());
+        ZimbraQuery query = new ZimbraQuery(new OperationContext(mbox), SoapProtocol.Soap12, mbox, params);
+        ZimbraQueryResults results = query.execute();
+        List<Integer> matches = Lists.newArrayList();
+        while (results.hasNext()) {
+            matches.add(results.getNext().getItemId());
+        }
+        results.close();
+        Assert.assertEquals(Lists.newArrayList(late.getId(), early.getId()), matches);
+    }
+
 }
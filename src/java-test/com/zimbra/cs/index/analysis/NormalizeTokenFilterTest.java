@@ -283,7 +283,20 @@ public class NormalizeTokenFilterTest {
         Assert.assertEquals('\u308F', NormalizeTokenFilter.normalize('\uFF9C'));
         Assert.assertEquals('\u3093', NormalizeTokenFilter.normalize('\uFF9D'));
     }
-    
-    
+
+    @Test
+    public void voicedSoundMark() {
+        Assert.assertEquals('\u304C', NormalizeTokenFilter.normalize('\uFF76', '\uFF9E'));
+        Assert.assertEquals('\u304B', NormalizeTokenFilter.normalize('\uFF76', 0));
+        Assert.assertEquals("\u304C\u3099", NormalizeTokenFilter.normalize("\uFF76\uFF9E"));
+        Assert.assertEquals("\u304Babc", NormalizeTokenFilter.normalize("\uFF76ABC"));
+    }
+
+    @Test
+    public void inPlace() {
+        char[] buf = "xx\uFF21\u00C4\u30AB\uFF76Zxx".toCharArray();
+        NormalizeTokenFilter.normalize(buf, 2, 5);
+        Assert.assertEquals("xxaa\u304B\u304Bzxx", new String(buf));
+    }
 
 }
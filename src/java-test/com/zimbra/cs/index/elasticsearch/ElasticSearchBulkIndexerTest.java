@@ -0,0 +1,263 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index.elasticsearch;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Queue;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.zimbra.common.util.ByteUtil;
+
+/**
+ * Unit test for {@link ElasticSearchBulkIndexer} against a stand-in ElasticSearch server.
+ */
+public final class ElasticSearchBulkIndexerTest {
+    private static final int PORT = 7679;
+    private static final String URL_BASE = "http://localhost:" + PORT + "/";
+
+    private ServerSocket ssock;
+    private final Queue<String> responses = Lists.newLinkedList();
+    private final List<String> requests = Lists.newArrayList();
+
+    @Before
+    public void setUp() throws IOException {
+        final ServerSocket s = ssock = new ServerSocket(PORT);
+        new Thread() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        handle(s.accept());
+                    } catch (IOException e) {
+                        break;
+                    }
+                }
+            }
+        }.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ssock.close();
+    }
+
+    /**
+     * Records the bulk request body, and replies with the next scripted response: "status body".
+     */
+    private void handle(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        try {
+            StringBuilder reqline = new StringBuilder();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                reqline.append((char) b);
+            }
+            InternetHeaders headers = new InternetHeaders(in);
+            int length = Integer.parseInt(headers.getHeader("Content-Length", null));
+            String response;
+            synchronized (this) {
+                requests.add(reqline.toString().trim() + "\n"
+                        + new String(ByteUtil.readInput(in, length, length), Charsets.UTF_8));
+                response = responses.poll();
+            }
+            String status = response.substring(0, response.indexOf(' '));
+            byte[] body = response.substring(status.length() + 1).getBytes(Charsets.UTF_8);
+            out.write(("HTTP/1.0 " + status + " X\r\nContent-Type: application/json\r\nContent-Length: " +
+                    body.length + "\r\n\r\n").getBytes(Charsets.UTF_8));
+            out.write(body);
+            out.flush();
+        } catch (MessagingException e) {
+            throw new IOException(e);
+        } finally {
+            ByteUtil.closeStream(in);
+            ByteUtil.closeStream(out);
+            socket.close();
+        }
+    }
+
+    private synchronized void respond(String response) {
+        responses.add(response);
+    }
+
+    private synchronized List<String> getRequests() {
+        return Lists.newArrayList(requests);
+    }
+
+    @Test
+    public void flushBySize() throws Exception {
+        ElasticSearchBulkIndexer bulk = new ElasticSearchBulkIndexer(URL_BASE, 2, 1024 * 1024, 0, 3, 0);
+        respond("200 {\"items\":[{\"index\":{\"status\":201}},{\"index\":{\"status\":201}}]}");
+        respond("200 {\"items\":[{\"index\":{\"ok\":true}}]}");
+
+        bulk.add("acct1", "zimbra", 257, "{\"l.content\":\"one\"}");
+        Assert.assertEquals(1, bulk.getQueueSize());
+        Assert.assertTrue(bulk.hasPending("acct1"));
+        Assert.assertTrue(getRequests().isEmpty());
+        bulk.add("acct2", "zimbra", 258, "{\"l.content\":\"two\"}");
+        Assert.assertEquals(0, bulk.getQueueSize());
+        bulk.add("acct1", "zimbra", 259, "{\"l.content\":\"three\"}");
+        Assert.assertFalse(bulk.hasPending("acct2"));
+        bulk.flush("acct2"); // nothing pending for acct2
+        Assert.assertEquals(1, getRequests().size());
+        bulk.flush("acct1");
+        Assert.assertEquals(0, bulk.getQueueSize());
+
+        List<String> reqs = getRequests();
+        Assert.assertEquals(2, reqs.size());
+        String[] lines = reqs.get(0).split("\n");
+        Assert.assertEquals("POST /_bulk HTTP/1.1", lines[0]);
+        Assert.assertEquals(5, lines.length);
+        Assert.assertTrue(lines[1], lines[1].contains("\"_index\":\"acct1\""));
+        Assert.assertEquals("{\"l.content\":\"one\"}", lines[2]);
+        Assert.assertTrue(lines[3], lines[3].contains("\"_index\":\"acct2\""));
+        Assert.assertEquals("{\"l.content\":\"two\"}", lines[4]);
+        Assert.assertTrue(reqs.get(1).contains("three"));
+    }
+
+    @Test
+    public void retryPartialFailure() throws Exception {
+        ElasticSearchBulkIndexer bulk = new ElasticSearchBulkIndexer(URL_BASE, 10, 1024 * 1024, 0, 3, 0);
+        respond("200 {\"items\":[{\"index\":{\"status\":201}}," +
+                "{\"index\":{\"status\":503,\"error\":\"EsRejectedExecutionException\"}}," +
+                "{\"index\":{\"status\":400,\"error\":\"MapperParsingException\"}}]}");
+        respond("200 {\"items\":[{\"index\":{\"status\":201}}]}");
+
+        bulk.add("acct1", "zimbra", 257, "{\"id\":\"ok\"}");
+        bulk.add("acct1", "zimbra", 258, "{\"id\":\"busy\"}");
+        bulk.add("acct1", "zimbra", 259, "{\"id\":\"bad\"}");
+        bulk.flush();
+        Assert.assertEquals(1, bulk.getQueueSize()); // only the rejected one is retried
+        bulk.flush();
+        Assert.assertEquals(0, bulk.getQueueSize());
+
+        List<String> reqs = getRequests();
+        Assert.assertEquals(2, reqs.size());
+        Assert.assertEquals(3, reqs.get(1).split("\n").length);
+        Assert.assertTrue(reqs.get(1).contains("busy"));
+    }
+
+    @Test
+    public void giveUp() throws Exception {
+        ElasticSearchBulkIndexer bulk = new ElasticSearchBulkIndexer(URL_BASE, 10, 1024 * 1024, 0, 2, 0);
+        respond("503 {\"error\":\"unavailable\"}");
+        respond("503 {\"error\":\"unavailable\"}");
+
+        bulk.add("acct1", "zimbra", 257, "{}");
+        bulk.flush();
+        Assert.assertEquals(1, bulk.getQueueSize());
+        bulk.flush();
+        Assert.assertEquals(0, bulk.getQueueSize());
+        Assert.assertEquals(2, getRequests().size());
+    }
+
+    @Test
+    public void discard() throws Exception {
+        ElasticSearchBulkIndexer bulk = new ElasticSearchBulkIndexer(URL_BASE, 10, 1024 * 1024, 0, 3, 0);
+        bulk.add("acct1", "zimbra", 257, "{}");
+        bulk.add("acct2", "zimbra", 258, "{}");
+        bulk.discard("acct1");
+        Assert.assertFalse(bulk.hasPending("acct1"));
+        Assert.assertTrue(bulk.hasPending("acct2"));
+        Assert.assertEquals(1, bulk.getQueueSize());
+    }
+
+    @Test
+    public void await() throws Exception {
+        ElasticSearchBulkIndexer bulk = new ElasticSearchBulkIndexer(URL_BASE, 10, 1024 * 1024, 0, 3, 0);
+        respond("200 {\"items\":[{\"index\":{\"status\":201}}," +
+                "{\"index\":{\"status\":503,\"error\":\"EsRejectedExecutionException\"}}," +
+                "{\"index\":{\"status\":400,\"error\":\"MapperParsingException\"}}]}");
+        respond("200 {\"items\":[{\"index\":{\"status\":201}}]}");
+
+        ElasticSearchBulkIndexer.BulkItem ok = bulk.add("acct1", "zimbra", 257, "{\"id\":\"ok\"}");
+        ElasticSearchBulkIndexer.BulkItem busy = bulk.add("acct1", "zimbra", 258, "{\"id\":\"busy\"}");
+        ElasticSearchBulkIndexer.BulkItem bad = bulk.add("acct1", "zimbra", 259, "{\"id\":\"bad\"}");
+        Assert.assertEquals(ElasticSearchBulkIndexer.BulkItem.PENDING, ok.state);
+        List<ElasticSearchBulkIndexer.BulkItem> failed = bulk.await(Lists.newArrayList(ok, busy, bad));
+        // the rejected document was retried before await returned
+        Assert.assertEquals(2, getRequests().size());
+        Assert.assertEquals(0, bulk.getQueueSize());
+        Assert.assertEquals(1, failed.size());
+        Assert.assertSame(bad, failed.get(0));
+        Assert.assertEquals(ElasticSearchBulkIndexer.BulkItem.INDEXED, ok.state);
+        Assert.assertEquals(ElasticSearchBulkIndexer.BulkItem.INDEXED, busy.state);
+        Assert.assertEquals(ElasticSearchBulkIndexer.BulkItem.FAILED, bad.state);
+    }
+
+    @Test
+    public void awaitGiveUp() throws Exception {
+        ElasticSearchBulkIndexer bulk = new ElasticSearchBulkIndexer(URL_BASE, 10, 1024 * 1024, 0, 2, 0);
+        respond("503 {\"error\":\"unavailable\"}");
+        respond("503 {\"error\":\"unavailable\"}");
+
+        ElasticSearchBulkIndexer.BulkItem item = bulk.add("acct1", "zimbra", 257, "{}");
+        Assert.assertEquals(1, bulk.await(Lists.newArrayList(item)).size());
+        Assert.assertEquals(2, getRequests().size());
+    }
+
+    @Test
+    public void backoff() throws Exception {
+        ElasticSearchBulkIndexer bulk = new ElasticSearchBulkIndexer(URL_BASE, 10, 1024 * 1024, 0, 3, 400);
+        respond("200 {\"items\":[{\"index\":{\"status\":429,\"error\":\"EsRejectedExecutionException\"}}]}");
+        respond("200 {\"items\":[{\"index\":{\"status\":201}}]}");
+        respond("200 {\"items\":[{\"index\":{\"status\":201}}]}");
+
+        ElasticSearchBulkIndexer.BulkItem busy = bulk.add("acct1", "zimbra", 257, "{\"id\":\"busy\"}");
+        long start = System.currentTimeMillis();
+        bulk.flush();
+        Assert.assertEquals(1, getRequests().size());
+        // the rejected document is held back, newer ones are still sent
+        ElasticSearchBulkIndexer.BulkItem next = bulk.add("acct1", "zimbra", 258, "{\"id\":\"next\"}");
+        bulk.flush();
+        Assert.assertEquals(2, getRequests().size());
+        Assert.assertFalse(getRequests().get(1).contains("busy"));
+        Assert.assertEquals(ElasticSearchBulkIndexer.BulkItem.INDEXED, next.state);
+        Assert.assertEquals(1, bulk.getQueueSize());
+
+        Assert.assertTrue(bulk.await(Lists.newArrayList(busy)).isEmpty());
+        Assert.assertTrue(System.currentTimeMillis() - start >= 200); // at least half the first delay
+        Assert.assertEquals(3, getRequests().size());
+        Assert.assertTrue(getRequests().get(2).contains("busy"));
+    }
+
+    @Test
+    public void discardFailsBuffered() throws Exception {
+        ElasticSearchBulkIndexer bulk = new ElasticSearchBulkIndexer(URL_BASE, 10, 1024 * 1024, 0, 3, 0);
+        ElasticSearchBulkIndexer.BulkItem item = bulk.add("acct1", "zimbra", 257, "{}");
+        bulk.discard("acct1");
+        Assert.assertEquals(ElasticSearchBulkIndexer.BulkItem.FAILED, item.state);
+        // nothing left to send, and await doesn't wait on a discarded document
+        Assert.assertEquals(1, bulk.await(Lists.newArrayList(item)).size());
+        Assert.assertTrue(getRequests().isEmpty());
+    }
+}
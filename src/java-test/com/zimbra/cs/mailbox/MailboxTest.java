@@ -103,6 +103,30 @@ public final class MailboxTest {
         Assert.assertEquals(2, terms.get(3).getFreq());
     }
 
+    @Test
+    public void browseAfterIndexChange() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        mbox.addMessage(null, new ParsedMessage("From: test1-1@sub1.zimbra.com".getBytes(), false), dopt, null);
+        mbox.index.indexDeferredItems();
+
+        List<BrowseTerm> terms = mbox.browse(null, Mailbox.BrowseBy.domains, null, 100);
+        Assert.assertEquals("Number of expected terms", 1, terms.size());
+        Assert.assertEquals("sub1.zimbra.com", terms.get(0).getText());
+
+        // unchanged index answers from the cache
+        Assert.assertEquals(terms, mbox.browse(null, Mailbox.BrowseBy.domains, null, 100));
+
+        mbox.addMessage(null, new ParsedMessage("From: test2-1@sub2.zimbra.com".getBytes(), false), dopt, null);
+        mbox.index.indexDeferredItems();
+
+        terms = mbox.browse(null, Mailbox.BrowseBy.domains, "sub2", 100);
+        Assert.assertEquals("Number of expected terms", 1, terms.size());
+        Assert.assertEquals("sub2.zimbra.com", terms.get(0).getText());
+        Assert.assertEquals(2, terms.get(0).getFreq());
+    }
+
     @Test
     public void threadDraft() throws Exception {
         Account acct = Provisioning.getInstance().getAccount("test@zimbra.com");
@@ -0,0 +1,124 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.redolog.op.DeleteMailbox;
+import com.zimbra.cs.redolog.op.RedoableOp;
+
+/**
+ * Unit test for {@link PartitionedReplay}.
+ */
+public final class PartitionedReplayTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    private static final class Recorder extends PartitionedReplay {
+        final List<String> replayed = Collections.synchronizedList(new ArrayList<String>());
+
+        Recorder(int threads, int total) {
+            super(threads, total, 1000);
+        }
+
+        @Override
+        protected void replay(RedoableOp op) throws Exception {
+            Thread.sleep(2);
+            replayed.add(op.toString());
+        }
+    }
+
+    private static RedoableOp op(final int mboxId, final int seq) {
+        return new DeleteMailbox(mboxId) {
+            @Override
+            public String toString() {
+                return mboxId + ":" + seq;
+            }
+        };
+    }
+
+    @Test
+    public void mailboxOrder() throws Exception {
+        Recorder replay = new Recorder(4, 60);
+        try {
+            for (int seq = 0; seq < 20; seq++) {
+                for (int mboxId = 1; mboxId <= 3; mboxId++) {
+                    replay.add(op(mboxId, seq));
+                }
+            }
+            replay.finish();
+        } finally {
+            replay.shutdown();
+        }
+
+        Assert.assertEquals(60, replay.getDone());
+        for (int mboxId = 1; mboxId <= 3; mboxId++) {
+            int next = 0;
+            for (String s : replay.replayed) {
+                if (s.startsWith(mboxId + ":")) {
+                    Assert.assertEquals(mboxId + ":" + next++, s);
+                }
+            }
+            Assert.assertEquals(20, next);
+        }
+    }
+
+    @Test
+    public void barrier() throws Exception {
+        Recorder replay = new Recorder(4, 6);
+        try {
+            replay.add(op(1, 0));
+            replay.add(op(2, 0));
+            replay.add(op(1, 1));
+            replay.add(op(RedoableOp.MAILBOX_ID_ALL, 0));
+            replay.add(op(2, 1));
+            replay.add(op(3, 0));
+            replay.finish();
+            Assert.assertEquals(3, replay.replayed.indexOf("-1:0"));
+        } finally {
+            replay.shutdown();
+        }
+        Assert.assertEquals(6, replay.replayed.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failure() throws Exception {
+        PartitionedReplay replay = new PartitionedReplay(2, 2, 1000) {
+            @Override
+            protected void replay(RedoableOp op) {
+                throw new IllegalStateException();
+            }
+        };
+        try {
+            replay.add(op(1, 0));
+            replay.add(op(2, 0));
+            replay.finish();
+        } finally {
+            replay.shutdown();
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.common.util.Pair;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.redolog.logger.FileHeader;
+import com.zimbra.cs.redolog.logger.FileLogConverter;
+import com.zimbra.cs.redolog.logger.FileLogReader;
+import com.zimbra.cs.redolog.logger.FileLogWriter;
+import com.zimbra.cs.redolog.op.CommitTxn;
+import com.zimbra.cs.redolog.op.DeleteMailbox;
+import com.zimbra.cs.redolog.op.RedoableOp;
+
+/**
+ * Unit test for {@link RedoLogIndex}, and for how {@link RedoLogManager} and {@link RedoPlayer} use it.
+ */
+public final class RedoLogIndexTest {
+
+    private File dir;
+    private File archiveDir;
+    private RedoLogManager mgr;
+    private long tstamp = 1000000;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        // don't fail when native libraries for hard links aren't installed
+        System.setProperty("zimbra.native.required", "false");
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+        archiveDir = new File(dir, "archive");
+        archiveDir.mkdirs();
+        mgr = new RedoLogManager(new File(dir, "redo.log"), archiveDir, false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtil.deleteDir(dir);
+    }
+
+    private RedoableOp change(int mboxId) {
+        RedoableOp op = new DeleteMailbox(mboxId);
+        op.start(tstamp++);
+        return op;
+    }
+
+    private CommitTxn commit(RedoableOp change) {
+        CommitTxn op = new CommitTxn(change);
+        op.start(tstamp++);
+        return op;
+    }
+
+    /**
+     * Logs a change and its commit for each mailbox.
+     * @return the commits
+     */
+    private List<CommitTxn> writeLog(File file, long seq, int... mboxIds) throws IOException {
+        mgr.getRolloverManager().initSequence(seq);
+        FileLogWriter writer = new FileLogWriter(mgr, file, 0);
+        writer.open();
+        List<CommitTxn> commits = new ArrayList<CommitTxn>();
+        try {
+            for (int mboxId : mboxIds) {
+                RedoableOp change = change(mboxId);
+                writer.log(change, change.getInputStream(), false);
+                CommitTxn commit = commit(change);
+                writer.log(commit, commit.getInputStream(), false);
+                commits.add(commit);
+            }
+        } finally {
+            writer.close();
+        }
+        return commits;
+    }
+
+    /**
+     * Writes a log in the given format, whatever format the server writes.
+     */
+    private File writeLog(String name, byte format, int... mboxIds) throws IOException {
+        File log = new File(dir, "written.log");
+        writeLog(log, 1, mboxIds);
+        File dest = new File(dir, name);
+        FileLogConverter.convert(log, dest, format);
+        log.delete();
+        return dest;
+    }
+
+    private File archive(long seq) {
+        return new File(archiveDir, RolloverManager.toArchiveLogFilename(new Date(seq * 1000), seq));
+    }
+
+    private static List<RedoableOp> readOps(File log, long offset) throws IOException {
+        FileLogReader reader = new FileLogReader(log);
+        reader.open();
+        try {
+            if (offset >= 0) {
+                reader.seek(offset);
+            }
+            List<RedoableOp> ops = new ArrayList<RedoableOp>();
+            RedoableOp op;
+            while ((op = reader.getNextOp()) != null) {
+                ops.add(op);
+            }
+            return ops;
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void buildAndLoad() throws Exception {
+        File log = new File(dir, "redo-1.log");
+        List<CommitTxn> commits = writeLog(log, 7, 1, 2, 1, 3);
+        RedoLogIndex.build(log).write(log);
+
+        RedoLogIndex index = RedoLogIndex.load(log);
+        Assert.assertNotNull(index);
+        Assert.assertEquals(7, index.getSequence());
+        Assert.assertEquals(new HashSet<Integer>(Arrays.asList(1, 2, 3)), index.getMailboxIds());
+        Assert.assertNull(index.getMailbox(4));
+        Assert.assertEquals(2, index.getMailbox(1).getCommitCount());
+        Assert.assertEquals(commits.get(0).getTimestamp(), index.getMailbox(1).getFirstCommitTstamp());
+        Assert.assertEquals(commits.get(2).getTimestamp(), index.getMailbox(1).getLastCommitTstamp());
+        Assert.assertTrue(index.getFirstCommitId().matches(commits.get(0)));
+        Assert.assertTrue(index.getLastCommitId().matches(commits.get(3)));
+        Assert.assertEquals(7, index.getLastCommitId().getRedoSeq());
+
+        // offsets are those of the ops in the log
+        FileLogReader reader = new FileLogReader(log);
+        reader.open();
+        try {
+            Set<Integer> seen = new HashSet<Integer>();
+            RedoableOp op;
+            while ((op = reader.getNextOp()) != null) {
+                int mboxId = op.getMailboxId();
+                if (seen.add(mboxId)) {
+                    Assert.assertEquals(index.getMailbox(mboxId).getFirstOffset(), reader.getLastOpStartOffset());
+                }
+                if (op instanceof CommitTxn && ((CommitTxn) op).getTimestamp() == commits.get(2).getTimestamp()) {
+                    Assert.assertEquals(index.getMailbox(1).getLastCommitOffset(), reader.getLastOpStartOffset());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        Assert.assertEquals(index.getMailbox(2).getFirstOffset(), index.getFirstOffset(Arrays.asList(2, 3)));
+        Assert.assertEquals(-1, index.getFirstOffset(Collections.singleton(4)));
+        Assert.assertEquals(Collections.singleton(3),
+                index.getCommittedMailboxes(index.getMailbox(1).getLastCommitOffset() + 1));
+    }
+
+    @Test
+    public void corruptIndex() throws Exception {
+        File log = new File(dir, "redo-1.log");
+        writeLog(log, 1, 1, 2, 3);
+        RedoLogIndex.build(log).write(log);
+        File file = RedoLogIndex.getIndexFile(log);
+        Assert.assertNotNull(RedoLogIndex.load(log));
+
+        // a changed offset, with the index the same size
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length() - 10);
+            int b = raf.read();
+            raf.seek(raf.length() - 10);
+            raf.write(b ^ 0x01);
+        } finally {
+            raf.close();
+        }
+        Assert.assertNull(RedoLogIndex.load(log));
+
+        // a torn index
+        RedoLogIndex.build(log).write(log);
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 4);
+        } finally {
+            raf.close();
+        }
+        Assert.assertNull(RedoLogIndex.load(log));
+    }
+
+    @Test
+    public void staleIndex() throws Exception {
+        File log = new File(dir, "redo-1.log");
+        writeLog(log, 1, 1, 2);
+        RedoLogIndex.build(log).write(log);
+        Assert.assertNotNull(RedoLogIndex.load(log));
+
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        try {
+            raf.setLength(raf.length() - 1);
+        } finally {
+            raf.close();
+        }
+        Assert.assertNull(RedoLogIndex.load(log));
+    }
+
+    private void seek(byte format) throws Exception {
+        File log = writeLog("redo.log", format, 1, 2, 3, 2, 1);
+        RedoLogIndex index = RedoLogIndex.build(log);
+        List<RedoableOp> all = readOps(log, -1);
+        Assert.assertEquals(10, all.size());
+
+        for (int mboxId = 1; mboxId <= 3; mboxId++) {
+            List<RedoableOp> ops = readOps(log, index.getMailbox(mboxId).getFirstOffset());
+            // the ops from the seek on are the tail of the log, and have all ops of the mailbox
+            List<RedoableOp> tail = all.subList(all.size() - ops.size(), all.size());
+            for (int i = 0; i < ops.size(); i++) {
+                Assert.assertEquals(tail.get(i).getTransactionId(), ops.get(i).getTransactionId());
+            }
+            int first = 0;
+            while (all.get(first).getMailboxId() != mboxId) {
+                first++;
+            }
+            if (format == FileHeader.FORMAT_RAW) {
+                Assert.assertEquals(first, all.size() - ops.size());
+            } else {
+                // the first op of the run of blocks the mailbox's first op is in
+                Assert.assertTrue(all.size() - ops.size() <= first);
+            }
+        }
+    }
+
+    @Test
+    public void seekRaw() throws Exception {
+        seek(FileHeader.FORMAT_RAW);
+    }
+
+    @Test
+    public void seekBlocks() throws Exception {
+        seek(FileHeader.FORMAT_BLOCKS);
+    }
+
+    private Set<Integer> changedSince(CommitId cid, CommitId expectedLast) throws Exception {
+        Pair<Set<Integer>, CommitId> changes = mgr.getChangedMailboxesSince(cid);
+        Assert.assertEquals(expectedLast.encodeToString(), changes.getSecond().encodeToString());
+        return changes.getFirst();
+    }
+
+    @Test
+    public void changedMailboxesSince() throws Exception {
+        File log1 = archive(1);
+        File log2 = archive(2);
+        List<CommitTxn> commits1 = writeLog(log1, 1, 1, 2, 3, 4);
+        writeLog(log2, 2, 5);
+        List<CommitTxn> commits3 = writeLog(new File(dir, "redo.log"), 3, 6);
+        RedoLogIndex.build(log1).write(log1);
+        RedoLogIndex.build(log2).write(log2);
+
+        CommitId last = new CommitId(3, commits3.get(0));
+        Set<Integer> expected = new HashSet<Integer>(Arrays.asList(3, 4, 5, 6));
+        // with indexes, log1 is read up to the commit and log2 not at all
+        Assert.assertEquals(expected, changedSince(new CommitId(1, commits1.get(1)), last));
+        Assert.assertEquals(new HashSet<Integer>(Arrays.asList(2, 3, 4, 5, 6)),
+                changedSince(new CommitId(1, commits1.get(0)), last));
+
+        // the same without the indexes
+        RedoLogIndex.getIndexFile(log1).delete();
+        RedoLogIndex.getIndexFile(log2).delete();
+        Assert.assertEquals(expected, changedSince(new CommitId(1, commits1.get(1)), last));
+    }
+
+    private static final class Recorder extends RedoPlayer {
+        final List<Integer> played = new ArrayList<Integer>();
+
+        Recorder() {
+            super(false);
+        }
+
+        @Override
+        protected void playOp(RedoableOp op) {
+            played.add(op.getMailboxId());
+        }
+    }
+
+    private List<Integer> replay(File log, int mboxId) throws Exception {
+        Recorder player = new Recorder();
+        Map<Integer, Integer> mboxIds = ImmutableMap.of(mboxId, mboxId);
+        player.scanLog(log, true, mboxIds, 0, Long.MAX_VALUE);
+        return player.played;
+    }
+
+    @Test
+    public void scanFromOffset() throws Exception {
+        for (byte format : new byte[] { FileHeader.FORMAT_RAW, FileHeader.FORMAT_BLOCKS }) {
+            File log = writeLog("redo-" + format + ".log", format, 1, 2, 1, 2);
+            RedoLogIndex.build(log).write(log);
+            Assert.assertEquals(Arrays.asList(2, 2), replay(log, 2));
+            Assert.assertEquals(Arrays.asList(1, 1), replay(log, 1));
+        }
+    }
+
+    @Test
+    public void scanSkipsLog() throws Exception {
+        // logs of the same size, one with mailbox 3 where the other has mailbox 2
+        File log2 = writeLog("redo-2.log", FileHeader.FORMAT_RAW, 1, 2);
+        File log3 = writeLog("redo-3.log", FileHeader.FORMAT_RAW, 1, 3);
+        Assert.assertEquals(log2.length(), log3.length());
+        Assert.assertEquals(Arrays.asList(3), replay(log3, 3));
+
+        // the index is trusted: a log it shows no ops of the mailbox for isn't read
+        RedoLogIndex.build(log2).write(log3);
+        Assert.assertEquals(Collections.emptyList(), replay(log3, 3));
+        Assert.assertEquals(Arrays.asList(1), replay(log3, 1));
+    }
+}
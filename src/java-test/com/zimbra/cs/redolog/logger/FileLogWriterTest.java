@@ -0,0 +1,221 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.common.util.UUIDUtil;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.redolog.RedoLogManager;
+import com.zimbra.cs.redolog.op.CommitTxn;
+import com.zimbra.cs.redolog.op.CreateFolder;
+import com.zimbra.cs.redolog.op.DeleteMailbox;
+import com.zimbra.cs.redolog.op.RedoableOp;
+
+/**
+ * Unit test for the group commit and the file formats of {@link FileLogWriter}.
+ */
+public final class FileLogWriterTest {
+
+    private File dir;
+    private File logfile;
+    private RedoLogManager mgr;
+    private FileLogWriter writer;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+        logfile = new File(dir, "redo.log");
+        mgr = new RedoLogManager(logfile, new File(dir, "archive"), false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+        FileUtil.deleteDir(dir);
+    }
+
+    private FileLogWriter open(long fsyncIntervalMS) throws IOException {
+        writer = new FileLogWriter(mgr, logfile, fsyncIntervalMS);
+        writer.open();
+        return writer;
+    }
+
+    private static void log(FileLogWriter writer, int mboxId) throws IOException {
+        RedoableOp op = new DeleteMailbox(mboxId);
+        op.start(System.currentTimeMillis());
+        writer.log(op, op.getInputStream(), true);
+    }
+
+    private int countOps() throws IOException {
+        writer.close();
+        writer = null;
+        FileLogReader reader = new FileLogReader(logfile);
+        reader.open();
+        try {
+            int count = 0;
+            while (reader.getNextOp() != null) {
+                count++;
+            }
+            return count;
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void groupCommit() throws Exception {
+        final FileLogWriter writer = open(10);
+        final AtomicInteger mboxId = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < 400; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        // a different mailbox each time, so that the op waits for the fsync thread
+                        log(writer, mboxId.incrementAndGet());
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        int fsyncs = writer.getFsyncCount();
+        Assert.assertTrue("fsyncs: " + fsyncs, fsyncs > 0);
+        Assert.assertTrue("fsyncs: " + fsyncs, fsyncs < 400);
+        Assert.assertEquals(400, countOps());
+    }
+
+    @Test
+    public void singleWaiter() throws Exception {
+        // a lone logger is synced as soon as it waits, not after the interval
+        FileLogWriter writer = open(1000);
+        for (int i = 1; i <= 5; i++) {
+            long start = System.currentTimeMillis();
+            log(writer, i);
+            Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+            Assert.assertEquals(i, writer.getFsyncCount());
+        }
+        Assert.assertEquals(5, countOps());
+    }
+
+    /**
+     * Logs the same transactions of a few mailboxes, one op at a time, in a file of the given format.
+     */
+    private long logTransactions(File file, boolean blockFormat) throws IOException {
+        writer = new FileLogWriter(mgr, file, 0, blockFormat);
+        writer.open();
+        Random random = new Random(1);
+        long tstamp = 1400000000000L;
+        for (int i = 0; i < 1000; i++) {
+            CreateFolder change = new CreateFolder(1 + random.nextInt(50), "folder " + i,
+                    Mailbox.ID_FOLDER_USER_ROOT, new Folder.FolderOptions());
+            change.setFolderIdAndUuid(Mailbox.FIRST_USER_ID + i, UUIDUtil.generateUUID());
+            tstamp += random.nextInt(100);
+            change.start(tstamp);
+            writer.log(change, change.getInputStream(), false);
+            CommitTxn commit = new CommitTxn(change);
+            commit.start(tstamp + 1);
+            writer.log(commit, commit.getInputStream(), false);
+        }
+        writer.close();
+        writer = null;
+        return file.length();
+    }
+
+    @Test
+    public void blockFormatSize() throws Exception {
+        long raw = logTransactions(new File(dir, "raw.log"), false);
+        File blocks = new File(dir, "blocks.log");
+        long size = logTransactions(blocks, true);
+        // each op is written as a block of its own, and still compresses against the ops before it
+        Assert.assertTrue("raw: " + raw + ", blocks: " + size, size < raw * 3 / 4);
+
+        FileLogReader reader = new FileLogReader(blocks);
+        reader.open();
+        try {
+            Assert.assertEquals(FileHeader.FORMAT_BLOCKS, reader.getHeader().getFormat());
+            List<Long> offsets = new ArrayList<Long>();
+            int count = 0;
+            RedoableOp op;
+            while ((op = reader.getNextOp()) != null) {
+                Assert.assertEquals(count % 2 == 0 ? CreateFolder.class : CommitTxn.class, op.getClass());
+                if (offsets.isEmpty() || offsets.get(offsets.size() - 1) != reader.getLastOpStartOffset()) {
+                    offsets.add(reader.getLastOpStartOffset());
+                }
+                count++;
+            }
+            Assert.assertEquals(2000, count);
+            // ops share the offset of the chain of blocks they are in, and reading from there finds them again
+            Assert.assertTrue(offsets.size() > 1);
+            Assert.assertTrue(offsets.size() < count / 10);
+            reader.seek(offsets.get(1));
+            Assert.assertNotNull(reader.getNextOp());
+            Assert.assertEquals(offsets.get(1).longValue(), reader.getLastOpStartOffset());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void sameMailbox() throws Exception {
+        // consecutive ops on one mailbox are fsynced inline
+        FileLogWriter writer = open(1000);
+        log(writer, 1);
+        int fsyncs = writer.getFsyncCount();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            log(writer, 1);
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+        Assert.assertEquals(fsyncs + 10, writer.getFsyncCount());
+        Assert.assertEquals(11, countOps());
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link LogBlock}.
+ */
+public final class LogBlockTest {
+
+    private File file;
+    private RandomAccessFile raf;
+    private final LogBlock.Input in = new LogBlock.Input();
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("redo", ".log");
+        raf = new RandomAccessFile(file, "rw");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        raf.close();
+        file.delete();
+        in.end();
+    }
+
+    private static byte[] text(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ('a' + i % 7);
+        }
+        return data;
+    }
+
+    private LogBlock read() throws IOException {
+        return in.read(raf, raf.length());
+    }
+
+    @Test
+    public void compressed() throws Exception {
+        LogBlock.Output out = new LogBlock.Output(raf, 1024);
+        byte[] op = text(100);
+        long written = 0;
+        for (int i = 0; i < 5; i++) {
+            written += out.write(op, 0, op.length);
+            written += out.endOp();
+        }
+        Assert.assertEquals(0, written);
+        Assert.assertEquals(500, out.buffered());
+        written = out.flush();
+        Assert.assertEquals(raf.length(), written);
+        Assert.assertTrue(written < 500);
+
+        raf.seek(0);
+        LogBlock block = read();
+        Assert.assertEquals(LogBlock.FLAG_DEFLATED, block.flags);
+        Assert.assertEquals(500, block.data.length);
+        Assert.assertArrayEquals(op, Arrays.copyOfRange(block.data, 400, 500));
+    }
+
+    @Test
+    public void continuation() throws Exception {
+        LogBlock.Output out = new LogBlock.Output(raf, 1024);
+        byte[] op = new byte[2500];
+        new Random(1).nextBytes(op);
+        out.write(op, 0, 1000);
+        out.write(op, 1000, 1500);
+        out.endOp();
+        out.flush();
+
+        raf.seek(0);
+        LogBlock first = read();
+        LogBlock second = read();
+        LogBlock third = read();
+        Assert.assertEquals(raf.length(), raf.getFilePointer());
+        Assert.assertTrue(first.continues());
+        Assert.assertFalse(first.isContinuation());
+        Assert.assertTrue(second.continues());
+        Assert.assertTrue(second.isContinuation());
+        Assert.assertFalse(third.continues());
+        Assert.assertTrue(third.isContinuation());
+        Assert.assertEquals(0, third.flags & LogBlock.FLAG_DEFLATED); // random data is stored as is
+        Assert.assertArrayEquals(Arrays.copyOfRange(op, 2048, 2500), third.data);
+    }
+
+    @Test
+    public void opBoundary() throws Exception {
+        LogBlock.Output out = new LogBlock.Output(raf, 1024);
+        byte[] op = text(600);
+        out.write(op, 0, op.length);
+        out.endOp();
+        out.write(op, 0, 300);
+        out.write(op, 300, 300);
+        out.endOp();
+        out.flush();
+
+        raf.seek(0);
+        LogBlock first = read();
+        LogBlock second = read();
+        Assert.assertEquals(raf.length(), raf.getFilePointer());
+        Assert.assertFalse(first.continues());
+        Assert.assertFalse(second.isContinuation());
+        Assert.assertArrayEquals(op, first.data);
+        Assert.assertArrayEquals(op, second.data);
+    }
+
+    @Test
+    public void chained() throws Exception {
+        LogBlock.Output out = new LogBlock.Output(raf, 1024);
+        byte[] op = text(100);
+        long written = 0;
+        for (int i = 0; i < 5; i++) {
+            out.write(op, 0, op.length);
+            written += out.endOp();
+            written += out.flush();
+        }
+        Assert.assertEquals(raf.length(), written);
+
+        raf.seek(0);
+        long second = 0;
+        for (int i = 0; i < 5; i++) {
+            LogBlock block = read();
+            Assert.assertEquals(i > 0, block.isChained());
+            Assert.assertArrayEquals(op, block.data);
+            if (i == 0) {
+                second = raf.getFilePointer();
+            }
+        }
+        Assert.assertEquals(raf.length(), raf.getFilePointer());
+        // the ops after the first compress against it
+        Assert.assertTrue(raf.length() - second < 4 * op.length / 2);
+
+        // a chained block can't be read without the blocks before it
+        in.reset();
+        raf.seek(second);
+        try {
+            read();
+            Assert.fail("chained block read on its own");
+        } catch (EOFException e) {
+            Assert.fail("chained block reported as truncated");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void chainEnds() throws Exception {
+        LogBlock.Output out = new LogBlock.Output(raf, 1024);
+        byte[] op = text(600);
+        byte[] random = new byte[100];
+        new Random(1).nextBytes(random);
+        for (byte[] data : new byte[][] { op, op, op, random, op }) {
+            out.write(data, 0, data.length);
+            out.endOp();
+            out.flush();
+        }
+
+        raf.seek(0);
+        Assert.assertFalse(read().isChained());
+        Assert.assertTrue(read().isChained());
+        Assert.assertFalse("a block's worth of data", read().isChained());
+        LogBlock stored = read();
+        Assert.assertEquals(0, stored.flags & (LogBlock.FLAG_DEFLATED | LogBlock.FLAG_CHAINED));
+        Assert.assertArrayEquals(random, stored.data);
+        LogBlock block = read();
+        Assert.assertFalse("after a stored block", block.isChained());
+        Assert.assertArrayEquals(op, block.data);
+    }
+
+    @Test
+    public void corrupt() throws Exception {
+        LogBlock.Output out = new LogBlock.Output(raf, 1024);
+        out.write(text(300), 0, 300);
+        out.flush();
+        raf.seek(LogBlock.HEADER_LEN + 5);
+        raf.write(0xff);
+
+        raf.seek(0);
+        try {
+            read();
+            Assert.fail("corrupt block not detected");
+        } catch (EOFException e) {
+            Assert.fail("corrupt block reported as truncated");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void corruptHeader() throws Exception {
+        LogBlock.Output out = new LogBlock.Output(raf, 1024);
+        byte[] op = text(300);
+        out.write(op, 0, op.length);
+        out.endOp();
+        out.write(op, 0, op.length);
+        out.flush();
+        raf.seek(0);
+        Assert.assertEquals(LogBlock.FLAG_DEFLATED, read().flags);
+
+        // a flipped CONTINUES flag still leaves a well-formed block
+        raf.seek(LogBlock.MAGIC.length);
+        raf.write(LogBlock.FLAG_DEFLATED | LogBlock.FLAG_CONTINUES);
+
+        raf.seek(0);
+        try {
+            read();
+            Assert.fail("corrupt header not detected");
+        } catch (EOFException e) {
+            Assert.fail("corrupt header reported as truncated");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncated() throws Exception {
+        LogBlock.Output out = new LogBlock.Output(raf, 1024);
+        out.write(text(300), 0, 300);
+        out.flush();
+        raf.setLength(raf.length() - 1);
+
+        raf.seek(0);
+        read();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.util.ByteUtil;
+
+/**
+ * Unit test for {@link BlobCodec}.
+ */
+public final class BlobCodecTest {
+
+    private static byte[] content() {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            buf.append("Subject: line ").append(i).append("\r\n");
+        }
+        return buf.toString().getBytes();
+    }
+
+    private static byte[] compress(BlobCodec codec, byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = codec.compress(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] data) throws IOException {
+        InputStream in = BlobCodec.decompress(new ByteArrayInputStream(data));
+        try {
+            return ByteUtil.getContent(in, data.length);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static File write(byte[] data) throws IOException {
+        File file = File.createTempFile(BlobCodecTest.class.getSimpleName(), ".msg");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        return file;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        byte[] data = content();
+        for (BlobCodec codec : new BlobCodec[] { BlobCodec.GZIP, BlobCodec.DEFLATE_FAST, BlobCodec.DEFLATE_BEST }) {
+            byte[] compressed = compress(codec, data);
+            Assert.assertTrue(codec.getName(), compressed.length < data.length);
+            Assert.assertArrayEquals(codec.getName(), data, decompress(compressed));
+            Assert.assertSame(codec, BlobCodec.detect(write(compressed)));
+        }
+    }
+
+    @Test
+    public void legacyGzip() throws Exception {
+        byte[] data = content();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        Assert.assertArrayEquals(bytes.toByteArray(), compress(BlobCodec.GZIP, data));
+        Assert.assertArrayEquals(data, decompress(bytes.toByteArray()));
+        Assert.assertSame(BlobCodec.GZIP, BlobCodec.detect(write(bytes.toByteArray())));
+    }
+
+    @Test
+    public void uncompressed() throws Exception {
+        byte[] data = content();
+        Assert.assertArrayEquals(data, decompress(data));
+        Assert.assertArrayEquals("Z".getBytes(), decompress("Z".getBytes()));
+        Assert.assertArrayEquals(new byte[0], decompress(new byte[0]));
+        Assert.assertNull(BlobCodec.detect(write(data)));
+        Assert.assertFalse(BlobCodec.isCompressed(write(new byte[0])));
+    }
+
+    @Test
+    public void unknownCodec() throws Exception {
+        byte[] data = new byte[] { 0, 'Z', 'B', 'C', (byte) 200, 0 };
+        Assert.assertArrayEquals(data, decompress(data));
+        Assert.assertNull(BlobCodec.detect(write(data)));
+    }
+
+    @Test
+    public void messageLikeHeader() throws Exception {
+        for (int id = 0; id < 3; id++) {
+            byte[] data = ("ZBC" + (char) id + ": header\r\n\r\nbody").getBytes();
+            Assert.assertArrayEquals(data, decompress(data));
+            Assert.assertNull(BlobCodec.detect(write(data)));
+        }
+    }
+
+    @Test
+    public void rawSize() throws Exception {
+        // a document that happens to be gzip data, stored as is
+        byte[] gzip = compress(BlobCodec.GZIP, content());
+        File file = write(gzip);
+        Assert.assertSame(BlobCodec.GZIP, BlobCodec.detect(file));
+        Assert.assertNull(BlobCodec.detect(file, gzip.length));
+        Assert.assertFalse(BlobCodec.isCompressed(file, gzip.length));
+        Assert.assertTrue(BlobCodec.isCompressed(file, content().length));
+    }
+
+    @Test
+    public void files() throws Exception {
+        byte[] data = content();
+        File src = write(data);
+        File compressed = write(new byte[0]);
+        BlobCodec.DEFLATE_BEST.compress(src, compressed, false);
+        Assert.assertSame(BlobCodec.DEFLATE_BEST, BlobCodec.detect(compressed));
+
+        File recompressed = write(new byte[0]);
+        BlobCodec.DEFLATE_FAST.compress(compressed, recompressed, false);
+        Assert.assertSame(BlobCodec.DEFLATE_FAST, BlobCodec.detect(recompressed));
+
+        File uncompressed = write(new byte[0]);
+        BlobCodec.uncompress(recompressed, uncompressed, false);
+        Assert.assertNull(BlobCodec.detect(uncompressed));
+        Assert.assertEquals(data.length, uncompressed.length());
+    }
+}
@@ -16,10 +16,12 @@
  */
 package com.zimbra.cs.store;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -80,4 +82,92 @@ public class BlobInputStreamTest {
         Assert.assertFalse("file is gone", file.exists());
         Assert.assertNull("can't create substream after delete", bis.newStream(0, CONTENT.length));
     }
+
+    @Test
+    public void interruptedRead() throws Exception {
+        File file = createTempFile();
+        SharedFile shared = new SharedFile(file);
+        byte[] buf = new byte[4];
+
+        // an interrupt closes the shared channel; the read is retried on a reopened descriptor
+        Thread.currentThread().interrupt();
+        try {
+            Assert.assertEquals(4, shared.read(2, buf, 0, 4));
+        } finally {
+            Thread.interrupted();
+        }
+        Assert.assertEquals("2345", new String(buf));
+        Assert.assertEquals(4, shared.read(0, buf, 0, 4));
+        Assert.assertEquals("0123", new String(buf));
+        shared.close();
+    }
+
+    @Test
+    public void transferTo() throws Exception {
+        byte[] content = new byte[200 * 1024];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        File file = File.createTempFile(BlobInputStreamTest.class.getSimpleName(), ".msg");
+        file.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(content);
+        fos.close();
+
+        BlobInputStream bis = new BlobInputStream(file, file.length());
+        Assert.assertEquals(10, bis.skip(10));
+        BlobInputStream substream = (BlobInputStream) bis.newStream(1000, content.length - 1000);
+        Assert.assertEquals(1000, substream.getFilePointer());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(content.length - 2000, substream.transferTo(out));
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(content, 1000, content.length - 1000), out.toByteArray()));
+        Assert.assertEquals(-1, substream.read());
+
+        out.reset();
+        Assert.assertEquals(content.length - 10, bis.transferTo(out));
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(content, 10, content.length), out.toByteArray()));
+
+        // small streams are copied through the buffer
+        File small = createTempFile();
+        bis = new BlobInputStream(small, small.length());
+        Assert.assertNull(bis.openChannel());
+        out.reset();
+        Assert.assertEquals(CONTENT.length, bis.transferTo(out));
+        Assert.assertTrue(Arrays.equals(CONTENT, out.toByteArray()));
+    }
+
+    @Test
+    public void readahead() throws Exception {
+        byte[] content = new byte[300 * 1024];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 7);
+        }
+        File file = File.createTempFile(BlobInputStreamTest.class.getSimpleName(), ".msg");
+        file.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(content);
+        fos.close();
+
+        // sequential reads of varying size, through the growing buffer
+        BlobInputStream bis = new BlobInputStream(file, file.length());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1500];
+        for (int len = 1, n; (n = bis.read(buf, 0, len)) > 0; len = len % buf.length + 1) {
+            out.write(buf, 0, n);
+            int b = bis.read();
+            if (b >= 0) {
+                out.write(b);
+            }
+        }
+        Assert.assertTrue(Arrays.equals(content, out.toByteArray()));
+
+        // random reads of small ranges
+        for (int start : new int[] { 250000, 10, 100000, 299990, 4096 }) {
+            InputStream range = bis.newStream(start, start + 10);
+            byte[] data = new byte[20];
+            Assert.assertEquals(10, range.read(data));
+            Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(content, start, start + 10), Arrays.copyOf(data, 10)));
+            Assert.assertEquals(-1, range.read());
+        }
+    }
 }
@@ -25,6 +25,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.zip.GZIPOutputStream;
 
@@ -122,6 +124,80 @@ public class FileDescriptorCacheTest {
         assertEquals(2, fdc.getSize());
     }
 
+    @Test
+    public void secondChance() throws Exception {
+        FileDescriptorCache fdc = new FileDescriptorCache(null);
+        fdc.setMaxSize(2);
+
+        File[] files = new File[3];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = File.createTempFile(NAME_PREFIX, ".tmp");
+            tempFiles.add(files[i]);
+            Files.write(("content" + i).getBytes(), files[i]);
+        }
+        byte[] buf = new byte[8];
+
+        fdc.read(files[0].getPath(), files[0].length(), 0, buf, 0, buf.length);
+        fdc.read(files[1].getPath(), files[1].length(), 0, buf, 0, buf.length);
+        fdc.read(files[0].getPath(), files[0].length(), 0, buf, 0, buf.length);
+        assertEquals(1, fdc.getHitCount());
+
+        // files[0] was read again since it was cached, so files[1] is aged out first
+        fdc.read(files[2].getPath(), files[2].length(), 0, buf, 0, buf.length);
+        assertEquals("content2", new String(buf));
+        assertEquals(2, fdc.getSize());
+        assertTrue(fdc.contains(files[0].getPath()));
+        assertFalse(fdc.contains(files[1].getPath()));
+        assertTrue(fdc.contains(files[2].getPath()));
+        assertEquals(3, fdc.getMissCount());
+        assertEquals(1, fdc.getEvictionCount());
+
+        fdc.remove(files[0].getPath());
+        assertEquals(1, fdc.getSize());
+        assertFalse(fdc.contains(files[0].getPath()));
+    }
+
+    @Test
+    public void concurrentReads() throws Exception {
+        final FileDescriptorCache fdc = new FileDescriptorCache(null);
+        fdc.setMaxSize(5);
+
+        final File[] files = new File[20];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = File.createTempFile(NAME_PREFIX, ".tmp");
+            tempFiles.add(files[i]);
+            Files.write(String.format("content%02d", i).getBytes(), files[i]);
+        }
+
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    byte[] buf = new byte[9];
+                    try {
+                        for (int i = 0; i < 1000; i++) {
+                            int n = (i * 7 + seed) % files.length;
+                            fdc.read(files[n].getPath(), files[n].length(), 0, buf, 0, buf.length);
+                            assertEquals(String.format("content%02d", n), new String(buf));
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+        assertTrue(fdc.getSize() <= 5);
+        assertEquals(8000, fdc.getHitCount() + fdc.getMissCount());
+    }
+
     private void write(File file, String content)
     throws IOException {
         OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
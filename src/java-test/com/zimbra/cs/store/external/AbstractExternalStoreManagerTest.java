@@ -22,6 +22,7 @@ import java.io.InputStream;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.cs.account.MockProvisioning;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxManager;
@@ -99,4 +100,76 @@ public abstract class AbstractExternalStoreManagerTest extends AbstractStoreMana
         Assert.assertTrue("stream content = mime content", TestUtil.bytesEqual(mimeBytes, stream));
     }
 
+    @Test
+    public void admitOnSecondRead() throws Exception {
+        ParsedMessage pm = ThreaderTest.getRootMessage();
+        byte[] mimeBytes = TestUtil.readInputStream(pm.getRawInputStream());
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+
+        ExternalStoreManager sm = (ExternalStoreManager) StoreManager.getInstance();
+        Blob blob = sm.storeIncoming(pm.getRawInputStream());
+        StagedBlob staged = sm.stage(blob, mbox);
+        MailboxBlob mblob = sm.link(staged, mbox, 0, 0);
+        Assert.assertTrue("cached on delivery", sm.isCached(staged.getLocator()));
+
+        sm.clearCache();
+        Assert.assertTrue("first read", TestUtil.bytesEqual(mimeBytes, sm.getContent(mblob)));
+        Assert.assertFalse("on probation after first read", sm.isCached(staged.getLocator()));
+        Assert.assertTrue("second read", TestUtil.bytesEqual(mimeBytes, sm.getContent(mblob)));
+        Assert.assertTrue("admitted on second read", sm.isCached(staged.getLocator()));
+        sm.quietDelete(blob);
+    }
+
+    @Test
+    public void validateIsNotRead() throws Exception {
+        ParsedMessage pm = ThreaderTest.getRootMessage();
+        byte[] mimeBytes = TestUtil.readInputStream(pm.getRawInputStream());
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+
+        ExternalStoreManager sm = (ExternalStoreManager) StoreManager.getInstance();
+        Blob blob = sm.storeIncoming(pm.getRawInputStream());
+        StagedBlob staged = sm.stage(blob, mbox);
+        sm.link(staged, mbox, 0, 0);
+        sm.clearCache();
+
+        // MailItem.getBlob() validates the blob before the content is read
+        MailboxBlob mblob = sm.getMailboxBlob(mbox, 0, 0, staged.getLocator(), true);
+        Assert.assertNotNull("validated", mblob);
+        Assert.assertFalse("on probation after validation", sm.isCached(staged.getLocator()));
+        Assert.assertTrue("first read", TestUtil.bytesEqual(mimeBytes, sm.getContent(mblob)));
+        Assert.assertFalse("on probation after first read", sm.isCached(staged.getLocator()));
+        Assert.assertTrue("second read", TestUtil.bytesEqual(mimeBytes, sm.getContent(mblob)));
+        Assert.assertTrue("admitted on second read", sm.isCached(staged.getLocator()));
+        sm.quietDelete(blob);
+    }
+
+    @Test
+    public void probationFileOutlivesPromotion() throws Exception {
+        ParsedMessage pm = ThreaderTest.getRootMessage();
+        byte[] mimeBytes = TestUtil.readInputStream(pm.getRawInputStream());
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+
+        String minLifetime = LC.external_store_local_cache_min_lifetime.value();
+        LC.external_store_local_cache_min_lifetime.setDefault("60000");
+        ExternalStoreManager sm = (ExternalStoreManager) StoreManager.getInstance();
+        sm.shutdown();
+        sm.startup();
+        try {
+            Blob blob = sm.storeIncoming(pm.getRawInputStream());
+            StagedBlob staged = sm.stage(blob, mbox);
+            MailboxBlob mblob = sm.link(staged, mbox, 0, 0);
+            sm.clearCache();
+
+            Blob first = sm.getMailboxBlob(mbox, 0, 0, staged.getLocator(), true).getLocalBlob();
+            Assert.assertEquals("probation digest", blob.getDigest(), first.getDigest());
+            sm.getContent(mblob).close();
+            sm.getContent(mblob).close();
+            Assert.assertTrue("admitted on second read", sm.isCached(staged.getLocator()));
+            Assert.assertTrue("first reader's file kept", first.getFile().exists());
+            Assert.assertTrue("first reader's content", TestUtil.bytesEqual(mimeBytes, first.getInputStream()));
+            sm.quietDelete(blob);
+        } finally {
+            LC.external_store_local_cache_min_lifetime.setDefault(minLifetime);
+        }
+    }
 }
@@ -0,0 +1,119 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.external;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.cs.mailbox.Mailbox;
+
+/**
+ * Unit test for {@link ExternalRangedInputStream}.
+ */
+public final class ExternalRangedInputStreamTest {
+
+    private static final class RangedStore implements ExternalRangedDownload {
+        final byte[] data;
+        final AtomicInteger reads = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        int truncate = 0;
+        boolean sized = true;
+
+        RangedStore(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public RangeInputStream readStreamFromStore(String locator, Mailbox mbox, long start, long end)
+                throws IOException {
+            reads.incrementAndGet();
+            if (failures.getAndDecrement() > 0) {
+                throw new IOException("connection reset");
+            }
+            int len = (int) (Math.min(end, data.length) - start) - truncate;
+            return new RangeInputStream(new ByteArrayInputStream(data, (int) start, len), sized ? data.length : -1);
+        }
+    }
+
+    private static byte[] content(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 17);
+        }
+        return data;
+    }
+
+    private static byte[] read(RangedStore store, int maxAttempts) throws IOException {
+        InputStream in = ExternalRangedInputStream.open(store, "locator", null,
+                new ExternalPartTransfer(1000, 3, maxAttempts));
+        if (in == null) {
+            return null;
+        }
+        try {
+            return ByteUtil.getContent(in, store.data.length);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void ranges() throws Exception {
+        RangedStore store = new RangedStore(content(10500));
+        Assert.assertArrayEquals(store.data, read(store, 1));
+        Assert.assertEquals(11, store.reads.get());
+    }
+
+    @Test
+    public void singleRange() throws Exception {
+        RangedStore store = new RangedStore(content(700));
+        Assert.assertArrayEquals(store.data, read(store, 1));
+        Assert.assertEquals(1, store.reads.get());
+    }
+
+    @Test
+    public void unknownSize() throws Exception {
+        RangedStore store = new RangedStore(content(700));
+        store.sized = false;
+        Assert.assertArrayEquals("fits in the first range", store.data, read(store, 1));
+
+        store = new RangedStore(content(2500));
+        store.sized = false;
+        Assert.assertNull("read the whole blob instead", read(store, 1));
+        Assert.assertEquals(1, store.reads.get());
+    }
+
+    @Test
+    public void retry() throws Exception {
+        RangedStore store = new RangedStore(content(2500));
+        store.failures.set(2);
+        Assert.assertArrayEquals(store.data, read(store, 3));
+        Assert.assertEquals(5, store.reads.get());
+    }
+
+    @Test(expected = IOException.class)
+    public void shortRange() throws Exception {
+        RangedStore store = new RangedStore(content(2500));
+        store.truncate = 1;
+        read(store, 1);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.external;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.store.Blob;
+
+/**
+ * In-memory SisStore which keeps the reference count of each blob, and counts uploads.
+ */
+public class MockSisStore extends SisStore {
+
+    private final Map<String, byte[]> blobs = new HashMap<String, byte[]>();
+    private final Map<String, Integer> references = new HashMap<String, Integer>();
+    private int uploads = 0;
+
+    @Override
+    public byte[] getHash(Blob blob) throws ServiceException, IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(ByteUtil.getContent(blob.getInputStream(), -1));
+        } catch (NoSuchAlgorithmException e) {
+            throw ServiceException.FAILURE("SHA-256 digest not found", e);
+        }
+    }
+
+    @Override
+    protected String getLocator(Blob blob) throws ServiceException, IOException {
+        return getLocator(getHash(blob));
+    }
+
+    @Override
+    public String getLocator(byte[] hash) {
+        return Hex.encodeHexString(hash);
+    }
+
+    @Override
+    protected synchronized void writeStreamToStore(InputStream in, long actualSize, Mailbox mbox, String locator)
+            throws IOException {
+        uploads++;
+        blobs.put(locator, ByteUtil.getContent(in, -1));
+        Integer count = references.get(locator);
+        references.put(locator, count == null ? 1 : count + 1);
+    }
+
+    @Override
+    public synchronized InputStream readStreamFromStore(String locator, Mailbox mbox) throws IOException {
+        byte[] data = blobs.get(locator);
+        return data == null ? null : new ByteArrayInputStream(data);
+    }
+
+    @Override
+    public synchronized boolean deleteFromStore(String locator, Mailbox mbox) throws IOException {
+        Integer count = references.get(locator);
+        if (count == null) {
+            return false;
+        } else if (count > 1) {
+            references.put(locator, count - 1);
+        } else {
+            references.remove(locator);
+            blobs.remove(locator);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized List<String> getAllBlobPaths(Mailbox mbox) throws IOException {
+        return new ArrayList<String>(blobs.keySet());
+    }
+
+    @Override
+    protected synchronized boolean addReference(byte[] hash) {
+        String locator = getLocator(hash);
+        Integer count = references.get(locator);
+        if (count == null) {
+            return false;
+        }
+        references.put(locator, count + 1);
+        return true;
+    }
+
+    @Override
+    public Blob getSisBlob(byte[] hash) throws IOException {
+        return addReference(hash) ? getLocalBlob(null, getLocator(hash)) : null;
+    }
+
+    public synchronized int getUploads() {
+        return uploads;
+    }
+
+    public synchronized int getReferences(String locator) {
+        Integer count = references.get(locator);
+        return count == null ? 0 : count;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.external;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.ThreaderTest;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.MailboxBlob;
+import com.zimbra.cs.store.StagedBlob;
+import com.zimbra.cs.store.StoreManager;
+
+public class SisStoreTest extends AbstractExternalStoreManagerTest {
+
+    @Override
+    protected StoreManager getStoreManager() {
+        return new MockSisStore();
+    }
+
+    @Test
+    public void recentContentReferenced() throws Exception {
+        ParsedMessage pm = ThreaderTest.getRootMessage();
+        MockSisStore sm = (MockSisStore) StoreManager.getInstance();
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+
+        Blob blob1 = sm.storeIncoming(pm.getRawInputStream());
+        StagedBlob staged1 = sm.stage(blob1, mbox);
+        MailboxBlob mblob1 = sm.link(staged1, mbox, 0, 0);
+
+        Blob blob2 = sm.storeIncoming(pm.getRawInputStream());
+        StagedBlob staged2 = sm.stage(blob2, mbox);
+        MailboxBlob mblob2 = sm.link(staged2, mbox, 1, 0);
+
+        Assert.assertEquals("same locator", staged1.getLocator(), staged2.getLocator());
+        Assert.assertEquals("same digest", staged1.getDigest(), staged2.getDigest());
+        Assert.assertEquals("uploaded once", 1, sm.getUploads());
+        Assert.assertEquals(2, sm.getReferences(staged1.getLocator()));
+
+        sm.delete(mblob1);
+        Assert.assertEquals(1, sm.getReferences(staged1.getLocator()));
+        Assert.assertNotNull(mblob2.getLocalBlob());
+
+        // the blob is gone from the store, so the next copy is uploaded again
+        sm.delete(mblob2);
+        Blob blob3 = sm.storeIncoming(pm.getRawInputStream());
+        StagedBlob staged3 = sm.stage(blob3, mbox);
+        Assert.assertEquals("uploaded again", 2, sm.getUploads());
+        sm.delete(sm.link(staged3, mbox, 2, 0));
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.MailboxBlob;
+import com.zimbra.cs.store.StagedBlob;
+import com.zimbra.cs.store.StoreManager;
+import com.zimbra.qa.unittest.TestUtil;
+
+/**
+ * Unit test for {@link BatchedSync}.
+ */
+public final class BatchedSyncTest {
+
+    private File dir;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        MailboxTestUtil.initProvisioning();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtil.deleteDir(dir);
+    }
+
+    private File write(String name) throws IOException {
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(name.getBytes());
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void concurrent() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < 100; i++) {
+                final String name = "blob" + i;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        BatchedSync.addFile(write(name));
+                        BatchedSync.addDirectory(dir);
+                        BatchedSync.await();
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void deleted() throws Exception {
+        File file = write("deleted");
+        BatchedSync.addFile(file);
+        Assert.assertTrue(file.delete());
+        BatchedSync.await();
+    }
+
+    /**
+     * Stores a blob, renames or links it into the mailbox, and checks that the blob under its final name is synced,
+     * the incoming file being gone by then.
+     */
+    private void storeAndSync(boolean rename) throws Exception {
+        boolean wasEnabled = BatchedSync.isEnabled();
+        StoreManager original = StoreManager.getInstance();
+        BatchedSync.setEnabled(true);
+        StoreManager.setInstance(new FileBlobStore());
+        StoreManager sm = StoreManager.getInstance();
+        try {
+            sm.startup();
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+            byte[] content = "From: test@zimbra.com\r\n\r\nbody".getBytes();
+            Blob blob = sm.storeIncoming(new ByteArrayInputStream(content));
+            StagedBlob staged = sm.stage(blob, mbox);
+            MailboxBlob mblob;
+            if (rename) {
+                mblob = sm.renameTo(staged, mbox, 0, 0);
+            } else {
+                mblob = sm.link(staged, mbox, 0, 0);
+                sm.quietDelete(blob);
+            }
+            Assert.assertFalse(blob.getFile().exists());
+            long before = BatchedSync.getSyncedFileCount();
+            sm.sync();
+            Assert.assertEquals(1, BatchedSync.getSyncedFileCount() - before);
+            Assert.assertTrue(TestUtil.bytesEqual(content, mblob.getLocalBlob().getInputStream()));
+            sm.delete(mblob);
+        } finally {
+            sm.shutdown();
+            StoreManager.setInstance(original);
+            BatchedSync.setEnabled(wasEnabled);
+        }
+    }
+
+    @Test
+    public void renamed() throws Exception {
+        storeAndSync(true);
+    }
+
+    @Test
+    public void linked() throws Exception {
+        storeAndSync(false);
+    }
+
+    @Test
+    public void nothingAdded() throws Exception {
+        BatchedSync.await();
+        BatchedSync.addFile(write("once"));
+        BatchedSync.await();
+        BatchedSync.await();
+    }
+}
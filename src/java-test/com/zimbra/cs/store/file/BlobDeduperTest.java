@@ -0,0 +1,48 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link BlobDeduper}.
+ */
+public final class BlobDeduperTest {
+
+    @Test
+    public void groupCheckpoint() {
+        BlobDeduper.GroupProgress progress = new BlobDeduper.GroupProgress(Arrays.asList(2, 3, 5, 7));
+        // later groups finish first, the checkpoint must not skip the ones in flight
+        Assert.assertEquals(-1, progress.complete(2));
+        Assert.assertEquals(-1, progress.complete(1));
+        Assert.assertEquals(2, progress.getCompleted());
+        // the first group completes the prefix up to the last contiguous one
+        Assert.assertEquals(5, progress.complete(0));
+        Assert.assertEquals(7, progress.complete(3));
+        Assert.assertEquals(4, progress.getCompleted());
+    }
+
+    @Test
+    public void groupCheckpointInOrder() {
+        BlobDeduper.GroupProgress progress = new BlobDeduper.GroupProgress(Arrays.asList(1, 2));
+        Assert.assertEquals(1, progress.complete(0));
+        Assert.assertEquals(2, progress.complete(1));
+    }
+}
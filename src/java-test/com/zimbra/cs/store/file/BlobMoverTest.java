@@ -0,0 +1,264 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.db.DbMailItem;
+import com.zimbra.cs.db.DbPool;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.localconfig.ServerLC;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.Document;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mime.ParsedDocument;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.store.MailboxBlob.MailboxBlobInfo;
+import com.zimbra.cs.store.StoreManager;
+import com.zimbra.cs.util.SpoolingCache;
+import com.zimbra.cs.volume.Volume;
+import com.zimbra.cs.volume.VolumeManager;
+import com.zimbra.qa.unittest.TestUtil;
+
+public final class BlobMoverTest {
+
+    private StoreManager originalStoreManager;
+    private String originalDeleteDelay;
+    private Volume primary;
+    private Volume secondary;
+    private File secondaryRoot;
+    private BlobMover.BlobMoverThread mover;
+    private Mailbox mbox;
+    private int maxDate;
+    private static final File JOURNAL = new File("build/test/hsm-deletes");
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        MailboxTestUtil.initProvisioning();
+        ServerLC.zimbra_hsm_delete_journal.setDefault(JOURNAL.getPath());
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        originalStoreManager = StoreManager.getInstance();
+        StoreManager.setInstance(new FileBlobStore());
+        StoreManager.getInstance().startup();
+        originalDeleteDelay = ServerLC.zimbra_hsm_delete_delay_secs.value();
+        ServerLC.zimbra_hsm_delete_delay_secs.setDefault("0");
+
+        primary = VolumeManager.getInstance().getCurrentMessageVolume();
+        secondaryRoot = new File(primary.getRootPath() + "-hsm");
+        secondaryRoot.mkdirs();
+        secondary = VolumeManager.getInstance().create(Volume.builder().setPath(secondaryRoot.getAbsolutePath(), true)
+                .setType(Volume.TYPE_MESSAGE_SECONDARY).setName("hsm").build());
+        VolumeManager.getInstance().setCurrentVolume(Volume.TYPE_MESSAGE_SECONDARY, secondary.getId());
+
+        mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        maxDate = (int) (System.currentTimeMillis() / 1000) + 60;
+        mover = BlobMover.getInstance().new BlobMoverThread(2, 2);
+        Assert.assertTrue(mover.open());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mover.close();
+        VolumeManager.getInstance().setCurrentVolume(Volume.TYPE_MESSAGE_SECONDARY, Volume.ID_NONE);
+        FileUtil.deleteDir(secondaryRoot);
+        ServerLC.zimbra_hsm_delete_delay_secs.setDefault(originalDeleteDelay);
+        StoreManager.getInstance().shutdown();
+        StoreManager.setInstance(originalStoreManager);
+    }
+
+    private Message addMessage(int i) throws Exception {
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        return mbox.addMessage(null, new ParsedMessage(("From: test" + i + "@zimbra.com\r\n\r\nbody " + i).getBytes(),
+                false), dopt, null);
+    }
+
+    private void moveMessages() throws Exception {
+        mover.moveBlobs(mbox, DbMailItem.getMailItemTableName(mbox), "id", Collections.singletonList(primary.getId()),
+                secondary, maxDate, 0);
+    }
+
+    private File getPath(MailItem item, Volume vol) throws Exception {
+        return new File(FileBlobStore.getBlobPath(mbox, item.getId(), item.getSavedSequence(), vol.getId()));
+    }
+
+    @Test
+    public void move() throws Exception {
+        List<Message> msgs = new ArrayList<Message>();
+        List<byte[]> contents = new ArrayList<byte[]>();
+        for (int i = 0; i < 5; i++) {
+            Message msg = addMessage(i);
+            msgs.add(msg);
+            contents.add(msg.getContent());
+        }
+        int moved = BlobMover.getInstance().getCountAndSize().getFirst();
+
+        moveMessages();
+
+        Assert.assertEquals(msgs.size(), BlobMover.getInstance().getCountAndSize().getFirst() - moved);
+        for (int i = 0; i < msgs.size(); i++) {
+            Message msg = mbox.getMessageById(null, msgs.get(i).getId());
+            Assert.assertEquals(secondary.getLocator(), msg.getLocator());
+            Assert.assertEquals(msgs.get(i).getDigest(), msg.getDigest());
+            Assert.assertTrue("copy", getPath(msg, secondary).exists());
+            Assert.assertTrue("content", TestUtil.bytesEqual(contents.get(i), msg.getContentStream()));
+            Assert.assertFalse("original deleted", getPath(msg, primary).exists());
+        }
+    }
+
+    @Test
+    public void originalKeptForGracePeriod() throws Exception {
+        ServerLC.zimbra_hsm_delete_delay_secs.setDefault("3600");
+        Message msg = addMessage(0);
+        File original = getPath(msg, primary);
+
+        moveMessages();
+
+        Assert.assertEquals(secondary.getLocator(), mbox.getMessageById(null, msg.getId()).getLocator());
+        Assert.assertTrue("original kept", original.exists());
+        // a reader that looked the item up before the move can still read it
+        Assert.assertTrue(TestUtil.bytesEqual(msg.getContent(), msg.getContentStream()));
+        Assert.assertTrue("journal", JOURNAL.exists());
+    }
+
+    @Test
+    public void originalDeletedAfterRestart() throws Exception {
+        ServerLC.zimbra_hsm_delete_delay_secs.setDefault("3600");
+        Message msg = addMessage(0);
+        File original = getPath(msg, primary);
+
+        moveMessages();
+        Assert.assertTrue("original kept", original.exists());
+
+        // the timer of the previous run is gone, the journal is all that is left
+        new PendingBlobDeletes(JOURNAL).deleteDue(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(2));
+        Assert.assertFalse("original deleted", original.exists());
+        Assert.assertFalse("journal deleted", JOURNAL.exists());
+    }
+
+    @Test
+    public void digestMismatch() throws Exception {
+        Message msg = addMessage(0);
+        File original = getPath(msg, primary);
+        FileWriter writer = new FileWriter(original, true);
+        writer.write("some garbage");
+        writer.close();
+
+        moveMessages();
+
+        Assert.assertEquals(primary.getLocator(), mbox.getMessageById(null, msg.getId()).getLocator());
+        Assert.assertTrue("original kept", original.exists());
+        Assert.assertFalse("copy deleted", getPath(msg, secondary).exists());
+    }
+
+    @Test
+    public void changedWhileMoving() throws Exception {
+        ParsedDocument pd = new ParsedDocument(new ByteArrayInputStream("testcontent".getBytes()), "docname",
+                "text/plain", System.currentTimeMillis(), null, null);
+        Document doc = mbox.createDocument(null, Mailbox.ID_FOLDER_BRIEFCASE, pd, MailItem.Type.DOCUMENT, 0);
+        File original = getPath(doc, primary);
+
+        String tableName = DbMailItem.getMailItemTableName(mbox);
+        List<MailboxBlobInfo> batch = new ArrayList<MailboxBlobInfo>();
+        DbConnection conn = DbPool.getConnection(mbox);
+        try {
+            SpoolingCache<MailboxBlobInfo> blobs = DbMailItem.getBlobsToMove(conn, mbox, tableName, "id",
+                    Collections.singletonList(primary.getId()), maxDate, 0);
+            for (MailboxBlobInfo info : blobs) {
+                batch.add(info);
+            }
+            blobs.cleanup();
+        } finally {
+            DbPool.quietClose(conn);
+        }
+        Assert.assertEquals(1, batch.size());
+        Assert.assertEquals(doc.getId(), batch.get(0).itemId);
+
+        // a new revision is saved after the blob was selected; the old one moves to the revision table
+        pd = new ParsedDocument(new ByteArrayInputStream("testcontent-new".getBytes()), "docname", "text/plain",
+                System.currentTimeMillis(), null, null);
+        Document rev = mbox.addDocumentRevision(null, doc.getId(), pd);
+
+        mover.moveBatch(mbox, tableName, "id", batch, secondary);
+
+        Assert.assertEquals(primary.getLocator(), mbox.getDocumentById(null, rev.getId()).getLocator());
+        Assert.assertTrue("original kept", original.exists());
+        Assert.assertFalse("copy deleted", getPath(doc, secondary).exists());
+    }
+
+    @Test
+    public void selection() throws Exception {
+        Message small = addMessage(0);
+        Message large = mbox.addMessage(null, new ParsedMessage(("From: test@zimbra.com\r\n\r\n" +
+                new String(new char[4096]).replace('\0', 'x')).getBytes(), false),
+                new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX), null);
+
+        DbConnection conn = DbPool.getConnection(mbox);
+        try {
+            String tableName = DbMailItem.getMailItemTableName(mbox);
+            List<Short> sources = Collections.singletonList(primary.getId());
+
+            List<Integer> ids = new ArrayList<Integer>();
+            SpoolingCache<MailboxBlobInfo> blobs = DbMailItem.getBlobsToMove(conn, mbox, tableName, "id", sources,
+                    maxDate, 4096);
+            for (MailboxBlobInfo info : blobs) {
+                ids.add(info.itemId);
+                Assert.assertEquals(large.getDigest(), info.digest);
+                Assert.assertEquals(primary.getLocator(), info.locator);
+            }
+            blobs.cleanup();
+            Assert.assertEquals(Collections.singletonList(large.getId()), ids);
+
+            blobs = DbMailItem.getBlobsToMove(conn, mbox, tableName, "id", sources, (int) (small.getDate() / 1000), 0);
+            Assert.assertEquals("too recent", 0, blobs.size());
+            blobs.cleanup();
+
+            blobs = DbMailItem.getBlobsToMove(conn, mbox, tableName, "id",
+                    Collections.singletonList(secondary.getId()), maxDate, 0);
+            Assert.assertEquals("other volume", 0, blobs.size());
+            blobs.cleanup();
+        } finally {
+            DbPool.quietClose(conn);
+        }
+    }
+}
@@ -19,18 +19,30 @@ package com.zimbra.cs.store.file;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
+import junit.framework.Assert;
+
+import org.junit.Test;
+
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.FileUtil;
 import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.mailbox.DeliveryOptions;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mime.ParsedMessage;
 import com.zimbra.cs.store.AbstractBlobConsistencyCheckTest;
 import com.zimbra.cs.store.MailboxBlob;
 import com.zimbra.cs.store.StoreManager;
+import com.zimbra.cs.store.file.BlobConsistencyChecker.BlobInfo;
+import com.zimbra.cs.store.file.BlobConsistencyChecker.Results;
 import com.zimbra.cs.volume.Volume;
 import com.zimbra.cs.volume.VolumeManager;
 
@@ -78,6 +90,53 @@ public class FileBlobStoreConsistencyCheckTest extends AbstractBlobConsistencyCh
         return file.getCanonicalPath();
     }
 
+    /**
+     * One blob per directory, in more directories than are checked in parallel, so that results from directories
+     * checked by different workers are merged.
+     */
+    @Test
+    public void manyDirectories() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Volume originalVolume = VolumeManager.getInstance().getCurrentMessageVolume();
+        File root = new File(originalVolume.getRootPath() + "-dirs");
+        root.mkdirs();
+        Volume vol = Volume.builder().setPath(root.getAbsolutePath(), true).setType(Volume.TYPE_MESSAGE)
+                .setName("dirs").setFileBits((short) 0).setFileGroupBits((short) 5).build();
+        vol = VolumeManager.getInstance().create(vol);
+        VolumeManager.getInstance().setCurrentVolume(Volume.TYPE_MESSAGE, vol.getId());
+        try {
+            DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+            int msgs = 40;
+            List<Message> added = new ArrayList<Message>();
+            for (int i = 0; i < msgs; i++) {
+                added.add(mbox.addMessage(null, new ParsedMessage(("From: test" + i + "@zimbra.com").getBytes(), false),
+                        dopt, null));
+            }
+
+            Message missing = added.get(3);
+            Assert.assertTrue(missing.getBlob().getLocalBlob().getFile().delete());
+            MailboxBlob wrongSize = added.get(5).getBlob();
+            appendText(wrongSize, "some garbage");
+            File unexpected = new File(vol.getBlobDir(mbox.getId(), added.get(7).getId()), "foo.txt");
+            unexpected.createNewFile();
+
+            Results results = getChecker().check(Collections.singleton(vol.getId()), mbox.getId(), true, true);
+
+            Assert.assertEquals(1, results.missingBlobs.size());
+            Assert.assertTrue(results.missingBlobs.containsKey(missing.getId()));
+            Assert.assertEquals(1, results.incorrectSize.size());
+            Assert.assertTrue(results.incorrectSize.containsKey(added.get(5).getId()));
+            Assert.assertEquals(1, results.unexpectedBlobs.size());
+            BlobInfo info = results.unexpectedBlobs.values().iterator().next();
+            Assert.assertEquals(unexpected.getAbsolutePath(), info.path);
+            Assert.assertEquals(msgs - 1, results.usedBlobs.size());
+            Assert.assertEquals(0, results.incorrectModContent.size());
+        } finally {
+            VolumeManager.getInstance().setCurrentVolume(Volume.TYPE_MESSAGE, originalVolume.getId());
+            FileUtil.deleteDir(root);
+        }
+    }
+
     @Override
     protected StoreManager getStoreManager() {
         return new FileBlobStore();
@@ -0,0 +1,210 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.triton;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.cs.store.external.ExternalPartTransfer;
+import com.zimbra.cs.store.triton.TritonBlobStoreManager.HashType;
+
+/**
+ * Unit test for {@link TritonIncomingOutputStream} against a stand-in TDS upload API.
+ */
+public final class TritonIncomingOutputStreamTest {
+    private static final int PORT = 7680;
+    private static final String BASE_URL = "http://localhost:" + PORT;
+
+    private ServerSocket ssock;
+    private final byte[] uploaded = new byte[64 * 1024];
+    private int uploadedLength = 0;
+    private int tokens = 0;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        final ServerSocket s = ssock = new ServerSocket(PORT);
+        new Thread() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        final Socket socket = s.accept();
+                        new Thread() {
+                            @Override
+                            public void run() {
+                                try {
+                                    handle(socket);
+                                } catch (IOException e) {
+                                }
+                            }
+                        }.start();
+                    } catch (IOException e) {
+                        break;
+                    }
+                }
+            }
+        }.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ssock.close();
+    }
+
+    /**
+     * Stores the part at its Content-Range offset. The first POST to /blob starts the upload session. Like TDS, each
+     * response carries a new server token, which the next append must send; so appends must come in order.
+     */
+    private void handle(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        try {
+            StringBuilder reqline = new StringBuilder();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                reqline.append((char) b);
+            }
+            String uri = reqline.toString().trim().split(" ")[1];
+            InternetHeaders headers = new InternetHeaders(in);
+            int length = Integer.parseInt(headers.getHeader("Content-Length", null));
+            byte[] body = ByteUtil.readInput(in, length, length);
+            requests.incrementAndGet();
+            if (failures.getAndDecrement() > 0) {
+                out.write("HTTP/1.0 500 X\r\nContent-Length: 0\r\n\r\n".getBytes());
+                return;
+            }
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            Assert.assertEquals(Base64.encodeBase64String(md5.digest(body)), headers.getHeader("Content-MD5", null));
+            String range = headers.getHeader("Content-Range", null);
+            int offset = Integer.parseInt(range.substring("bytes ".length(), range.indexOf('-')));
+            String token;
+            synchronized (this) {
+                Assert.assertEquals("in order", uploadedLength, offset);
+                if (uri.equals("/blob")) {
+                    Assert.assertEquals(0, offset);
+                } else {
+                    Assert.assertEquals("/upload/1", uri);
+                    Assert.assertEquals("token-" + tokens, headers.getHeader("X-Mozy-Server-Token", null));
+                }
+                System.arraycopy(body, 0, uploaded, offset, body.length);
+                uploadedLength = offset + body.length;
+                token = "token-" + ++tokens;
+            }
+            if (uri.equals("/blob")) {
+                out.write(("HTTP/1.0 303 X\r\nLocation: /upload/1\r\nX-Mozy-Server-Token: " + token + "\r\n" +
+                        "Content-Length: 0\r\n\r\n").getBytes());
+            } else {
+                out.write(("HTTP/1.0 200 X\r\nX-Mozy-Server-Token: " + token + "\r\nContent-Length: 0\r\n\r\n")
+                        .getBytes());
+            }
+            out.flush();
+        } catch (MessagingException e) {
+            throw new IOException(e);
+        } catch (Exception e) {
+            out.write("HTTP/1.0 400 X\r\nContent-Length: 0\r\n\r\n".getBytes());
+        } finally {
+            ByteUtil.closeStream(in);
+            ByteUtil.closeStream(out);
+            socket.close();
+        }
+    }
+
+    private static byte[] content(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    private TritonIncomingOutputStream newStream(MessageDigest digest, AtomicLong written, int maxAttempts) {
+        return new TritonIncomingOutputStream(null, digest, HashType.SHA256, BASE_URL, new TritonUploadUrl(),
+                new MozyServerToken(), written, new ExternalPartTransfer(1000, 4, maxAttempts));
+    }
+
+    @Test
+    public void parts() throws Exception {
+        byte[] data = content(10500);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        AtomicLong written = new AtomicLong();
+        TritonIncomingOutputStream out = newStream(digest, written, 1);
+        for (int i = 0; i < data.length; i += 700) {
+            out.writeToExternal(data, i, Math.min(700, data.length - i));
+        }
+        out.flush();
+
+        Assert.assertEquals(data.length, written.get());
+        Assert.assertEquals(11, requests.get());
+        synchronized (this) {
+            Assert.assertEquals(data.length, uploadedLength);
+            Assert.assertArrayEquals(data, Arrays.copyOf(uploaded, uploadedLength));
+        }
+        Assert.assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(data), digest.digest());
+    }
+
+    @Test
+    public void retry() throws Exception {
+        byte[] data = content(3000);
+        AtomicLong written = new AtomicLong();
+        TritonIncomingOutputStream out = newStream(MessageDigest.getInstance("SHA-256"), written, 3);
+        failures.set(2);
+        out.writeToExternal(data, 0, data.length);
+        out.flush();
+
+        Assert.assertEquals(data.length, written.get());
+        Assert.assertEquals(5, requests.get());
+        synchronized (this) {
+            Assert.assertArrayEquals(data, Arrays.copyOf(uploaded, uploadedLength));
+        }
+    }
+
+    @Test
+    public void failure() throws Exception {
+        byte[] data = content(3000);
+        AtomicLong written = new AtomicLong();
+        TritonIncomingOutputStream out = newStream(MessageDigest.getInstance("SHA-256"), written, 1);
+        out.writeToExternal(data, 0, 1000);
+        failures.set(1);
+        out.writeToExternal(data, 1000, 2000);
+        try {
+            out.flush();
+            Assert.fail("part failure not reported");
+        } catch (IOException expected) {
+        }
+        Assert.assertEquals(0, written.get());
+    }
+}
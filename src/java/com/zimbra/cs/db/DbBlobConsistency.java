@@ -174,6 +174,54 @@ public class DbBlobConsistency {
 
 
 
+    /**
+     * Returns the size of an item or revision, in the live or dumpster tables, that still has its blob at the given
+     * revision on the volume.  Used by tools that rewrite blob files outside of a mailbox transaction, to tell whether
+     * the blob was deleted or moved meanwhile, and whether the file is compressed.
+     *
+     * @param groupId mailbox group of the mailbox, see {@link Mailbox#getSchemaGroupId()}
+     * @param modContent revision of the blob, or -1 for a blob named without one
+     * @return the uncompressed size of the blob, or -1 if nothing references it
+     */
+    public static long getBlobSize(DbConnection conn, int mboxId, int groupId, int itemId, int modContent,
+            short volumeId) throws ServiceException {
+        StringBuilder sql = new StringBuilder();
+        for (boolean dumpster : new boolean[] { false, true }) {
+            for (boolean revision : new boolean[] { false, true }) {
+                if (sql.length() > 0) {
+                    sql.append(" UNION ALL ");
+                }
+                sql.append("SELECT size FROM ").append(revision ?
+                        DbMailItem.getRevisionTableName(groupId, dumpster) :
+                        DbMailItem.getMailItemTableName(groupId, dumpster));
+                sql.append(" WHERE ").append(DbMailItem.IN_THIS_MAILBOX_AND).append(revision ? "item_id" : "id");
+                sql.append(" = ? AND blob_digest IS NOT NULL AND locator = ").append(volumeId);
+                if (modContent >= 0) {
+                    sql.append(" AND mod_content = ").append(modContent);
+                }
+            }
+        }
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.prepareStatement(sql.toString());
+            int pos = 1;
+            for (int i = 0; i < 4; i++) {
+                if (!DebugConfig.disableMailboxGroups) {
+                    stmt.setInt(pos++, mboxId);
+                }
+                stmt.setInt(pos++, itemId);
+            }
+            rs = stmt.executeQuery();
+            return rs.next() ? rs.getLong(1) : -1;
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("checking blob of item " + itemId + " in mailbox " + mboxId, e);
+        } finally {
+            DbPool.closeResults(rs);
+            DbPool.quietCloseStatement(stmt);
+        }
+    }
+
     public static int getMaxId(DbConnection conn, Mailbox mbox)
     throws ServiceException {
         int maxId = 0;
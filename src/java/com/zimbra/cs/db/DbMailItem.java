@@ -1296,9 +1296,15 @@ public class DbMailItem {
         PreparedStatement stmt = null;
         try {
             stmt = conn.prepareStatement("UPDATE " + getMailItemTableName(mbox) +
-                        " SET date = ?, mod_metadata = ?, change_date = ? WHERE " + IN_THIS_MAILBOX_AND + "id = ?");
+                        " SET date = ?, index_id = ?, mod_metadata = ?, change_date = ? WHERE " + IN_THIS_MAILBOX_AND + "id = ?");
             int pos = 1;
             stmt.setInt(pos++, (int) (item.getDate() / 1000));
+            // the item is reindexed when its date changes, see MailItem.setDate()
+            if (item.getIndexStatus() == MailItem.IndexStatus.NO) {
+                stmt.setNull(pos++, Types.INTEGER);
+            } else {
+                stmt.setInt(pos++, item.getIndexId());
+            }
             stmt.setInt(pos++, mbox.getOperationChangeID());
             stmt.setInt(pos++, mbox.getOperationTimestamp());
             pos = setMailboxId(stmt, mbox, pos);
@@ -3647,6 +3653,50 @@ public class DbMailItem {
         }
     }
 
+    /**
+     * Returns the blobs in one of the mailbox's item tables that the HSM policy selects for moving off the given
+     * volumes: those of items dated before {@code maxDate} whose size is at least {@code minSize}.
+     *
+     * @param tableName a mail_item or revision table, or one of their dumpster tables
+     * @param idColumn {@code id} for mail_item tables, {@code item_id} for revision tables
+     * @param maxDate seconds since the epoch
+     */
+    public static SpoolingCache<MailboxBlob.MailboxBlobInfo> getBlobsToMove(DbConnection conn, Mailbox mbox,
+            String tableName, String idColumn, Collection<Short> volumeIds, int maxDate, long minSize)
+            throws ServiceException {
+        SpoolingCache<MailboxBlob.MailboxBlobInfo> blobs = new SpoolingCache<MailboxBlob.MailboxBlobInfo>(5000);
+        if (volumeIds.isEmpty()) {
+            return blobs;
+        }
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.prepareStatement("SELECT " + idColumn + ", mod_content, locator, blob_digest FROM " + tableName +
+                    " WHERE " + IN_THIS_MAILBOX_AND + "blob_digest IS NOT NULL AND date < ? AND size >= ? AND " +
+                    DbUtil.whereIn("locator", volumeIds.size()));
+            int pos = 1;
+            pos = setMailboxId(stmt, mbox, pos);
+            stmt.setInt(pos++, maxDate);
+            stmt.setLong(pos++, minSize);
+            for (short volumeId : volumeIds) {
+                stmt.setString(pos++, Short.toString(volumeId));
+            }
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                blobs.add(new MailboxBlob.MailboxBlobInfo(mbox.getAccountId(), mbox.getId(), rs.getInt(1), rs.getInt(2),
+                        rs.getString(3), rs.getString(4)));
+            }
+            return blobs;
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("fetching blobs to move for mailbox " + mbox.getId(), e);
+        } catch (IOException e) {
+            throw ServiceException.FAILURE("fetching blobs to move for mailbox " + mbox.getId(), e);
+        } finally {
+            DbPool.closeResults(rs);
+            DbPool.closeStatement(stmt);
+        }
+    }
+
     private static void getAllBlobs(PreparedStatement stmt, int volumeId, int lastSyncDate, int currentSyncDate,
             SpoolingCache<MailboxBlob.MailboxBlobInfo> blobs) throws ServiceException, SQLException, IOException {
         ResultSet rs = null;
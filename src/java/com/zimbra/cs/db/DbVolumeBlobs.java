@@ -21,7 +21,9 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.cs.db.DbPool.DbConnection;
@@ -112,6 +114,30 @@ public final class DbVolumeBlobs {
         }
     }
 
+    /**
+     * Sets the processed flag of many blob references, in statements of up to {@link Db#getINClauseBatchSize()}.
+     */
+    public static void updateProcessed(DbConnection conn, List<Long> ids, boolean processed) throws ServiceException {
+        for (int i = 0; i < ids.size(); i += Db.getINClauseBatchSize()) {
+            int count = Math.min(Db.getINClauseBatchSize(), ids.size() - i);
+            PreparedStatement stmt = null;
+            try {
+                stmt = conn.prepareStatement("UPDATE " + TB_VOLUME_BLOBS + " SET " + CN_PROCESSED + " = ? WHERE " +
+                        DbUtil.whereIn(CN_ID, count));
+                int pos = 1;
+                stmt.setBoolean(pos++, processed);
+                for (int j = i; j < i + count; j++) {
+                    stmt.setLong(pos++, ids.get(j));
+                }
+                stmt.executeUpdate();
+            } catch (SQLException e) {
+                throw ServiceException.FAILURE("unable to update processed", e);
+            } finally {
+                DbPool.closeStatement(stmt);
+            }
+        }
+    }
+
     public static List<BlobReference> getBlobReferences(DbConnection conn, String digest, Volume volume) throws ServiceException {
         PreparedStatement stmt = null;
         ResultSet rs = null;
@@ -130,6 +156,43 @@ public final class DbVolumeBlobs {
         }
     }
 
+    /**
+     * Returns the blob references of many digests, grouped by digest.
+     */
+    public static Map<String, List<BlobReference>> getBlobReferences(DbConnection conn, List<String> digests,
+            Volume volume) throws ServiceException {
+        Map<String, List<BlobReference>> result = new LinkedHashMap<String, List<BlobReference>>();
+        for (int i = 0; i < digests.size(); i += Db.getINClauseBatchSize()) {
+            int count = Math.min(Db.getINClauseBatchSize(), digests.size() - i);
+            PreparedStatement stmt = null;
+            ResultSet rs = null;
+            try {
+                stmt = conn.prepareStatement(SELECT_BLOB_REFS + DbUtil.whereIn(CN_DIGEST, count) + " AND " +
+                        CN_VOLUME_ID + " = ? ORDER BY " + CN_DIGEST + " ASC");
+                int pos = 1;
+                for (int j = i; j < i + count; j++) {
+                    stmt.setString(pos++, digests.get(j));
+                }
+                stmt.setShort(pos++, volume.getId());
+                rs = stmt.executeQuery();
+                for (BlobReference blob : fillBlobReferences(rs)) {
+                    List<BlobReference> blobs = result.get(blob.getDigest());
+                    if (blobs == null) {
+                        blobs = new ArrayList<BlobReference>();
+                        result.put(blob.getDigest(), blobs);
+                    }
+                    blobs.add(blob);
+                }
+            } catch (SQLException e) {
+                throw ServiceException.FAILURE("unable to query blob references", e);
+            } finally {
+                DbPool.closeResults(rs);
+                DbPool.closeStatement(stmt);
+            }
+        }
+        return result;
+    }
+
     private static List<BlobReference> fillBlobReferences(ResultSet rs) throws SQLException {
         List<BlobReference> blobs = new ArrayList<BlobReference>();
         while (rs.next()) {
@@ -3776,7 +3776,14 @@ abstract class ImapHandler {
                         }
                     }
 
-                    if ((parts != null && !parts.isEmpty()) || (attributes & FETCH_FROM_MIME) != 0) {
+                    if ((attributes & FETCH_FROM_MIME) == 0 && parts != null && !parts.isEmpty() && isRawParts(parts)) {
+                        // the parts are read from their location in the blob, once it's known
+                        for (ImapPartSpecifier pspec : parts) {
+                            result.print(empty ? "" : " ");
+                            pspec.write(result, output, item);
+                            empty = false;
+                        }
+                    } else if ((parts != null && !parts.isEmpty()) || (attributes & FETCH_FROM_MIME) != 0) {
                         mm = ImapMessage.getMimeMessage(item);
                         if ((attributes & FETCH_BODY) != 0) {
                             result.print(empty ? "" : " ");
@@ -3874,6 +3881,15 @@ abstract class ImapHandler {
         throw new ImapIOException("IOException during message fetch", cause);
     }
 
+    private static boolean isRawParts(List<ImapPartSpecifier> parts) {
+        for (ImapPartSpecifier pspec : parts) {
+            if (!pspec.isRawPart()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private void fetchStub(ImapMessage i4msg, ImapFolder i4folder, int attributes, List<ImapPartSpecifier> parts, List<ImapPartSpecifier> fullMessage, PrintStream result)
     throws ServiceException {
         // RFC 2180 4.1.3: "The server MAY allow the EXPUNGE of a multi-accessed mailbox, and
@@ -0,0 +1,93 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.Pair;
+import com.zimbra.cs.localconfig.ServerLC;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.store.BlobInputStream;
+
+/**
+ * Remembers where in the blob the raw content of each fetched MIME part is, by message digest and part number, so
+ * that clients fetching an attachment in pieces ({@code BODY[2]<0.65536>}, {@code BODY[2]<65536.65536>}, ...) get
+ * exactly those bytes read from the blob, without the message being parsed again.
+ */
+final class ImapPartOffsets {
+
+    private static final Cache<String, Map<String, long[]>> cache = CacheBuilder.newBuilder()
+            .maximumSize(ServerLC.imap_part_offset_cache_size.intValue()).build();
+
+    private ImapPartOffsets() {
+    }
+
+    /**
+     * Returns the raw content of a part, or {@code null} if its location isn't known.
+     */
+    static Pair<Long, InputStream> getContent(MailItem item, String part) throws ServiceException {
+        if (!(item instanceof Message) || item.getDigest() == null) {
+            return null;
+        }
+        Map<String, long[]> parts = cache.getIfPresent(item.getDigest());
+        long[] range = parts == null ? null : parts.get(part);
+        if (range == null) {
+            return null;
+        }
+        InputStream in = item.getContentStream();
+        try {
+            if (!(in instanceof BlobInputStream)) {
+                return null;
+            }
+            // null if the blob isn't as long as the range, i.e. this isn't the content the range was recorded for
+            InputStream is = ((BlobInputStream) in).newStream(range[0], range[1]);
+            return is == null ? null : new Pair<Long, InputStream>(range[1] - range[0], is);
+        } finally {
+            ByteUtil.closeStream(in);
+        }
+    }
+
+    /**
+     * Records the location of a part, if its content is read straight from the blob.
+     */
+    static void record(MailItem item, String part, Pair<Long, InputStream> contents) {
+        if (!(item instanceof Message) || item.getDigest() == null || contents == null ||
+                !(contents.getSecond() instanceof BlobInputStream)) {
+            return;
+        }
+        BlobInputStream bis = (BlobInputStream) contents.getSecond();
+        if (bis.getPosition() != 0 || bis.getSize() != contents.getFirst()) {
+            return;
+        }
+        Map<String, long[]> parts = cache.getIfPresent(item.getDigest());
+        if (parts == null) {
+            Map<String, long[]> existing = cache.asMap().putIfAbsent(item.getDigest(),
+                    parts = new ConcurrentHashMap<String, long[]>());
+            if (existing != null) {
+                parts = existing;
+            }
+        }
+        parts.put(part, new long[] { bis.getFilePointer(), bis.getFilePointer() + bis.getSize() });
+    }
+}
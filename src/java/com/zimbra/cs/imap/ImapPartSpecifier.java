@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.channels.FileChannel;
 import java.util.Enumeration;
 import java.util.List;
 
@@ -38,6 +39,8 @@ import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mime.Mime;
+import com.zimbra.cs.server.NioOutputStream;
+import com.zimbra.cs.store.BlobInputStream;
 
 class ImapPartSpecifier {
     static class BinaryDecodingException extends Exception {
@@ -78,6 +81,13 @@ class ImapPartSpecifier {
         return part.equals("") && modifier.equals("");
     }
 
+    /**
+     * Returns true if this is the undecoded content of a MIME part, which is a byte range of the blob.
+     */
+    boolean isRawPart() {
+        return !part.equals("") && modifier.equals("") && !command.startsWith("BINARY");
+    }
+
     ImapPartSpecifier setHeaders(List<String> headers) {
         this.requestedHeaders = headers;
         return this;
@@ -170,7 +180,7 @@ class ImapPartSpecifier {
                 ps.write('}');
                 if (os != null) {
                     os.write(ImapHandler.LINE_SEPARATOR_BYTES);
-                    long written = ByteUtil.copy(is, false, os, false);
+                    long written = copy(is, os);
                     assert written == length;
                 }
             }
@@ -179,15 +189,41 @@ class ImapPartSpecifier {
         }
     }
 
+    /**
+     * Sends uncompressed blobs as a file region when the connection allows it, so that the kernel copies them to the
+     * socket.
+     */
+    private static long copy(InputStream is, OutputStream os) throws IOException {
+        if (is instanceof BlobInputStream && os instanceof NioOutputStream &&
+                ((NioOutputStream) os).isFileRegionSupported()) {
+            BlobInputStream bis = (BlobInputStream) is;
+            FileChannel channel = bis.openChannel();
+            if (channel != null) {
+                long count = bis.getSize() - bis.getPosition();
+                ((NioOutputStream) os).write(channel, bis.getFilePointer(), count);
+                return bis.skip(count);
+            }
+        }
+        return ByteUtil.copy(is, false, os, false);
+    }
+
     Pair<Long, InputStream> getContent(Object obj) throws IOException, BinaryDecodingException, ServiceException {
         Pair<Long, InputStream> contents;
         if (obj instanceof MimeMessage) {
             contents = getContent((MimeMessage) obj);
         } else if (obj instanceof MailItem) {
-            if (!isEntireMessage()) {
+            MailItem item = (MailItem) obj;
+            if (isRawPart()) {
+                contents = ImapPartOffsets.getContent(item, part);
+                if (contents == null) {
+                    contents = getContent(ImapMessage.getMimeMessage(item));
+                    ImapPartOffsets.record(item, part, contents);
+                }
+            } else if (isEntireMessage()) {
+                contents = ImapMessage.getContent(item);
+            } else {
                 throw ServiceException.FAILURE("called writeMessage on non-toplevel part", null);
             }
-            contents = ImapMessage.getContent((MailItem) obj);
         } else {
             throw ServiceException.FAILURE("called write() with unexpected argument: "
                     + (obj == null ? "null" : obj.getClass().getSimpleName()), null);
@@ -483,41 +483,7 @@ public class DBQueryOperation extends QueryOperation {
             while (toRet == null) {
                 // Check to see if we need to refil mDBHits
                 if ((dbHitsIter == null || !dbHitsIter.hasNext()) && !endOfHits) {
-                    if (fetch == null) {
-                        switch (context.getResults().getFetchMode()) {
-                            case NORMAL:
-                                fetch = isTopLevelQueryOp() ? DbSearch.FetchMode.MAIL_ITEM : DbSearch.FetchMode.ID;
-                                break;
-                            case IMAP:
-                                fetch = DbSearch.FetchMode.IMAP_MSG;
-                                break;
-                            case IDS:
-                                fetch = DbSearch.FetchMode.ID;
-                                break;
-                            case MODSEQ:
-                                fetch = DbSearch.FetchMode.MODSEQ;
-                                break;
-                            case PARENT:
-                                fetch = DbSearch.FetchMode.PARENT;
-                                break;
-                            default:
-                                assert false : context.getResults().getFetchMode();
-                        }
-                    }
-
-                    if (executeMode == null) {
-                        if (hasNoResults()) {
-                            executeMode = QueryExecuteMode.NO_RESULTS;
-                        } else if (luceneOp == null) {
-                            executeMode = QueryExecuteMode.NO_LUCENE;
-                        } else if (shouldExecuteDbFirst()) {
-                            luceneOp.clearFilterClause();
-                            executeMode = QueryExecuteMode.DB_FIRST;
-                        } else {
-                            executeMode = QueryExecuteMode.LUCENE_FIRST;
-                        }
-                    }
-
+                    prepareExecute();
                     getNextChunk();
                 }
 
@@ -564,6 +530,77 @@ public class DBQueryOperation extends QueryOperation {
         return toRet;
     }
 
+    /**
+     * Picks the fetch mode and the execution strategy before the first chunk is read.
+     */
+    private void prepareExecute() throws ServiceException {
+        if (fetch == null) {
+            switch (context.getResults().getFetchMode()) {
+                case NORMAL:
+                    fetch = isTopLevelQueryOp() ? DbSearch.FetchMode.MAIL_ITEM : DbSearch.FetchMode.ID;
+                    break;
+                case IMAP:
+                    fetch = DbSearch.FetchMode.IMAP_MSG;
+                    break;
+                case IDS:
+                    fetch = DbSearch.FetchMode.ID;
+                    break;
+                case MODSEQ:
+                    fetch = DbSearch.FetchMode.MODSEQ;
+                    break;
+                case PARENT:
+                    fetch = DbSearch.FetchMode.PARENT;
+                    break;
+                default:
+                    assert false : context.getResults().getFetchMode();
+            }
+        }
+
+        if (executeMode == null) {
+            if (hasNoResults()) {
+                executeMode = QueryExecuteMode.NO_RESULTS;
+            } else if (luceneOp == null) {
+                executeMode = QueryExecuteMode.NO_LUCENE;
+            } else if (shouldExecuteDbFirst()) {
+                luceneOp.clearFilterClause();
+                executeMode = QueryExecuteMode.DB_FIRST;
+            } else {
+                executeMode = QueryExecuteMode.LUCENE_FIRST;
+            }
+        }
+    }
+
+    /**
+     * Collects item IDs, and the part names of message parts matched in Lucene, straight from the DB results, without
+     * building a {@link ZimbraHit} per result.
+     */
+    @Override
+    void collectMatches(QueryContext ctx, ItemMatches matches) throws ServiceException {
+        begin(ctx);
+        fetch = DbSearch.FetchMode.ID;
+        while (true) {
+            if (dbHitsIter == null || !dbHitsIter.hasNext()) {
+                if (endOfHits) {
+                    return;
+                }
+                prepareExecute();
+                getNextChunk();
+                if (dbHitsIter == null) {
+                    return;
+                }
+            }
+            DbSearch.Result sr = dbHitsIter.next();
+            Collection<Document> docs = luceneChunk != null ? luceneChunk.getHit(sr.getIndexId()) : null;
+            if (docs == null || !ZimbraQueryResultsImpl.shouldAddDuplicateHits(sr.getType())) {
+                matches.addItem(sr.getId());
+            } else {
+                for (Document doc : docs) {
+                    matches.addPart(sr.getId(), doc.get(LuceneFields.L_PARTNAME));
+                }
+            }
+        }
+    }
+
     /**
      * There are some situations where the lower-level code might return a given hit multiple times
      * for example an Appointment might have hits from multiple Exceptions (each of which has
@@ -920,6 +957,9 @@ public class DBQueryOperation extends QueryOperation {
                     offsetConstraints.addDateRange(-1, false, low, false, true);
                 }
                 top.addDateRange(low, true, high, false, true);
+                if (luceneOp != null) { // skip earlier pages in Lucene rather than in the DB
+                    luceneOp.setSortDateRange(low, true, high, false);
+                }
                 break;
             }
             case DATE_DESC: {
@@ -931,6 +971,9 @@ public class DBQueryOperation extends QueryOperation {
                     offsetConstraints.addDateRange(high, false, -1, false, true);
                 }
                 top.addDateRange(low, false, high, true, true);
+                if (luceneOp != null) {
+                    luceneOp.setSortDateRange(low, false, high, true);
+                }
                 break;
             }
             case SIZE_ASC: {
@@ -38,11 +38,36 @@ public class Fragment {
     private static final String STOPWORD_FORWARD_1 = "--Forwarded Message--";
     private static final String STOPWORD_FORWARD_2 = "-- Forwarded Message --";
 
-    private static boolean isHeader(String text, boolean allowSpaces) {
-        for (int i = 0; i < text.length(); i++) {
+    // The content is scanned in place: a "remainder" is an offset into the trimmed content, always pointing at a
+    // non-whitespace character or at the end, which stands for content.substring(offset).trim().  Copying the rest of
+    // the content at every line made long quoted threads quadratic.
+
+    private static int skipWhitespace(String text, int pos) {
+        int len = text.length();
+        while (pos < len && text.charAt(pos) <= ' ')
+            pos++;
+        return pos;
+    }
+
+    /** Returns the last non-whitespace character in [start, end), or 0 if there is none. */
+    private static char lastChar(String text, int start, int end) {
+        for (int i = end - 1; i >= start; i--) {
+            char c = text.charAt(i);
+            if (c > ' ')
+                return c;
+        }
+        return 0;
+    }
+
+    private static boolean startsWithQuote(String text, int pos) {
+        return pos < text.length() && (text.charAt(pos) == '>' || text.charAt(pos) == '|');
+    }
+
+    private static boolean isHeader(String text, int pos, boolean allowSpaces) {
+        for (int i = pos; i < text.length(); i++) {
             char c = text.charAt(i);
             if (c == ':')
-                return (i != 0);
+                return (i != pos);
             else if (c == '\r' || c == '\n')
                 return false;
             else if (!allowSpaces && Character.isWhitespace(c))
@@ -51,76 +76,75 @@ public class Fragment {
         return false;
     }
 
-    private static String skipFragmentHeader(String content, boolean calendar) {
-        String fragment = content, checkpoint = content;
+    private static int skipFragmentHeader(String text, int start, boolean calendar) {
+        int len = text.length();
+        int fragment = start, checkpoint = start;
 
         // skip all the "From:", "When:", "Organizer:", etc. lines 
-        int returnIndex = -1;
-        while (fragment.length() > 0) {
+        while (fragment < len) {
             // try to special-case non-header colons in the text
-            char first = fragment.charAt(0);
-            fragment = fragment.trim();
+            char first = text.charAt(fragment);
+            fragment = skipWhitespace(text, fragment);
             if (first == '\r' || first == '\n')
                 checkpoint = fragment;
             // find and examine the next line
-            returnIndex = fragment.indexOf('\n');
-            if (!isHeader(fragment, calendar)) {
+            int returnIndex = text.indexOf('\n', fragment);
+            if (!isHeader(text, fragment, calendar)) {
                 if (calendar) {
                     // if the next line is the separator, the fragment is the *rest* of the content
-                    String line = returnIndex == -1 ? fragment : fragment.substring(0, returnIndex).trim();
+                    String line = text.substring(fragment, returnIndex == -1 ? len : returnIndex).trim();
                     if (line.equals(CALENDAR_SEPARATOR))
-                        checkpoint = returnIndex == -1 ? "" : fragment.substring(returnIndex + 1).trim();
+                        checkpoint = returnIndex == -1 ? len : skipWhitespace(text, returnIndex + 1);
                 }
                 break;
             }
             if (returnIndex == -1) {
-                checkpoint = "";
+                checkpoint = len;
                 break;
             }
-            fragment = fragment.substring(returnIndex + 1);
+            fragment = returnIndex + 1;
         }
 
-        return (checkpoint.length() > 0 ? checkpoint : content);
+        return (checkpoint < len ? checkpoint : start);
     }
 
-    private static String skipQuotedText(String content, boolean twoLineHeader) {
-        String fragment = content;
+    /**
+     * Returns the offset past the quoted text, or {@code start} itself if there's no quoted text there.
+     */
+    private static int skipQuotedText(String text, int start, boolean twoLineHeader) {
+        int len = text.length();
+        int fragment = start;
 
         // skip the quote header ("On foosday, Herbie wrote:\n")
-        int returnIndex = -1;
+        int returnIndex = start - 1;
         int headerLines = (twoLineHeader ? 2 : 1);
         for (int i = 0; i < headerLines; i++) {
-            if (fragment.startsWith(">") || fragment.startsWith("|"))
+            if (startsWithQuote(text, fragment))
                 break;
-            returnIndex = fragment.indexOf('\n', returnIndex + 1);
+            returnIndex = text.indexOf('\n', returnIndex + 1);
             if (returnIndex == -1)
                 break;
-            String firstLine = fragment.substring(0, returnIndex).trim();
-            if (firstLine.endsWith(":")) {
-                fragment = fragment.substring(returnIndex + 1).trim();
+            if (lastChar(text, start, returnIndex) == ':') {
+                fragment = skipWhitespace(text, returnIndex + 1);
                 // also handle the "[snipped]" non-quotes here
-                if (fragment.startsWith("[")) {
-                    returnIndex = fragment.indexOf('\n');
-                    if (returnIndex != -1 && fragment.substring(0, returnIndex).trim().endsWith("]"))
-                        fragment = fragment.substring(returnIndex + 1).trim();
+                if (fragment < len && text.charAt(fragment) == '[') {
+                    returnIndex = text.indexOf('\n', fragment);
+                    if (returnIndex != -1 && lastChar(text, fragment, returnIndex) == ']')
+                        fragment = skipWhitespace(text, returnIndex + 1);
                 }
                 break;
             }
         }
 
         // skip quoted text
-        if (fragment.startsWith(">")) {
+        if (startsWithQuote(text, fragment)) {
+            char quote = text.charAt(fragment);
             do {
-                returnIndex = fragment.indexOf('\n');
-                fragment = (returnIndex == -1 ? "" : fragment.substring(returnIndex + 1).trim());
-            } while (fragment.startsWith(">"));
-        } else if (fragment.startsWith("|")) {
-            do {
-                returnIndex = fragment.indexOf('\n');
-                fragment = (returnIndex == -1 ? "" : fragment.substring(returnIndex + 1).trim());
-            } while (fragment.startsWith("|"));
-        } else if (fragment != content) {
-            fragment = content;
+                returnIndex = text.indexOf('\n', fragment);
+                fragment = (returnIndex == -1 ? len : skipWhitespace(text, returnIndex + 1));
+            } while (fragment < len && text.charAt(fragment) == quote);
+        } else {
+            fragment = start;
         }
 
         return fragment;
@@ -176,41 +200,43 @@ public class Fragment {
     }
 
     public static String getFragment(String content, Source item) {
-        String remainder = content.trim();
-        String backup    = remainder;
+        String text = content.trim();
         StringBuilder fragment = new StringBuilder();
         String result;
 
         if (item == Source.NOTEBOOK) {
             result = content;
         } else {
+            int len = text.length();
+            int remainder = 0;
             // skip the "Where:", "When:", "Organizer:", etc. headers for Outlook calendar invites
             if (item == Source.APPOINTMENT)
-                remainder = skipFragmentHeader(remainder, true);
+                remainder = skipFragmentHeader(text, remainder, true);
 
             // skip "On foosday, Herbie wrote:\n> blah..."
-            remainder = skipQuotedText(remainder, true);
+            remainder = skipQuotedText(text, remainder, true);
             boolean elided = false, mainMessage = true;
             while (fragment.length() <= Fragment.MAX_FRAGMENT_LENGTH) {
                 // detect quoted stuff and skip it (or unquote it if we're fragmenting a message that's nothing but quotes)
-                if (remainder.startsWith(">") || remainder.startsWith("|")) {
+                if (startsWithQuote(text, remainder)) {
                     if (mainMessage) {
-                        remainder = skipQuotedText(remainder, false);
+                        remainder = skipQuotedText(text, remainder, false);
                         elided = true;
                     } else
-                        remainder = remainder.substring(1).trim();
+                        remainder = skipWhitespace(text, remainder + 1);
                 }
                 // if we're done, we're done
-                if (remainder.equals(""))
+                if (remainder >= len)
                     break;
                 // DASH-DASH-SPACE-RETURN is the standard signature delimiter
-                int returnIndex = remainder.indexOf('\n');
-                if ((returnIndex == 3 && remainder.startsWith("-- ")) || (returnIndex == 4 && remainder.startsWith("-- \r")))
+                int returnIndex = text.indexOf('\n', remainder);
+                if ((returnIndex == remainder + 3 && text.startsWith("-- ", remainder)) ||
+                        (returnIndex == remainder + 4 && text.startsWith("-- \r", remainder)))
                     break;
                 // check for another "On foosday, Herbie wrote:\n> blah..." and skip (unless we're fragmenting a message that's nothing but quotes)
-                String line = (returnIndex == -1 ? remainder : remainder.substring(0, returnIndex)).trim();
+                String line = text.substring(remainder, returnIndex == -1 ? len : returnIndex).trim();
                 if (mainMessage && line.endsWith(":") && returnIndex != -1) {
-                    String trimmed = skipQuotedText(remainder, false);
+                    int trimmed = skipQuotedText(text, remainder, false);
                     if (trimmed != remainder) {
                         remainder = trimmed;
                         elided = true;
@@ -227,7 +253,7 @@ public class Fragment {
                         break;
                     // if we're here, the message was nothing but quoted text, so leave in the "-- Original Message --" and add a few more lines
                     fragment.append(line);
-                    remainder = skipFragmentHeader(remainder.substring(returnIndex).trim(), false);
+                    remainder = skipFragmentHeader(text, skipWhitespace(text, returnIndex), false);
                     elided = mainMessage = false;
                     continue;
                 }
@@ -238,7 +264,7 @@ public class Fragment {
                     fragment.append(' ');
                 }
                 fragment.append(line);
-                remainder = (returnIndex == -1 ? "" : remainder.substring(returnIndex).trim());
+                remainder = (returnIndex == -1 ? len : skipWhitespace(text, returnIndex));
                 elided = false;
             }
             result = fragment.toString();
@@ -246,7 +272,7 @@ public class Fragment {
 
         // almost done!  just make sure we haven't accidentally trimmed off everything (in which case we'll just use the original content)
         if (result.equals(""))
-            result = compressLine(backup);
+            result = compressLine(text);
         boolean isTruncated = (result.length() > Fragment.MAX_FRAGMENT_LENGTH);
         result = result.substring(0, isTruncated ? Fragment.MAX_FRAGMENT_LENGTH : result.length());
 
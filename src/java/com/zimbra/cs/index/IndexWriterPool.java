@@ -0,0 +1,256 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.localconfig.ServerLC;
+import com.zimbra.cs.util.Zimbra;
+
+/**
+ * Server-wide bookkeeping for {@link LuceneIndex} writers.
+ * <ul>
+ *  <li>A writer whose last reference is released is parked here instead of being closed, so that the next batch of
+ *  changes to the same mailbox doesn't pay for reopening it. Idle writers are evicted in LRU order when they exceed
+ *  {@code zimbra_index_writer_pool_max_idle}, when they have been idle longer than
+ *  {@code zimbra_index_writer_pool_idle_timeout}, or when a writer permit is needed for another mailbox.</li>
+ *  <li>The RAM buffer given to a new writer is its share of {@code zimbra_index_lucene_ram_buffer_budget_mb} among the
+ *  open writers, capped by {@code zimbra_index_lucene_ram_buffer_size_kb}.</li>
+ *  <li>No more than {@code zimbra_index_max_merges} merges run at a time, and the bytes they write are throttled to
+ *  {@code zimbra_index_merge_max_write_kb_per_sec}, so that background merges don't starve foreground I/O.</li>
+ * </ul>
+ */
+final class IndexWriterPool {
+    private static final ThreadLocal<Boolean> MERGING = new ThreadLocal<Boolean>();
+
+    private final int maxIdle;
+    private final long idleTimeout;
+    private final double ramBufferBudgetMB;
+    private final long mergeBytesPerSec;
+    private final Semaphore mergeThrottle;
+    private final AtomicInteger openWriters = new AtomicInteger();
+    /** idle writers in LRU order, with the time they were parked */
+    private final Map<LuceneIndex, Long> idle = new LinkedHashMap<LuceneIndex, Long>();
+    private long nextMergeWrite = 0;
+
+    IndexWriterPool(int maxIdle, long idleTimeout, double ramBufferBudgetMB, int maxMerges, long mergeBytesPerSec) {
+        this.maxIdle = maxIdle;
+        this.idleTimeout = idleTimeout;
+        this.ramBufferBudgetMB = ramBufferBudgetMB;
+        this.mergeThrottle = maxMerges > 0 ? new Semaphore(maxMerges) : null;
+        this.mergeBytesPerSec = mergeBytesPerSec;
+    }
+
+    static IndexWriterPool getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private static final class Holder {
+        static final IndexWriterPool INSTANCE = new IndexWriterPool(
+                ServerLC.zimbra_index_writer_pool_max_idle.intValue(),
+                TimeUnit.SECONDS.toMillis(ServerLC.zimbra_index_writer_pool_idle_timeout.intValue()),
+                ServerLC.zimbra_index_lucene_ram_buffer_budget_mb.intValue(),
+                ServerLC.zimbra_index_max_merges.intValue(),
+                ServerLC.zimbra_index_merge_max_write_kb_per_sec.intValue() * 1024L);
+
+        static {
+            INSTANCE.startSweeper();
+        }
+    }
+
+    private void startSweeper() {
+        if (maxIdle > 0 && idleTimeout > 0) {
+            long period = Math.max(idleTimeout / 2, 1000L);
+            Zimbra.sTimer.schedule(new SweepTask(), period, period);
+        }
+    }
+
+    private final class SweepTask extends TimerTask {
+        @Override
+        public void run() {
+            try {
+                sweep();
+            } catch (Throwable t) { // don't kill the shared timer
+                ZimbraLog.index.warn("Failed to evict idle IndexWriters", t);
+            }
+        }
+    }
+
+    /**
+     * Called with the index lock held when the last reference to its writer is released.
+     *
+     * @return true if the writer may stay open, false if the caller must close it
+     */
+    boolean park(LuceneIndex index) {
+        if (maxIdle <= 0 || index.isPendingDelete()) {
+            return false;
+        }
+        synchronized (idle) {
+            idle.remove(index);
+            idle.put(index, System.currentTimeMillis());
+        }
+        return true;
+    }
+
+    /**
+     * Takes the index out of the idle list, either because its writer is in use again, or because it's being closed.
+     *
+     * @return true if the index had an idle writer
+     */
+    boolean remove(LuceneIndex index) {
+        synchronized (idle) {
+            return idle.remove(index) != null;
+        }
+    }
+
+    int getIdleCount() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    /**
+     * Closes the least recently used idle writer. Callers must not hold the lock of any index other than one without
+     * an open writer, which can't be in the idle list.
+     *
+     * @return false if there was no idle writer
+     */
+    boolean evictEldest() {
+        LuceneIndex eldest;
+        synchronized (idle) {
+            Iterator<LuceneIndex> itr = idle.keySet().iterator();
+            if (!itr.hasNext()) {
+                return false;
+            }
+            eldest = itr.next();
+            itr.remove();
+        }
+        ZimbraLog.index.debug("Evicting idle IndexWriter %s", eldest);
+        eldest.closeIdleWriter();
+        return true;
+    }
+
+    /**
+     * Closes idle writers that exceed the capacity or timed out.
+     */
+    void sweep() {
+        List<LuceneIndex> evicted = new ArrayList<LuceneIndex>();
+        long cutoff = System.currentTimeMillis() - idleTimeout;
+        synchronized (idle) {
+            int excess = idle.size() - maxIdle;
+            for (Iterator<Map.Entry<LuceneIndex, Long>> itr = idle.entrySet().iterator(); itr.hasNext();) {
+                Map.Entry<LuceneIndex, Long> entry = itr.next();
+                if (excess <= 0 && entry.getValue() > cutoff) {
+                    break;
+                }
+                evicted.add(entry.getKey());
+                itr.remove();
+                excess--;
+            }
+        }
+        for (LuceneIndex index : evicted) {
+            index.closeIdleWriter();
+        }
+        if (!evicted.isEmpty()) {
+            ZimbraLog.index.debug("Evicted %d idle IndexWriters", evicted.size());
+        }
+    }
+
+    /**
+     * Closes all idle writers.
+     */
+    void clear() {
+        while (evictEldest()) {
+        }
+    }
+
+    void writerOpened() {
+        openWriters.incrementAndGet();
+    }
+
+    void writerClosed() {
+        openWriters.decrementAndGet();
+    }
+
+    /**
+     * Returns the RAM buffer size for a writer about to be opened.
+     */
+    double getRAMBufferSizeMB(double max) {
+        if (ramBufferBudgetMB <= 0) {
+            return max;
+        }
+        double share = ramBufferBudgetMB / (openWriters.get() + 1);
+        return Math.max(Math.min(share, max), 1.0);
+    }
+
+    /**
+     * Waits for a merge slot, and throttles index writes by the current thread until {@link #endMerge()}.
+     */
+    void beginMerge() {
+        if (mergeThrottle != null) {
+            mergeThrottle.acquireUninterruptibly();
+        }
+        MERGING.set(Boolean.TRUE);
+    }
+
+    void endMerge() {
+        MERGING.remove();
+        if (mergeThrottle != null) {
+            mergeThrottle.release();
+        }
+    }
+
+    /**
+     * Returns true if the current thread is merging segments.
+     */
+    static boolean isMerging() {
+        return MERGING.get() != null;
+    }
+
+    /**
+     * Called by merge threads after writing the given number of bytes. Sleeps as long as merges server-wide are ahead
+     * of the configured write rate.
+     */
+    void pause(long bytes) {
+        if (mergeBytesPerSec <= 0) {
+            return;
+        }
+        long delay;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long start = Math.max(nextMergeWrite, now);
+            delay = start - now;
+            nextMergeWrite = start + TimeUnit.SECONDS.toNanos(bytes) / mergeBytesPerSec;
+        }
+        if (delay > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -31,11 +31,19 @@ import com.zimbra.common.util.ZimbraLog;
 
 /**
  * Set of query results ANDed together.
+ * <p>
+ * Local intersections collect what every sub-operation but the first matches into {@link ItemMatches}, from item IDs
+ * and Lucene documents rather than hits, and stream the first one through them, so the results keep the first
+ * operation's sort order without building hits for the other sides. Intersections with a
+ * {@link RemoteQueryOperation} fall back to the grouped streaming merge, because draining a remote side would pull
+ * its entire result set over the wire.
  */
 public final class IntersectionQueryOperation extends CombiningQueryOperation {
     private boolean noHits = false;
     private List<ZimbraHit> bufferedNext = new ArrayList<ZimbraHit>(1);
     private HitGrouper messageGrouper[] = null;
+    /** What each but the first sub-operation matches, or null if we're doing the grouped streaming merge. */
+    private List<ItemMatches> matchingIds = null;
 
     @Override
     public long getCursorOffset() {
@@ -45,6 +53,13 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
     @Override
     public void resetIterator() throws ServiceException {
         bufferedNext.clear();
+        if (noHits) {
+            return;
+        }
+        if (matchingIds != null) {
+            operations.get(0).resetIterator();
+            return;
+        }
         for (int i = 0; i < messageGrouper.length; i++) {
             messageGrouper[i].resetIterator();
         }
@@ -68,6 +83,20 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
         if (bufferedNext.size() > 0) {
             return;
         }
+        if (matchingIds != null) {
+            QueryOperation driver = operations.get(0);
+            ZimbraHit hit;
+            NextHit: while ((hit = driver.getNext()) != null) {
+                for (ItemMatches matches : matchingIds) {
+                    if (!matches.matches(hit)) {
+                        continue NextHit;
+                    }
+                }
+                bufferedNext.add(hit);
+                return;
+            }
+            return;
+        }
         TryAgain: while (true) {
             if (!messageGrouper[0].bufferNextHits()) {
                 return;
@@ -683,6 +712,7 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
         assert(messageGrouper == null);
         IntersectionQueryOperation result = (IntersectionQueryOperation) super.clone();
         result.bufferedNext = new ArrayList<ZimbraHit>(1);
+        result.matchingIds = null;
         result.operations = new ArrayList<QueryOperation>(operations.size());
         for (QueryOperation op : operations) {
             result.operations.add((QueryOperation) op.clone());
@@ -704,6 +734,10 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
         assert(context == null);
         // scale up the chunk size since we are doing an intersection...
         context = new QueryContext(ctx.getMailbox(), ctx.getResults(), ctx.getParams(), (ctx.getChunkSize() + 1) * 3);
+        if (operations.size() > 1 && isLocal()) {
+            beginBitmap(ctx);
+            return;
+        }
         messageGrouper = new HitGrouper[operations.size()];
 
         for (int i = 0; i < operations.size(); i++) {
@@ -735,6 +769,57 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
         }
     }
 
+    private boolean isLocal() {
+        for (QueryOperation op : operations) {
+            if (op instanceof RemoteQueryOperation) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Begins the first sub-operation as the driver, then collects what the others match. The non-driving sides only
+     * need to answer "does this hit match", so they're read in the largest chunks we allow, as IDs.
+     */
+    private void beginBitmap(QueryContext ctx) throws ServiceException {
+        QueryOperation driver = operations.get(0);
+        driver.begin(ctx);
+        if (!driver.hasNext()) {
+            ZimbraLog.search.debug("Dropping out of intersect query since the driving operation has no results");
+            dropAll(0);
+            return;
+        }
+        QueryContext drainCtx = new QueryContext(ctx.getMailbox(), ctx.getResults(), ctx.getParams(), MAX_CHUNK_SIZE);
+        matchingIds = new ArrayList<ItemMatches>(operations.size() - 1);
+        for (int i = 1; i < operations.size(); i++) {
+            ItemMatches matches = new ItemMatches();
+            operations.get(i).collectMatches(drainCtx, matches);
+            matchingIds.add(matches);
+            if (matches.isEmpty()) {
+                ZimbraLog.search.debug(
+                        "Dropping out of intersect query since we got to 0 results on execution %d out of %d",
+                        i + 1, operations.size());
+                dropAll(i);
+                return;
+            }
+        }
+        ZimbraLog.search.debug("Intersecting %s against %s", driver, matchingIds);
+    }
+
+    /**
+     * The intersection is known to be empty: release the sub-operations begun so far (up to and including
+     * {@code last}) and forget the rest.
+     */
+    private void dropAll(int last) {
+        for (int i = 0; i <= last; i++) {
+            Closeables.closeQuietly(operations.get(i));
+        }
+        operations.clear();
+        matchingIds = null;
+        noHits = true;
+    }
+
     @Override
     public List<QueryInfo> getResultInfo() {
         List<QueryInfo> result = new ArrayList<QueryInfo>();
@@ -0,0 +1,179 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.util.Arrays;
+
+/**
+ * Compressed set of non-negative item IDs, used to combine sub-results of {@link IntersectionQueryOperation} and
+ * {@link UnionQueryOperation} without holding on to {@link ZimbraHit} objects.
+ * <p>
+ * IDs are split into 64K chunks keyed by their high 16 bits (roaring-style). A chunk starts out as a sorted array of
+ * the low 16 bits and is converted to a plain 64K bitmap once it holds more than {@link #ARRAY_MAX} entries, so sparse
+ * mailboxes stay small and dense ones stay fast.
+ */
+final class ItemIdBitmap {
+    /** A sorted char[] bigger than this takes more room than an 8KB bitmap. */
+    static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1 << 10; // 64K bits
+
+    private char[] keys = new char[4];
+    private Chunk[] chunks = new Chunk[4];
+    private int size = 0; // number of chunks in use
+
+    /**
+     * Adds the ID to this set.
+     *
+     * @return true if the ID was not already present
+     */
+    boolean add(int id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("negative id: " + id);
+        }
+        char key = (char) (id >>> 16);
+        int pos = Arrays.binarySearch(keys, 0, size, key);
+        Chunk chunk;
+        if (pos >= 0) {
+            chunk = chunks[pos];
+        } else {
+            pos = -pos - 1;
+            chunk = new ArrayChunk();
+            insertChunk(pos, key, chunk);
+        }
+        if (!chunk.add((char) id)) {
+            return false;
+        }
+        if (chunk instanceof ArrayChunk && chunk.cardinality() > ARRAY_MAX) {
+            chunks[pos] = ((ArrayChunk) chunk).toBitmap();
+        }
+        return true;
+    }
+
+    boolean contains(int id) {
+        if (id < 0) {
+            return false;
+        }
+        int pos = Arrays.binarySearch(keys, 0, size, (char) (id >>> 16));
+        return pos >= 0 && chunks[pos].contains((char) id);
+    }
+
+    int cardinality() {
+        int result = 0;
+        for (int i = 0; i < size; i++) {
+            result += chunks[i].cardinality();
+        }
+        return result;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        size = 0;
+        Arrays.fill(chunks, null);
+    }
+
+    private void insertChunk(int pos, char key, Chunk chunk) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            chunks = Arrays.copyOf(chunks, size * 2);
+        }
+        System.arraycopy(keys, pos, keys, pos + 1, size - pos);
+        System.arraycopy(chunks, pos, chunks, pos + 1, size - pos);
+        keys[pos] = key;
+        chunks[pos] = chunk;
+        size++;
+    }
+
+    @Override
+    public String toString() {
+        return "ItemIdBitmap{chunks=" + size + ",cardinality=" + cardinality() + "}";
+    }
+
+    private static abstract class Chunk {
+        abstract boolean add(char low);
+        abstract boolean contains(char low);
+        abstract int cardinality();
+    }
+
+    private static final class ArrayChunk extends Chunk {
+        private char[] values = new char[4];
+        private int count = 0;
+
+        @Override
+        boolean add(char low) {
+            int pos = Arrays.binarySearch(values, 0, count, low);
+            if (pos >= 0) {
+                return false;
+            }
+            pos = -pos - 1;
+            if (count == values.length) {
+                values = Arrays.copyOf(values, Math.max(count * 2, 4));
+            }
+            System.arraycopy(values, pos, values, pos + 1, count - pos);
+            values[pos] = low;
+            count++;
+            return true;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return Arrays.binarySearch(values, 0, count, low) >= 0;
+        }
+
+        @Override
+        int cardinality() {
+            return count;
+        }
+
+        BitmapChunk toBitmap() {
+            BitmapChunk bitmap = new BitmapChunk();
+            for (int i = 0; i < count; i++) {
+                bitmap.add(values[i]);
+            }
+            return bitmap;
+        }
+    }
+
+    private static final class BitmapChunk extends Chunk {
+        private final long[] words = new long[BITMAP_WORDS];
+        private int count = 0;
+
+        @Override
+        boolean add(char low) {
+            long mask = 1L << low;
+            int idx = low >>> 6;
+            if ((words[idx] & mask) != 0) {
+                return false;
+            }
+            words[idx] |= mask;
+            count++;
+            return true;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        int cardinality() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * What a non-driving side of an {@link IntersectionQueryOperation} matched, collected from item IDs and Lucene
+ * documents without building {@link ZimbraHit}s.
+ * <p>
+ * Matches keep the part-level semantics of the grouped merge: a whole-message hit matches if the other side matched
+ * the message or any of its parts, while a {@link MessagePartHit} only matches the whole message or the same part.
+ */
+final class ItemMatches {
+    private final ItemIdBitmap items = new ItemIdBitmap();
+    private final ItemIdBitmap partItems = new ItemIdBitmap();
+    private final Set<String> parts = new HashSet<String>();
+
+    void addItem(int id) {
+        if (id > 0) {
+            items.add(id);
+        }
+    }
+
+    /**
+     * @param part part name as indexed in {@link LuceneFields#L_PARTNAME}
+     */
+    void addPart(int id, String part) {
+        if (id > 0) {
+            partItems.add(id);
+            parts.add(partKey(id, part));
+        }
+    }
+
+    void addHit(ZimbraHit hit) {
+        if (hit instanceof MessagePartHit) {
+            addPart(hit.getItemId(), ((MessagePartHit) hit).getPartName());
+        } else {
+            addItem(hit.getItemId());
+        }
+    }
+
+    boolean matchesItem(int id) {
+        return items.contains(id) || partItems.contains(id);
+    }
+
+    boolean matchesPart(int id, String part) {
+        return items.contains(id) || (partItems.contains(id) && parts.contains(partKey(id, part)));
+    }
+
+    boolean matches(ZimbraHit hit) {
+        if (hit instanceof MessagePartHit) {
+            return matchesPart(hit.getItemId(), ((MessagePartHit) hit).getPartName());
+        }
+        return matchesItem(hit.getItemId());
+    }
+
+    boolean isEmpty() {
+        return items.isEmpty() && partItems.isEmpty();
+    }
+
+    /**
+     * Same as {@link MessagePartHit#getPartName()}: the top-level part has an empty name.
+     */
+    private static String partKey(int id, String part) {
+        if (part == null || part.equals(LuceneFields.L_PARTNAME_TOP)) {
+            part = "";
+        }
+        return id + "-" + part;
+    }
+
+    @Override
+    public String toString() {
+        return "ItemMatches{items=" + items + ",partItems=" + partItems + ",parts=" + parts.size() + "}";
+    }
+}
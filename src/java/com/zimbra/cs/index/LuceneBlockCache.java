@@ -0,0 +1,277 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.store.BufferedIndexInput;
+import org.apache.lucene.store.IndexInput;
+
+import com.google.common.base.Objects;
+import com.zimbra.cs.localconfig.ServerLC;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Server-wide cache of index file blocks held in a direct (off-heap) buffer.
+ * <p>
+ * Lucene never modifies a file once it has been written, so a block is identified by the file's path, length and
+ * modification time plus its block number, and stale blocks simply age out. Eviction is clock-style (second chance).
+ * The cache is sized by the {@code zimbra_index_lucene_block_cache_size_kb} local config; 0 disables it. Blocks are
+ * spread by key over {@link #SEGMENTS} segments, each with its own lock and clock hand.
+ */
+final class LuceneBlockCache {
+    static final int BLOCK_SIZE = 16 * 1024;
+    /** Blocks are spread over this many independently locked segments, so that mailboxes don't contend. */
+    static final int SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final int capacity;
+
+    LuceneBlockCache(long capacity) {
+        int blocks = (int) Math.min(capacity / BLOCK_SIZE, Integer.MAX_VALUE / BLOCK_SIZE);
+        int count = Math.min(SEGMENTS, blocks);
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(blocks / count + (i < blocks % count ? 1 : 0));
+        }
+        this.capacity = blocks;
+    }
+
+    /**
+     * Returns the server-wide cache, allocating it on first use.
+     */
+    static LuceneBlockCache getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private static final class Holder {
+        static final LuceneBlockCache INSTANCE =
+                new LuceneBlockCache(ServerLC.zimbra_index_lucene_block_cache_size_kb.longValue() * 1024);
+    }
+
+    boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private Segment segmentFor(BlockKey key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[(h & Integer.MAX_VALUE) % segments.length];
+    }
+
+    /**
+     * Copies bytes of a cached block.
+     *
+     * @return number of bytes copied, or -1 if the block isn't cached
+     */
+    int read(BlockKey key, int offset, byte[] buf, int off, int len) {
+        if (segments.length == 0) {
+            return -1;
+        }
+        int n = segmentFor(key).read(key, offset, buf, off, len);
+        ZimbraPerf.COUNTER_IDX_BLOCK_CACHE_HIT.increment(n < 0 ? 0 : 100);
+        return n;
+    }
+
+    void put(BlockKey key, byte[] data, int len) {
+        assert len <= BLOCK_SIZE;
+        if (segments.length > 0) {
+            segmentFor(key).put(key, data, len);
+        }
+    }
+
+    /**
+     * A slice of the cache with its own off-heap slab and clock-style (second chance) eviction.
+     */
+    private static final class Segment {
+        private final ByteBuffer slab;
+        private final BlockKey[] owners;
+        private final int[] lengths;
+        private final boolean[] referenced;
+        private final Map<BlockKey, Integer> slots;
+        private int hand = 0;
+
+        Segment(int blocks) {
+            slab = ByteBuffer.allocateDirect(blocks * BLOCK_SIZE);
+            owners = new BlockKey[blocks];
+            lengths = new int[blocks];
+            referenced = new boolean[blocks];
+            slots = new HashMap<BlockKey, Integer>(blocks * 2);
+        }
+
+        synchronized int size() {
+            return slots.size();
+        }
+
+        synchronized int read(BlockKey key, int offset, byte[] buf, int off, int len) {
+            Integer slot = slots.get(key);
+            if (slot == null) {
+                return -1;
+            }
+            int n = Math.min(len, lengths[slot] - offset);
+            if (n <= 0) {
+                return 0;
+            }
+            referenced[slot] = true;
+            slab.position(slot * BLOCK_SIZE + offset);
+            slab.get(buf, off, n);
+            return n;
+        }
+
+        synchronized void put(BlockKey key, byte[] data, int len) {
+            if (slots.containsKey(key)) {
+                return;
+            }
+            while (referenced[hand]) { // second chance
+                referenced[hand] = false;
+                hand = (hand + 1) % owners.length;
+            }
+            int slot = hand;
+            hand = (hand + 1) % owners.length;
+            if (owners[slot] != null) {
+                slots.remove(owners[slot]);
+            }
+            owners[slot] = key;
+            lengths[slot] = len;
+            slab.position(slot * BLOCK_SIZE);
+            slab.put(data, 0, len);
+            slots.put(key, slot);
+        }
+    }
+
+    static final class BlockKey {
+        private final String file;
+        private final long block;
+
+        BlockKey(String file, long block) {
+            this.file = file;
+            this.block = block;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof BlockKey) {
+                BlockKey other = (BlockKey) obj;
+                return block == other.block && file.equals(other.file);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return file.hashCode() * 31 + (int) (block ^ (block >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this).add("file", file).add("block", block).toString();
+        }
+    }
+
+    /**
+     * {@link IndexInput} serving reads from the block cache, and filling it from the underlying input on misses.
+     */
+    static final class CachedIndexInput extends BufferedIndexInput {
+        private final LuceneBlockCache cache;
+        private final String file;
+        private final long length;
+        private IndexInput input;
+        private byte[] block;
+
+        CachedIndexInput(LuceneBlockCache cache, String file, IndexInput in) {
+            this.cache = cache;
+            this.file = file;
+            this.length = in.length();
+            this.input = in;
+        }
+
+        @Override
+        protected void readInternal(byte[] buf, int off, int len) throws IOException {
+            long pos = getFilePointer();
+            if (pos + len > length) {
+                throw new IOException("read past EOF: " + file);
+            }
+            while (len > 0) {
+                long blockNo = pos / BLOCK_SIZE;
+                int offset = (int) (pos % BLOCK_SIZE);
+                BlockKey key = new BlockKey(file, blockNo);
+                int n = cache.read(key, offset, buf, off, len);
+                if (n < 0) {
+                    n = load(key, blockNo, offset, buf, off, len);
+                }
+                if (n <= 0) {
+                    throw new IOException("read past EOF: " + file);
+                }
+                pos += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private int load(BlockKey key, long blockNo, int offset, byte[] buf, int off, int len) throws IOException {
+            long start = blockNo * BLOCK_SIZE;
+            int blockLen = (int) Math.min(BLOCK_SIZE, length - start);
+            if (block == null) {
+                block = new byte[BLOCK_SIZE];
+            }
+            input.seek(start);
+            input.readBytes(block, 0, blockLen);
+            cache.put(key, block, blockLen);
+            int n = Math.min(len, blockLen - offset);
+            System.arraycopy(block, offset, buf, off, n);
+            return n;
+        }
+
+        @Override
+        protected void seekInternal(long pos) {
+            // reads are positional
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+
+        @Override
+        public Object clone() {
+            CachedIndexInput clone = (CachedIndexInput) super.clone();
+            clone.input = (IndexInput) input.clone();
+            clone.block = null;
+            return clone;
+        }
+    }
+}
@@ -30,9 +30,11 @@ import org.apache.lucene.store.MMapDirectory;
 import org.apache.lucene.store.NIOFSDirectory;
 import org.apache.lucene.store.SimpleFSDirectory;
 import org.apache.lucene.store.SingleInstanceLockFactory;
+import org.apache.lucene.util.Constants;
 
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.localconfig.ServerLC;
 import com.zimbra.cs.stats.ZimbraPerf;
 
 /**
@@ -45,9 +47,11 @@ import com.zimbra.cs.stats.ZimbraPerf;
  */
 public final class LuceneDirectory extends Directory {
     private final FSDirectory directory;
+    private final LuceneBlockCache cache;
 
-    private LuceneDirectory(FSDirectory dir) {
+    private LuceneDirectory(FSDirectory dir, LuceneBlockCache cache) {
         directory = dir;
+        this.cache = cache;
     }
 
     /**
@@ -77,24 +81,57 @@ public final class LuceneDirectory extends Directory {
      *      space, and you don't rely on overwriting files on Windows) but it's still an important limitation to be
      *      aware of. This class supplies a (possibly dangerous) workaround mentioned in the bug report, which may fail
      *      on non-Sun JVMs.
+     *  <li>{@code cached} - {@code nio} with reads served through the server-wide off-heap {@link LuceneBlockCache},
+     *      which keeps the hot blocks of small, frequently searched indexes out of both the Java heap and the disk.
+     *  <li>{@code auto} - picks by the index size at the time it's opened: {@code mmap} on 64-bit JREs for indexes of
+     *      at least {@code zimbra_index_lucene_mmap_threshold_mb} (default 64), {@code cached} for smaller ones.
      * </ul>
      *
      * @param path directory path
      */
     public static LuceneDirectory open(File path) throws IOException {
-        String impl = LC.zimbra_index_lucene_io_impl.value();
+        return open(path, LC.zimbra_index_lucene_io_impl.value());
+    }
+
+    static LuceneDirectory open(File path, String impl) throws IOException {
+        if ("auto".equals(impl)) {
+            impl = Constants.JRE_IS_64BIT && getIndexSize(path) >= getMMapThreshold() ? "mmap" : "cached";
+        }
         FSDirectory dir;
+        LuceneBlockCache cache = null;
         if ("nio".equals(impl)) {
             dir = new NIOFSDirectory(path, new SingleInstanceLockFactory());
         } else if ("mmap".equals(impl)) {
             dir = new MMapDirectory(path, new SingleInstanceLockFactory());
         } else if ("simple".equals(impl)) {
             dir = new SimpleFSDirectory(path, new SingleInstanceLockFactory());
+        } else if ("cached".equals(impl)) {
+            dir = new NIOFSDirectory(path, new SingleInstanceLockFactory());
+            cache = LuceneBlockCache.getInstance();
+            if (!cache.isEnabled()) {
+                cache = null;
+            }
         } else {
             dir = FSDirectory.open(path, new SingleInstanceLockFactory());
         }
-        ZimbraLog.index.info("OpenLuceneIndex impl=%s,dir=%s", dir.getClass().getSimpleName(), path);
-        return new LuceneDirectory(dir);
+        ZimbraLog.index.info("OpenLuceneIndex impl=%s,cached=%b,dir=%s",
+                dir.getClass().getSimpleName(), cache != null, path);
+        return new LuceneDirectory(dir, cache);
+    }
+
+    private static long getIndexSize(File path) {
+        long size = 0;
+        File[] files = path.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    private static long getMMapThreshold() {
+        return ServerLC.zimbra_index_lucene_mmap_threshold_mb.longValue() * 1024 * 1024;
     }
 
     public File getDirectory() {
@@ -145,12 +182,26 @@ public final class LuceneDirectory extends Directory {
 
     @Override
     public IndexInput openInput(String name) throws IOException {
-        return new LuceneIndexInput(directory.openInput(name));
+        return new LuceneIndexInput(cache(name, directory.openInput(name)));
     }
 
     @Override
     public IndexInput openInput(String name, int bufferSize) throws IOException {
-        return new LuceneIndexInput(directory.openInput(name, bufferSize));
+        return new LuceneIndexInput(cache(name, directory.openInput(name, bufferSize)));
+    }
+
+    private IndexInput cache(String name, IndexInput in) throws IOException {
+        if (cache == null) {
+            return in;
+        }
+        // length and mtime tell apart files re-created under the same name (e.g. segments.gen)
+        String key = new File(directory.getDirectory(), name).getPath() + '@' +
+                directory.fileLength(name) + '@' + directory.fileModified(name);
+        return new LuceneBlockCache.CachedIndexInput(cache, key, in);
+    }
+
+    boolean isCached() {
+        return cache != null;
     }
 
     @Override
@@ -253,8 +304,13 @@ public final class LuceneDirectory extends Directory {
     }
 
     private static final class LuceneIndexOutput extends IndexOutput {
+        private static final int THROTTLE_INTERVAL = 64 * 1024;
+
         private final IndexOutput output;
         private boolean disableCounters = LC.zimbra_index_disable_perf_counters.booleanValue();
+        /** outputs opened by a merge thread are written by that merge only */
+        private final boolean merging = IndexWriterPool.isMerging();
+        private int unthrottled = 0;
 
         LuceneIndexOutput(IndexOutput out) {
             output = out;
@@ -266,6 +322,7 @@ public final class LuceneDirectory extends Directory {
                 ZimbraPerf.COUNTER_IDX_BYTES_WRITTEN.increment(1);
             }
             output.writeByte(b);
+            throttle(1);
         }
 
         @Override
@@ -274,6 +331,7 @@ public final class LuceneDirectory extends Directory {
                 ZimbraPerf.COUNTER_IDX_BYTES_WRITTEN.increment(len);
             }
             output.writeBytes(b, len);
+            throttle(len);
         }
 
         @Override
@@ -282,6 +340,17 @@ public final class LuceneDirectory extends Directory {
                 ZimbraPerf.COUNTER_IDX_BYTES_WRITTEN.increment(len);
             }
             output.writeBytes(b, offset, len);
+            throttle(len);
+        }
+
+        private void throttle(int len) {
+            if (merging) {
+                unthrottled += len;
+                if (unthrottled >= THROTTLE_INTERVAL) {
+                    IndexWriterPool.getInstance().pause(unthrottled);
+                    unthrottled = 0;
+                }
+            }
         }
 
         @Override
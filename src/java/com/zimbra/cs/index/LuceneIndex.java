@@ -19,8 +19,13 @@ package com.zimbra.cs.index;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
@@ -39,8 +44,10 @@ import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.LogByteSizeMergePolicy;
 import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.index.SerialMergeScheduler;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
@@ -51,6 +58,7 @@ import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.store.NoSuchDirectoryException;
 import org.apache.lucene.util.Version;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
@@ -67,6 +75,7 @@ import com.zimbra.cs.mailbox.Folder;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxIndex;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.volume.Volume;
 import com.zimbra.cs.volume.VolumeManager;
 
@@ -210,6 +219,11 @@ public final class LuceneIndex extends IndexStore {
         }
     }
 
+    @VisibleForTesting
+    LuceneDirectory getDirectory() {
+        return luceneDirectory;
+    }
+
     @Override
     public String toString() {
         return Objects.toStringHelper(this).add("mbox", mailbox.getId()).add("dir", luceneDirectory).toString();
@@ -245,6 +259,7 @@ public final class LuceneIndex extends IndexStore {
     @Override
     public void deleteIndex() throws IOException {
         pendingDelete.set(true);
+        closeIdleWriter();
         writerInfo.getHasNoWritersLock().lock();
         try {
             if (writerInfo.getWriterRef() != null) {
@@ -282,10 +297,11 @@ public final class LuceneIndex extends IndexStore {
     }
 
     /**
-     * Removes IndexSearcher used for this index from cache.
+     * Removes IndexSearcher used for this index from cache, and closes the writer if idle.
      */
     @Override
     public void evict() {
+        closeIdleWriter();
         if (mailbox.isGalSyncMailbox()) {
             Closeables.closeQuietly(GAL_SEARCHER_CACHE.remove(mailbox.getId()));
         } else {
@@ -455,10 +471,21 @@ public final class LuceneIndex extends IndexStore {
 
     @Override
     public synchronized Indexer openIndexer() throws IOException {
+        ZimbraPerf.COUNTER_IDX_WRT_OPENED.increment();
         if (writerInfo.getWriterRef() != null) {
-            writerInfo.getWriterRef().inc();
+            if (writerInfo.getWriterRef().inc() == 1) { // was idle
+                IndexWriterPool.getInstance().remove(this);
+            }
+            ZimbraPerf.COUNTER_IDX_WRT_OPENED_CACHE_HIT.increment();
         } else {
-            WRITER_THROTTLE.acquireUninterruptibly();
+            // Idle writers of other mailboxes may hold all permits. We only hold our own lock, which no evictor waits
+            // for as we don't have a writer to be evicted, so evicting them here can't deadlock.
+            while (!WRITER_THROTTLE.tryAcquire()) {
+                if (!IndexWriterPool.getInstance().evictEldest()) {
+                    WRITER_THROTTLE.acquireUninterruptibly();
+                    break;
+                }
+            }
             try {
                 writerInfo.setWriterRef(openWriter());
             } finally {
@@ -488,6 +515,7 @@ public final class LuceneIndex extends IndexStore {
                 throw e;
             }
         }
+        IndexWriterPool.getInstance().writerOpened();
         return new IndexWriterRef(this, writer);
     }
 
@@ -503,6 +531,7 @@ public final class LuceneIndex extends IndexStore {
             try {
                 writerInfo.getWriterRef().get().commit();
             } catch (CorruptIndexException e) {
+                writerInfo.getWriterRef().discard();
                 try {
                     writerInfo.getWriterRef().get().close(false);
                 } catch (Throwable ignore) {
@@ -510,6 +539,7 @@ public final class LuceneIndex extends IndexStore {
                 repair(e);
                 throw e; // fail to commit regardless of the repair
             } catch (AssertionError e) {
+                writerInfo.getWriterRef().discard();
                 try {
                     writerInfo.getWriterRef().get().close(false);
                 } catch (Throwable ignore) {
@@ -529,6 +559,15 @@ public final class LuceneIndex extends IndexStore {
         }
     }
 
+    /**
+     * Called by {@link IndexWriterPool} to close the writer unless it has been reused since it was parked.
+     */
+    synchronized void closeIdleWriter() {
+        if (writerInfo.getWriterRef() != null && writerInfo.getWriterRef().isIdle()) {
+            closeWriter();
+        }
+    }
+
     /**
      * Called by {@link IndexWriterRef#dec()}. Can be called by the thread that opened the writer or the merge thread.
      */
@@ -536,6 +575,7 @@ public final class LuceneIndex extends IndexStore {
         if (writerInfo.getWriterRef() == null) {
             return;
         }
+        IndexWriterPool.getInstance().remove(this);
 
         ZimbraLog.index.debug("Close IndexWriter");
 
@@ -553,6 +593,7 @@ public final class LuceneIndex extends IndexStore {
         } finally {
             unlockIndexWriter();
             WRITER_THROTTLE.release();
+            IndexWriterPool.getInstance().writerClosed();
             try {
                 writerInfo.setWriterRef(null);
             } catch (IOException e) {
@@ -569,6 +610,7 @@ public final class LuceneIndex extends IndexStore {
      */
     @Override
     public boolean verify(PrintStream out) throws IOException {
+        closeIdleWriter();
         if (!IndexReader.indexExists(luceneDirectory)) {
             out.println("index does not exist or no segments file found: " + luceneDirectory.getDirectory());
             return true;
@@ -581,6 +623,117 @@ public final class LuceneIndex extends IndexStore {
         return status.clean;
     }
 
+    /**
+     * Checks the index one segment at a time, while it stays open for search and indexing. Each segment is checked
+     * holding the lock that commits take, so that the commit it was read from, and thus its files, stay in place for
+     * the check; indexing only waits for one segment at a time. Segments merged away in between are skipped.
+     *
+     * @param out info stream where messages should go. If null, no messages are printed.
+     * @return names of damaged segments
+     * @throws IOException failed to verify, but it doesn't necessarily mean the index is corrupted.
+     */
+    public List<String> checkSegments(PrintStream out) throws IOException {
+        List<String> damaged = new ArrayList<String>();
+        if (!IndexReader.indexExists(luceneDirectory)) {
+            return damaged;
+        }
+        SegmentInfos infos = new SegmentInfos();
+        infos.read(luceneDirectory);
+        for (int i = 0; i < infos.size(); i++) {
+            String name = infos.info(i).name;
+            if (!checkSegment(name, out)) {
+                ZimbraLog.index.warn("Damaged segment %s %s", name, this);
+                damaged.add(name);
+            }
+            Thread.yield();
+        }
+        return damaged;
+    }
+
+    /**
+     * Returns false if the segment is live and damaged.
+     */
+    private synchronized boolean checkSegment(String name, PrintStream out) throws IOException {
+        SegmentInfos infos = new SegmentInfos();
+        infos.read(luceneDirectory);
+        boolean live = false;
+        for (int i = 0; i < infos.size(); i++) {
+            if (infos.info(i).name.equals(name)) {
+                live = true;
+                break;
+            }
+        }
+        if (!live) { // merged away
+            return true;
+        }
+        CheckIndex check = new CheckIndex(luceneDirectory);
+        if (out != null) {
+            check.setInfoStream(out);
+        }
+        return check.checkIndex(Collections.singletonList(name)).clean;
+    }
+
+    /**
+     * Removes damaged segments from the index, losing the documents they held. Callers are responsible to make sure
+     * the index is not opened by any writer. The cached searcher is evicted, so that the next search reopens it.
+     *
+     * @return number of segments removed
+     */
+    public synchronized int dropSegments(Collection<String> names) throws IOException {
+        closeIdleWriter();
+        if (writerInfo.getWriterRef() != null) {
+            throw new IOException("IndexWriter is in use " + this);
+        }
+        int dropped = new LuceneIndexRepair(luceneDirectory, new HashSet<String>(names)).repair();
+        ZimbraLog.index.info("Dropped %d damaged segments %s", dropped, this);
+        if (dropped > 0) {
+            evict(); // the cached searcher still reads the dropped segments
+        }
+        return dropped;
+    }
+
+    /**
+     * Returns the item IDs that have no live document in the index, e.g. because they were lost with a damaged segment.
+     *
+     * @param ids IDs of items that are supposed to be indexed
+     */
+    public List<Integer> getUnindexedIds(Collection<Integer> ids) throws IOException {
+        Set<Integer> indexed = new HashSet<Integer>();
+        if (IndexReader.indexExists(luceneDirectory)) {
+            IndexReader reader = IndexReader.open(luceneDirectory);
+            TermEnum terms = null;
+            TermDocs docs = null;
+            try {
+                terms = reader.terms(new Term(LuceneFields.L_MAILBOX_BLOB_ID, ""));
+                docs = reader.termDocs();
+                do {
+                    Term term = terms.term();
+                    if (term == null || !LuceneFields.L_MAILBOX_BLOB_ID.equals(term.field())) {
+                        break;
+                    }
+                    docs.seek(terms);
+                    if (docs.next()) { // skips deleted documents
+                        try {
+                            indexed.add(Integer.valueOf(term.text()));
+                        } catch (NumberFormatException ignore) {
+                        }
+                    }
+                } while (terms.next());
+            } finally {
+                Closeables.closeQuietly(docs);
+                Closeables.closeQuietly(terms);
+                Closeables.closeQuietly(reader);
+            }
+        }
+        List<Integer> result = new ArrayList<Integer>();
+        for (Integer id : ids) {
+            if (!indexed.contains(id)) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
     /**
      * Only one background thread that holds the lock may process a merge for the given writer. Other concurrent
      * attempts simply skip the merge.
@@ -612,12 +765,18 @@ public final class LuceneIndex extends IndexStore {
         }
 
         /**
-         * Skip the merge unless the lock is held.
+         * Skip the merge unless the lock is held. Merges are also bounded and throttled server-wide.
          */
         @Override
         public void merge(IndexWriter writer) throws CorruptIndexException, IOException {
             if (lock.isHeldByCurrentThread()) {
-                super.merge(writer);
+                IndexWriterPool pool = IndexWriterPool.getInstance();
+                pool.beginMerge();
+                try {
+                    super.merge(writer);
+                } finally {
+                    pool.endMerge();
+                }
             }
         }
 
@@ -656,12 +815,14 @@ public final class LuceneIndex extends IndexStore {
                     ZimbraLog.index.debug("Merge is in progress by other thread");
                 }
             } catch (CorruptIndexException e) {
+                ref.discard();
                 try {
                     writer.close(false);
                 } catch (Throwable ignore) {
                 }
                 repair(e);
             } catch (AssertionError e) {
+                ref.discard();
                 try {
                     writer.close(false);
                 } catch (Throwable ignore) {
@@ -680,7 +841,8 @@ public final class LuceneIndex extends IndexStore {
         IndexWriterConfig config = new IndexWriterConfig(VERSION, mailbox.index.getAnalyzer());
         config.setMergeScheduler(new MergeScheduler());
         config.setMaxBufferedDocs(LC.zimbra_index_lucene_max_buffered_docs.intValue());
-        config.setRAMBufferSizeMB(LC.zimbra_index_lucene_ram_buffer_size_kb.intValue() / 1024.0);
+        config.setRAMBufferSizeMB(IndexWriterPool.getInstance().getRAMBufferSizeMB(
+                LC.zimbra_index_lucene_ram_buffer_size_kb.intValue() / 1024.0));
         if (LC.zimbra_index_lucene_merge_policy.booleanValue()) {
             LogDocMergePolicy policy = new LogDocMergePolicy();
             config.setMergePolicy(policy);
@@ -780,6 +942,7 @@ public final class LuceneIndex extends IndexStore {
 
         @Override
         public void destroy() {
+            IndexWriterPool.getInstance().clear();
             SEARCHER_CACHE.asMap().clear();
 
             for (IndexSearcherImpl searcher : GAL_SEARCHER_CACHE.values()) {
@@ -904,12 +1067,14 @@ public final class LuceneIndex extends IndexStore {
     }
 
     /**
-     * {@link IndexWriter} wrapper that supports a reference counter.
+     * {@link IndexWriter} wrapper that supports a reference counter. When the counter drops to zero, the writer is
+     * parked in {@link IndexWriterPool} unless it has been discarded.
      */
     private final class IndexWriterRef {
         private final LuceneIndex index;
         private final IndexWriter writer;
         private final AtomicInteger count = new AtomicInteger(1); // ref counter
+        private volatile boolean discarded = false;
 
         IndexWriterRef(LuceneIndex index, IndexWriter writer) {
             this.index = index;
@@ -924,18 +1089,34 @@ public final class LuceneIndex extends IndexStore {
             return index;
         }
 
-        void inc() {
-            count.incrementAndGet();
+        /**
+         * @return the new count
+         */
+        int inc() {
+            return count.incrementAndGet();
         }
 
         void dec() {
             synchronized (index) {
                 if (count.decrementAndGet() <= 0) {
-                    index.closeWriter();
+                    if (discarded || !IndexWriterPool.getInstance().park(index)) {
+                        index.closeWriter();
+                    }
                 }
             }
         }
 
+        boolean isIdle() {
+            return count.get() <= 0;
+        }
+
+        /**
+         * The writer has been closed due to an error, so it must not be reused once released.
+         */
+        void discard() {
+            discarded = true;
+        }
+
     }
 
     /**
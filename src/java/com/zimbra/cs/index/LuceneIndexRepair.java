@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Set;
 
 import org.apache.lucene.document.DateTools;
 import org.apache.lucene.index.CorruptIndexException;
@@ -29,6 +30,7 @@ import org.apache.lucene.store.ChecksumIndexOutput;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RAMOutputStream;
 import org.apache.lucene.util.BitVector;
 
 /**
@@ -38,8 +40,11 @@ import org.apache.lucene.util.BitVector;
  * correctness. But, since re-indexing is very expensive, we do our best to
  * repair the index data with compromising some level of correctness.
  * <p>
- * Make sure there is absolutely no IndexReader or IndexWriter opening the index
- * data during the repair.
+ * Segments found damaged by an online check can also be dropped from the index,
+ * so that only the items they held need re-indexing.
+ * <p>
+ * Make sure there is absolutely no IndexWriter opening the index data during
+ * the repair. Readers opened before the repair keep reading the old segments.
  *
  * @author ysasaki
  */
@@ -54,6 +59,7 @@ final class LuceneIndexRepair {
     private static final String DELETES_EXTENSION = "del";
 
     private final Directory directory;
+    private final Set<String> dropSegments;
     private int repaired = 0;
 
     /**
@@ -62,7 +68,18 @@ final class LuceneIndexRepair {
      * @param dir index data to repair
      */
     LuceneIndexRepair(Directory dir) {
+        this(dir, Collections.<String>emptySet());
+    }
+
+    /**
+     * Constructs a new {@link LuceneIndexRepair} that also drops the given segments.
+     *
+     * @param dir index data to repair
+     * @param drop names of segments to remove from the index
+     */
+    LuceneIndexRepair(Directory dir, Set<String> drop) {
         directory = dir;
+        dropSegments = drop;
     }
 
     /**
@@ -82,7 +99,7 @@ final class LuceneIndexRepair {
             ChecksumIndexOutput output = new ChecksumIndexOutput(
                     directory.createOutput(nextSegsFilename));
             try {
-                convert(input, output);
+                convert(input, output, countDropped(segsFilename));
             } finally {
                 output.close();
             }
@@ -122,7 +139,22 @@ final class LuceneIndexRepair {
         directory.sync(Collections.singleton(SEGMENTS_GEN));
     }
 
-    private void convert(ChecksumIndexInput input, ChecksumIndexOutput output) throws IOException {
+    private int countDropped(String segsFilename) throws IOException {
+        if (dropSegments.isEmpty()) {
+            return 0;
+        }
+        SegmentInfos infos = new SegmentInfos();
+        infos.read(directory, segsFilename);
+        int count = 0;
+        for (int i = 0; i < infos.size(); i++) {
+            if (dropSegments.contains(infos.info(i).name)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void convert(ChecksumIndexInput input, ChecksumIndexOutput output, int dropped) throws IOException {
         int format = input.readInt();
         if (format < 0) {
             if (format < FORMAT) {
@@ -139,57 +171,67 @@ final class LuceneIndexRepair {
         }
 
         int num = input.readInt();
-        output.writeInt(num);
+        output.writeInt(num - dropped);
         for (int i = 0; i < num; i++) {
+            String version = null;
             if (format <= SegmentInfos.FORMAT_3_1) {
-                output.writeString(input.readString()); // version
+                version = input.readString();
             }
             String name = input.readString();
-            output.writeString(name);
+            // a dropped segment is still read through, but written to nowhere
+            boolean drop = dropSegments.contains(name);
+            IndexOutput out = drop ? new RAMOutputStream() : output;
+            if (drop) {
+                repaired++;
+            }
+            if (version != null) {
+                out.writeString(version);
+            }
+            out.writeString(name);
             int count = input.readInt();
-            output.writeInt(count);
+            out.writeInt(count);
             long delGen = -1;
             if (format <= SegmentInfos.FORMAT_LOCKLESS) {
                 delGen = input.readLong();
-                output.writeLong(delGen);
+                out.writeLong(delGen);
                 if (format <= SegmentInfos.FORMAT_SHARED_DOC_STORE) {
                     int docStoreOffset = input.readInt();
-                    output.writeInt(docStoreOffset);
+                    out.writeInt(docStoreOffset);
                     if (docStoreOffset != -1) {
-                        output.writeString(input.readString()); // docStoreSegment
-                        output.writeByte(input.readByte()); // docStoreIsCompoundFile
+                        out.writeString(input.readString()); // docStoreSegment
+                        out.writeByte(input.readByte()); // docStoreIsCompoundFile
                     }
                 }
             }
             if (format <= SegmentInfos.FORMAT_SINGLE_NORM_FILE) {
-                 output.writeByte(input.readByte()); // hasSingleNormFile
+                 out.writeByte(input.readByte()); // hasSingleNormFile
             }
             int numNormGen = input.readInt();
-            output.writeInt(numNormGen);
+            out.writeInt(numNormGen);
             if (numNormGen > 0) {
                 for (int j = 0; j < numNormGen; j++) {
-                    output.writeLong(input.readLong()); // normGen
+                    out.writeLong(input.readLong()); // normGen
                 }
             }
-            output.writeByte(input.readByte()); // isCompoundFile
+            out.writeByte(input.readByte()); // isCompoundFile
             if (format <= SegmentInfos.FORMAT_DEL_COUNT) {
                 int delCount = input.readInt();
-                if (delCount <= count && delCount == getDelCount(name, delGen)) {
-                    output.writeInt(delCount);
+                if (drop || (delCount <= count && delCount == getDelCount(name, delGen))) {
+                    out.writeInt(delCount);
                 } else { // del count mismatch
                     // https://issues.apache.org/jira/browse/LUCENE-1474
                     repaired++;
-                    output.writeInt(-1); // clear
+                    out.writeInt(-1); // clear
                 }
             }
             if (format <= SegmentInfos.FORMAT_HAS_PROX) {
-                output.writeByte(input.readByte()); // hasProx
+                out.writeByte(input.readByte()); // hasProx
             }
             if (format <= SegmentInfos.FORMAT_DIAGNOSTICS) {
-                output.writeStringStringMap(input.readStringStringMap()); // diagnostics
+                out.writeStringStringMap(input.readStringStringMap()); // diagnostics
             }
             if (format <= SegmentInfos.FORMAT_HAS_VECTORS) {
-                output.writeByte(input.readByte()); // hasVectors
+                out.writeByte(input.readByte()); // hasVectors
             }
         }
 
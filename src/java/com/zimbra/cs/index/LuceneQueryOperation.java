@@ -20,20 +20,25 @@ package com.zimbra.cs.index;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.PriorityQueue;
 import java.util.Set;
 
+import org.apache.lucene.document.DateTools;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.MultiPhraseQuery;
+import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.LinkedHashMultimap;
@@ -77,6 +82,11 @@ public final class LuceneQueryOperation extends QueryOperation {
      */
     private List<Term> filterTerms;
 
+    /**
+     * Range of the date sort field the hits must be in, e.g. the window of a search cursor.
+     */
+    private Query sortRange;
+
     /**
      * Because we don't store the real mail-item-id of documents, we ALWAYS need
      * a DBOp in order to properly get our results.
@@ -199,6 +209,30 @@ public final class LuceneQueryOperation extends QueryOperation {
         filterTerms.add(t);
     }
 
+    /**
+     * Restricts hits to the given range of item dates, using the date sort field stored in the index.
+     * <p>
+     * The query executor mirrors its cursor date constraint here, so that Lucene skips the hits of earlier pages
+     * instead of handing them to the DB, only to be filtered out there a chunk at a time. Items are reindexed when
+     * their date changes (see {@code MailItem.setDate()}), and text searches index deferred items first. Like
+     * {@link #addFilterClause(Term)}, this does *not* update the text-representation of this query.
+     *
+     * @param low lower bound, or -1 for none
+     * @param high upper bound, or -1 for none
+     */
+    void setSortDateRange(long low, boolean lowInclusive, long high, boolean highInclusive) {
+        assert(!haveRunSearch);
+        if (low < 0 && high < 0) {
+            sortRange = null;
+            return;
+        }
+        // the DB compares whole seconds, don't be stricter than that
+        sortRange = new TermRangeQuery(LuceneFields.L_SORT_DATE,
+                low < 0 ? null : DateTools.timeToString(low - low % 1000, DateTools.Resolution.MILLISECOND),
+                high < 0 ? null : DateTools.timeToString(high, DateTools.Resolution.MILLISECOND),
+                lowInclusive, highInclusive);
+    }
+
     /**
      * Clears the filter clause
      */
@@ -393,15 +427,22 @@ public final class LuceneQueryOperation extends QueryOperation {
                 hits = null;
                 return;
             }
+            Query query = luceneQuery;
+            if (sortRange != null) {
+                BooleanQuery ranged = new BooleanQuery();
+                ranged.add(luceneQuery, BooleanClause.Occur.MUST);
+                ranged.add(sortRange, BooleanClause.Occur.MUST);
+                query = ranged;
+            }
             ZimbraTermsFilter filter = (filterTerms != null) ? new ZimbraTermsFilter(filterTerms) : null;
             long start = System.currentTimeMillis();
             if (sort == null) {
-                hits = searcher.search(luceneQuery, filter, topDocsLen);
+                hits = searcher.search(query, filter, topDocsLen);
             } else {
-                hits = searcher.search(luceneQuery, filter, topDocsLen, sort);
+                hits = searcher.search(query, filter, topDocsLen, sort);
             }
             ZimbraLog.search.debug("LuceneSearch query=%s,n=%d,total=%d,elapsed=%d",
-                    luceneQuery, topDocsLen, hits.getTotalHits(), System.currentTimeMillis() - start);
+                    query, topDocsLen, hits.getTotalHits(), System.currentTimeMillis() - start);
         } catch (IOException e) {
             ZimbraLog.search.error("Failed to search query=%s", luceneQuery, e);
             Closeables.closeQuietly(searcher);
@@ -413,9 +454,16 @@ public final class LuceneQueryOperation extends QueryOperation {
     private Query expandLazyMultiPhraseQuery(Query query) throws IOException {
         if (query instanceof LazyMultiPhraseQuery) {
             LazyMultiPhraseQuery lazy = (LazyMultiPhraseQuery) query;
+            List<Term[]> termArrays = lazy.getTermArrays();
+            if (termArrays.size() == 1 && lazy.expand.contains(termArrays.get(0)[0])) {
+                // A single prefix term doesn't need the expanded terms themselves. PrefixQuery walks the sorted term
+                // dictionary from the prefix, and is rewritten to a filter once it matches many terms, so that it
+                // finds all matches however many terms share a short prefix.
+                return new PrefixQuery(termArrays.get(0)[0]);
+            }
             int max = LC.zimbra_index_wildcard_max_terms_expanded.intValue();
             MultiPhraseQuery mquery = new MultiPhraseQuery();
-            for (Term[] terms : lazy.getTermArrays()) {
+            for (Term[] terms : termArrays) {
                 if (terms.length != 1) {
                     mquery.add(terms);
                     continue;
@@ -425,23 +473,7 @@ public final class LuceneQueryOperation extends QueryOperation {
                     mquery.add(terms);
                     continue;
                 }
-                List<Term> expanded = Lists.newArrayList();
-                TermFieldEnumeration itr = searcher.getIndexReader().getTermsForField(base.field(), base.text());
-                try {
-                    while (itr.hasMoreElements()) {
-                        BrowseTerm term = itr.nextElement();
-                        if (term != null && term.getText().startsWith(base.text())) {
-                            if (expanded.size() >= max) { // too many terms expanded
-                                break;
-                            }
-                            expanded.add(new Term(base.field(), term.getText()));
-                        } else {
-                            break;
-                        }
-                    }
-                } finally {
-                    Closeables.closeQuietly(itr);
-                }
+                List<Term> expanded = expandPrefix(base, max);
                 if (expanded.isEmpty()) {
                     return null;
                 } else {
@@ -829,6 +861,48 @@ public final class LuceneQueryOperation extends QueryOperation {
         }
     }
 
+    /**
+     * Expands the prefix term to the terms in the index starting with it. If there are more than {@code max}, only the
+     * most frequent ones are kept, and a {@link WildcardExpansionQueryInfo} tells the caller that the results may be
+     * incomplete.
+     */
+    private List<Term> expandPrefix(Term base, int max) throws IOException {
+        PriorityQueue<BrowseTerm> top = new PriorityQueue<BrowseTerm>(Math.max(max, 1), new Comparator<BrowseTerm>() {
+            @Override
+            public int compare(BrowseTerm o1, BrowseTerm o2) {
+                return o1.getFreq() - o2.getFreq();
+            }
+        });
+        int total = 0;
+        TermFieldEnumeration itr = searcher.getIndexReader().getTermsForField(base.field(), base.text());
+        try {
+            while (itr.hasMoreElements()) {
+                BrowseTerm term = itr.nextElement();
+                if (term == null || !term.getText().startsWith(base.text())) {
+                    break;
+                }
+                total++;
+                if (top.size() < max) {
+                    top.add(term);
+                } else if (max > 0 && top.peek().getFreq() < term.getFreq()) {
+                    top.poll();
+                    top.add(term);
+                }
+            }
+        } finally {
+            Closeables.closeQuietly(itr);
+        }
+        List<Term> expanded = Lists.newArrayListWithCapacity(top.size());
+        for (BrowseTerm term : top) {
+            expanded.add(new Term(base.field(), term.getText()));
+        }
+        if (total > expanded.size()) {
+            ZimbraLog.search.debug("Wildcard %s* expanded to %d of %d terms", base.text(), expanded.size(), total);
+            addQueryInfo(new WildcardExpansionQueryInfo(base.text() + '*', expanded.size(), false));
+        }
+        return expanded;
+    }
+
     /**
      * Extended {@link MultiPhraseQuery} that defers wildcard expansion until actual Lucene search execution, rather
      * than doing so when creating a {@link MultiPhraseQuery}.
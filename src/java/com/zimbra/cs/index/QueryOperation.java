@@ -181,6 +181,19 @@ public abstract class QueryOperation implements Cloneable, ZimbraQueryResults {
      */
     protected abstract void begin(QueryContext ctx) throws ServiceException;
 
+    /**
+     * Begins query execution and adds everything this operation matches to {@code matches}, for the non-driving sides
+     * of an {@link IntersectionQueryOperation}. Operations that can tell what they match from item IDs or Lucene
+     * documents override this so that no {@link ZimbraHit} is built.
+     */
+    void collectMatches(QueryContext ctx, ItemMatches matches) throws ServiceException {
+        begin(ctx);
+        ZimbraHit hit;
+        while ((hit = getNext()) != null) {
+            matches.addHit(hit);
+        }
+    }
+
     @Override
     public ZimbraHit skipToHit(int hitNo) throws ServiceException {
         resetIterator();
@@ -30,6 +30,9 @@ import com.zimbra.common.util.ZimbraLog;
 
 /**
  * A list of query operations which are unioned together.
+ * <p>
+ * The same message can match several sub-operations; the IDs of messages already returned are tracked in an
+ * {@link ItemIdBitmap} so each {@link MessageHit} is only returned once.
  *
  * @since Oct 29, 2004
  */
@@ -37,6 +40,7 @@ public final class UnionQueryOperation extends CombiningQueryOperation {
 
     private boolean atStart = true; // don't re-fill buffer twice if they call hasNext() then reset() w/o actually getting next
     private ZimbraHit cachedNextHit = null;
+    private ItemIdBitmap returnedMessages = new ItemIdBitmap();
 
     @Override
     public long getCursorOffset() {
@@ -60,6 +64,7 @@ public final class UnionQueryOperation extends CombiningQueryOperation {
                 q.resetIterator();
             }
             cachedNextHit = null;
+            returnedMessages.clear();
             internalGetNext();
         }
     }
@@ -83,42 +88,54 @@ public final class UnionQueryOperation extends CombiningQueryOperation {
     }
 
     private void internalGetNext() throws ServiceException {
-        if (cachedNextHit == null) {
-            if (context.getResults().getSortBy() == SortBy.NONE) {
-                for (QueryOperation op : operations) {
-                    cachedNextHit = op.getNext();
-                    if (cachedNextHit != null) {
-                        return;
-                    }
-                }
-                // no more results!
+        while (cachedNextHit == null) {
+            ZimbraHit hit = nextMergedHit();
+            if (hit == null) {
+                return; // no more results!
+            }
+            if (hit instanceof MessageHit && !returnedMessages.add(hit.getItemId())) {
+                continue; // already returned via another sub-operation
+            }
+            cachedNextHit = hit;
+        }
+    }
 
-            } else {
-                // mergesort: loop through QueryOperations and find the "best" hit
-                int currentBestHitOffset = -1;
-                ZimbraHit currentBestHit = null;
-                for (int i = 0; i < operations.size(); i++) {
-                    QueryOperation op = operations.get(i);
-                    if (op.hasNext()) {
-                        if (currentBestHitOffset == -1) {
+    private ZimbraHit nextMergedHit() throws ServiceException {
+        if (context.getResults().getSortBy() == SortBy.NONE) {
+            for (QueryOperation op : operations) {
+                ZimbraHit hit = op.getNext();
+                if (hit != null) {
+                    return hit;
+                }
+            }
+            return null;
+        } else {
+            // mergesort: loop through QueryOperations and find the "best" hit
+            int currentBestHitOffset = -1;
+            ZimbraHit currentBestHit = null;
+            for (int i = 0; i < operations.size(); i++) {
+                QueryOperation op = operations.get(i);
+                if (op.hasNext()) {
+                    if (currentBestHitOffset == -1) {
+                        currentBestHitOffset = i;
+                        currentBestHit = op.peekNext();
+                    } else {
+                        ZimbraHit opNext = op.peekNext();
+                        int result = opNext.compareTo(context.getResults().getSortBy(), currentBestHit);
+                        if (result < 0) {
+                            // "before"
                             currentBestHitOffset = i;
-                            currentBestHit = op.peekNext();
-                        } else {
-                            ZimbraHit opNext = op.peekNext();
-                            int result = opNext.compareTo(context.getResults().getSortBy(), currentBestHit);
-                            if (result < 0) {
-                                // "before"
-                                currentBestHitOffset = i;
-                                currentBestHit = opNext;
-                            }
+                            currentBestHit = opNext;
                         }
                     }
                 }
-                if (currentBestHitOffset > -1) {
-                    cachedNextHit = operations.get(currentBestHitOffset).getNext();
-                    assert(cachedNextHit == currentBestHit);
-                }
             }
+            if (currentBestHitOffset > -1) {
+                ZimbraHit hit = operations.get(currentBestHitOffset).getNext();
+                assert(hit == currentBestHit);
+                return hit;
+            }
+            return null;
         }
     }
 
@@ -303,6 +320,7 @@ public final class UnionQueryOperation extends CombiningQueryOperation {
     public Object clone() {
         assert(cachedNextHit == null);
         UnionQueryOperation result = (UnionQueryOperation) super.clone();
+        result.returnedMessages = new ItemIdBitmap();
         result.operations = new ArrayList<QueryOperation>(operations.size());
         for (QueryOperation op : operations) {
             result.operations.add((QueryOperation) op.clone());
@@ -331,6 +349,19 @@ public final class UnionQueryOperation extends CombiningQueryOperation {
         internalGetNext();
     }
 
+    /**
+     * Everything any of the sub-operations matches is a match of the union.
+     */
+    @Override
+    void collectMatches(QueryContext ctx, ItemMatches matches) throws ServiceException {
+        assert(context == null);
+        context = ctx;
+        for (QueryOperation op : operations) {
+            op.collectMatches(new QueryContext(ctx.getMailbox(), ctx.getResults(), ctx.getParams(),
+                    ctx.getChunkSize() + 1), matches);
+        }
+    }
+
     @Override
     public List<QueryInfo> getResultInfo() {
         List<QueryInfo> result = new ArrayList<QueryInfo>();
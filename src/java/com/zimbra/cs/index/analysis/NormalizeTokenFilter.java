@@ -29,12 +29,21 @@ import org.apache.lucene.analysis.CharStream;
  *  <li>accented character to ASCII equivalent ({@link org.apache.lucene.analysis.ASCIIFoldingFilter})
  *  <li>upper case to lower case
  * </ul>
+ * The mapping of every BMP character is precomputed into a lookup table, so the filter normalizes the
+ * {@link CharFilter}'s buffer in place without any per-character branching or allocation.
  *
  * @author ysasaki
  * @author smukhopadhyay
  */
 public final class NormalizeTokenFilter extends CharFilter {
 
+    private static final char[] TABLE = new char[Character.MAX_VALUE + 1];
+    static {
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            TABLE[c] = (char) map(c, 0);
+        }
+    }
+
     public NormalizeTokenFilter(CharStream in) {
         super(in);
     }
@@ -47,12 +56,21 @@ public final class NormalizeTokenFilter extends CharFilter {
     @Override
     public int read(char[] buf, int offset, int len) throws IOException {
         int result = super.read(buf, offset, len);
-        for (int i = 0; i < result; i++) {
-            buf[offset + i] = (char) normalize(buf[offset + i]);
+        if (result > 0) {
+            normalize(buf, offset, result);
         }
         return result;
     }
 
+    /**
+     * Normalizes the characters in place, one character at a time like {@link #normalize(int)}.
+     */
+    public static void normalize(char[] buf, int offset, int len) {
+        for (int i = offset, end = offset + len; i < end; i++) {
+            buf[i] = TABLE[buf[i]];
+        }
+    }
+
     public static int normalize(int c) {
         return normalize(c, 0);
     }
@@ -63,6 +81,17 @@ public final class NormalizeTokenFilter extends CharFilter {
      * @param p the character which follows the param c.
      */
     public static int normalize(int c, int p) {
+        if (c >= 0 && c <= Character.MAX_VALUE && p != '\uFF9E') {
+            return TABLE[c];
+        }
+        return map(c, p);
+    }
+
+    /**
+     * Computes the mapping. Only a following {@code HALFWIDTH KATAKANA VOICED SOUND MARK} changes the result, which is
+     * why {@link #TABLE} can be built for {@code p == 0}.
+     */
+    private static int map(int c, int p) {
         switch (c) {
             case '\u00C0': // [LATIN CAPITAL LETTER A WITH GRAVE]
             case '\u00C1': // [LATIN CAPITAL LETTER A WITH ACUTE]
@@ -1400,10 +1429,11 @@ public final class NormalizeTokenFilter extends CharFilter {
     }
 
     public static String normalize(String value) {
-        StringBuilder result = new StringBuilder();
-        for (int i = 0; i < value.length(); i++)
-            result.append((char) NormalizeTokenFilter.normalize(value.charAt(i), i + 1 < value.length() ? value.charAt(i + 1) : 0));
-
-        return result.toString();
+        int len = value.length();
+        char[] result = new char[len];
+        for (int i = 0; i < len; i++) {
+            result[i] = (char) normalize(value.charAt(i), i + 1 < len ? value.charAt(i + 1) : 0);
+        }
+        return new String(result);
     }
 }
@@ -30,7 +30,6 @@ import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
 
-import com.google.common.base.CharMatcher;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
@@ -111,8 +110,15 @@ public final class UniversalAnalyzer extends Analyzer {
                 }
             } else if (type == UniversalTokenizer.TokenType.ACRONYM.name()) {
                 // remove dots from acronyms
-                String replace = CharMatcher.is('.').removeFrom(termAttr);
-                termAttr.setEmpty().append(replace);
+                char[] buf = termAttr.buffer();
+                int len = termAttr.length();
+                int out = 0;
+                for (int i = 0; i < len; i++) {
+                    if (buf[i] != '.') {
+                        buf[out++] = buf[i];
+                    }
+                }
+                termAttr.setLength(out);
             }
 
             return true;
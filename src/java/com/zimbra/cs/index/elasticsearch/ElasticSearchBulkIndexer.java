@@ -0,0 +1,418 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index.elasticsearch;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mime.MimeConstants;
+import com.zimbra.common.stats.RealtimeStatsCallback;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.localconfig.ServerLC;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Buffers documents to be indexed across all mailboxes, and sends them to ElasticSearch through the bulk API.
+ * <p>
+ * The buffer is flushed when it holds {@code zimbra_index_elasticsearch_bulk_max_docs} documents or
+ * {@code zimbra_index_elasticsearch_bulk_max_kb} of JSON, and by a background thread every
+ * {@code zimbra_index_elasticsearch_bulk_flush_interval_ms}. The bulk API reports the outcome of each document
+ * separately; documents rejected for a transient reason (overloaded or unavailable) are put back in the buffer and
+ * retried up to {@code zimbra_index_elasticsearch_bulk_max_attempts} times, other failures are logged and dropped.
+ * A rejected document is held back for an exponentially growing, jittered delay starting at
+ * {@code zimbra_index_elasticsearch_bulk_retry_delay_ms} before it is sent again, so that back-pressure from an
+ * overloaded cluster is not answered with an immediate resend.
+ * <p>
+ * Callers that need to see their own writes (searches, deletes) call {@link #flush(String)} first. Callers that record
+ * documents as indexed wait for the bulk response with {@link #await(Collection)} first, so that documents still in
+ * the buffer when the server goes down are indexed again.
+ */
+final class ElasticSearchBulkIndexer {
+    private static final long MAX_RETRY_DELAY = TimeUnit.MINUTES.toMillis(1);
+
+    private final String urlBase;
+    private final int maxDocs;
+    private final long maxBytes;
+    private final long flushInterval;
+    private final int maxAttempts;
+    private final long retryDelay;
+    private final Random random = new Random();
+    private final List<BulkItem> pending = Lists.newArrayList();
+    private final Map<String, Integer> pendingByIndex = new HashMap<String, Integer>();
+    private long pendingBytes = 0;
+    /** serializes bulk requests, so that documents of an index are sent in order */
+    private final Object flushLock = new Object();
+    private ScheduledExecutorService flusher;
+
+    ElasticSearchBulkIndexer(String urlBase, int maxDocs, long maxBytes, long flushInterval, int maxAttempts,
+            long retryDelay) {
+        this.urlBase = urlBase;
+        this.maxDocs = Math.max(maxDocs, 1);
+        this.maxBytes = maxBytes;
+        this.flushInterval = flushInterval;
+        this.maxAttempts = Math.max(maxAttempts, 1);
+        this.retryDelay = Math.max(retryDelay, 0);
+    }
+
+    static ElasticSearchBulkIndexer create() {
+        return new ElasticSearchBulkIndexer(LC.zimbra_index_elasticsearch_url_base.value(),
+                ServerLC.zimbra_index_elasticsearch_bulk_max_docs.intValue(),
+                ServerLC.zimbra_index_elasticsearch_bulk_max_kb.intValue() * 1024L,
+                ServerLC.zimbra_index_elasticsearch_bulk_flush_interval_ms.intValue(),
+                ServerLC.zimbra_index_elasticsearch_bulk_max_attempts.intValue(),
+                ServerLC.zimbra_index_elasticsearch_bulk_retry_delay_ms.longValue());
+    }
+
+    /**
+     * Starts the background flusher, and registers the queue depth with {@link ZimbraPerf}.
+     */
+    synchronized void start() {
+        if (flusher != null) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("ElasticSearchBulkIndexer").setDaemon(true).build());
+        if (flushInterval > 0) {
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (Throwable t) {
+                        ZimbraLog.index.warn("Failed to flush bulk index requests", t);
+                    }
+                }
+            }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        }
+        ZimbraPerf.addStatsCallback(new RealtimeStatsCallback() {
+            @Override
+            public Map<String, Object> getStatData() {
+                return Collections.<String, Object>singletonMap(ZimbraPerf.RTS_ES_BULK_QUEUE_SIZE, getQueueSize());
+            }
+        });
+    }
+
+    /**
+     * Stops the background flusher after sending what's buffered.
+     */
+    void shutdown() {
+        synchronized (this) {
+            if (flusher != null) {
+                flusher.shutdownNow();
+                flusher = null;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Buffers a document. Flushes the buffer in the caller's thread once it's full.
+     *
+     * @param index name of the ElasticSearch index
+     * @param type document type
+     * @param id mail item ID, for logging
+     * @param json document source
+     * @return the buffered document, to {@link #await(Collection)} on
+     */
+    BulkItem add(String index, String type, int id, String json) {
+        BulkItem item = new BulkItem(index, type, id, json);
+        boolean full;
+        synchronized (this) {
+            enqueue(item);
+            full = pending.size() >= maxDocs || pendingBytes >= maxBytes;
+        }
+        if (full) {
+            flush();
+        }
+        return item;
+    }
+
+    /**
+     * Sends buffered documents until each of the given ones has been acknowledged by ElasticSearch or given up on.
+     *
+     * @return the documents that were not indexed
+     */
+    List<BulkItem> await(Collection<BulkItem> items) {
+        while (true) {
+            flush();
+            // flush() waited for any bulk request in flight, so each item is now either done or buffered for retry
+            List<BulkItem> failed = Lists.newArrayList();
+            boolean done = true;
+            long retryAt = Long.MAX_VALUE;
+            for (BulkItem item : items) {
+                if (item.state == BulkItem.PENDING) {
+                    done = false;
+                    retryAt = Math.min(retryAt, item.retryAt);
+                } else if (item.state == BulkItem.FAILED) {
+                    failed.add(item);
+                }
+            }
+            if (done) {
+                return failed;
+            }
+            long delay = retryAt - System.currentTimeMillis();
+            if (delay > 0) {
+                Uninterruptibles.sleepUninterruptibly(delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void enqueue(BulkItem item) {
+        assert Thread.holdsLock(this);
+        pending.add(item);
+        pendingBytes += item.json.length();
+        Integer count = pendingByIndex.get(item.index);
+        pendingByIndex.put(item.index, count == null ? 1 : count + 1);
+    }
+
+    private List<BulkItem> drain() {
+        assert Thread.holdsLock(this);
+        List<BulkItem> batch = Lists.newArrayList(pending);
+        pending.clear();
+        pendingByIndex.clear();
+        pendingBytes = 0;
+        return batch;
+    }
+
+    synchronized int getQueueSize() {
+        return pending.size();
+    }
+
+    synchronized boolean hasPending(String index) {
+        return pendingByIndex.containsKey(index);
+    }
+
+    /**
+     * Sends buffered documents if any of them belongs to the index.
+     */
+    void flush(String index) {
+        if (hasPending(index)) {
+            flush();
+        }
+    }
+
+    /**
+     * Drops buffered documents of the index, e.g. because the index is about to be deleted. Waits for a bulk request
+     * in flight, so that none of its documents land in the index after this returns.
+     */
+    void discard(String index) {
+        synchronized (flushLock) {
+            synchronized (this) {
+                if (!pendingByIndex.containsKey(index)) {
+                    return;
+                }
+                List<BulkItem> batch = drain();
+                for (BulkItem item : batch) {
+                    if (item.index.equals(index)) {
+                        item.state = BulkItem.FAILED;
+                    } else {
+                        enqueue(item);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends all buffered documents in bulk requests of up to {@code maxDocs}, except those whose retry delay has not
+     * passed yet.
+     */
+    void flush() {
+        synchronized (flushLock) {
+            List<BulkItem> batch;
+            synchronized (this) {
+                batch = drain();
+                long now = System.currentTimeMillis();
+                for (Iterator<BulkItem> i = batch.iterator(); i.hasNext();) {
+                    BulkItem item = i.next();
+                    if (item.retryAt > now) { // stays ahead of newer documents
+                        enqueue(item);
+                        i.remove();
+                    }
+                }
+            }
+            List<BulkItem> retry = Lists.newArrayList();
+            for (int i = 0; i < batch.size(); i += maxDocs) {
+                retry.addAll(send(batch.subList(i, Math.min(i + maxDocs, batch.size()))));
+            }
+            if (!retry.isEmpty()) {
+                synchronized (this) {
+                    List<BulkItem> newer = drain();
+                    for (BulkItem item : retry) { // keep them ahead of newer documents
+                        enqueue(item);
+                    }
+                    for (BulkItem item : newer) {
+                        enqueue(item);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return documents to retry
+     */
+    private List<BulkItem> send(List<BulkItem> batch) {
+        if (batch.isEmpty()) {
+            return Collections.emptyList();
+        }
+        StringBuilder body = new StringBuilder();
+        try {
+            for (BulkItem item : batch) {
+                JSONObject meta = new JSONObject().put("_index", item.index).put("_type", item.type);
+                body.append(new JSONObject().put("index", meta).toString()).append('\n');
+                body.append(item.json).append('\n');
+            }
+        } catch (JSONException e) { // should never happen
+            ZimbraLog.index.error("Problem creating bulk index request", e);
+            setState(batch, BulkItem.FAILED);
+            return Collections.emptyList();
+        }
+
+        PostMethod method = new PostMethod(ElasticSearchConnector.actualUrl(urlBase + "_bulk"));
+        try {
+            method.setRequestEntity(new StringRequestEntity(body.toString(),
+                    MimeConstants.CT_APPLICATION_JSON, MimeConstants.P_CHARSET_UTF8));
+            ElasticSearchConnector connector = new ElasticSearchConnector();
+            int statusCode = connector.executeMethod(method);
+            if (statusCode != HttpStatus.SC_OK) {
+                ZimbraLog.index.warn("Problem sending %d documents in bulk httpstatus=%d", batch.size(), statusCode);
+                return retryable(batch);
+            }
+            JSONArray results = connector.getArrayAtJsonPath(new String[] {"items"});
+            if (results == null || results.length() != batch.size()) {
+                ZimbraLog.index.error("Unexpected bulk index response for %d documents", batch.size());
+                setState(batch, BulkItem.FAILED);
+                return Collections.emptyList();
+            }
+            List<BulkItem> retry = Lists.newArrayList();
+            for (int i = 0; i < batch.size(); i++) {
+                BulkItem item = batch.get(i);
+                JSONObject result = results.getJSONObject(i);
+                Iterator<?> actions = result.keys();
+                result = actions.hasNext() ? result.optJSONObject((String) actions.next()) : null;
+                if (result == null) {
+                    item.state = BulkItem.INDEXED;
+                    continue;
+                }
+                int status = result.optInt("status", HttpStatus.SC_OK);
+                String error = result.optString("error", null);
+                if (error == null && status < HttpStatus.SC_MULTIPLE_CHOICES) {
+                    item.state = BulkItem.INDEXED;
+                    continue;
+                }
+                if ((status == 429 || status >= HttpStatus.SC_INTERNAL_SERVER_ERROR) && retryable(item)) {
+                    ZimbraLog.index.debug("Retrying %s httpstatus=%d error=%s", item, status, error);
+                    retry.add(item);
+                } else {
+                    ZimbraLog.index.error("Problem indexing %s httpstatus=%d error=%s", item, status, error);
+                    item.state = BulkItem.FAILED;
+                }
+            }
+            ZimbraLog.index.debug("Sent %d documents in bulk, %d to retry", batch.size(), retry.size());
+            return retry;
+        } catch (JSONException e) {
+            ZimbraLog.index.error("Problem parsing bulk index response", e);
+            setState(batch, BulkItem.FAILED);
+            return Collections.emptyList();
+        } catch (IOException e) {
+            ZimbraLog.index.warn("Problem sending %d documents in bulk", batch.size(), e);
+            return retryable(batch);
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    private List<BulkItem> retryable(List<BulkItem> batch) {
+        List<BulkItem> retry = Lists.newArrayListWithCapacity(batch.size());
+        for (BulkItem item : batch) {
+            if (retryable(item)) {
+                retry.add(item);
+            } else {
+                ZimbraLog.index.error("Giving up indexing %s", item);
+                item.state = BulkItem.FAILED;
+            }
+        }
+        return retry;
+    }
+
+    private static void setState(List<BulkItem> batch, int state) {
+        for (BulkItem item : batch) {
+            item.state = state;
+        }
+    }
+
+    private boolean retryable(BulkItem item) {
+        if (++item.attempts >= maxAttempts) {
+            return false;
+        }
+        // exponential backoff with equal jitter: half the delay is fixed, the other half random
+        long delay = Math.min(retryDelay << Math.min(item.attempts - 1, 16), MAX_RETRY_DELAY);
+        delay = delay / 2 + (long) (random.nextDouble() * (delay - delay / 2));
+        item.retryAt = System.currentTimeMillis() + delay;
+        return true;
+    }
+
+    static final class BulkItem {
+        static final int PENDING = 0;
+        static final int INDEXED = 1;
+        static final int FAILED = 2;
+
+        final String index;
+        final String type;
+        final int id;
+        final String json;
+        int attempts = 0;
+        /** when a rejected document may be sent again, or 0 */
+        volatile long retryAt = 0;
+        volatile int state = PENDING;
+
+        BulkItem(String index, String type, int id, String json) {
+            this.index = index;
+            this.type = type;
+            this.id = id;
+            this.json = json;
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this).add("index", index).add("id", id).add("attempts", attempts)
+                    .add("state", state).toString();
+        }
+    }
+}
@@ -27,6 +27,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Queue;
+import java.util.Set;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.HttpStatus;
@@ -62,6 +63,7 @@ import org.json.JSONObject;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.MimeConstants;
 import com.zimbra.common.util.ZimbraLog;
@@ -99,10 +101,12 @@ public final class ElasticSearchIndex extends IndexStore {
     private final Mailbox mailbox;
     private final String key;
     private final String indexUrl;
+    private final ElasticSearchBulkIndexer bulkIndexer;
     private boolean haveMappingInfo = false;
 
-    private ElasticSearchIndex(Mailbox mbox) {
+    private ElasticSearchIndex(Mailbox mbox, ElasticSearchBulkIndexer bulkIndexer) {
         this.mailbox = mbox;
+        this.bulkIndexer = bulkIndexer;
         this.key = mailbox.getAccountId();
         this.indexUrl = String.format("%s%s/", LC.zimbra_index_elasticsearch_url_base.value(), key);
     }
@@ -318,12 +322,14 @@ public final class ElasticSearchIndex extends IndexStore {
 
     @Override
     public ZimbraIndexSearcher openSearcher() {
+        bulkIndexer.flush(key);
         final ElasticIndexReader reader = new ElasticIndexReader();
         return new ZimbraElasticIndexSearcher(reader);
     }
 
     @Override
     public void deleteIndex() {
+        bulkIndexer.discard(key);
         HttpMethod method = new DeleteMethod(ElasticSearchConnector.actualUrl(indexUrl));
         try {
             ElasticSearchConnector connector = new ElasticSearchConnector();
@@ -392,14 +398,16 @@ public final class ElasticSearchIndex extends IndexStore {
     }
 
     public static final class Factory implements IndexStore.Factory {
+        private final ElasticSearchBulkIndexer bulkIndexer = ElasticSearchBulkIndexer.create();
 
         public Factory() {
+            bulkIndexer.start();
             ZimbraLog.index.info("Created ElasticSearchIndex\n");
         }
 
         @Override
         public ElasticSearchIndex getIndexStore(Mailbox mbox) {
-            return new ElasticSearchIndex(mbox);
+            return new ElasticSearchIndex(mbox, bulkIndexer);
         }
 
         /**
@@ -407,6 +415,7 @@ public final class ElasticSearchIndex extends IndexStore {
          */
         @Override
         public void destroy() {
+            bulkIndexer.shutdown();
         }
 
         public List<String> getIndexes() {
@@ -441,9 +450,30 @@ public final class ElasticSearchIndex extends IndexStore {
     }
 
     private final class ElasticSearchIndexer implements Indexer {
+        private final List<ElasticSearchBulkIndexer.BulkItem> added = Lists.newArrayList();
 
+        /**
+         * Waits until ElasticSearch has acknowledged the documents added through this indexer, since the caller
+         * records their items as indexed once this returns. If any document couldn't be indexed, the documents of
+         * all the items are deleted again and the items are left to be indexed later.
+         */
         @Override
-        public void close() {
+        public void close() throws IOException {
+            if (added.isEmpty()) {
+                return;
+            }
+            List<ElasticSearchBulkIndexer.BulkItem> failed = bulkIndexer.await(added);
+            if (failed.isEmpty()) {
+                added.clear();
+                return;
+            }
+            Set<Integer> ids = Sets.newTreeSet();
+            for (ElasticSearchBulkIndexer.BulkItem item : added) {
+                ids.add(item.id);
+            }
+            added.clear();
+            deleteDocument(Lists.newArrayList(ids));
+            throw new IOException("Failed to index " + failed.size() + " documents of items " + ids);
         }
 
         @Override
@@ -552,6 +582,7 @@ public final class ElasticSearchIndex extends IndexStore {
          * <p>
          * If the index status is stale, delete the stale documents first, then add new documents. If the index status
          * is deferred, we are sure that this item is not already in the index, and so we can skip the check-update step.
+         * Documents are buffered and sent in bulk by {@link ElasticSearchBulkIndexer}; {@link #close()} waits for them.
          */
         @Override
         public void addDocument(Folder folder, MailItem item, List<IndexDocument> docs) throws IOException {
@@ -577,8 +608,6 @@ public final class ElasticSearchIndex extends IndexStore {
 
             for (IndexDocument doc : docs) {
                 // Note: using automatic ID generation
-                String url = String.format("%s%s/", indexUrl, indexType);
-                PostMethod method = new PostMethod(ElasticSearchConnector.actualUrl(url));
                 JSONObject jsonObj = new JSONObject();
                 // doc can be shared by multiple threads if multiple mailboxes are referenced in a single email
                 synchronized (doc) {
@@ -588,20 +617,7 @@ public final class ElasticSearchIndex extends IndexStore {
                         addFieldToDocument(jsonObj, field);
                     }
                 }
-                try {
-                    method.setRequestEntity(new StringRequestEntity(jsonObj.toString(),
-                            MimeConstants.CT_APPLICATION_JSON, MimeConstants.P_CHARSET_UTF8));
-                    ElasticSearchConnector connector = new ElasticSearchConnector();
-                    int statusCode = connector.executeMethod(method);
-                    if (statusCode != HttpStatus.SC_CREATED) {
-                        ZimbraLog.index.error("Problem indexing document with id=%d httpstatus=%d",
-                                item.getId(), statusCode);
-                    }
-                } catch (HttpException e) {
-                    ZimbraLog.index.error("Problem indexing document with id=%d", item.getId());
-                } catch (IOException e) {
-                    ZimbraLog.index.error("Problem indexing document with id=%d", item.getId());
-                }
+                added.add(bulkIndexer.add(key, indexType, item.getId(), jsonObj.toString()));
             }
         }
 
@@ -610,6 +626,7 @@ public final class ElasticSearchIndex extends IndexStore {
          */
         @Override
         public void deleteDocument(List<Integer> ids) {
+            bulkIndexer.flush(key); // documents must be indexed before they can be deleted
             refreshIndexIfNecessary();
             String url = String.format("%s%s/_query", indexUrl, indexType);
             for (Integer id : ids) {
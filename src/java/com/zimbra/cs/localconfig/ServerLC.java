@@ -0,0 +1,122 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.localconfig;
+
+import com.zimbra.common.localconfig.KnownKey;
+
+/**
+ * Local config keys that only the mailbox server reads. They are declared here rather than in {@code LC}, and
+ * {@link LocalConfigCLI} loads them like the keys of the extension LC classes.
+ */
+public final class ServerLC {
+
+    private ServerLC() {
+    }
+
+    // index
+
+    public static final KnownKey zimbra_index_lucene_block_cache_size_kb =
+        new KnownKey("zimbra_index_lucene_block_cache_size_kb", "32768");
+    public static final KnownKey zimbra_index_lucene_mmap_threshold_mb =
+        new KnownKey("zimbra_index_lucene_mmap_threshold_mb", "64");
+    public static final KnownKey zimbra_index_writer_pool_max_idle =
+        new KnownKey("zimbra_index_writer_pool_max_idle", "50");
+    public static final KnownKey zimbra_index_writer_pool_idle_timeout =
+        new KnownKey("zimbra_index_writer_pool_idle_timeout", "120");
+    public static final KnownKey zimbra_index_lucene_ram_buffer_budget_mb =
+        new KnownKey("zimbra_index_lucene_ram_buffer_budget_mb", "0");
+    public static final KnownKey zimbra_index_max_merges =
+        new KnownKey("zimbra_index_max_merges", "2");
+    public static final KnownKey zimbra_index_merge_max_write_kb_per_sec =
+        new KnownKey("zimbra_index_merge_max_write_kb_per_sec", "0");
+    public static final KnownKey zimbra_index_elasticsearch_bulk_max_docs =
+        new KnownKey("zimbra_index_elasticsearch_bulk_max_docs", "500");
+    public static final KnownKey zimbra_index_elasticsearch_bulk_max_kb =
+        new KnownKey("zimbra_index_elasticsearch_bulk_max_kb", "5120");
+    public static final KnownKey zimbra_index_elasticsearch_bulk_flush_interval_ms =
+        new KnownKey("zimbra_index_elasticsearch_bulk_flush_interval_ms", "1000");
+    public static final KnownKey zimbra_index_elasticsearch_bulk_max_attempts =
+        new KnownKey("zimbra_index_elasticsearch_bulk_max_attempts", "3");
+    public static final KnownKey zimbra_index_elasticsearch_bulk_retry_delay_ms =
+        new KnownKey("zimbra_index_elasticsearch_bulk_retry_delay_ms", "250");
+    public static final KnownKey zimbra_index_browse_max_stale =
+        new KnownKey("zimbra_index_browse_max_stale", "0");
+
+    // store
+
+    public static final KnownKey zimbra_blob_transfer_min_size_kb =
+        new KnownKey("zimbra_blob_transfer_min_size_kb", "64");
+    public static final KnownKey zimbra_blob_input_stream_max_readahead_kb =
+        new KnownKey("zimbra_blob_input_stream_max_readahead_kb", "64");
+    public static final KnownKey zimbra_blob_compression_codec =
+        new KnownKey("zimbra_blob_compression_codec", "gzip");
+    public static final KnownKey zimbra_dedupe_threads =
+        new KnownKey("zimbra_dedupe_threads", "4");
+    public static final KnownKey zimbra_dedupe_batch_size =
+        new KnownKey("zimbra_dedupe_batch_size", "500");
+    public static final KnownKey zimbra_dedupe_max_files_per_sec =
+        new KnownKey("zimbra_dedupe_max_files_per_sec", "0");
+    public static final KnownKey zimbra_blob_check_threads =
+        new KnownKey("zimbra_blob_check_threads", "4");
+    public static final KnownKey zimbra_blob_check_max_files_per_sec =
+        new KnownKey("zimbra_blob_check_max_files_per_sec", "0");
+    public static final KnownKey zimbra_blob_check_max_kb_per_sec =
+        new KnownKey("zimbra_blob_check_max_kb_per_sec", "0");
+    public static final KnownKey external_store_local_cache_probation_max_files =
+        new KnownKey("external_store_local_cache_probation_max_files", "1000");
+    public static final KnownKey external_store_part_size_kb =
+        new KnownKey("external_store_part_size_kb", "8192");
+    public static final KnownKey external_store_parallel_parts =
+        new KnownKey("external_store_parallel_parts", "4");
+    public static final KnownKey external_store_part_max_attempts =
+        new KnownKey("external_store_part_max_attempts", "3");
+    public static final KnownKey external_store_sis_recent_max =
+        new KnownKey("external_store_sis_recent_max", "10000");
+    public static final KnownKey external_store_sis_recent_ttl_secs =
+        new KnownKey("external_store_sis_recent_ttl_secs", "300");
+    public static final KnownKey zimbra_hsm_interval_mins =
+        new KnownKey("zimbra_hsm_interval_mins", "0");
+    public static final KnownKey zimbra_hsm_max_kb_per_sec =
+        new KnownKey("zimbra_hsm_max_kb_per_sec", "0");
+    public static final KnownKey zimbra_hsm_threads =
+        new KnownKey("zimbra_hsm_threads", "4");
+    public static final KnownKey zimbra_hsm_batch_size =
+        new KnownKey("zimbra_hsm_batch_size", "500");
+    public static final KnownKey zimbra_hsm_min_size_kb =
+        new KnownKey("zimbra_hsm_min_size_kb", "0");
+    public static final KnownKey zimbra_hsm_delete_delay_secs =
+        new KnownKey("zimbra_hsm_delete_delay_secs", "300");
+    public static final KnownKey zimbra_hsm_delete_journal =
+        new KnownKey("zimbra_hsm_delete_journal", "${zimbra_home}/data/mailboxd/hsm-deletes");
+    public static final KnownKey zimbra_store_batched_fsync =
+        new KnownKey("zimbra_store_batched_fsync", "false");
+
+    // imap
+
+    public static final KnownKey imap_part_offset_cache_size =
+        new KnownKey("imap_part_offset_cache_size", "10000");
+
+    // redolog
+
+    public static final KnownKey redolog_crash_recovery_threads =
+        new KnownKey("redolog_crash_recovery_threads", "4");
+    public static final KnownKey redolog_block_format =
+        new KnownKey("redolog_block_format", "false");
+    public static final KnownKey redolog_block_size_kb =
+        new KnownKey("redolog_block_size_kb", "64");
+}
@@ -1940,6 +1940,9 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
         }
         markItemModified(Change.DATE);
         mData.date = (int) (date / 1000L);
+        // the date is also a sort field in the index, reindex so that date ranges on it stay in line with the DB
+        // (the index ID will be written to DB in DbMailItem.saveDate())
+        mMailbox.index.add(this);
         metadataChanged();
         DbMailItem.saveDate(this);
     }
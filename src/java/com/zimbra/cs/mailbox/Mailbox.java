@@ -9182,6 +9182,16 @@ public class Mailbox {
                 }
             }
 
+            if (success) {
+                // blobs must be on disk before the redo record and the database point to them
+                try {
+                    StoreManager.getInstance().sync();
+                } catch (IOException e) {
+                    exception = ServiceException.FAILURE("unable to sync blobs to disk", e);
+                    success = false;
+                }
+            }
+
             DbConnection conn = currentChange().conn;
 
             // Failure case is very simple.  Just rollback the database and cache
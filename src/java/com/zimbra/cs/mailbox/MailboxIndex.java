@@ -25,13 +25,16 @@ import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import org.apache.lucene.analysis.Analyzer;
@@ -72,6 +75,7 @@ import com.zimbra.cs.index.ZimbraIndexReader.TermFieldEnumeration;
 import com.zimbra.cs.index.ZimbraIndexSearcher;
 import com.zimbra.cs.index.ZimbraQuery;
 import com.zimbra.cs.index.ZimbraQueryResults;
+import com.zimbra.cs.localconfig.ServerLC;
 import com.zimbra.cs.mailbox.MailItem.Type;
 import com.zimbra.cs.mailbox.MailItem.UnderlyingData;
 import com.zimbra.cs.mailbox.Mailbox.IndexItemEntry;
@@ -87,6 +91,7 @@ public final class MailboxIndex {
     private static final long MAX_TX_BYTES = LC.zimbra_index_max_transaction_bytes.longValue();
     private static final int MAX_TX_ITEMS = LC.zimbra_index_max_transaction_items.intValue();
     private static final long FAILURE_DELAY = LC.zimbra_index_deferred_items_failure_delay.intValue() * 1000;
+    private static final long BROWSE_MAX_STALE = ServerLC.zimbra_index_browse_max_stale.intValue() * 1000L;
 
     private static final ThreadPoolExecutor INDEX_EXECUTOR = new ThreadPoolExecutor(
             LC.zimbra_index_threads.intValue(), LC.zimbra_index_threads.intValue(),
@@ -107,7 +112,12 @@ public final class MailboxIndex {
     private volatile ReIndexTask reIndex;
     // current compact-indexing operation for this mailbox, or NULL if a compact-index is not in progress.
     private volatile CompactIndexTask compactIndex;
+    // current online verification for this mailbox, or NULL if none is in progress.
+    private volatile VerifyIndexTask verifyIndex;
     private volatile SetMultimap<MailItem.Type, Integer> deferredIds; // guarded by IndexHelper
+    // bumped on every index change, to tell whether browseStats are up to date
+    private final AtomicLong indexGeneration = new AtomicLong();
+    private final Map<String, BrowseStats> browseStats = new ConcurrentHashMap<String, BrowseStats>();
 
     MailboxIndex(Mailbox mbox) {
         mailbox = mbox;
@@ -315,6 +325,7 @@ public final class MailboxIndex {
             cancelReIndex();
         }
         indexStore.deleteIndex();
+        indexChanged();
     }
 
     /**
@@ -473,6 +484,76 @@ public final class MailboxIndex {
         }
     }
 
+    /**
+     * Verifies the index segment by segment in the background, while it stays available for search and indexing.
+     * Damaged segments are dropped, and only the items they held are re-indexed. Only supported by {@link LuceneIndex}.
+     */
+    public synchronized void startVerify() throws ServiceException {
+        if (!(indexStore instanceof LuceneIndex)) {
+            throw ServiceException.INVALID_REQUEST("Online verification is not supported by " + indexStore, null);
+        }
+        try {
+            if (verifyIndex != null) {
+                throw ServiceException.ALREADY_IN_PROGRESS(Integer.toString(mailbox.getId()), "Verify Index");
+            }
+            REINDEX_EXECUTOR.submit(verifyIndex = new VerifyIndexTask(mailbox));
+        } catch (RejectedExecutionException e) {
+            throw ServiceException.FAILURE("Unable to submit verify index request. Try again later", e);
+        }
+    }
+
+    private final class VerifyIndexTask extends IndexTask {
+
+        VerifyIndexTask(Mailbox mbox) {
+            super(mbox);
+        }
+
+        @Override
+        protected void exec() throws Exception {
+            Thread thread = Thread.currentThread();
+            int priority = thread.getPriority();
+            thread.setPriority(Thread.MIN_PRIORITY);
+            try {
+                ZimbraLog.index.info("Verify-index start");
+                long start = System.currentTimeMillis();
+                LuceneIndex index = (LuceneIndex) indexStore;
+                List<String> damaged = index.checkSegments(null);
+                if (damaged.isEmpty()) {
+                    ZimbraLog.index.info("Verify-index completed, no problems found elapsed=%d",
+                            System.currentTimeMillis() - start);
+                    return;
+                }
+
+                indexLock.acquireUninterruptibly(); // make sure no writers are opened
+                try {
+                    index.dropSegments(damaged);
+                } finally {
+                    indexLock.release();
+                }
+                indexChanged();
+
+                List<Integer> ids;
+                DbConnection conn = DbPool.getConnection(mailbox);
+                try {
+                    ids = DbMailItem.getReIndexIds(conn, mailbox, EnumSet.noneOf(MailItem.Type.class));
+                } finally {
+                    conn.closeQuietly();
+                }
+                ids = index.getUnindexedIds(ids);
+                ZimbraLog.index.info("Verify-index dropped %d damaged segments, re-indexing %d items elapsed=%d",
+                        damaged.size(), ids.size(), System.currentTimeMillis() - start);
+                if (!ids.isEmpty()) {
+                    startReIndexById(ids);
+                }
+            } finally {
+                thread.setPriority(priority);
+                synchronized (MailboxIndex.this) {
+                    verifyIndex = null;
+                }
+            }
+        }
+    }
+
     private class ReIndexTask extends IndexTask {
         private final Collection<Integer> ids;
         private final ReIndexStatus status = new ReIndexStatus();
@@ -542,6 +623,7 @@ public final class MailboxIndex {
                     } catch (IOException e) {
                         throw ServiceException.FAILURE("Failed to delete index before re-index", e);
                     }
+                    indexChanged();
                     clearDeferredIds();
                 } finally {
                     mailbox.lock.release();
@@ -824,6 +906,7 @@ public final class MailboxIndex {
             } finally {
                 indexer.close();
             }
+            indexChanged();
         } catch (Exception e) {
             ZimbraLog.index.warn("Skipping indexing; Unable to parse message %d", itemId, e);
         } finally {
@@ -864,6 +947,7 @@ public final class MailboxIndex {
                 return;
             }
         }
+        indexChanged();
         removeDeferredId(ids);
     }
 
@@ -921,6 +1005,7 @@ public final class MailboxIndex {
                 return;
             }
         }
+        indexChanged();
 
         List<Integer> ids = new ArrayList<Integer>(indexed.size());
         for (MailItem item : indexed) {
@@ -954,6 +1039,7 @@ public final class MailboxIndex {
             } finally {
                 indexer.close();
             }
+            indexChanged();
         } catch (IndexPendingDeleteException e) {
             ZimbraLog.index.debug("Compaction of index aborted as it is pending delete");
         } catch (IOException e) {
@@ -1078,26 +1164,11 @@ public final class MailboxIndex {
         Pattern pattern = Strings.isNullOrEmpty(regex) ? null : Pattern.compile(
                 regex.startsWith("@") ? regex : "@" + regex);
         List<BrowseTerm> result = new ArrayList<BrowseTerm>();
-        ZimbraIndexSearcher searcher = indexStore.openSearcher();
-        TermFieldEnumeration values = null;
-        try {
-            values = searcher.getIndexReader().getTermsForField(field, "");
-            while (values.hasMoreElements()) {
-                BrowseTerm term = values.nextElement();
-                if (term == null) {
-                    break;
-                }
-                String text = term.getText();
-                // Domains are tokenized with '@' prefix. Exclude partial domain tokens.
-                if (text.startsWith("@") && text.contains(".")) {
-                    if (pattern == null || AccessBoundedRegex.matches(text, pattern, MAX_REGEX_ACCESSES)) {
-                        result.add(new BrowseTerm(text.substring(1), term.getFreq()));
-                    }
-                }
+        for (BrowseTerm term : getBrowseTerms(field)) {
+            String text = term.getText();
+            if (pattern == null || AccessBoundedRegex.matches(text, pattern, MAX_REGEX_ACCESSES)) {
+                result.add(new BrowseTerm(text.substring(1), term.getFreq()));
             }
-        } finally {
-            Closeables.closeQuietly(values);
-            Closeables.closeQuietly(searcher);
         }
         return result;
     }
@@ -1109,23 +1180,7 @@ public final class MailboxIndex {
      * @return {@link BrowseTerm}s which correspond to all of the attachment types in the index
      */
     public List<BrowseTerm> getAttachmentTypes(String regex) throws IOException, ServiceException {
-        Pattern pattern = Strings.isNullOrEmpty(regex) ? null : Pattern.compile(regex);
-        List<BrowseTerm> result = new ArrayList<BrowseTerm>();
-        ZimbraIndexSearcher searcher = indexStore.openSearcher();
-        TermFieldEnumeration values = null;
-        try {
-            values = searcher.getIndexReader().getTermsForField(LuceneFields.L_ATTACHMENTS, "");
-            while (values.hasMoreElements()) {
-                BrowseTerm term = values.nextElement();
-                if (pattern == null || AccessBoundedRegex.matches(term.getText(), pattern, MAX_REGEX_ACCESSES)) {
-                    result.add(term);
-                }
-            }
-        } finally {
-            Closeables.closeQuietly(values);
-            Closeables.closeQuietly(searcher);
-        }
-        return result;
+        return filter(getBrowseTerms(LuceneFields.L_ATTACHMENTS), regex);
     }
 
     /**
@@ -1135,26 +1190,87 @@ public final class MailboxIndex {
      * @return {@link BrowseTerm}s which correspond to all of the objects in the index
      */
     public List<BrowseTerm> getObjects(String regex) throws IOException, ServiceException {
+        return filter(getBrowseTerms(LuceneFields.L_OBJECTS), regex);
+    }
+
+    private List<BrowseTerm> filter(List<BrowseTerm> terms, String regex) {
         Pattern pattern = Strings.isNullOrEmpty(regex) ? null : Pattern.compile(regex);
-        List<BrowseTerm> result = new ArrayList<BrowseTerm>();
+        List<BrowseTerm> result = new ArrayList<BrowseTerm>(terms.size());
+        for (BrowseTerm term : terms) {
+            if (pattern == null || AccessBoundedRegex.matches(term.getText(), pattern, MAX_REGEX_ACCESSES)) {
+                result.add(term);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the browsable terms of the field, from the cache if the index hasn't changed since they were collected,
+     * or they were collected less than {@code zimbra_index_browse_max_stale} seconds ago.
+     * <p>
+     * The cache holds a few hundred terms at most for a typical mailbox, while collecting them walks the term
+     * dictionary, which is large for address fields. Domain terms are collected with their '@' prefix.
+     * <p>
+     * By default ({@code zimbra_index_browse_max_stale} 0) any index change invalidates the cache, so Browse always
+     * reflects the index and a mailbox receiving mail walks the dictionary again on the next Browse. Setting it trades
+     * that accuracy for fewer walks: Browse may then miss or overcount terms of the items indexed or deleted since.
+     */
+    private List<BrowseTerm> getBrowseTerms(String field) throws IOException, ServiceException {
+        long generation = indexGeneration.get(); // before walking, so that a concurrent change invalidates
+        long now = System.currentTimeMillis();
+        BrowseStats stats = browseStats.get(field);
+        if (stats != null && (stats.generation == generation || now - stats.timestamp < BROWSE_MAX_STALE)) {
+            return stats.terms;
+        }
+        boolean domains = !LuceneFields.L_ATTACHMENTS.equals(field) && !LuceneFields.L_OBJECTS.equals(field);
+        List<BrowseTerm> terms = new ArrayList<BrowseTerm>();
         ZimbraIndexSearcher searcher = indexStore.openSearcher();
         TermFieldEnumeration values = null;
         try {
-            values = searcher.getIndexReader().getTermsForField(LuceneFields.L_OBJECTS, "");
+            // Domains are tokenized with '@' prefix, and sort together in the term dictionary.
+            values = searcher.getIndexReader().getTermsForField(field, domains ? "@" : "");
             while (values.hasMoreElements()) {
                 BrowseTerm term = values.nextElement();
                 if (term == null) {
                     break;
                 }
-                if (pattern == null || AccessBoundedRegex.matches(term.getText(), pattern, MAX_REGEX_ACCESSES)) {
-                    result.add(term);
+                if (domains) {
+                    String text = term.getText();
+                    if (!text.startsWith("@")) {
+                        break;
+                    }
+                    if (!text.contains(".")) { // exclude partial domain tokens
+                        continue;
+                    }
                 }
+                terms.add(term);
             }
         } finally {
             Closeables.closeQuietly(values);
             Closeables.closeQuietly(searcher);
         }
-        return result;
+        terms = Collections.unmodifiableList(terms);
+        browseStats.put(field, new BrowseStats(generation, now, terms));
+        return terms;
+    }
+
+    /**
+     * Called after documents were added to or removed from the index.
+     */
+    private void indexChanged() {
+        indexGeneration.incrementAndGet();
+    }
+
+    private static final class BrowseStats {
+        final long generation;
+        final long timestamp;
+        final List<BrowseTerm> terms;
+
+        BrowseStats(long generation, long timestamp, List<BrowseTerm> terms) {
+            this.generation = generation;
+            this.timestamp = timestamp;
+            this.terms = terms;
+        }
     }
 
     /**
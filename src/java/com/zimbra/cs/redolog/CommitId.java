@@ -36,7 +36,7 @@ public class CommitId {
                               // can happen after replayed ops are logged
     private TransactionId mTxnId;
 
-    private CommitId(long seq, long txnTstamp, TransactionId txnId) {
+    CommitId(long seq, long txnTstamp, TransactionId txnId) {
         mRedoSeq = seq;
         mTxnTstamp = txnTstamp;
         mTxnId = txnId;
@@ -0,0 +1,163 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.redolog.op.RedoableOp;
+
+/**
+ * Replays ops in the order they are added, except that ops of different mailboxes run in parallel on up to
+ * {@code threads} threads.  Ops of one mailbox always run one after another, in order.  An op that isn't for a single
+ * mailbox ({@link RedoableOp#MAILBOX_ID_ALL} or {@link RedoableOp#UNKNOWN_ID}) runs on its own, after every op added
+ * before it, and before any op added after it.
+ * <p>
+ * Progress is logged every {@code progressIntervalMillis}.
+ */
+abstract class PartitionedReplay {
+
+    private final int threads;
+    private final int total;
+    private final long progressIntervalMillis;
+    private final ExecutorService executor;
+    private final AtomicInteger done = new AtomicInteger();
+    private final long startTime = System.currentTimeMillis();
+    private long lastProgress = startTime;
+    private Map<Integer, List<RedoableOp>> pending = new LinkedHashMap<Integer, List<RedoableOp>>();
+
+    /**
+     * @param total number of ops that will be added, for progress reports
+     */
+    PartitionedReplay(int threads, int total, long progressIntervalMillis) {
+        this.threads = Math.max(threads, 1);
+        this.total = total;
+        this.progressIntervalMillis = progressIntervalMillis;
+        executor = this.threads > 1 ? Executors.newFixedThreadPool(this.threads,
+                new ThreadFactoryBuilder().setNameFormat("RedoReplay-%d").setDaemon(true).build()) : null;
+    }
+
+    /**
+     * Replays one op.  Called from several threads at once, for ops of different mailboxes.
+     */
+    protected abstract void replay(RedoableOp op) throws Exception;
+
+    void add(RedoableOp op) throws Exception {
+        int mboxId = op.getMailboxId();
+        if (executor == null) {
+            replayOne(op);
+            logProgress(false);
+        } else if (mboxId == RedoableOp.MAILBOX_ID_ALL || mboxId == RedoableOp.UNKNOWN_ID) {
+            runPending();
+            replayOne(op);
+            logProgress(false);
+        } else {
+            List<RedoableOp> ops = pending.get(mboxId);
+            if (ops == null) {
+                ops = new ArrayList<RedoableOp>();
+                pending.put(mboxId, ops);
+            }
+            ops.add(op);
+        }
+    }
+
+    /**
+     * Replays the ops not yet replayed, and waits for them to finish.
+     */
+    void finish() throws Exception {
+        runPending();
+        logProgress(true);
+    }
+
+    void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    int getDone() {
+        return done.get();
+    }
+
+    private void replayOne(RedoableOp op) throws Exception {
+        try {
+            replay(op);
+        } finally {
+            done.incrementAndGet();
+        }
+    }
+
+    private void runPending() throws Exception {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(pending.size());
+        for (final List<RedoableOp> ops : pending.values()) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (RedoableOp op : ops) {
+                        replayOne(op);
+                    }
+                    return null;
+                }
+            }));
+        }
+        pending = new LinkedHashMap<Integer, List<RedoableOp>>();
+
+        for (Future<Void> future : futures) {
+            while (true) {
+                try {
+                    future.get(progressIntervalMillis, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    logProgress(false);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw (Exception) cause;
+                }
+            }
+        }
+        logProgress(false);
+    }
+
+    private void logProgress(boolean last) {
+        long now = System.currentTimeMillis();
+        if (!last && now - lastProgress < progressIntervalMillis) {
+            return;
+        }
+        lastProgress = now;
+        int n = done.get();
+        ZimbraLog.redolog.info("Redone %d of %d transactions (%d%%) in %dms with %d threads",
+                n, total, total > 0 ? n * 100L / total : 100, now - startTime, threads);
+    }
+}
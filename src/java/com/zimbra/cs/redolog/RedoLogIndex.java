@@ -0,0 +1,362 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.redolog.logger.FileLogReader;
+import com.zimbra.cs.redolog.op.CommitTxn;
+import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.redolog.op.StoreIncomingBlob;
+
+/**
+ * Sidecar index of an archived redolog, in a file named after the log with a ".idx" suffix.  It lists the mailboxes
+ * with ops in the log, the offset of each mailbox's first op and last commit, the commit timestamps, and the first
+ * and last commits of the whole log, so that finding the mailboxes changed since a {@link CommitId}, or replaying
+ * a few mailboxes, doesn't need to read the whole log.
+ * <p>
+ * Offsets are those returned by {@link FileLogReader#getLastOpStartOffset()}, and can be passed to
+ * {@link FileLogReader#seek(long)}.  An index is only used while the log has the size it had when indexed, and
+ * the index file ends with a CRC32 of its content, so that a torn or corrupt index is ignored rather than skipping
+ * ops during a replay.
+ */
+public final class RedoLogIndex {
+
+    private static final String SUFFIX = ".idx";
+    private static final int MAGIC = 0x5a4d5249; // "ZMRI"
+    private static final int VERSION = 2;
+
+    /**
+     * What the index knows about one mailbox.
+     */
+    public static final class MailboxEntry {
+        private long firstOffset = -1;
+        private long lastCommitOffset = -1;
+        private long firstCommitTstamp;
+        private long lastCommitTstamp;
+        private int commits;
+
+        /**
+         * Returns the offset of the first op of the mailbox, or of a blob stored for it.
+         */
+        public long getFirstOffset() {
+            return firstOffset;
+        }
+
+        /**
+         * Returns the offset of the last commit of the mailbox, or -1 if there is none.
+         */
+        public long getLastCommitOffset() {
+            return lastCommitOffset;
+        }
+
+        public long getFirstCommitTstamp() {
+            return firstCommitTstamp;
+        }
+
+        public long getLastCommitTstamp() {
+            return lastCommitTstamp;
+        }
+
+        public int getCommitCount() {
+            return commits;
+        }
+
+        private void addOp(long offset) {
+            if (firstOffset < 0) {
+                firstOffset = offset;
+            }
+        }
+
+        private void addCommit(long offset, long tstamp) {
+            addOp(offset);
+            lastCommitOffset = offset;
+            if (commits++ == 0) {
+                firstCommitTstamp = tstamp;
+            }
+            lastCommitTstamp = tstamp;
+        }
+    }
+
+    private long mSequence;
+    private long mLogSize;
+    private long mFirstOpTstamp;
+    private long mLastOpTstamp;
+    private long mFirstAllOffset = -1;  // first op for all mailboxes or an unknown mailbox
+    private long mFirstCommitTstamp;
+    private TransactionId mFirstCommitTxnId;
+    private long mLastCommitTstamp;
+    private TransactionId mLastCommitTxnId;
+    private final Map<Integer, MailboxEntry> mMailboxes = new TreeMap<Integer, MailboxEntry>();
+
+    private RedoLogIndex() {
+    }
+
+    public static File getIndexFile(File logfile) {
+        return new File(logfile.getPath() + SUFFIX);
+    }
+
+    /**
+     * Reads a redolog and indexes its ops.
+     */
+    public static RedoLogIndex build(File logfile) throws IOException {
+        RedoLogIndex index = new RedoLogIndex();
+        FileLogReader reader = new FileLogReader(logfile);
+        reader.open();
+        try {
+            index.mSequence = reader.getHeader().getSequence();
+            index.mLogSize = reader.getSize();
+            RedoableOp op;
+            while ((op = reader.getNextOp()) != null) {
+                index.add(op, reader.getLastOpStartOffset());
+            }
+        } finally {
+            reader.close();
+        }
+        return index;
+    }
+
+    private void add(RedoableOp op, long offset) {
+        long tstamp = op.getTimestamp();
+        if (mFirstOpTstamp == 0 || tstamp < mFirstOpTstamp) {
+            mFirstOpTstamp = tstamp;
+        }
+        mLastOpTstamp = Math.max(mLastOpTstamp, tstamp);
+
+        int mboxId = op.getMailboxId();
+        if (op instanceof CommitTxn) {
+            if (mFirstCommitTxnId == null) {
+                mFirstCommitTstamp = tstamp;
+                mFirstCommitTxnId = op.getTransactionId();
+            }
+            mLastCommitTstamp = tstamp;
+            mLastCommitTxnId = op.getTransactionId();
+            if (mboxId > 0) {
+                getOrCreate(mboxId).addCommit(offset, tstamp);
+            }
+        } else if (mboxId > 0) {
+            getOrCreate(mboxId).addOp(offset);
+        } else if (op.isStartMarker()) {
+            List<Integer> list = op instanceof StoreIncomingBlob ? ((StoreIncomingBlob) op).getMailboxIdList() : null;
+            if (list != null) {
+                for (int id : list) {
+                    getOrCreate(id).addOp(offset);
+                }
+            } else if (mFirstAllOffset < 0) {
+                mFirstAllOffset = offset;
+            }
+        }
+    }
+
+    private MailboxEntry getOrCreate(int mboxId) {
+        MailboxEntry entry = mMailboxes.get(mboxId);
+        if (entry == null) {
+            entry = new MailboxEntry();
+            mMailboxes.put(mboxId, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Writes the index next to the log, and syncs it to disk before renaming it into place.
+     */
+    public void write(File logfile) throws IOException {
+        File file = getIndexFile(logfile);
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            CheckedOutputStream os = new CheckedOutputStream(new BufferedOutputStream(fos), new CRC32());
+            RedoLogOutput out = new RedoLogOutput(os);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mSequence);
+            out.writeLong(mLogSize);
+            out.writeLong(mFirstOpTstamp);
+            out.writeLong(mLastOpTstamp);
+            out.writeLong(mFirstAllOffset);
+            out.writeBoolean(mFirstCommitTxnId != null);
+            if (mFirstCommitTxnId != null) {
+                out.writeLong(mFirstCommitTstamp);
+                mFirstCommitTxnId.serialize(out);
+                out.writeLong(mLastCommitTstamp);
+                mLastCommitTxnId.serialize(out);
+            }
+            out.writeInt(mMailboxes.size());
+            for (Map.Entry<Integer, MailboxEntry> e : mMailboxes.entrySet()) {
+                MailboxEntry entry = e.getValue();
+                out.writeInt(e.getKey());
+                out.writeLong(entry.firstOffset);
+                out.writeLong(entry.lastCommitOffset);
+                out.writeLong(entry.firstCommitTstamp);
+                out.writeLong(entry.lastCommitTstamp);
+                out.writeInt(entry.commits);
+            }
+            out.writeInt((int) os.getChecksum().getValue());
+            os.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to rename " + temp.getAbsolutePath() + " to " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Returns the index of a log, or null if the log isn't indexed or the index is out of date.
+     */
+    public static RedoLogIndex load(File logfile) {
+        File file = getIndexFile(logfile);
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(file));
+            CheckedInputStream checked = new CheckedInputStream(is, new CRC32());
+            RedoLogInput in = new RedoLogInput(checked);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                ZimbraLog.redolog.warn("Ignoring redolog index %s of unknown version", file.getAbsolutePath());
+                return null;
+            }
+            RedoLogIndex index = new RedoLogIndex();
+            index.mSequence = in.readLong();
+            index.mLogSize = in.readLong();
+            if (index.mLogSize != logfile.length()) {
+                ZimbraLog.redolog.warn("Ignoring redolog index %s; log size changed", file.getAbsolutePath());
+                return null;
+            }
+            index.mFirstOpTstamp = in.readLong();
+            index.mLastOpTstamp = in.readLong();
+            index.mFirstAllOffset = in.readLong();
+            if (in.readBoolean()) {
+                index.mFirstCommitTstamp = in.readLong();
+                index.mFirstCommitTxnId = new TransactionId();
+                index.mFirstCommitTxnId.deserialize(in);
+                index.mLastCommitTstamp = in.readLong();
+                index.mLastCommitTxnId = new TransactionId();
+                index.mLastCommitTxnId.deserialize(in);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                MailboxEntry entry = new MailboxEntry();
+                int mboxId = in.readInt();
+                entry.firstOffset = in.readLong();
+                entry.lastCommitOffset = in.readLong();
+                entry.firstCommitTstamp = in.readLong();
+                entry.lastCommitTstamp = in.readLong();
+                entry.commits = in.readInt();
+                index.mMailboxes.put(mboxId, entry);
+            }
+            int checksum = (int) checked.getChecksum().getValue();
+            if (in.readInt() != checksum || is.read() != -1) {
+                ZimbraLog.redolog.warn("Ignoring redolog index %s; checksum mismatch", file.getAbsolutePath());
+                return null;
+            }
+            return index;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            ZimbraLog.redolog.warn("Unable to read redolog index %s", file.getAbsolutePath(), e);
+            return null;
+        } finally {
+            ByteUtil.closeStream(is);
+        }
+    }
+
+    public long getSequence() {
+        return mSequence;
+    }
+
+    public long getFirstOpTstamp() {
+        return mFirstOpTstamp;
+    }
+
+    public long getLastOpTstamp() {
+        return mLastOpTstamp;
+    }
+
+    public Set<Integer> getMailboxIds() {
+        return Collections.unmodifiableSet(mMailboxes.keySet());
+    }
+
+    /**
+     * Returns null if the mailbox has no ops in the log.
+     */
+    public MailboxEntry getMailbox(int mboxId) {
+        return mMailboxes.get(mboxId);
+    }
+
+    /**
+     * Returns the ids of mailboxes with commits at or after an offset.
+     */
+    public Set<Integer> getCommittedMailboxes(long fromOffset) {
+        Set<Integer> result = new HashSet<Integer>();
+        for (Map.Entry<Integer, MailboxEntry> e : mMailboxes.entrySet()) {
+            if (e.getValue().lastCommitOffset >= fromOffset) {
+                result.add(e.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the offset to start replaying the ops of some mailboxes from, including ops for all mailboxes; or -1
+     * if there are no such ops in the log.
+     */
+    public long getFirstOffset(Collection<Integer> mboxIds) {
+        long offset = mFirstAllOffset;
+        for (int mboxId : mboxIds) {
+            MailboxEntry entry = mMailboxes.get(mboxId);
+            if (entry != null && (offset < 0 || entry.firstOffset < offset)) {
+                offset = entry.firstOffset;
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Returns the id of the first commit in the log, or null if there is none.
+     */
+    public CommitId getFirstCommitId() {
+        return mFirstCommitTxnId != null ? new CommitId(mSequence, mFirstCommitTstamp, mFirstCommitTxnId) : null;
+    }
+
+    /**
+     * Returns the id of the last commit in the log, or null if there is none.
+     */
+    public CommitId getLastCommitId() {
+        return mLastCommitTxnId != null ? new CommitId(mSequence, mLastCommitTstamp, mLastCommitTxnId) : null;
+    }
+}
@@ -616,6 +616,9 @@ public class RedoLogManager {
             writeLock.unlock();
         }
 
+        if (rolledOverFile != null)
+            RolloverManager.indexArchiveLog(rolledOverFile);
+
         /* TODO: Finish implementing Rollover as a replicated op.
          * Checking in this partial code to work on something else.
         if (rolledOverFile != null) {
@@ -705,7 +708,9 @@ public class RedoLogManager {
     /**
      * Returns the set of mailboxes that had any committed changes since a
      * particular CommitId in the past, by scanning redologs.  Also returns
-     * the last CommitId seen during the scanning process.
+     * the last CommitId seen during the scanning process.  Archived logs
+     * with a {@link RedoLogIndex} are only scanned up to the CommitId, if
+     * at all.
      * @param cid
      * @return can be null if server is shutting down
      * @throws IOException
@@ -731,6 +736,7 @@ public class RedoLogManager {
 
         File linkDir = null;
         File[] logs;
+        RedoLogIndex[] indexes;
         try {
             try {
                 long seq = cid.getRedoSeq();
@@ -742,6 +748,11 @@ public class RedoLogManager {
                 } else {
                     logs = new File[] { mLogFile };
                 }
+                // The current log is never indexed.
+                indexes = new RedoLogIndex[logs.length];
+                for (int i = 0; i < logs.length - 1; i++) {
+                    indexes[i] = RedoLogIndex.load(logs[i]);
+                }
                 // Make sure the first log has the sequence in cid.
                 FileLogReader firstLog = new FileLogReader(logs[0]);
                 if (firstLog.getHeader().getSequence() != seq) {
@@ -776,27 +787,54 @@ public class RedoLogManager {
             // committed changes since the given commit id.
             long lastSeq = -1;
             CommitTxn lastCommitTxn = null;
+            CommitId indexedCommitId = null;  // last commit, if it was found in an index
             boolean foundMarker = false;
-            for (File logfile : logs) {
-                FileLogReader logReader = new FileLogReader(logfile);
+            for (int i = 0; i < logs.length; i++) {
+                RedoLogIndex index = indexes[i];
+                if (foundMarker && index != null) {
+                    // The whole log is after the marker.
+                    lastSeq = index.getSequence();
+                    mailboxes.addAll(index.getCommittedMailboxes(0));
+                    if (index.getLastCommitId() != null) {
+                        indexedCommitId = index.getLastCommitId();
+                        lastCommitTxn = null;
+                    }
+                    continue;
+                }
+                FileLogReader logReader = new FileLogReader(logs[i]);
                 logReader.open();
                 lastSeq = logReader.getHeader().getSequence();
                 try {
+                    long markerOffset = -1;
                     RedoableOp op = null;
                     while ((op = logReader.getNextOp()) != null) {
                         if (ZimbraLog.redolog.isDebugEnabled())
                             ZimbraLog.redolog.debug("Read: " + op);
+                        if (markerOffset >= 0 && logReader.getLastOpStartOffset() > markerOffset) {
+                            // The index has the commits after the marker.  Ops that share the offset of the
+                            // marker, in a run or chain of blocks, were read above.
+                            mailboxes.addAll(index.getCommittedMailboxes(logReader.getLastOpStartOffset()));
+                            if (index.getLastCommitId() != null && !index.getLastCommitId().matches(lastCommitTxn)) {
+                                indexedCommitId = index.getLastCommitId();
+                                lastCommitTxn = null;
+                            }
+                            break;
+                        }
                         if (!(op instanceof CommitTxn))
                             continue;
 
                         lastCommitTxn = (CommitTxn) op;
+                        indexedCommitId = null;
                         if (foundMarker) {
                             int mboxId = op.getMailboxId();
                             if (mboxId > 0)
                                 mailboxes.add(mboxId);
                         } else {
-                            if (cid.matches(lastCommitTxn))
+                            if (cid.matches(lastCommitTxn)) {
                                 foundMarker = true;
+                                if (index != null)
+                                    markerOffset = logReader.getLastOpStartOffset();
+                            }
                         }
                     }
                 } catch (IOException e) {
@@ -809,7 +847,7 @@ public class RedoLogManager {
                 // Most likely, the CommitId is too old.
                 throw MailServiceException.INVALID_COMMIT_ID(cid.toString());
             }
-            CommitId lastCommitId = new CommitId(lastSeq, lastCommitTxn);
+            CommitId lastCommitId = indexedCommitId != null ? indexedCommitId : new CommitId(lastSeq, lastCommitTxn);
             return new Pair<Set<Integer>, CommitId>(mailboxes, lastCommitId);
         } finally {
             if (linkDir != null) {
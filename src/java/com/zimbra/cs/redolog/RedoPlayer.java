@@ -26,12 +26,13 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Constants;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.localconfig.ServerLC;
 import com.zimbra.cs.redolog.logger.FileLogReader;
 import com.zimbra.cs.redolog.logger.LogWriter;
 import com.zimbra.cs.redolog.op.AbortTxn;
@@ -47,6 +48,7 @@ import com.zimbra.cs.redolog.op.StoreIncomingBlob;
 public class RedoPlayer {
 
     private static final int INITIAL_MAP_SIZE = 1000;
+    private static final long PROGRESS_INTERVAL_MS = 10 * Constants.MILLIS_PER_SECOND;
 
     // Use a separate guard object to synchronize access to mOpsMap.
     // Don't synchronize on mOpsMap itself because it can get reassigned.
@@ -114,15 +116,39 @@ public class RedoPlayer {
     private void scanLog(File logfile, boolean redoCommitted, Map<Integer, Integer> mboxIDsMap,
             long startTime, long endTime, long ignoreCommitsAtOrAfter)
     throws IOException, ServiceException {
+        // When replaying some mailboxes, skip the part of an indexed log before their first op.
+        long startOffset = -1;
+        if (mboxIDsMap != null && !mboxIDsMap.isEmpty()) {
+            RedoLogIndex index = RedoLogIndex.load(logfile);
+            if (index != null) {
+                startOffset = index.getFirstOffset(mboxIDsMap.keySet());
+                if (startOffset < 0) {
+                    ZimbraLog.redolog.info("Skipping %s; no ops of the mailboxes being replayed", logfile.getName());
+                    return;
+                }
+            }
+        }
+
         FileLogReader logReader = new FileLogReader(logfile, mWritable);
         logReader.open();
         long lastPosition = 0;
+        if (startOffset > 0) {
+            logReader.seek(startOffset);
+            lastPosition = startOffset;
+            ZimbraLog.redolog.debug("Scanning %s from offset %d", logfile.getName(), startOffset);
+        }
+        long lastProgress = System.currentTimeMillis();
 
         // Read all ops in redo log, discarding those with commit/abort entries.
         try {
             RedoableOp op = null;
             while ((op = logReader.getNextOp()) != null) {
                 lastPosition = logReader.position();
+                if (System.currentTimeMillis() - lastProgress >= PROGRESS_INTERVAL_MS) {
+                    lastProgress = System.currentTimeMillis();
+                    ZimbraLog.redolog.info("Scanned %d of %d bytes of %s",
+                            lastPosition, logReader.getSize(), logfile.getName());
+                }
 
                 // We can't break from the loop when op.getTimestamp() > endTime.  We could if ops in the file
                 // were sorted by timestamp, but they are not.  Ops are executed and get their timestamps in
@@ -419,20 +445,39 @@ public class RedoPlayer {
         }
 
         synchronized (mOpsMapGuard) {
-            Set entrySet = mOpsMap.entrySet();
             ZimbraLog.redolog.info("Redoing " + numOps + " uncommitted transactions");
-            for (Iterator it = entrySet.iterator(); it.hasNext(); ) {
-                Map.Entry entry = (Entry) it.next();
-                RedoableOp op = (RedoableOp) entry.getValue();
-                if (op == null)
-                    continue;
-
-                if (op.deferCrashRecovery()) {
-                    ZimbraLog.redolog.info("Deferring crash recovery to after startup: " + op);
-                    postStartupRecoveryOps.add(op);
-                    continue;
+            PartitionedReplay replay = newCrashRecoveryReplay(redoLogMgr, numOps);
+            try {
+                for (RedoableOp op : mOpsMap.values()) {
+                    if (op == null)
+                        continue;
+
+                    if (op.deferCrashRecovery()) {
+                        ZimbraLog.redolog.info("Deferring crash recovery to after startup: " + op);
+                        postStartupRecoveryOps.add(op);
+                        continue;
+                    }
+                    replay.add(op);
                 }
+                replay.finish();
+            } finally {
+                replay.shutdown();
+            }
+            mOpsMap.clear();
+        }
 
+        return numOps;
+    }
+
+    /**
+     * Ops of different mailboxes are redone in parallel, on up to redolog_crash_recovery_threads threads.
+     * Ops of the same mailbox are redone in the order they were logged.
+     */
+    private static PartitionedReplay newCrashRecoveryReplay(final RedoLogManager redoLogMgr, int numOps) {
+        int threads = ServerLC.redolog_crash_recovery_threads.intValue();
+        return new PartitionedReplay(threads, numOps, PROGRESS_INTERVAL_MS) {
+            @Override
+            protected void replay(RedoableOp op) {
                 if (ZimbraLog.redolog.isInfoEnabled())
                     ZimbraLog.redolog.info("REDOING: " + op);
 
@@ -454,10 +499,7 @@ public class RedoPlayer {
                     }
                 }
             }
-            mOpsMap.clear();
-        }
-
-        return numOps;
+        };
     }
 
     /**
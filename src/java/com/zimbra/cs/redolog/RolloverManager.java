@@ -33,7 +33,10 @@ import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zimbra.common.util.Log;
 import com.zimbra.common.util.LogFactory;
 
@@ -49,6 +52,10 @@ public class RolloverManager {
 
     private static Log mLog = LogFactory.getLog(RolloverManager.class);
 
+    // builds the RedoLogIndex of each archived log, off the rollover path
+    private static final ExecutorService sIndexer = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("RedoLogIndexer").setDaemon(true).build());
+
 	private RedoLogManager mRedoLogMgr;
 	private File mRedoLogFile;
 
@@ -237,6 +244,43 @@ public class RolloverManager {
 		}
 	}
 
+    /**
+     * Builds the {@link RedoLogIndex} of a log that was just archived, in the background.  Indexes of archived logs
+     * that have since been deleted are deleted at the same time.
+     */
+    public static void indexArchiveLog(final File log) {
+        sIndexer.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                try {
+                    RedoLogIndex.build(log).write(log);
+                    mLog.debug("Indexed " + log.getName() + " in " + (System.currentTimeMillis() - start) + "ms");
+                } catch (Throwable t) {
+                    RedoLogIndex.getIndexFile(log).delete();
+                    mLog.warn("Unable to index redolog " + log.getAbsolutePath(), t);
+                }
+                deleteOrphanIndexes(log.getParentFile());
+            }
+        });
+    }
+
+    private static void deleteOrphanIndexes(File archiveDir) {
+        File[] indexes = archiveDir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(ARCH_FILENAME_PREFIX) && name.endsWith(FILENAME_SUFFIX + ".idx");
+            }
+        });
+        if (indexes == null)
+            return;
+        for (File index : indexes) {
+            String name = index.getName();
+            File log = new File(archiveDir, name.substring(0, name.length() - ".idx".length()));
+            if (!log.exists() && index.delete())
+                mLog.info("Deleted index " + name + " of deleted redolog");
+        }
+    }
+
 	public File getRolloverFile(long seq) {
         String fname = toArchiveLogFilename(new Date(), seq);
         File destDir = mRedoLogMgr.getRolloverDestDir();
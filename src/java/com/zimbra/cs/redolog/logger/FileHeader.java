@@ -61,6 +61,8 @@ import com.zimbra.cs.redolog.Version;
  *   version        4 bytes; serialization version number
  *                  (2-byte major, 2-byte minor)
  *   createTime     4 bytes; time this log file was created
+ *   format         1 byte; FORMAT_RAW or FORMAT_BLOCKS
+ *                  files created before the field was added have 0 (FORMAT_RAW)
  *   padding        0-value bytes to bring total header size to 512
  */
 public class FileHeader {
@@ -69,6 +71,11 @@ public class FileHeader {
     private static final int SERVER_ID_FIELD_LEN = 127;
     private static final byte[] MAGIC = "ZM_REDO".getBytes();
 
+    /** Serialized redo ops, one after another. */
+    public static final byte FORMAT_RAW = 0;
+    /** Serialized redo ops in compressed, checksummed blocks.  See {@link LogBlock}. */
+    public static final byte FORMAT_BLOCKS = 1;
+
     private byte mOpen;                 // logfile is open or closed
     private long mFileSize;             // filesize
     private long mSeq;                  // log file sequence number
@@ -77,6 +84,7 @@ public class FileHeader {
     private long mFirstOpTstamp;        // time of first op in log file
     private long mLastOpTstamp;         // time of last op in log file
     private long mCreateTime;           // create time of log file
+    private byte mFormat;               // layout of the ops after the header
 
     private Version mVersion;			// redo log version
 
@@ -92,6 +100,7 @@ public class FileHeader {
         mFirstOpTstamp = 0;
         mLastOpTstamp = 0;
         mCreateTime = 0;
+        mFormat = FORMAT_RAW;
         mVersion = Version.latest();
     }
 
@@ -142,6 +151,10 @@ public class FileHeader {
         mCreateTime = t;
     }
 
+    void setFormat(byte format) {
+        mFormat = format;
+    }
+
     public boolean getOpen() {
     	return mOpen != 0;
     }
@@ -170,6 +183,10 @@ public class FileHeader {
         return mCreateTime;
     }
 
+    public byte getFormat() {
+        return mFormat;
+    }
+
     /**
      * Get byte buffer of a String that fits within given maximum length.
      * String is trimmed at the end one character at a time until the
@@ -229,6 +246,7 @@ public class FileHeader {
         out.writeLong(mLastOpTstamp);
         mVersion.serialize(out);
         out.writeLong(mCreateTime);
+        out.writeByte(mFormat);
 
         int currentLen = baos.size();
         if (currentLen < HEADER_LEN) {
@@ -283,6 +301,9 @@ public class FileHeader {
             	mVersion = new Version(1, 0);
 
             mCreateTime = in.readLong();
+            mFormat = in.readByte();
+            if (mFormat != FORMAT_RAW && mFormat != FORMAT_BLOCKS)
+                throw new IOException("Unknown redolog format " + mFormat);
         } finally {
             bais.close();
         }
@@ -313,6 +334,7 @@ public class FileHeader {
         }
         sb.append("\n");
         sb.append("version:  ").append(mVersion).append("\n");
+        sb.append("format:   ").append(mFormat == FORMAT_BLOCKS ? "blocks" : "raw").append("\n");
     	return sb.toString();
     }
 }
@@ -0,0 +1,82 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Rewrites a redolog file in another format.  The ops are copied as they were serialized, and the header is kept,
+ * except for the format and file size.
+ */
+public final class FileLogConverter {
+
+    private FileLogConverter() {
+    }
+
+    /**
+     * @param format {@link FileHeader#FORMAT_RAW} or {@link FileHeader#FORMAT_BLOCKS}
+     * @return number of ops copied
+     */
+    public static int convert(File src, File dest, byte format) throws IOException {
+        if (format != FileHeader.FORMAT_RAW && format != FileHeader.FORMAT_BLOCKS)
+            throw new IllegalArgumentException("Unknown redolog format " + format);
+
+        FileLogReader reader = new FileLogReader(src);
+        reader.open();
+        try {
+            FileHeader header = reader.getHeader();
+            RandomAccessFile raf = new RandomAccessFile(dest, "rw");
+            try {
+                raf.setLength(0);
+                header.setFormat(format);
+                header.write(raf);
+
+                LogBlock.Output blockOut = null;
+                if (format == FileHeader.FORMAT_BLOCKS)
+                    blockOut = new LogBlock.Output(raf, LogBlock.BLOCK_SIZE);
+                int count = 0;
+                try {
+                    while (reader.getNextOp() != null) {
+                        byte[] data = reader.getLastOpData();
+                        if (blockOut != null) {
+                            blockOut.write(data, 0, data.length);
+                            blockOut.endOp();
+                        } else {
+                            raf.write(data);
+                        }
+                        count++;
+                    }
+                    if (blockOut != null)
+                        blockOut.flush();
+                } finally {
+                    if (blockOut != null)
+                        blockOut.end();
+                }
+
+                header.setFileSize(raf.length());
+                header.write(raf);
+                return count;
+            } finally {
+                raf.close();
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
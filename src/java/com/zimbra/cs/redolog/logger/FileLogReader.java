@@ -23,6 +23,8 @@
  */
 package com.zimbra.cs.redolog.logger;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
@@ -50,6 +52,18 @@ public class FileLogReader {
     private long mFileSizeAtOpen;
     private long mLastOpStartOffset;
 
+    // FORMAT_BLOCKS files: data of the current run of blocks, which ends with a whole op.
+    // The offset of an op is the offset of the first block of its run, or if that block is chained to
+    // the blocks before it, the offset of the run the chain starts in.
+    private LogBlock.Input mBlockInput;
+    private byte[] mBlockData;
+    private ByteArrayInputStream mBlockStream;
+    private RedoLogInput mBlockIN;
+    private long mBlockOffset;
+    private long mChainOffset;
+    private int mLastOpStart;
+    private int mLastOpEnd;
+
 
     public FileLogReader(File logfile) {
         this(logfile, false);
@@ -69,12 +83,20 @@ public class FileLogReader {
             mHeader.read(mRAF);
             mHeaderRead = true;
             mFileSizeAtOpen = mRAF.length();
+            if (mHeader.getFormat() == FileHeader.FORMAT_BLOCKS)
+                mBlockInput = new LogBlock.Input();
         } catch (IOException e) {
             throw new IOException("Error opening " + mFile.getAbsolutePath(), e);
         }
     }
 
     public synchronized void close() throws IOException {
+        if (mBlockInput != null) {
+            mBlockInput.end();
+            mBlockInput = null;
+        }
+        mBlockData = null;
+        mBlockStream = null;
         try {
             mRAF.close();
         } catch (IOException e) {
@@ -92,6 +114,9 @@ public class FileLogReader {
     }
 
     public synchronized RedoableOp getNextOp() throws IOException {
+        if (mBlockInput != null)
+            return getNextOpFromBlocks();
+
         long pos = mRAF.getFilePointer();
         if (pos == mFileSizeAtOpen) {
             // EOF reached.
@@ -135,6 +160,131 @@ public class FileLogReader {
         }
     }
 
+    private RedoableOp getNextOpFromBlocks() throws IOException {
+        while (true) {
+            if (mBlockStream != null && mBlockStream.available() > 0) {
+                int start = mBlockData.length - mBlockStream.available();
+                try {
+                    RedoableOp op = RedoableOp.deserializeOp(mBlockIN);
+                    mLastOpStartOffset = mBlockOffset;
+                    mLastOpStart = start;
+                    mLastOpEnd = mBlockData.length - mBlockStream.available();
+                    return op;
+                } catch (IOException e) {
+                    // The blocks passed the checksum, so the op was bad when it was written.
+                    String msg = String.format(
+                            "Error while parsing redolog %s, block at offset 0x%08x; rest of the block will be skipped",
+                            mFile.getAbsolutePath(), mBlockOffset);
+                    ZimbraLog.redolog.warn(msg, e);
+                    mBlockStream = null;
+                }
+            }
+            if (!readBlocks())
+                return null;
+        }
+    }
+
+    /**
+     * Reads the next run of blocks up to one that ends with a whole op.  Corrupt blocks are skipped.
+     * @return false at the end of the file
+     */
+    private boolean readBlocks() throws IOException {
+        mBlockStream = null;
+        long pos = mRAF.getFilePointer();
+        if (pos == mFileSizeAtOpen)
+            return false;
+
+        ByteArrayOutputStream data = null;
+        long currPos = pos;
+        boolean skipped = false;
+        while (true) {
+            LogBlock block = null;
+            try {
+                block = mBlockInput.read(mRAF, mFileSizeAtOpen);
+            } catch (IOException e) {
+                if (e instanceof EOFException && !hasBlockAfter(currPos))
+                    throw e;
+                if (!skipped) {
+                    String msg = String.format(
+                            "Error while parsing redolog %s, block at offset 0x%08x; bad blocks will be skipped",
+                            mFile.getAbsolutePath(), currPos);
+                    ZimbraLog.redolog.warn(msg, e);
+                }
+            }
+            if (block != null && data == null && block.isContinuation()) {
+                // rest of an op whose start was skipped, and the blocks chained to it
+                block = null;
+                mBlockInput.reset();
+            }
+            if (block != null) {
+                if (data == null) {
+                    if (skipped) {
+                        String msg = String.format(
+                                "Skipped bad blocks in redolog %s; resuming at offset 0x%08x after skipping %d bytes",
+                                mFile.getAbsolutePath(), currPos, currPos - pos);
+                        ZimbraLog.redolog.warn(msg);
+                    }
+                    if (!block.isChained())
+                        mChainOffset = currPos;
+                    mBlockOffset = mChainOffset;
+                    data = new ByteArrayOutputStream(block.data.length);
+                } else if (!block.isChained()) {
+                    // a chain starting in the middle of this run is read from the start of the run
+                    mChainOffset = mBlockOffset;
+                }
+                data.write(block.data);
+                if (!block.continues())
+                    break;
+                currPos = mRAF.getFilePointer();
+                if (currPos == mFileSizeAtOpen)
+                    throw new EOFException("Redolog " + mFile.getAbsolutePath() + " ends in the middle of an op");
+                continue;
+            }
+
+            skipped = true;
+            data = null;
+            mRAF.seek(currPos + 1);
+            if (searchInRAF(LogBlock.MAGIC)) {
+                currPos = mRAF.getFilePointer();
+            } else {
+                String msg = String.format(
+                        "Found %d junk bytes from offset 0x%08x to end of file, in redolog %s",
+                        mFileSizeAtOpen - pos, pos, mFile.getAbsolutePath());
+                throw new IOException(msg);
+            }
+        }
+
+        mBlockData = data.toByteArray();
+        mBlockStream = new ByteArrayInputStream(mBlockData);
+        mBlockIN = new RedoLogInput(mBlockStream);
+        return true;
+    }
+
+    /**
+     * Tells a block that's cut short by the end of the file from one whose length is corrupt.
+     */
+    private boolean hasBlockAfter(long pos) throws IOException {
+        mRAF.seek(pos + 1);
+        return searchInRAF(LogBlock.MAGIC);
+    }
+
+    /**
+     * Returns the serialized form of the op last returned by {@link #getNextOp()}.
+     */
+    synchronized byte[] getLastOpData() throws IOException {
+        if (mBlockInput != null) {
+            byte[] data = new byte[mLastOpEnd - mLastOpStart];
+            System.arraycopy(mBlockData, mLastOpStart, data, 0, data.length);
+            return data;
+        }
+        long pos = mRAF.getFilePointer();
+        byte[] data = new byte[(int) (pos - mLastOpStartOffset)];
+        mRAF.seek(mLastOpStartOffset);
+        mRAF.readFully(data);
+        mRAF.seek(pos);
+        return data;
+    }
+
     public synchronized long getSize() throws IOException {
         return mRAF.length();
     }
@@ -147,6 +297,20 @@ public class FileLogReader {
         return mLastOpStartOffset;
     }
 
+    /**
+     * Moves to an op offset returned by {@link #getLastOpStartOffset()}, so that the next call to
+     * {@link #getNextOp()} returns that op, or in a FORMAT_BLOCKS file the first op of its run or chain of blocks.
+     */
+    public synchronized void seek(long offset) throws IOException {
+        if (offset < FileHeader.HEADER_LEN || offset > mFileSizeAtOpen)
+            throw new IOException("Invalid offset " + offset + " in redolog " + mFile.getAbsolutePath());
+        mBlockData = null;
+        mBlockStream = null;
+        if (mBlockInput != null)
+            mBlockInput.reset();
+        mRAF.seek(offset);
+    }
+
     /**
      * To call this method the FileLogReader must have been created as
      * writable.
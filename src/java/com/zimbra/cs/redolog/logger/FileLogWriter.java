@@ -31,13 +31,16 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.zimbra.common.util.Constants;
 import com.zimbra.common.util.ZimbraLog;
 
 import com.zimbra.common.localconfig.DebugConfig;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.localconfig.ServerLC;
 import com.zimbra.cs.redolog.CommitId;
 import com.zimbra.cs.redolog.RedoCommitCallback;
 import com.zimbra.cs.redolog.RedoConfig;
@@ -45,6 +48,7 @@ import com.zimbra.cs.redolog.RedoLogManager;
 import com.zimbra.cs.redolog.RolloverManager;
 import com.zimbra.cs.redolog.op.CommitTxn;
 import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.Zimbra;
 
 /**
@@ -65,6 +69,9 @@ public class FileLogWriter implements LogWriter {
         }
     }
 
+    // Format of log files created by this server.
+    private static final boolean sBlockFormat = ServerLC.redolog_block_format.booleanValue();
+
     protected RedoLogManager mRedoLogMgr;
 
     // Synchronizes access to mRAF, mFileSize, mLogSeq, mFsyncSeq, mLogCount, and mFsyncCount.
@@ -80,16 +87,26 @@ public class FileLogWriter implements LogWriter {
 
     private File mFile;
     private RandomAccessFile mRAF;
+    private final boolean mBlockFormat; // format of the file, if it is created
+    private LogBlock.Output mBlockOut;  // writes ops as blocks, in FORMAT_BLOCKS files
     private long mFileSize;
     private long mLastLogTime;
 
-    private long mFsyncIntervalMS;          // how many milliseconds fsync thread sleeps after each fync
+    private long mFsyncIntervalMS;          // longest the fsync thread delays an fsync to batch more items
     private boolean mFsyncDisabled;
 
-    private FsyncThread mFsyncer;   // fsync thread
+    private volatile FsyncThread mFsyncer;   // fsync thread
 
     private int mLogSeq;            // last item logged
-    private int mFsyncSeq;          // last item fsynced
+    private volatile int mFsyncSeq; // last item fsynced
+
+    // Guarded by mFsyncCond.  Loggers waiting for the fsync thread, the last item they wait for,
+    // and moving averages the fsync thread sizes its batches by.
+    private int mWaiters;
+    private int mWaitSeq;
+    private long mLastArrivalNanos;
+    private long mAvgArrivalNanos = Long.MAX_VALUE / 2; // interval between loggers starting to wait
+    private long mAvgFsyncNanos;                        // fsync latency
 
     // for gathering some stats; nonessential for functionality
     private int mLogCount;          // how many times log was called
@@ -100,10 +117,16 @@ public class FileLogWriter implements LogWriter {
     public FileLogWriter(RedoLogManager redoLogMgr,
                          File logfile,
                          long fsyncIntervalMS) {
+        this(redoLogMgr, logfile, fsyncIntervalMS, sBlockFormat);
+    }
+
+    @VisibleForTesting
+    FileLogWriter(RedoLogManager redoLogMgr, File logfile, long fsyncIntervalMS, boolean blockFormat) {
         mRedoLogMgr = redoLogMgr;
 
         mHeader = new FileHeader(sServerId);
         mFile = logfile;
+        mBlockFormat = blockFormat;
         mFileSize = mFile.length();
         mLastLogTime = mFile.lastModified();
 
@@ -205,6 +228,7 @@ public class FileLogWriter implements LogWriter {
                 mCreateTime = System.currentTimeMillis();
                 mHeader.setCreateTime(mCreateTime);
                 mHeader.setSequence(mRedoLogMgr.getCurrentLogSequence());
+                mHeader.setFormat(mBlockFormat ? FileHeader.FORMAT_BLOCKS : FileHeader.FORMAT_RAW);
             }
             mHeader.setOpen(true);
             mHeader.write(mRAF);
@@ -213,9 +237,14 @@ public class FileLogWriter implements LogWriter {
             long len = mRAF.length();
             mRAF.seek(len);
             mFileSize = len;
+            if (mHeader.getFormat() == FileHeader.FORMAT_BLOCKS)
+                mBlockOut = new LogBlock.Output(mRAF, LogBlock.BLOCK_SIZE);
 
             mLogSeq = mFsyncSeq = 0;
         }
+        synchronized (mFsyncCond) {
+            mWaitSeq = 0;
+        }
 
         if (mFsyncIntervalMS > 0)
             startFsyncThread();
@@ -229,6 +258,11 @@ public class FileLogWriter implements LogWriter {
 
         synchronized (mLock) {
             if (mRAF != null) {
+                if (mBlockOut != null) {
+                    mFileSize += mBlockOut.flush();
+                    mBlockOut.end();
+                    mBlockOut = null;
+                }
                 if (mLastOpTstamp != 0)
                 	mHeader.setLastOpTstamp(mLastOpTstamp);
                 mHeader.setOpen(false);
@@ -257,8 +291,9 @@ public class FileLogWriter implements LogWriter {
      * case 2: synchronous && fsyncInterval > 0
      * action: write(), then wait() until notified by fsync thread
      * Current thread only calls write() on the RandomAccessFile, and blocks to
-     * wait for the next scheduled fsync.  Fsync thread periodically flushes
-     * the output stream and fsync's the file.  After each fsync, all waiting
+     * wait for the next fsync.  Fsync thread fsync's the file as soon as the
+     * previous fsync is done, delaying it by up to fsyncInterval when more
+     * loggers are about to arrive.  After each fsync, all waiting
      * logger threads are notified to continue.  This method batches multiple
      * log items before each fsync, and results in greater throughput than
      * calling fsync after each log item because fsync to physical disk is
@@ -296,10 +331,22 @@ public class FileLogWriter implements LogWriter {
             int numRead;
             byte[] buf = new byte[1024];
             while ((numRead = data.read(buf)) >= 0) {
-                mRAF.write(buf, 0, numRead);
-                mFileSize += numRead;
+                if (mBlockOut != null) {
+                    mFileSize += mBlockOut.write(buf, 0, numRead);
+                } else {
+                    mRAF.write(buf, 0, numRead);
+                    mFileSize += numRead;
+                }
             }
             data.close();
+            if (mBlockOut != null) {
+                // Write the op's block now, as the raw format writes the op, rather than packing it with
+                // the next ones; otherwise an async op would only reach the file at the next fsync, and
+                // a process crash would lose it.  The block is chained to the ones before it, so that the op
+                // still compresses about as well as if it were packed with them.
+                mFileSize += mBlockOut.endOp();
+                mFileSize += mBlockOut.flush();
+            }
 
             // We do this with log writer lock held, so the commits and any
             // callbacks made on their behalf are truly in the correct order.
@@ -326,17 +373,11 @@ public class FileLogWriter implements LogWriter {
         if (!synchronous)
             return;
 
+        long start = System.currentTimeMillis();
         if (mFsyncIntervalMS > 0) {
-            if (!sameMboxAsLastOp) {
+            if (!sameMboxAsLastOp && mFsyncer != null) {
                 // case 2
-                try {
-                    // wait for fsync thread to write this entry to disk
-                    synchronized (mFsyncCond) {
-                        mFsyncCond.wait(10000);
-                    }
-                } catch (InterruptedException e) {
-                    ZimbraLog.redolog.info("Thread interrupted during fsync");
-                }
+                waitForFsync(seq);
                 synchronized (mLock) {
                     // timed out, so fsync in this thread
                     if (seq > mFsyncSeq)
@@ -353,6 +394,47 @@ public class FileLogWriter implements LogWriter {
             // case 3
             fsync();
         }
+        ZimbraPerf.STOPWATCH_REDO_COMMIT.stop(start);
+        ZimbraPerf.REDO_TRACKER.addStat(histogramBucket("commit_ms", System.currentTimeMillis() - start), start);
+    }
+
+    /**
+     * Waits until the fsync thread has synced the item, for up to 10 seconds.
+     */
+    private void waitForFsync(int seq) {
+        synchronized (mFsyncCond) {
+            long now = System.nanoTime();
+            if (mLastArrivalNanos != 0) {
+                mAvgArrivalNanos = movingAverage(mAvgArrivalNanos, now - mLastArrivalNanos);
+            }
+            mLastArrivalNanos = now;
+            mWaiters++;
+            mWaitSeq = Math.max(mWaitSeq, seq);
+            mFsyncCond.notifyAll(); // wake up the fsync thread if it's idle
+            try {
+                long deadline = now + TimeUnit.SECONDS.toNanos(10);
+                long remaining;
+                while (mFsyncSeq < seq && mFsyncer != null && (remaining = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(mFsyncCond, remaining);
+                }
+            } catch (InterruptedException e) {
+                ZimbraLog.redolog.info("Thread interrupted during fsync");
+            } finally {
+                mWaiters--;
+            }
+        }
+    }
+
+    private static long movingAverage(long avg, long sample) {
+        return avg >= Long.MAX_VALUE / 2 ? sample : avg - avg / 8 + sample / 8;
+    }
+
+    /**
+     * Returns the name of the power of two bucket {@code value} falls into, e.g. "commit_ms_le_4" for 3.
+     */
+    private static String histogramBucket(String name, long value) {
+        long bound = value <= 1 ? 1 : Long.highestOneBit(value - 1) << 1;
+        return name + "_le_" + bound;
     }
 
     private int mLastOpMboxId;
@@ -431,6 +513,16 @@ public class FileLogWriter implements LogWriter {
         fsync();
     }
 
+    /**
+     * Returns how many times the log was fsynced since it was opened.
+     */
+    @VisibleForTesting
+    int getFsyncCount() {
+        synchronized (mLock) {
+            return mFsyncCount;
+        }
+    }
+
     public synchronized void disableFsync() throws IOException {
         fsync();
         stopFsyncThread();
@@ -454,18 +546,21 @@ public class FileLogWriter implements LogWriter {
     private void fsync() throws IOException {
         boolean fsyncNeeded = false;
         int seq = 0;
+        int batch = 0;
         synchronized (mLock) {
             if (mFsyncSeq < mLogSeq) {
                 if (mRAF == null)
                     throw new IOException("Redolog file closed");
                 fsyncNeeded = true;
                 seq = mLogSeq;
+                batch = mLogSeq - mFsyncSeq;
                 if (!mFsyncDisabled)
                     mFsyncCount++;
             }
         }
         if (fsyncNeeded) {
             if (!mFsyncDisabled) {
+                long start = System.nanoTime();
                 synchronized (mLock) {
                     if (mRAF != null)
                         mRAF.getChannel().force(false);
@@ -473,6 +568,12 @@ public class FileLogWriter implements LogWriter {
                         throw new IOException("Redolog file closed");
                     mCommitNotifyQueue.flush(false);
                 }
+                long elapsed = System.nanoTime() - start;
+                synchronized (mFsyncCond) {
+                    mAvgFsyncNanos = mAvgFsyncNanos == 0 ? elapsed : movingAverage(mAvgFsyncNanos, elapsed);
+                }
+                ZimbraPerf.COUNTER_REDO_FSYNC_BATCH.increment(batch);
+                ZimbraPerf.REDO_TRACKER.addValue(histogramBucket("fsync_batch", batch), batch);
             }
             synchronized (mLock) {
                 mFsyncSeq = seq;
@@ -486,17 +587,20 @@ public class FileLogWriter implements LogWriter {
     }
 
 
-    // Thread that calls fsync() periodically.  Threads that call log()
-    // will write the log entry and wait for this thread to signal them
-    // after sync to disk has occurred.  This way, there are fewer fsyncs
-    // than there are calls to log(), resulting in improved throughput.
+    // Thread that calls fsync() on behalf of the threads that call log() and wait for
+    // their items to be on disk, so that there are fewer fsyncs than there are calls to
+    // log().  Instead of sleeping for a fixed interval, the thread fsyncs as soon as
+    // the previous fsync is done and someone is waiting.  When loggers arrive faster than
+    // an fsync completes, it waits for about as many loggers as arrive during one fsync
+    // before starting the next, for no longer than one fsync takes, nor than the
+    // configured interval.  Items logged with no one waiting are synced within the interval.
     private class FsyncThread extends Thread {
         private long mSleepMS;
-        private Object mFsyncLock;  // synchronizes access to mRunning
-        private boolean mRunning;
+        private boolean mRunning;   // guarded by mFsyncCond
 
         private static final long MIN_SLEEP_MILLIS = 1;
         private static final long MAX_SLEEP_MILLIS = 1000;  // never sleep longer than 1 seconds
+        private static final int MAX_BATCH = 1000;
 
         public FsyncThread(long fsyncIntervalMS) {
             super("FileLogWriter.FsyncThread-"+System.currentTimeMillis());
@@ -512,21 +616,18 @@ public class FileLogWriter implements LogWriter {
             } else {
                 mSleepMS = fsyncIntervalMS;
             }
-            mFsyncLock = new Object();
             mRunning = true;
         }
 
         @Override public void run() {
-            boolean running = true;
-        	ZimbraLog.redolog.info("Starting fsync thread with interval %d", mSleepMS);
-            while (running) {
-                // Sleep between fsyncs.
+            ZimbraLog.redolog.info("Starting fsync thread with maximum interval %d", mSleepMS);
+            while (true) {
+                boolean running;
                 try {
-                	ZimbraLog.redolog.trace("Sleeping for %s", mSleepMS);
-                    Thread.sleep(mSleepMS);
-                	ZimbraLog.redolog.trace("Slept for %s running? %s", mSleepMS, mRunning);
+                    running = awaitBatch();
                 } catch (InterruptedException e) {
                     ZimbraLog.redolog.warn("Sync thread interrupted", e);
+                    running = isRunning();
                 }
 
                 try {
@@ -536,22 +637,60 @@ public class FileLogWriter implements LogWriter {
                     Zimbra.halt(message, e);
                 }
 
-                synchronized (mFsyncLock) {
-                    running = mRunning;
+                if (!running) {
+                    break;
                 }
             }
             ZimbraLog.redolog.info("fsync thread exiting");
         }
 
+        /**
+         * Waits until it's time for the next fsync.
+         * @return false if the thread has been stopped
+         */
+        private boolean awaitBatch() throws InterruptedException {
+            synchronized (mFsyncCond) {
+                // idle until someone waits for an item that isn't synced yet, or for up to the interval
+                // if there are unsynced items; waiters whose items were synced but which haven't woken
+                // up yet don't count
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mSleepMS);
+                long remaining;
+                while (mRunning && mWaitSeq <= mFsyncSeq && (remaining = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(mFsyncCond, remaining);
+                }
+                if (!mRunning || mWaitSeq <= mFsyncSeq) {
+                    return mRunning;
+                }
+
+                // expected number of loggers to arrive during one fsync
+                long target = Math.min(mAvgFsyncNanos / Math.max(mAvgArrivalNanos, 1), MAX_BATCH);
+                if (mWaiters < target) {
+                    long window = Math.min(mAvgFsyncNanos, TimeUnit.MILLISECONDS.toNanos(mSleepMS));
+                    deadline = System.nanoTime() + window;
+                    while (mRunning && mWaiters < target && (remaining = deadline - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(mFsyncCond, remaining);
+                    }
+                }
+                return mRunning;
+            }
+        }
+
+        private boolean isRunning() {
+            synchronized (mFsyncCond) {
+                return mRunning;
+            }
+        }
+
         // Stop the fsync thread.  Wait until the thread really stops.
         public void stopThread() {
-            synchronized (mFsyncLock) {
+            synchronized (mFsyncCond) {
                 mRunning = false;
+                mFsyncCond.notifyAll();
             }
             try {
             	while (isAlive()) {
             		if (ZimbraLog.redolog.isTraceEnabled()) {
-            			ZimbraLog.redolog.trace("waiting for %s to finish. running? %s", getName(), mRunning);
+            			ZimbraLog.redolog.trace("waiting for %s to finish. running? %s", getName(), isRunning());
             		} else {
             			ZimbraLog.redolog.info("waiting for %s to finish.", getName());
             		}
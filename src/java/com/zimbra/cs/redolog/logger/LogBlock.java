@@ -0,0 +1,314 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.zimbra.cs.localconfig.ServerLC;
+
+/**
+ * A block of a redolog file in {@link FileHeader#FORMAT_BLOCKS} format.  After the file header, the file is a
+ * sequence of blocks, each of which is:
+ *
+ *   MAGIC          4 bytes containing "ZMRB"
+ *   flags          1 byte; FLAG_DEFLATED, FLAG_CONTINUES, FLAG_CONTINUATION, FLAG_CHAINED
+ *   length         4 bytes; length of the data
+ *   storedLength   4 bytes; length of the data as stored, compressed or not
+ *   checksum       4 bytes; CRC32 of the flags, the two lengths and the data as stored
+ *   data           storedLength bytes
+ *
+ * The data of the blocks, concatenated, is the sequence of serialized redo ops a file in
+ * {@link FileHeader#FORMAT_RAW} format has.  A block ends at the end of an op, unless the op is too large for a
+ * block and continues in the next one, so that a run of blocks up to one without FLAG_CONTINUES holds whole ops.
+ * <p>
+ * Deflated blocks are sync-flushed rather than finished, and a block with FLAG_CHAINED continues the deflate stream of
+ * the previous block, so that a block per op still compresses against the ops before it.  A chain of blocks is read
+ * from its first block on, and ends once it holds a block's worth of data, or at a block that's stored as is.
+ */
+final class LogBlock {
+
+    static final byte[] MAGIC = "ZMRB".getBytes();
+    static final int HEADER_LEN = MAGIC.length + 1 + 4 + 4 + 4;
+    private static final int CHECKED_HEADER_LEN = 1 + 4 + 4;    // flags and lengths
+
+    static final int FLAG_DEFLATED = 0x01;
+    static final int FLAG_CONTINUES = 0x02;      // the last op continues in the next block
+    static final int FLAG_CONTINUATION = 0x04;   // the data starts with the rest of an op from the previous block
+    static final int FLAG_CHAINED = 0x08;        // the data continues the deflate stream of the previous block
+
+    private static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+    static final int BLOCK_SIZE = Math.min(ServerLC.redolog_block_size_kb.intValue() * 1024, MAX_LENGTH);
+
+    final int flags;
+    final byte[] data;
+
+    private LogBlock(int flags, byte[] data) {
+        this.flags = flags;
+        this.data = data;
+    }
+
+    boolean continues() {
+        return (flags & FLAG_CONTINUES) != 0;
+    }
+
+    boolean isContinuation() {
+        return (flags & FLAG_CONTINUATION) != 0;
+    }
+
+    boolean isChained() {
+        return (flags & FLAG_CHAINED) != 0;
+    }
+
+    /**
+     * Reads the blocks of a redolog file, keeping the deflate stream of the current chain.
+     */
+    static final class Input {
+        private final Inflater inflater = new Inflater();
+        private boolean inChain = false;
+
+        /**
+         * Reads the block at the current position of the file.
+         *
+         * @param end offset the block must end at or before
+         * @throws EOFException if the block runs past {@code end}
+         * @throws IOException if the block is corrupt, or continues a chain whose start wasn't read
+         */
+        LogBlock read(RandomAccessFile raf, long end) throws IOException {
+            boolean chained = inChain;
+            inChain = false; // until the block is read
+            LogBlock block = LogBlock.read(raf, end, inflater, chained);
+            inChain = (block.flags & FLAG_DEFLATED) != 0;
+            return block;
+        }
+
+        /**
+         * Forgets the current chain, when the next block read isn't the one after the last block read.
+         */
+        void reset() {
+            inChain = false;
+        }
+
+        void end() {
+            inflater.end();
+        }
+    }
+
+    private static LogBlock read(RandomAccessFile raf, long end, Inflater inflater, boolean inChain)
+    throws IOException {
+        long start = raf.getFilePointer();
+        if (start + HEADER_LEN > end) {
+            throw new EOFException("Partial redolog block header at offset " + start);
+        }
+        byte[] header = new byte[HEADER_LEN];
+        raf.readFully(header);
+        ByteBuffer buf = ByteBuffer.wrap(header);
+        byte[] magic = new byte[MAGIC.length];
+        buf.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Missing redolog block magic marker");
+        }
+        int flags = buf.get();
+        int length = buf.getInt();
+        int storedLength = buf.getInt();
+        int checksum = buf.getInt();
+        boolean deflated = (flags & FLAG_DEFLATED) != 0;
+        if (length < 0 || length > MAX_LENGTH || storedLength < 0 ||
+                (deflated ? storedLength > length : storedLength != length)) {
+            throw new IOException("Invalid redolog block lengths " + length + "/" + storedLength);
+        }
+        if (raf.getFilePointer() + storedLength > end) {
+            throw new EOFException("Partial redolog block at offset " + start);
+        }
+        byte[] stored = new byte[storedLength];
+        raf.readFully(stored);
+
+        CRC32 crc = new CRC32();
+        crc.update(header, MAGIC.length, CHECKED_HEADER_LEN);
+        crc.update(stored);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Redolog block checksum mismatch");
+        }
+        if (!deflated) {
+            return new LogBlock(flags, stored);
+        }
+        if ((flags & FLAG_CHAINED) == 0) {
+            inflater.reset();
+        } else if (!inChain) {
+            throw new IOException("Redolog block continues a chain whose previous block wasn't read");
+        }
+
+        byte[] data = new byte[length];
+        inflater.setInput(stored);
+        try {
+            int n = 0;
+            while (n < length) {
+                int count = inflater.inflate(data, n, length - n);
+                if (count == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += count;
+            }
+            // consume the rest of the block, the end of a sync flush or of a finished stream, which must not
+            // inflate to anything
+            byte[] extra = new byte[1];
+            while (n == length && inflater.getRemaining() > 0 && !inflater.finished()) {
+                int remaining = inflater.getRemaining();
+                if (inflater.inflate(extra) > 0) {
+                    n++;
+                } else if (inflater.getRemaining() == remaining) {
+                    break;
+                }
+            }
+            if (n > length) {
+                throw new IOException("Redolog block inflated to more than " + length + " bytes");
+            } else if (n < length) {
+                throw new IOException("Redolog block inflated to " + n + " bytes instead of " + length);
+            } else if (inflater.getRemaining() > 0) {
+                throw new IOException("Invalid compressed redolog block, " + inflater.getRemaining() +
+                        " bytes left over");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed redolog block", e);
+        }
+        return new LogBlock(flags, data);
+    }
+
+    /**
+     * Packs ops written to a redolog file into blocks.  An op is written with one or more calls to
+     * {@link #write(byte[], int, int)}, followed by {@link #endOp()}.  Each method returns the number of bytes
+     * written to the file, if any.  An op that doesn't fit in what's left of a block starts a new block, and
+     * only an op larger than a block continues in the next one.  Blocks written by {@link #flush()} before the block
+     * is full are chained, so that they compress about as well as a full block.
+     */
+    static final class Output {
+        private final RandomAccessFile raf;
+        private final byte[] buf;
+        private int len = 0;
+        private int opStart = 0;    // where in buf the current op starts; -1 if in an earlier block
+        private boolean continuation = false;
+        private int chainLength = 0;    // data in the current chain of blocks; 0 to start a new chain
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final CRC32 crc = new CRC32();
+        private final byte[] out;
+
+        Output(RandomAccessFile raf, int blockSize) {
+            this.raf = raf;
+            buf = new byte[blockSize];
+            out = new byte[HEADER_LEN + blockSize];
+        }
+
+        long write(byte[] b, int off, int n) throws IOException {
+            long written = 0;
+            while (n > 0) {
+                if (len == buf.length) {
+                    if (opStart > 0) {
+                        // move the start of the op to a block of its own
+                        written += writeBlock(0, opStart);
+                        System.arraycopy(buf, opStart, buf, 0, len - opStart);
+                        len -= opStart;
+                        opStart = 0;
+                    } else {
+                        written += writeBlock(FLAG_CONTINUES, len);
+                        len = 0;
+                        opStart = -1;
+                    }
+                }
+                int count = Math.min(n, buf.length - len);
+                System.arraycopy(b, off, buf, len, count);
+                len += count;
+                off += count;
+                n -= count;
+            }
+            return written;
+        }
+
+        /**
+         * Writes the block once it's full.
+         */
+        long endOp() throws IOException {
+            opStart = len;
+            return len >= buf.length ? flush() : 0;
+        }
+
+        /**
+         * Writes what's buffered.  Must be called at the end of an op.
+         */
+        long flush() throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            long written = writeBlock(0, len);
+            len = 0;
+            opStart = 0;
+            return written;
+        }
+
+        int buffered() {
+            return len;
+        }
+
+        void end() {
+            deflater.end();
+        }
+
+        private long writeBlock(int flags, int length) throws IOException {
+            if (continuation) {
+                flags |= FLAG_CONTINUATION;
+            }
+            continuation = (flags & FLAG_CONTINUES) != 0;
+
+            if (chainLength == 0) {
+                deflater.reset();
+            }
+            deflater.setInput(buf, 0, length);
+            // the flush is complete unless it fills the output
+            int storedLength = deflater.deflate(out, HEADER_LEN, length, Deflater.SYNC_FLUSH);
+            if (storedLength < length) {
+                flags |= chainLength > 0 ? FLAG_DEFLATED | FLAG_CHAINED : FLAG_DEFLATED;
+                chainLength += length;
+                if (chainLength >= buf.length) {
+                    chainLength = 0;
+                }
+            } else { // incompressible, and the deflater is left with data that isn't in the file
+                System.arraycopy(buf, 0, out, HEADER_LEN, length);
+                storedLength = length;
+                chainLength = 0;
+            }
+
+            ByteBuffer header = ByteBuffer.wrap(out, 0, HEADER_LEN);
+            header.put(MAGIC);
+            header.put((byte) flags);
+            header.putInt(length);
+            header.putInt(storedLength);
+            crc.reset();
+            crc.update(out, MAGIC.length, CHECKED_HEADER_LEN);
+            crc.update(out, HEADER_LEN, storedLength);
+            header.putInt((int) crc.getValue());
+            raf.write(out, 0, HEADER_LEN + storedLength);
+            return HEADER_LEN + storedLength;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.util;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.zimbra.common.util.CliUtil;
+import com.zimbra.cs.redolog.logger.FileHeader;
+import com.zimbra.cs.redolog.logger.FileLogConverter;
+
+/**
+ * Converts redolog files between the raw format and the compressed, checksummed block format.
+ */
+public class RedoLogConvert {
+
+    private static Options sOptions = new Options();
+
+    private static final String OPT_HELP = "h";
+    private static final String OPT_FORMAT = "f";
+
+    static {
+        sOptions.addOption(OPT_HELP, "help", false, "show this output");
+        sOptions.addOption(OPT_FORMAT, "format", true, "format to convert to: \"blocks\" (default) or \"raw\"");
+    }
+
+    private static void usage(String errmsg) {
+        if (errmsg != null) {
+            System.err.println(errmsg);
+            System.err.println();
+        }
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.printHelp("zmredoconvert [options] <source redolog file> <destination file>",
+            "where [options] are:\n", sOptions,
+            "\nThe source file is read with either format.  Bad data in the source file is skipped, as " +
+            "during replay.  The source file must not be the current redo.log of a running server.");
+        System.exit((errmsg == null) ? 0 : 1);
+    }
+
+    public static void main(String[] cmdlineargs) {
+        CliUtil.toolSetup();
+        CommandLineParser parser = new GnuParser();
+        CommandLine cl = null;
+        try {
+            cl = parser.parse(sOptions, cmdlineargs);
+        } catch (ParseException pe) {
+            usage(pe.getMessage());
+        }
+        if (cl.hasOption(OPT_HELP))
+            usage(null);
+
+        byte format = FileHeader.FORMAT_BLOCKS;
+        String formatName = cl.getOptionValue(OPT_FORMAT, "blocks");
+        if (formatName.equals("raw"))
+            format = FileHeader.FORMAT_RAW;
+        else if (!formatName.equals("blocks"))
+            usage("Invalid format \"" + formatName + "\"");
+
+        String[] args = cl.getArgs();
+        if (args.length != 2)
+            usage("Source and destination files must be specified");
+        File src = new File(args[0]);
+        File dest = new File(args[1]);
+        if (src.getAbsoluteFile().equals(dest.getAbsoluteFile()))
+            usage("Destination must be a different file");
+
+        try {
+            int count = FileLogConverter.convert(src, dest, format);
+            System.out.printf("Converted %d ops; %d bytes to %d bytes", count, src.length(), dest.length());
+            System.out.println();
+        } catch (IOException e) {
+            System.err.println("Unable to convert " + src.getAbsolutePath() + ": " + e.getMessage());
+            e.printStackTrace(System.err);
+            System.exit(1);
+        }
+    }
+}
@@ -17,15 +17,21 @@
 
 package com.zimbra.cs.server;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.file.DefaultFileRegion;
+import org.apache.mina.core.future.IoFutureListener;
 import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.ssl.SslFilter;
 
 import com.google.common.base.Charsets;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.security.sasl.SaslFilter;
 
 public final class NioOutputStream extends OutputStream {
     private final IoSession session;
@@ -79,6 +85,30 @@ public final class NioOutputStream extends OutputStream {
         buf.put((byte) b);
     }
 
+    /**
+     * Returns true if {@link #write(FileChannel, long, long)} may be used, that is, if no filter on the session needs
+     * to transform the bytes (TLS, SASL).
+     */
+    public boolean isFileRegionSupported() {
+        return !session.getFilterChain().contains(SslFilter.class) &&
+                !session.getFilterChain().contains(SaslFilter.class);
+    }
+
+    /**
+     * Sends part of a file as a {@link DefaultFileRegion}, which MINA writes to the socket with
+     * {@link FileChannel#transferTo}, so that the content is copied by the kernel instead of through the heap. Takes
+     * ownership of the channel, and closes it once the region is written or the write failed.
+     */
+    public synchronized void write(FileChannel channel, long position, long count) throws IOException {
+        try {
+            flush();
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+        writeToSession(new DefaultFileRegion(channel, position, count), channel);
+    }
+
     @Override
     public synchronized void flush() throws IOException {
         if (buf.position() > 0) {
@@ -89,8 +119,23 @@ public final class NioOutputStream extends OutputStream {
     }
 
     private synchronized void writeToSession(Object output) throws IOException {
+        writeToSession(output, null);
+    }
+
+    /**
+     * @param resource closed once the output is written, or the write failed
+     */
+    private synchronized void writeToSession(Object output, final Closeable resource) throws IOException {
         long writeBytes = session.getScheduledWriteBytes();
         WriteFuture future = session.write(output);
+        if (resource != null) {
+            future.addListener(new IoFutureListener<WriteFuture>() {
+                @Override
+                public void operationComplete(WriteFuture future) {
+                    closeQuietly(resource);
+                }
+            });
+        }
         if (writeBytes > maxScheduledBytes) {
             ZimbraLog.nio.debug("IOSession has %d scheduled write bytes; waiting for buffer to catch up", writeBytes);
             long start = System.currentTimeMillis();
@@ -109,6 +154,14 @@ public final class NioOutputStream extends OutputStream {
         }
     }
 
+    private static void closeQuietly(Closeable resource) {
+        try {
+            resource.close();
+        } catch (IOException e) {
+            ZimbraLog.nio.debug("Failed to close %s", resource, e);
+        }
+    }
+
     @Override
     public synchronized void close() throws IOException {
         flush();
@@ -39,11 +39,17 @@ import com.zimbra.soap.ZimbraSoapContext;
 /**
  * Run a sanity check for the index. As this checks every byte in the index, on a large index it can take quite a long
  * time to run.
+ * <p>
+ * With {@code online="1"} on the mailbox element, the check runs in the background one segment at a time, while the
+ * index stays available. Damaged segments are dropped and only their items are re-indexed.
  *
  * @author ysasaki
  */
 public final class VerifyIndex extends AdminDocumentHandler {
 
+    /** not in {@link AdminConstants}, which lives in ZimbraCommon */
+    private static final String A_ONLINE = "online";
+
     private static final String[] TARGET_ACCOUNT_PATH = new String[] {
         AdminConstants.E_MAILBOX, AdminConstants.A_ACCOUNTID
     };
@@ -85,6 +91,14 @@ public final class VerifyIndex extends AdminDocumentHandler {
             throw ServiceException.FAILURE("mailbox not found for account " + accountId, null);
         }
 
+        if (mreq.getAttributeBool(A_ONLINE, false)) {
+            mbox.index.startVerify();
+            Element resp = zsc.createElement(AdminConstants.VERIFY_INDEX_RESPONSE);
+            resp.addElement(AdminConstants.E_STATUS).addText(String.valueOf(true));
+            resp.addElement(AdminConstants.E_MESSAGE).addText("started online verification");
+            return resp;
+        }
+
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         boolean status = mbox.index.verify(new PrintStream(out));
         Element resp = zsc.createElement(AdminConstants.VERIFY_INDEX_RESPONSE);
@@ -21,6 +21,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PushbackInputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.EnumSet;
@@ -81,6 +82,7 @@ import com.zimbra.cs.service.formatter.FormatterFactory.FormatType;
 import com.zimbra.cs.service.mail.UploadScanner;
 import com.zimbra.cs.servlet.ETagHeaderFilter;
 import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.BlobInputStream;
 import com.zimbra.cs.store.StoreManager;
 
 public final class NativeFormatter extends Formatter {
@@ -163,8 +165,7 @@ public final class NativeFormatter extends Formatter {
             long size = msg.getSize();
             if (size > 0)
                 context.resp.setContentLength((int)size);
-            InputStream is = msg.getContentStream();
-            ByteUtil.copy(is, true, context.resp.getOutputStream(), false);
+            copy(msg.getContentStream(), context.resp.getOutputStream());
         }
     }
 
@@ -618,7 +619,26 @@ public final class NativeFormatter extends Formatter {
         }
         if (size > 0)
             resp.setContentLength((int)size);
-        ByteUtil.copy(pis, true, resp.getOutputStream(), false);
+        if (isSafe) { // nothing was read ahead
+            copy(in, resp.getOutputStream());
+        } else {
+            ByteUtil.copy(pis, true, resp.getOutputStream(), false);
+        }
+    }
+
+    /**
+     * Copies and closes the stream.  Uncompressed blobs are sent with {@link BlobInputStream#transferTo}.
+     */
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        if (in instanceof BlobInputStream) {
+            try {
+                ((BlobInputStream) in).transferTo(out);
+            } finally {
+                ByteUtil.closeStream(in);
+            }
+        } else {
+            ByteUtil.copy(in, true, out, false);
+        }
     }
     /**
      * Determines whether or not the contentType passed might contain script or other unsavory tags.
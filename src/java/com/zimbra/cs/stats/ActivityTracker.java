@@ -44,6 +44,13 @@ implements StatsDumperDataSource {
         Counter counter = getCounter(commandName);
         counter.increment(System.currentTimeMillis() - startTime);
     }
+
+    /**
+     * Adds a value other than an elapsed time, such as a size, to the stat.
+     */
+    public void addValue(String commandName, long value) {
+        getCounter(commandName).increment(value);
+    }
     
     private Counter getCounter(String commandName) {
         Counter counter = mCounterMap.get(commandName);
@@ -124,6 +124,9 @@ public class ZimbraPerf {
     @Description("File descriptor cache hit rate")
     public static final String RTS_FD_CACHE_HIT_RATE = "fd_cache_hit_rate";
 
+    @Description("Number of documents waiting to be sent to ElasticSearch in bulk")
+    public static final String RTS_ES_BULK_QUEUE_SIZE = "es_bulk_queue_size";
+
     // LDAP provisioning caches.
     @Description("LDAP ACL cache hit rate")
     public static final String RTS_ACL_CACHE_HIT_RATE = "acl_cache_hit_rate";
@@ -201,8 +204,15 @@ public class ZimbraPerf {
     public static final Counter COUNTER_CALENDAR_CACHE_LRU_SIZE = new Counter();
     public static final Counter COUNTER_IDX_BYTES_WRITTEN = new Counter();
     public static final Counter COUNTER_IDX_BYTES_READ = new Counter();
+    public static final Counter COUNTER_IDX_BLOCK_CACHE_HIT = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_READ = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_SEEK_RATE = new Counter();
+    public static final Counter COUNTER_FD_CACHE_EVICT = new Counter();
+    public static final Counter COUNTER_EXTERNAL_CACHE_HIT = new Counter();
+    public static final Counter COUNTER_EXTERNAL_CACHE_ADMIT = new Counter();
+    public static final Counter COUNTER_EXTERNAL_SIS_RECENT_HIT = new Counter();
+    public static final Counter COUNTER_REDO_FSYNC_BATCH = new Counter();
+    public static final StopWatch STOPWATCH_REDO_COMMIT = new StopWatch();
     public static final StopWatch STOPWATCH_EWS = new StopWatch();
 
     public static final ActivityTracker SOAP_TRACKER = new ActivityTracker("soap.csv");
@@ -211,6 +221,7 @@ public class ZimbraPerf {
     public static final ActivityTracker LDAP_TRACKER = new ActivityTracker("ldap.csv");
     public static final ActivityTracker SYNC_TRACKER = new ActivityTracker("sync.csv");
     public static final ActivityTracker SQL_TRACKER  = new ActivityTracker("sql.csv");
+    public static final ActivityTracker REDO_TRACKER = new ActivityTracker("redolog.csv");
 
     private static int mailboxCacheSize;
     private static long mailboxCacheSizeTimestamp = 0;
@@ -230,6 +241,7 @@ public class ZimbraPerf {
             RTS_HTTP_IDLE_THREADS, RTS_HTTP_THREADS, RTS_SOAP_SESSIONS,
             RTS_MBOX_CACHE_SIZE, RTS_MSG_CACHE_SIZE,
             RTS_FD_CACHE_SIZE, RTS_FD_CACHE_HIT_RATE,
+            RTS_ES_BULK_QUEUE_SIZE,
             RTS_ACL_CACHE_HIT_RATE,
             RTS_ACCOUNT_CACHE_SIZE, RTS_ACCOUNT_CACHE_HIT_RATE,
             RTS_COS_CACHE_SIZE, RTS_COS_CACHE_HIT_RATE,
@@ -314,6 +326,27 @@ public class ZimbraPerf {
     @Description("Percentage of file descriptor cache disk reads that required a seek")
     private static final String DC_BIS_SEEK_RATE = "bis_seek_rate";
 
+    @Description("Number of file descriptors aged out of the file descriptor cache")
+    private static final String DC_FD_CACHE_EVICT = "fd_cache_evictions";
+
+    @Description("Hit rate of the local cache of blobs in an external store")
+    private static final String DC_EXTERNAL_CACHE_HIT = "external_cache_hit";
+
+    @Description("Number of blobs admitted to the local cache of an external store")
+    private static final String DC_EXTERNAL_CACHE_ADMIT = "external_cache_admissions";
+
+    @Description("Percentage of blobs staged to a single instance store by adding a reference to recently staged content")
+    private static final String DC_EXTERNAL_SIS_RECENT_HIT = "external_sis_recent_hit";
+
+    @Description("Average number of redolog items written to disk by one fsync")
+    private static final String DC_REDO_FSYNC_BATCH_AVG = "redo_fsync_batch_avg";
+
+    @Description("Number of synchronous redolog writes")
+    private static final String DC_REDO_COMMIT_COUNT = "redo_commit_count";
+
+    @Description("Average time a synchronous redolog write waits until it is on disk")
+    private static final String DC_REDO_COMMIT_MS_AVG = "redo_commit_ms_avg";
+
     @Description("Average number of concurrent index writers")
     private static final String DC_IDX_WRT_AVG = "idx_wrt_avg";
 
@@ -335,6 +368,9 @@ public class ZimbraPerf {
     @Description("Average of idx_bytes_read")
     private static final String DC_IDX_BYTES_READ_AVG = "idx_bytes_read_avg";
 
+    @Description("Hit rate of the off-heap index block cache")
+    private static final String DC_IDX_BLOCK_CACHE_HIT = "idx_block_cache_hit";
+
     @Description("Hit rate of calendar summary cache, counting cache hit from both memory and file")
     private static final String DC_CALCACHE_HIT = "calcache_hit";
 
@@ -370,8 +406,15 @@ public class ZimbraPerf {
                         new DeltaCalculator(COUNTER_CALENDAR_CACHE_LRU_SIZE).setAverageName(DC_CALCACHE_LRU_SIZE),
                         new DeltaCalculator(COUNTER_IDX_BYTES_WRITTEN).setTotalName(DC_IDX_BYTES_WRITTEN).setAverageName(DC_IDX_BYTES_WRITTTEN_AVG),
                         new DeltaCalculator(COUNTER_IDX_BYTES_READ).setTotalName(DC_IDX_BYTES_READ).setAverageName(DC_IDX_BYTES_READ_AVG),
+                        new DeltaCalculator(COUNTER_IDX_BLOCK_CACHE_HIT).setAverageName(DC_IDX_BLOCK_CACHE_HIT),
                         new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_READ).setTotalName(DC_BIS_READ),
                         new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_SEEK_RATE).setAverageName(DC_BIS_SEEK_RATE),
+                        new DeltaCalculator(COUNTER_FD_CACHE_EVICT).setTotalName(DC_FD_CACHE_EVICT),
+                        new DeltaCalculator(COUNTER_EXTERNAL_CACHE_HIT).setAverageName(DC_EXTERNAL_CACHE_HIT),
+                        new DeltaCalculator(COUNTER_EXTERNAL_CACHE_ADMIT).setTotalName(DC_EXTERNAL_CACHE_ADMIT),
+                        new DeltaCalculator(COUNTER_EXTERNAL_SIS_RECENT_HIT).setAverageName(DC_EXTERNAL_SIS_RECENT_HIT),
+                        new DeltaCalculator(COUNTER_REDO_FSYNC_BATCH).setAverageName(DC_REDO_FSYNC_BATCH_AVG),
+                        new DeltaCalculator(STOPWATCH_REDO_COMMIT).setCountName(DC_REDO_COMMIT_COUNT).setAverageName(DC_REDO_COMMIT_MS_AVG),
                         realtimeStats
                     }
         );
@@ -475,6 +518,7 @@ public class ZimbraPerf {
         StatsDumper.schedule(LDAP_TRACKER, CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(SYNC_TRACKER, CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(SQL_TRACKER, CSV_DUMP_FREQUENCY);
+        StatsDumper.schedule(REDO_TRACKER, CSV_DUMP_FREQUENCY);
 
         ThreadStats threadStats = new ThreadStats("threads.csv");
         StatsDumper.schedule(threadStats, CSV_DUMP_FREQUENCY);
@@ -26,7 +26,6 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.zip.GZIPOutputStream;
 
 import com.zimbra.common.localconfig.DebugConfig;
 import com.zimbra.common.localconfig.LC;
@@ -79,6 +78,13 @@ public class BlobBuilder {
         return 0;
     }
 
+    /**
+     * Returns the codec blobs larger than the compression threshold are compressed with.
+     */
+    protected BlobCodec getCompressionCodec() {
+        return BlobCodec.GZIP;
+    }
+
     public BlobBuilder disableDigest(boolean disable) {
         this.disableDigest = disable;
         return this;
@@ -159,7 +165,7 @@ public class BlobBuilder {
 
             // This call exceeded compression threshold.  Compress the stream and
             // write everything that we've read so far.
-            out = new GZIPOutputStream(out);
+            out = getCompressionCodec().compress(out);
             writeToFile(buf, 0, bufLen);
             blob.setCompressed(true);
             compressionThresholdExceeded = true;
@@ -218,11 +224,12 @@ public class BlobBuilder {
         }
 
         try {
+            if (compressionThresholdExceeded) {
+                BlobCodec.finish(out); // write the trailer before syncing
+            }
             if (!DebugConfig.disableMessageStoreFsync) {
                 out.flush();
-                if (fc != null) {
-                    fc.force(true);
-                }
+                sync(fc);
             }
         } catch (IOException e) {
             dispose();
@@ -243,6 +250,15 @@ public class BlobBuilder {
         return blob;
     }
 
+    /**
+     * Forces the blob's data to disk, before the output stream is closed.
+     */
+    protected void sync(FileChannel channel) throws IOException {
+        if (channel != null) {
+            channel.force(true);
+        }
+    }
+
     @Override public String toString() {
         File file = blob.getFile();
 
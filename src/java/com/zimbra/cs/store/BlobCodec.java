@@ -0,0 +1,353 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.google.common.base.Strings;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.localconfig.ServerLC;
+
+/**
+ * Compression format of blobs in the message store.
+ * <p>
+ * Blobs compressed with {@link #GZIP} are plain gzip files, as they have always been written. Other codecs prefix the
+ * compressed data with a header of {@code NUL 'Z' 'B' 'C'} followed by the codec ID, so that readers find out how a
+ * blob was written from the blob itself, and volumes can switch codecs without rewriting existing blobs. A message
+ * cannot contain NUL, so no message is taken for a compressed blob, and a header with an unknown codec ID is read as
+ * uncompressed data. Callers that know the uncompressed size of a blob don't look at its header at all when the file
+ * is exactly that size, so that documents, which may hold any bytes, are not mistaken for compressed blobs either.
+ * <p>
+ * Codecs are looked up by name. A volume compresses new blobs with the codec named by
+ * {@code zimbra_blob_compression_codec_<volume id>}, or else {@code zimbra_blob_compression_codec}, which defaults to
+ * gzip. Extensions may {@link #register} more codecs, with IDs of 16 and above.
+ */
+public abstract class BlobCodec {
+    private static final byte[] MAGIC = new byte[] { 0, 'Z', 'B', 'C' };
+    private static final int HEADER_SIZE = MAGIC.length + 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Map<String, BlobCodec> BY_NAME = new ConcurrentHashMap<String, BlobCodec>();
+    private static final BlobCodec[] BY_ID = new BlobCodec[256];
+
+    /** gzip, without a header, for compatibility with existing blobs */
+    public static final BlobCodec GZIP = register(new GzipCodec());
+    /** zlib at the fastest level, for volumes that receive deliveries */
+    public static final BlobCodec DEFLATE_FAST = register(new DeflateCodec("deflate-fast", 1, Deflater.BEST_SPEED));
+    /** zlib at the best level, for volumes that blobs are moved to when they get old */
+    public static final BlobCodec DEFLATE_BEST = register(new DeflateCodec("deflate-best", 2, Deflater.BEST_COMPRESSION));
+
+    private final String name;
+    private final int id;
+
+    protected BlobCodec(String name, int id) {
+        if (id < 0 || id >= BY_ID.length) {
+            throw new IllegalArgumentException("codec id out of range: " + id);
+        }
+        this.name = name;
+        this.id = id;
+    }
+
+    public final String getName() {
+        return name;
+    }
+
+    public final int getId() {
+        return id;
+    }
+
+    /**
+     * Makes the codec available to readers and volumes.
+     *
+     * @throws IllegalArgumentException if a codec with the same name or ID is already registered
+     */
+    public static synchronized BlobCodec register(BlobCodec codec) {
+        if (BY_ID[codec.id] != null || BY_NAME.containsKey(codec.name)) {
+            throw new IllegalArgumentException("codec already registered: " + codec);
+        }
+        BY_ID[codec.id] = codec;
+        BY_NAME.put(codec.name, codec);
+        return codec;
+    }
+
+    /**
+     * @return the codec, or {@code null} if none is registered under the name
+     */
+    public static BlobCodec getCodec(String name) {
+        return name == null ? null : BY_NAME.get(name);
+    }
+
+    /**
+     * Returns the codec new blobs are compressed with on the volume.
+     */
+    public static BlobCodec getCodec(short volumeId) {
+        String key = "zimbra_blob_compression_codec_" + volumeId; // per volume, so not a known key
+        String name = LC.get(key);
+        if (Strings.isNullOrEmpty(name)) {
+            key = ServerLC.zimbra_blob_compression_codec.key();
+            name = ServerLC.zimbra_blob_compression_codec.value();
+        }
+        BlobCodec codec = getCodec(name);
+        if (codec == null) {
+            ZimbraLog.store.warn("Invalid %s=%s", key, name);
+            return GZIP;
+        }
+        return codec;
+    }
+
+    /**
+     * Wraps a stream that writes a new blob, so that the data written to it is compressed with this codec.
+     * Closing the returned stream closes {@code out}.
+     */
+    public OutputStream compress(OutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.write(id);
+        return newOutputStream(out);
+    }
+
+    /**
+     * Returns a stream that compresses data, without the blob header.
+     */
+    protected abstract OutputStream newOutputStream(OutputStream out) throws IOException;
+
+    /**
+     * Returns a stream that decompresses data, whose blob header was already read.
+     */
+    protected abstract InputStream newInputStream(InputStream in) throws IOException;
+
+    /**
+     * Returns the codec from the header of a blob.
+     *
+     * @return the codec, or {@code null} if the blob isn't compressed, or names a codec that isn't registered
+     */
+    private static BlobCodec detect(byte[] header, int len) {
+        if (len >= 2 && header[0] == (byte) GZIPInputStream.GZIP_MAGIC && header[1] == (byte) (GZIPInputStream.GZIP_MAGIC >> 8)) {
+            return GZIP;
+        }
+        if (len < HEADER_SIZE) {
+            return null;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                return null;
+            }
+        }
+        BlobCodec codec = BY_ID[header[MAGIC.length] & 0xff];
+        if (codec == null) {
+            ZimbraLog.store.debug("unknown blob codec %d, reading as uncompressed", header[MAGIC.length] & 0xff);
+        }
+        return codec;
+    }
+
+    /**
+     * Returns the codec the blob file was compressed with.
+     *
+     * @return the codec, or {@code null} if the file isn't compressed
+     */
+    public static BlobCodec detect(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] header = new byte[HEADER_SIZE];
+            return detect(header, read(in, header));
+        } finally {
+            ByteUtil.closeStream(in);
+        }
+    }
+
+    /**
+     * Returns the codec the blob file was compressed with, without reading the file if it's as large as the
+     * uncompressed blob.
+     *
+     * @param rawSize uncompressed size of the blob, as recorded in the database
+     * @return the codec, or {@code null} if the file isn't compressed
+     */
+    public static BlobCodec detect(File file, long rawSize) throws IOException {
+        return file.length() == rawSize ? null : detect(file);
+    }
+
+    public static boolean isCompressed(File file) throws IOException {
+        return detect(file) != null;
+    }
+
+    /**
+     * @param rawSize uncompressed size of the blob, as recorded in the database
+     */
+    public static boolean isCompressed(File file, long rawSize) throws IOException {
+        return detect(file, rawSize) != null;
+    }
+
+    /**
+     * Wraps a stream reading a blob, so that it returns the uncompressed data whichever codec the blob was
+     * compressed with, if any.
+     */
+    public static InputStream decompress(InputStream in) throws IOException {
+        PushbackInputStream pin = new PushbackInputStream(in, HEADER_SIZE);
+        byte[] header = new byte[HEADER_SIZE];
+        int len = read(pin, header);
+        BlobCodec codec = detect(header, len);
+        if (codec == GZIP || codec == null) {
+            pin.unread(header, 0, len);
+        } else if (len > HEADER_SIZE) {
+            pin.unread(header, HEADER_SIZE, len - HEADER_SIZE);
+        }
+        return codec == null ? pin : codec.newInputStream(pin);
+    }
+
+    private static int read(InputStream in, byte[] buf) throws IOException {
+        int len = 0;
+        while (len < buf.length) {
+            int n = in.read(buf, len, buf.length - len);
+            if (n < 0) {
+                break;
+            }
+            len += n;
+        }
+        return len;
+    }
+
+    /**
+     * Copies a blob file, compressing it with this codec.
+     *
+     * @param src uncompressed, or compressed with any codec
+     */
+    public void compress(File src, File dest, boolean sync) throws IOException {
+        InputStream in = decompress(new FileInputStream(src));
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(dest);
+            OutputStream out = compress(fos);
+            ByteUtil.copy(in, false, out, false);
+            finish(out);
+            if (sync) {
+                fos.getChannel().force(true);
+            }
+            out.close();
+        } finally {
+            ByteUtil.closeStream(in);
+            ByteUtil.closeStream(fos);
+        }
+    }
+
+    /**
+     * Copies a blob file, uncompressing it.
+     */
+    public static void uncompress(File src, File dest, boolean sync) throws IOException {
+        InputStream in = decompress(new FileInputStream(src));
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(dest);
+            ByteUtil.copy(in, false, out, false);
+            if (sync) {
+                out.getChannel().force(true);
+            }
+        } finally {
+            ByteUtil.closeStream(in);
+            ByteUtil.closeStream(out);
+        }
+    }
+
+    /**
+     * Writes what the compressed stream still buffers to the underlying stream, so that it can be synced to disk
+     * before the stream is closed.
+     */
+    public static void finish(OutputStream out) throws IOException {
+        if (out instanceof DeflaterOutputStream) {
+            ((DeflaterOutputStream) out).finish();
+        }
+        out.flush();
+    }
+
+    @Override
+    public String toString() {
+        return name + "(" + id + ")";
+    }
+
+    private static final class GzipCodec extends BlobCodec {
+        GzipCodec() {
+            super("gzip", 0);
+        }
+
+        @Override
+        public OutputStream compress(OutputStream out) throws IOException {
+            return newOutputStream(out);
+        }
+
+        @Override
+        protected OutputStream newOutputStream(OutputStream out) throws IOException {
+            return new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+
+        @Override
+        protected InputStream newInputStream(InputStream in) throws IOException {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+    }
+
+    private static final class DeflateCodec extends BlobCodec {
+        private final int level;
+
+        DeflateCodec(String name, int id, int level) {
+            super(name, id);
+            this.level = level;
+        }
+
+        @Override
+        protected OutputStream newOutputStream(OutputStream out) {
+            final Deflater deflater = new Deflater(level);
+            return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        protected InputStream newInputStream(InputStream in) {
+            final Inflater inflater = new Inflater();
+            return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+    }
+}
@@ -16,18 +16,27 @@
  */
 package com.zimbra.cs.store;
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 import javax.mail.internet.SharedInputStream;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.MimePart.InputStreamSource;
+import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.Log;
 import com.zimbra.common.util.LogFactory;
+import com.zimbra.cs.localconfig.ServerLC;
 
 public class BlobInputStream extends InputStream
 implements SharedInputStream, InputStreamSource {
@@ -77,10 +86,28 @@ implements SharedInputStream, InputStreamSource {
 
     private static int BUFFER_SIZE = Math.max(LC.zimbra_blob_input_stream_buffer_size_kb.intValue(), 1) * 1024;
 
+    /**
+     * Minimum number of bytes worth handing to {@link FileChannel#transferTo} instead of copying through the buffer.
+     */
+    private static final long TRANSFER_MIN_SIZE = ServerLC.zimbra_blob_transfer_min_size_kb.longValue() * 1024;
+
+    /**
+     * Largest the read buffer grows to while the stream is read sequentially.
+     */
+    private static final int MAX_READAHEAD = Math.max(
+            ServerLC.zimbra_blob_input_stream_max_readahead_kb.intValue() * 1024, BUFFER_SIZE);
+
     /**
      * Read buffer.
      */
-    private final byte[] mBuf = new byte[BUFFER_SIZE];
+    private byte[] mBuf = new byte[BUFFER_SIZE];
+
+    /**
+     * Minimum number of bytes the next {@link #fillBuffer} reads.  Doubles each time the buffer is refilled where the
+     * previous fill ended, up to {@link #MAX_READAHEAD}, and drops back to {@link #BUFFER_SIZE} when the stream skips
+     * around, so that partial reads of a part stay small and reads of a whole blob take few system calls.
+     */
+    private int mReadahead = BUFFER_SIZE;
 
     /**
      * Buffer start position, relative to the file on disk, not {@link #mPos}.
@@ -216,6 +243,62 @@ implements SharedInputStream, InputStreamSource {
         mRoot.mFile = newFile;
     }
 
+    /**
+     * Returns the position of the next byte to read, relative to the blob file.
+     */
+    public long getFilePointer() {
+        return mPos;
+    }
+
+    /**
+     * Opens a new channel to the blob file, so that the rest of this stream, starting at {@link #getFilePointer()},
+     * can be sent with {@link FileChannel#transferTo} without copying it through the heap.  The caller must close the
+     * channel, and {@link #skip} the bytes it sent.
+     *
+     * @return the channel, or {@code null} if the blob is compressed, or if the rest of the stream is too small to be
+     * worth it, in which case it must be read through this stream
+     */
+    public FileChannel openChannel() throws IOException {
+        File file = getRootFile();
+        if (mEnd - mPos < TRANSFER_MIN_SIZE || file.length() != mRawSize) {
+            return null;
+        }
+        try {
+            return new FileInputStream(file).getChannel();
+        } catch (FileNotFoundException e) { // moved or deleted, but may still be readable through the cached descriptor
+            return null;
+        }
+    }
+
+    /**
+     * Copies the rest of this stream to {@code out}.  Uncompressed blobs are sent with {@link FileChannel#transferTo},
+     * which bypasses this stream's buffer and the shared descriptor in the {@link FileDescriptorCache}, and lets the
+     * kernel do the copy if {@code out} writes to a file.
+     *
+     * @return number of bytes copied
+     */
+    public long transferTo(OutputStream out) throws IOException {
+        FileChannel channel = openChannel();
+        if (channel == null) {
+            return ByteUtil.copy(this, false, out, false);
+        }
+        try {
+            WritableByteChannel target = out instanceof FileOutputStream ?
+                    ((FileOutputStream) out).getChannel() : Channels.newChannel(out);
+            long start = mPos;
+            while (mPos < mEnd) {
+                long count = channel.transferTo(mPos, mEnd - mPos, target);
+                if (count <= 0) {
+                    throw new EOFException("Unexpected end of " + getRootFile().getPath() + " at " + mPos);
+                }
+                mPos += count;
+            }
+            return mPos - start;
+        } finally {
+            channel.close();
+        }
+    }
+
     ////////////// InputStream methods //////////////
 
     @Override
@@ -246,7 +329,7 @@ implements SharedInputStream, InputStreamSource {
         }
         if (mPos < mBufPos || mPos >= (mBufPos + mBufSize)) {
             // Tried to read outside buffer bounds.
-            int numRead = fillBuffer(mPos);
+            int numRead = fillBuffer(mPos, 1);
             if (numRead <= 0) {
                 return -1;
             }
@@ -258,10 +341,19 @@ implements SharedInputStream, InputStreamSource {
 
     /**
      * Fills the buffer at the given position in the file.
+     * @param minLen number of bytes the caller needs, at most the buffer size
      * @return number of bytes read
      */
-    private int fillBuffer(long pos) throws IOException {
-        int numToRead = (int) Math.min(mBuf.length, mEnd - pos);
+    private int fillBuffer(long pos, int minLen) throws IOException {
+        if (mBufSize > 0 && pos == mBufPos + mBufSize) {
+            mReadahead = Math.min(mReadahead * 2, MAX_READAHEAD);
+            if (mBuf.length < mReadahead) {
+                mBuf = new byte[mReadahead];
+            }
+        } else {
+            mReadahead = BUFFER_SIZE;
+        }
+        int numToRead = (int) Math.min(Math.max(mReadahead, minLen), mEnd - pos);
         int numRead = getFileDescriptorCache().read(getRootFile().getPath(), mRawSize, pos, mBuf, 0, numToRead);
         if (numRead > 0) {
             mBufPos = pos;
@@ -296,12 +388,12 @@ implements SharedInputStream, InputStreamSource {
                 numRead = getFileDescriptorCache().read(getRootFile().getPath(), mRawSize, mPos, b, off, len);
             } else {
                 // Fill the buffer and copy data.
-                int numReadIntoBuffer = fillBuffer(mPos);
+                int numReadIntoBuffer = fillBuffer(mPos, len);
                 if (numReadIntoBuffer <= 0) {
                     return -1;
                 }
-                System.arraycopy(mBuf, 0, b, off, len);
-                numRead = len;
+                numRead = Math.min(len, numReadIntoBuffer);
+                System.arraycopy(mBuf, 0, b, off, numRead);
             }
         }
         if (numRead > 0) {
@@ -21,43 +21,55 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.zip.GZIPInputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.util.FileCache;
-import com.zimbra.common.util.FileUtil;
 import com.zimbra.common.util.Log;
 import com.zimbra.common.util.LogFactory;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
+import com.zimbra.cs.stats.ZimbraPerf;
 
 /**
  * Caches file descriptors to blobs in the mail store.  If the blob is compressed,
  * uses a {@link FileCache} to access the uncompressed data.  Cache entries
  * that reference uncompressed blobs keep the file descriptor open until {@link #remove}
  * is called or the cache entry is aged out.
+ * <p>
+ * Lookups go through a {@link ConcurrentHashMap} and don't take a cache-wide lock, so
+ * concurrent readers of different blobs don't serialize on the cache.  Entries are aged
+ * out clock-style (second chance): a hit only sets the entry's reference bit, and the
+ * thread that pushes the cache over its size walks the clock, clearing reference bits
+ * and closing the first entry that hasn't been read since the last pass.
  */
 public class FileDescriptorCache
 {
     private static final Log sLog = LogFactory.getLog(FileDescriptorCache.class);
 
-    // Create the file cache with default LinkedHashMap values, but sorted by last access time.
-    private final LinkedHashMap<String, SharedFile> mCache = new LinkedHashMap<String, SharedFile>(16, 0.75f, true);
-    // Create a concurrent list for the SharedFies for which the mapping has been removed but is still in use by some threads.
-    private final List<SharedFileInfo> mInactiveCache = Collections.synchronizedList(new ArrayList<SharedFileInfo>());
-    private int mMaxSize = 1000;
+    private final ConcurrentHashMap<String, Entry> mCache = new ConcurrentHashMap<String, Entry>(64, 0.75f, 16);
+    // Entries in clock order.  May contain entries that were removed from mCache; those are skipped.
+    private final Queue<Entry> mClock = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger mClockSize = new AtomicInteger();
+    private final AtomicInteger mSize = new AtomicInteger();
+    // SharedFiles for which the mapping has been removed but are still in use by some threads.
+    private final Queue<SharedFileInfo> mInactiveCache = new ConcurrentLinkedQueue<SharedFileInfo>();
+    private final Object mEvictLock = new Object();
+    private volatile int mMaxSize = 1000;
     private final FileCache<String> mUncompressedFileCache;
     private final Counter mHitRate = new Counter();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
 
-    private class SharedFileInfo {
+    private static class SharedFileInfo {
         public String path;
         public SharedFile file;
 
@@ -67,11 +79,22 @@ public class FileDescriptorCache
         }
     }
 
+    private static final class Entry {
+        final String path;
+        final SharedFile file;
+        volatile boolean referenced = false;
+
+        Entry(String path, SharedFile file) {
+            this.path = path;
+            this.file = file;
+        }
+    }
+
     public FileDescriptorCache(FileCache<String> uncompressedCache) {
         mUncompressedFileCache = uncompressedCache;
     }
 
-    public synchronized FileDescriptorCache setMaxSize(int maxSize) {
+    public FileDescriptorCache setMaxSize(int maxSize) {
         if (maxSize < 0)
             throw new IllegalArgumentException("maxSize value of " + maxSize + " is invalid (must be at least 0)");
 
@@ -97,20 +120,25 @@ public class FileDescriptorCache
      * Closes all file descriptors, clears the cache, and removes any files from
      * the uncompressed cache.
      */
-    public synchronized void shutdown() {
-        Iterator<Map.Entry<String, SharedFile>> iEntries = mCache.entrySet().iterator();
-        while (iEntries.hasNext()) {
-            Map.Entry<String, SharedFile> entry = iEntries.next();
-            String path = entry.getKey();
-            SharedFile file = entry.getValue();
-            iEntries.remove();
-            try {
-                boolean success = close(file, path);
-                if (!success)
-                    sLog.warn("Unable to close %s. File is in use.", file);
-            } catch (IOException e) {
-                sLog.warn("Unable to close %s", file, e);
+    public void shutdown() {
+        synchronized (mEvictLock) {
+            Iterator<Entry> iEntries = mCache.values().iterator();
+            while (iEntries.hasNext()) {
+                Entry entry = iEntries.next();
+                if (!mCache.remove(entry.path, entry)) {
+                    continue;
+                }
+                mSize.decrementAndGet();
+                try {
+                    boolean success = close(entry.file, entry.path);
+                    if (!success)
+                        sLog.warn("Unable to close %s. File is in use.", entry.file);
+                } catch (IOException e) {
+                    sLog.warn("Unable to close %s", entry.file, e);
+                }
             }
+            mClock.clear();
+            mClockSize.set(0);
         }
     }
 
@@ -136,9 +164,7 @@ public class FileDescriptorCache
     }
 
     boolean contains(String path) {
-        synchronized (this) {
-            return mCache.containsKey(path);
-        }
+        return mCache.containsKey(path);
     }
 
     /**
@@ -146,28 +172,28 @@ public class FileDescriptorCache
      * increments the number of readers for the <tt>SharedFile</tt>.
      */
     private SharedFile getSharedFile(String path, long rawSize) throws IOException {
-        SharedFile sharedFile = null;
-
-        synchronized (this) {
-            sharedFile = mCache.get(path);
-        }
-        if (sharedFile != null) {
+        Entry entry = mCache.get(path);
+        if (entry != null) {
             sLog.debug("Found existing file descriptor for %s, rawSize=%d.", path, rawSize);
-            sharedFile.aboutToRead();
+            entry.referenced = true;
+            entry.file.aboutToRead();
+            mHits.incrementAndGet();
             mHitRate.increment(100);
-            return sharedFile;
+            return entry.file;
         }
 
         // Open a new file descriptor.
+        mMisses.incrementAndGet();
         mHitRate.increment(0);
         File file = new File(path);
+        SharedFile sharedFile;
 
-        if (file.length() != rawSize && FileUtil.isGzipped(file)) {
+        if (file.length() != rawSize && BlobCodec.isCompressed(file)) {
             sLog.debug("Adding file descriptor cache entry for %s from the uncompressed file cache.", path);
             FileCache.Item uncompressed = mUncompressedFileCache.get(path);
             if (uncompressed == null) {
                 InputStream in = null;
-                in = new GZIPInputStream(new FileInputStream(file));
+                in = BlobCodec.decompress(new FileInputStream(file));
                 mUncompressedFileCache.put(path, in);
                 uncompressed = mUncompressedFileCache.get(path);
                 if (uncompressed == null) {
@@ -182,15 +208,17 @@ public class FileDescriptorCache
             sharedFile = new SharedFile(file);
         }
 
-        synchronized (this) {
-            if (mCache.containsKey(path)) {
-                sLog.debug("Another thread just opened the same file.  Closing our copy and returning the other one.");
-                sharedFile.close();
-                sharedFile = mCache.get(path);
-            } else {
-                sLog.debug("Caching file descriptor: path=%s, sharedFile=%s", path, sharedFile);
-                mCache.put(path, sharedFile);
-            }
+        Entry newEntry = new Entry(path, sharedFile);
+        entry = mCache.putIfAbsent(path, newEntry);
+        if (entry != null) {
+            sLog.debug("Another thread just opened the same file.  Closing our copy and returning the other one.");
+            sharedFile.close();
+            sharedFile = entry.file;
+            entry.referenced = true;
+        } else {
+            sLog.debug("Caching file descriptor: path=%s, sharedFile=%s", path, sharedFile);
+            mSize.incrementAndGet();
+            addToClock(newEntry);
         }
         sharedFile.aboutToRead();
         pruneIfNecessary();
@@ -203,19 +231,19 @@ public class FileDescriptorCache
      * descriptor is not in the cache.
      */
     public void remove(String path) throws IOException {
-        SharedFile file = null;
-
-        synchronized (this) {
-            file = mCache.remove(path);
-        }
+        Entry entry = mCache.remove(path);
 
-        if (file != null) {
-            boolean success = close(file, path);
+        if (entry != null) {
+            mSize.decrementAndGet();
+            boolean success = close(entry.file, path);
             if (!success)
-                mInactiveCache.add(new SharedFileInfo(path, file));
+                mInactiveCache.add(new SharedFileInfo(path, entry.file));
         } else {
             sLog.debug("Attempted to remove %s but could not find it in the cache.", path);
         }
+        if (mClockSize.get() > Math.max(mMaxSize, 16) * 2) {
+            purgeClock();
+        }
 
         // Close if there are any SharedFiles in the inactive cache.
         quietCloseInactiveCache();
@@ -233,12 +261,10 @@ public class FileDescriptorCache
             if (file.getNumReaders() == 0) {
                 file.close();
                 if (mUncompressedFileCache != null) {
-                    synchronized (this) {
-                        if (!mCache.containsKey(path)) {
-                            mUncompressedFileCache.remove(path);
-                        } else {
-                            sLog.debug("Not removing %s from the uncompressed cache.  Another thread reopened it.");
-                        }
+                    if (!mCache.containsKey(path)) {
+                        mUncompressedFileCache.remove(path);
+                    } else {
+                        sLog.debug("Not removing %s from the uncompressed cache.  Another thread reopened it.", path);
                     }
                 }
                 return true;
@@ -249,6 +275,9 @@ public class FileDescriptorCache
     }
 
     private void quietCloseInactiveCache() {
+        if (mInactiveCache.isEmpty()) {
+            return;
+        }
         synchronized (mInactiveCache) {
             Iterator<SharedFileInfo> iter = mInactiveCache.iterator();
             while (iter.hasNext()) {
@@ -265,38 +294,81 @@ public class FileDescriptorCache
         }
     }
 
-    public synchronized int getSize() {
-        return mCache.size();
+    public int getSize() {
+        return mSize.get();
     }
 
     public double getHitRate() {
         return mHitRate.getAverage();
     }
 
-    private void pruneIfNecessary() {
-         if (getSize() <= mMaxSize)
-            return;
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
 
-        List<Map.Entry<String, SharedFile>> removeList = new ArrayList<Map.Entry<String, SharedFile>>();
+    public long getEvictionCount() {
+        return mEvictions.get();
+    }
+
+    private void addToClock(Entry entry) {
+        mClock.add(entry);
+        mClockSize.incrementAndGet();
+    }
 
-        synchronized (this) {
-            Iterator<Map.Entry<String, SharedFile>> iEntries = mCache.entrySet().iterator();
-            while (iEntries.hasNext() && mCache.size() > mMaxSize) {
-                Map.Entry<String, SharedFile> mapEntry = iEntries.next();
-                iEntries.remove();
-                removeList.add(mapEntry);
+    /**
+     * Drops clock entries whose mapping was removed, so that removals don't grow the clock
+     * while the cache stays below its maximum size.
+     */
+    private void purgeClock() {
+        synchronized (mEvictLock) {
+            Iterator<Entry> iter = mClock.iterator();
+            while (iter.hasNext()) {
+                Entry entry = iter.next();
+                if (mCache.get(entry.path) != entry) {
+                    iter.remove();
+                    mClockSize.decrementAndGet();
+                }
             }
         }
-        for (Map.Entry<String, SharedFile> mapEntry : removeList) {
-            String path = mapEntry.getKey();
-            SharedFile file = mapEntry.getValue();
-            try {
-                boolean success = close(file, path);
-                if (!success) {
-                    mInactiveCache.add(new SharedFileInfo(path, file));
+    }
+
+    private void pruneIfNecessary() {
+        if (mSize.get() <= mMaxSize)
+            return;
+
+        synchronized (mEvictLock) {
+            while (mSize.get() > mMaxSize) {
+                Entry entry = mClock.poll();
+                if (entry == null) {
+                    break;
+                }
+                mClockSize.decrementAndGet();
+                if (mCache.get(entry.path) != entry) {
+                    continue; // removed, or replaced after removal
+                }
+                if (entry.referenced) { // second chance
+                    entry.referenced = false;
+                    addToClock(entry);
+                    continue;
+                }
+                if (!mCache.remove(entry.path, entry)) {
+                    continue;
+                }
+                mSize.decrementAndGet();
+                mEvictions.incrementAndGet();
+                ZimbraPerf.COUNTER_FD_CACHE_EVICT.increment();
+                try {
+                    boolean success = close(entry.file, entry.path);
+                    if (!success) {
+                        mInactiveCache.add(new SharedFileInfo(entry.path, entry.file));
+                    }
+                } catch (IOException e) {
+                    ZimbraLog.store.warn("Unable to close file descriptor for " + entry.path, e);
                 }
-            } catch (IOException e) {
-                ZimbraLog.store.warn("Unable to close file descriptor for " + path, e);
             }
         }
 
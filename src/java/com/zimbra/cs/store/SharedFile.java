@@ -22,17 +22,26 @@ package com.zimbra.cs.store;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 
 import com.zimbra.cs.stats.ZimbraPerf;
 
 /**
  * Synchronized container for a <tt>RandomAccessFile</tt> object.  Used by multiple
- * <tt>BlobInputStream</tt> objects that share a single file descriptor.
+ * <tt>BlobInputStream</tt> objects that share a single file descriptor.  Reads are
+ * positional, so readers at different offsets don't seek the shared descriptor or
+ * wait for each other.
  */
 public class SharedFile {
 
     private File mFile;
     private RandomAccessFile mRAF;
+
+    /**
+     * End of the last read, to tell sequential reads from random ones.
+     */
     private long mPos = 0;
     
     /**
@@ -69,20 +78,25 @@ public class SharedFile {
         return mLength;
     }
     
-    synchronized int read(long fileOffset, byte[] b, int off, int len)
+    int read(long fileOffset, byte[] b, int off, int len)
     throws IOException {
-        int numRead = 0;
-        boolean seeked = false;
-        openIfNecessary();
-        
-        if (mPos != fileOffset) {
-            mRAF.seek(fileOffset);
-            mPos = fileOffset;
-            seeked = true;
+        FileChannel channel;
+        boolean seeked;
+        synchronized (this) {
+            openIfNecessary();
+            channel = mRAF.getChannel();
+            seeked = mPos != fileOffset;
         }
-        numRead = mRAF.read(b, off, len);
-        mPos += numRead;
-        
+        int numRead;
+        try {
+            numRead = channel.read(ByteBuffer.wrap(b, off, len), fileOffset);
+        } catch (ClosedChannelException e) {
+            numRead = reread(channel, fileOffset, b, off, len);
+        }
+        synchronized (this) {
+            mPos = fileOffset + Math.max(numRead, 0);
+        }
+
         if (seeked) {
             ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_SEEK_RATE.increment(100);
         } else {
@@ -92,6 +106,25 @@ public class SharedFile {
         return numRead;
     }
     
+    /**
+     * Retries a read whose channel was closed under it, either by the file descriptor cache or because a reader
+     * was interrupted, which closes the channel for every reader.  The descriptor is reopened if needed, and the
+     * retry reads from the <tt>RandomAccessFile</tt> under the lock, which an interrupt doesn't abort.
+     */
+    private synchronized int reread(FileChannel closed, long fileOffset, byte[] b, int off, int len)
+    throws IOException {
+        if (mRAF != null && mRAF.getChannel() == closed) {
+            try {
+                mRAF.close();
+            } catch (IOException ignore) {
+            }
+            mRAF = null;
+        }
+        openIfNecessary();
+        mRAF.seek(fileOffset);
+        return mRAF.read(b, off, len);
+    }
+
     synchronized void aboutToRead() {
         mNumReaders++;
     }
@@ -401,6 +401,14 @@ public abstract class StoreManager {
     public abstract boolean deleteStore(Mailbox mbox, Iterable<MailboxBlob.MailboxBlobInfo> blobs)
     throws IOException, ServiceException;
 
+    /**
+     * Waits until the blobs the current thread stored and linked are on disk, for stores which defer syncing them.
+     * Called before a mailbox transaction commits.
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+    }
+
     /**
      * Create an IncomingBlob instance
      * @param id
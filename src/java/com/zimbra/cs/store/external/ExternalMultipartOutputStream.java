@@ -0,0 +1,186 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.external;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.zimbra.cs.store.BlobBuilder;
+
+/**
+ * ExternalResumableOutputStream which cuts the data into parts of a fixed size, and uploads up to
+ * {@link ExternalPartTransfer#getParallelParts()} of them at a time, each with its offset and MD5 checksum, so that
+ * a large blob isn't limited to the throughput of a single connection. A part that fails is retried; once it has
+ * failed for good, the stream fails and the client must restart the upload.
+ * <p>
+ * The first part of a new upload is sent on its own, for stores that create the upload session with it.
+ * {@link #flush()} waits for the parts in flight, and advances the count of bytes the store has acknowledged.
+ */
+public abstract class ExternalMultipartOutputStream extends ExternalResumableOutputStream {
+
+    private final ExternalPartTransfer transfer;
+    private final AtomicLong written;
+    private final Semaphore inFlight;
+    private final List<Future<?>> pending = new ArrayList<Future<?>>();
+    private byte[] part;
+    private int partLength = 0;
+    private long nextOffset;
+    private volatile IOException failure;
+
+    /**
+     * @param written bytes of the upload acknowledged by the store, shared by the streams that append to it
+     */
+    protected ExternalMultipartOutputStream(BlobBuilder blobBuilder, ExternalPartTransfer transfer, AtomicLong written) {
+        super(blobBuilder);
+        this.transfer = transfer;
+        this.written = written;
+        this.inFlight = new Semaphore(transfer.getParallelParts());
+        this.nextOffset = written.get();
+    }
+
+    /**
+     * Uploads one part. May be called from several threads at once, for parts of the same upload.
+     *
+     * @param offset position of the part in the blob
+     * @param data part data, from 0 to {@code len}
+     * @param checksum base64 encoded MD5 of the part, as in a Content-MD5 header
+     */
+    protected abstract void uploadPart(long offset, byte[] data, int len, String checksum) throws IOException;
+
+    /**
+     * Returns false until the store has accepted the first part, if parts can't be sent before that.
+     */
+    protected boolean isSessionStarted() {
+        return true;
+    }
+
+    @Override
+    protected void writeToExternal(byte[] b, int off, int len) throws IOException {
+        checkFailure();
+        while (len > 0) {
+            if (part == null) {
+                part = new byte[transfer.getPartSize()];
+            }
+            int n = Math.min(len, part.length - partLength);
+            System.arraycopy(b, off, part, partLength, n);
+            partLength += n;
+            off += n;
+            len -= n;
+            if (partLength == part.length) {
+                sendPart();
+            }
+        }
+    }
+
+    private void sendPart() throws IOException {
+        final byte[] data = part;
+        final int len = partLength;
+        final long offset = nextOffset;
+        final String checksum = checksum(data, len);
+        part = null;
+        partLength = 0;
+        nextOffset += len;
+
+        final Callable<Void> upload = new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                uploadPart(offset, data, len, checksum);
+                return null;
+            }
+        };
+        final String what = "upload of part at " + offset;
+        if (!isSessionStarted()) {
+            awaitParts();
+            transfer.retry(upload, what);
+            return;
+        }
+        inFlight.acquireUninterruptibly();
+        pending.add(transfer.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                try {
+                    transfer.retry(upload, what);
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                } finally {
+                    inFlight.release();
+                }
+                return null;
+            }
+        }));
+    }
+
+    private void awaitParts() throws IOException {
+        for (Future<?> future : pending) {
+            try {
+                Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                throw new IOException("part upload failed", e.getCause());
+            }
+        }
+        pending.clear();
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw new IOException("part upload failed", e);
+        }
+    }
+
+    private static String checksum(byte[] data, int len) throws IOException {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(data, 0, len);
+            return Base64.encodeBase64String(md5.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Sends what is buffered, and waits until the store has acknowledged everything written so far.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (partLength > 0) {
+            sendPart();
+        }
+        awaitParts();
+        written.set(nextOffset);
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        flush();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.external;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Objects;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.localconfig.ServerLC;
+
+/**
+ * How blobs are split into parts that are sent to or fetched from an external store in parallel, and the threads
+ * that transfer them.
+ * <p>
+ * Defaults are {@code external_store_part_size_kb}, {@code external_store_parallel_parts} parts in flight per blob,
+ * and {@code external_store_part_max_attempts} attempts per part.
+ */
+public final class ExternalPartTransfer {
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("ExternalPartTransfer-%d").setDaemon(true).build());
+    private static final long RETRY_DELAY_MS = 100;
+
+    private final int partSize;
+    private final int parallelParts;
+    private final int maxAttempts;
+
+    public ExternalPartTransfer(int partSize, int parallelParts, int maxAttempts) {
+        this.partSize = Math.max(partSize, 1);
+        this.parallelParts = Math.max(parallelParts, 1);
+        this.maxAttempts = Math.max(maxAttempts, 1);
+    }
+
+    public static ExternalPartTransfer getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private static final class Holder {
+        static final ExternalPartTransfer INSTANCE = new ExternalPartTransfer(
+                ServerLC.external_store_part_size_kb.intValue() * 1024,
+                ServerLC.external_store_parallel_parts.intValue(),
+                ServerLC.external_store_part_max_attempts.intValue());
+    }
+
+    /**
+     * Returns a copy with a different part size, e.g. one the store requires.
+     */
+    public ExternalPartTransfer withPartSize(int size) {
+        return new ExternalPartTransfer(size, parallelParts, maxAttempts);
+    }
+
+    /**
+     * Returns a copy with a different number of parts in flight, e.g. 1 for a store that needs parts in order.
+     */
+    public ExternalPartTransfer withParallelParts(int parts) {
+        return new ExternalPartTransfer(partSize, parts, maxAttempts);
+    }
+
+    public int getPartSize() {
+        return partSize;
+    }
+
+    public int getParallelParts() {
+        return parallelParts;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    <T> Future<T> submit(Callable<T> task) {
+        return EXECUTOR.submit(task);
+    }
+
+    /**
+     * Runs a part transfer, retrying it after an {@link IOException} up to {@code maxAttempts} times in all.
+     *
+     * @param what describes the part, for logging
+     */
+    <T> T retry(Callable<T> task, String what) throws IOException {
+        for (int attempt = 1;; attempt++) {
+            try {
+                return task.call();
+            } catch (IOException e) {
+                if (attempt >= maxAttempts) {
+                    throw e;
+                }
+                ZimbraLog.store.warn("Retrying %s after attempt %d failed: %s", what, attempt, e.getMessage());
+                try {
+                    TimeUnit.MILLISECONDS.sleep(RETRY_DELAY_MS * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(what + " failed", e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).add("partSize", partSize).add("parallelParts", parallelParts)
+                .add("maxAttempts", maxAttempts).toString();
+    }
+}
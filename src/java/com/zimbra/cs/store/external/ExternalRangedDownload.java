@@ -0,0 +1,60 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.external;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.zimbra.cs.mailbox.Mailbox;
+
+/**
+ * Implemented by external stores that can read part of a blob, so that {@link ExternalStoreManager} fetches large
+ * blobs as several ranges in parallel.
+ */
+public interface ExternalRangedDownload {
+
+    /**
+     * A range of a blob, which also tells the size of the whole blob.
+     */
+    class RangeInputStream extends FilterInputStream {
+        private final long blobSize;
+
+        public RangeInputStream(InputStream in, long blobSize) {
+            super(in);
+            this.blobSize = blobSize;
+        }
+
+        /**
+         * @return the size of the whole blob, or -1 if the store didn't tell
+         */
+        public long getBlobSize() {
+            return blobSize;
+        }
+    }
+
+    /**
+     * Create an input stream for reading a range of a blob. The range may be cut short at the end of the blob.
+     * @param locator: identifier string for the blob
+     * @param mbox: Mailbox which contains the blob. Can optionally be used by store for partitioning
+     * @param start: offset of the first byte to read
+     * @param end: offset after the last byte to read
+     * @return InputStream containing the range
+     * @throws IOException
+     */
+    RangeInputStream readStreamFromStore(String locator, Mailbox mbox, long start, long end) throws IOException;
+}
@@ -0,0 +1,194 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.external;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.cs.mailbox.Mailbox;
+
+/**
+ * Reads a blob from an {@link ExternalRangedDownload} store as consecutive ranges of
+ * {@link ExternalPartTransfer#getPartSize()}, fetching up to {@link ExternalPartTransfer#getParallelParts()} of them
+ * ahead of the reader at a time. Each range is retried on its own, and must be as long as requested.
+ * <p>
+ * The size of the blob comes from the first range, so that no separate request is needed to find it out, and a blob
+ * that fits in one range is read with a single request.
+ */
+public class ExternalRangedInputStream extends InputStream {
+
+    private final ExternalRangedDownload store;
+    private final String locator;
+    private final Mailbox mbox;
+    private final long size;
+    private final ExternalPartTransfer transfer;
+    private final LinkedList<Future<byte[]>> ahead = new LinkedList<Future<byte[]>>();
+    private long nextStart = 0;
+    private byte[] part;
+    private int pos = 0;
+    private boolean closed = false;
+
+    private ExternalRangedInputStream(ExternalRangedDownload store, String locator, Mailbox mbox, long size,
+            ExternalPartTransfer transfer, byte[] first) {
+        this.store = store;
+        this.locator = locator;
+        this.mbox = mbox;
+        this.size = size;
+        this.transfer = transfer;
+        this.part = first;
+        this.nextStart = first.length;
+        fillAhead();
+    }
+
+    /**
+     * Reads the first range of a blob, and starts fetching the rest of it if there is more.
+     *
+     * @return a stream of the blob, or {@code null} if the store didn't tell the size of a blob larger than a range
+     */
+    public static InputStream open(final ExternalRangedDownload store, final String locator, final Mailbox mbox,
+            ExternalPartTransfer transfer) throws IOException {
+        final int partSize = transfer.getPartSize();
+        final long[] size = new long[1];
+        byte[] first = transfer.retry(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                ExternalRangedDownload.RangeInputStream in = store.readStreamFromStore(locator, mbox, 0, partSize);
+                try {
+                    size[0] = in.getBlobSize();
+                    int len = size[0] < 0 ? partSize : (int) Math.min(partSize, size[0]);
+                    byte[] data = ByteUtil.readInput(in, len, len);
+                    if (size[0] >= 0 && data.length != len) {
+                        throw new IOException("short read of " + locator + " range 0-" + len + ": " + data.length);
+                    }
+                    return data;
+                } finally {
+                    ByteUtil.closeStream(in);
+                }
+            }
+        }, "download of " + locator + " range 0-" + partSize);
+
+        if (size[0] < 0) {
+            return first.length < partSize ? new ByteArrayInputStream(first) : null;
+        } else if (size[0] <= partSize) {
+            return new ByteArrayInputStream(first);
+        }
+        return new ExternalRangedInputStream(store, locator, mbox, size[0], transfer, first);
+    }
+
+    private void fillAhead() {
+        while (ahead.size() < transfer.getParallelParts() && nextStart < size) {
+            final long start = nextStart;
+            final long end = Math.min(start + transfer.getPartSize(), size);
+            nextStart = end;
+            final Callable<byte[]> fetch = new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return fetch(start, end);
+                }
+            };
+            ahead.add(transfer.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return transfer.retry(fetch, "download of " + locator + " range " + start + "-" + end);
+                }
+            }));
+        }
+    }
+
+    private byte[] fetch(long start, long end) throws IOException {
+        int len = (int) (end - start);
+        InputStream in = store.readStreamFromStore(locator, mbox, start, end);
+        try {
+            byte[] data = ByteUtil.readInput(in, len, len);
+            if (data.length != len) {
+                throw new IOException("short read of " + locator + " range " + start + "-" + end + ": " + data.length);
+            }
+            return data;
+        } finally {
+            ByteUtil.closeStream(in);
+        }
+    }
+
+    /**
+     * @return false at the end of the blob
+     */
+    private boolean nextPart() throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        if (part != null && pos < part.length) {
+            return true;
+        }
+        Future<byte[]> future = ahead.poll();
+        if (future == null) {
+            return false;
+        }
+        try {
+            part = Uninterruptibles.getUninterruptibly(future);
+            pos = 0;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+        fillAhead();
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextPart()) {
+            return -1;
+        }
+        return part[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextPart()) {
+            return -1;
+        }
+        int n = Math.min(len, part.length - pos);
+        System.arraycopy(part, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return part == null ? 0 : part.length - pos;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Future<byte[]> future : ahead) {
+            future.cancel(true);
+        }
+        ahead.clear();
+        part = null;
+    }
+}
@@ -18,13 +18,20 @@
 package com.zimbra.cs.store.external;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.zimbra.common.localconfig.LC;
@@ -33,8 +40,10 @@ import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.FileCache;
 import com.zimbra.common.util.FileUtil;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.localconfig.ServerLC;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MessageCache;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.store.Blob;
 import com.zimbra.cs.store.BlobBuilder;
 import com.zimbra.cs.store.BlobInputStream;
@@ -47,11 +56,23 @@ import com.zimbra.cs.store.StoreManager;
 /**
  * Abstract base class for external store integration.
  * Uses local incoming directory during blob creation and maintains local file cache of retrieved blobs to minimize remote round-trips
+ * <p>
+ * A blob read from the store for the first time is kept in a probation file rather than in the local cache, so that
+ * one-off reads (e.g. exports and migrations) don't flush blobs that are read over and over. Reads are counted when a
+ * stream is opened on the blob, so looking a blob up or validating it doesn't count; a second read promotes the
+ * probation file into the cache without going to the store again. The probation area holds up to
+ * {@code external_store_local_cache_probation_max_files} blobs; 0 admits every blob on first read. Like files
+ * evicted from the local cache, a file leaving the probation area is kept for
+ * {@code external_store_local_cache_min_lifetime} and while a cached message uses it, since a reader may still hold it.
  */
 public abstract class ExternalStoreManager extends StoreManager implements ExternalBlobIO {
 
     private final IncomingDirectory incoming = new IncomingDirectory(LC.zimbra_tmp_directory.value() + File.separator + "incoming");
     protected FileCache<String> localCache;
+    private IncomingDirectory probationDir;
+    private Map<String, ProbationFile> probation;
+    private final Deque<ProbationFile> retired = new ArrayDeque<ProbationFile>(); // guarded by probation
+    private long minLifetime;
 
     @Override
     public void startup() throws IOException, ServiceException {
@@ -69,6 +90,12 @@ public abstract class ExternalStoreManager extends StoreManager implements Exter
             .maxBytes(LC.external_store_local_cache_max_bytes.longValue())
             .minLifetime(LC.external_store_local_cache_min_lifetime.longValue())
             .removeCallback(new MessageCacheChecker()).build();
+        File probationPath = new File(tmpDir, "probation");
+        FileUtil.deleteDir(probationPath);
+        FileUtil.ensureDirExists(probationPath);
+        probationDir = new IncomingDirectory(probationPath.getPath()); // not swept
+        minLifetime = LC.external_store_local_cache_min_lifetime.longValue();
+        probation = createProbation(ServerLC.external_store_local_cache_probation_max_files.intValue());
 
         // initialize file uncompressed file cache and file descriptor cache
         File ufCacheDir = new File(tmpDir, "uncompressed");
@@ -82,6 +109,67 @@ public abstract class ExternalStoreManager extends StoreManager implements Exter
 
     }
 
+    /**
+     * A blob on probation, and the number of streams opened on it.
+     */
+    private static final class ProbationFile {
+        final File file;
+        final String digest;
+        int reads;
+        long retiredAt;
+
+        ProbationFile(File file, String digest) {
+            this.file = file;
+            this.digest = digest;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private Map<String, ProbationFile> createProbation(final int maxFiles) {
+        if (maxFiles <= 0) {
+            return null;
+        }
+        return new LinkedHashMap<String, ProbationFile>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ProbationFile> eldest) {
+                if (size() > maxFiles) {
+                    retire(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    private void removeFromProbation(String locator) {
+        if (probation == null) {
+            return;
+        }
+        synchronized (probation) {
+            ProbationFile pf = probation.remove(locator);
+            if (pf != null) {
+                retire(pf);
+            }
+        }
+    }
+
+    /**
+     * Deletes a file that left the probation area once no reader can still be using it.  The caller must hold the
+     * lock on {@link #probation}.
+     */
+    private void retire(ProbationFile pf) {
+        long now = System.currentTimeMillis();
+        pf.retiredAt = now;
+        retired.add(pf);
+        for (Iterator<ProbationFile> i = retired.iterator(); i.hasNext();) {
+            ProbationFile old = i.next();
+            if (old.retiredAt + minLifetime <= now && !MessageCache.contains(old.digest)) {
+                old.file.delete();
+                i.remove();
+            }
+        }
+    }
+
     private class MessageCacheChecker implements FileCache.RemoveCallback {
         MessageCacheChecker()  { }
 
@@ -127,6 +215,7 @@ public abstract class ExternalStoreManager extends StoreManager implements Exter
             return true;
         }
         localCache.remove(mblob.getLocator());
+        removeFromProbation(mblob.getLocator());
         return deleteFromStore(mblob.getLocator(), mblob.getMailbox());
     }
 
@@ -169,12 +258,12 @@ public abstract class ExternalStoreManager extends StoreManager implements Exter
             return null;
         }
         Blob blob = getLocalBlob(mblob.getMailbox(), mblob.getLocator(), true);
-        return blob.getInputStream();
+        return countRead(blob).getInputStream();
     }
 
     @Override
     public InputStream getContent(Blob blob) throws IOException {
-        return new ExternalBlobInputStream(blob);
+        return new ExternalBlobInputStream(countRead(blob));
     }
 
     protected Blob getLocalBlob(Mailbox mbox, String locator, boolean fromCache) throws IOException {
@@ -182,18 +271,28 @@ public abstract class ExternalStoreManager extends StoreManager implements Exter
         if (fromCache) {
             cached = localCache.get(locator);
             if (cached != null) {
+                ZimbraPerf.COUNTER_EXTERNAL_CACHE_HIT.increment(100);
                 ExternalBlob blob = new ExternalBlob(cached);
                 blob.setLocator(locator);
                 blob.setMbox(mbox);
                 return blob;
             }
+            ProbationFile pf = getFromProbation(locator);
+            if (pf != null) {
+                ZimbraPerf.COUNTER_EXTERNAL_CACHE_HIT.increment(100);
+                return toBlob(pf, locator, mbox);
+            }
+            ZimbraPerf.COUNTER_EXTERNAL_CACHE_HIT.increment(0);
         }
 
-        InputStream is = readStreamFromStore(locator, mbox);
+        InputStream is = openStream(locator, mbox);
         if (is == null) {
             throw new IOException("Store " + this.getClass().getName() +" returned null for locator " + locator);
+        } else if (fromCache && probation != null) {
+            return toBlob(putOnProbation(locator, is), locator, mbox);
         } else {
             cached = localCache.put(locator, is);
+            ZimbraPerf.COUNTER_EXTERNAL_CACHE_ADMIT.increment();
             ExternalBlob blob = new ExternalBlob(cached);
             blob.setLocator(locator);
             blob.setMbox(mbox);
@@ -201,6 +300,99 @@ public abstract class ExternalStoreManager extends StoreManager implements Exter
         }
     }
 
+    /**
+     * Opens a blob in the store. Blobs larger than a part are read as parallel ranges if the store supports them.
+     */
+    private InputStream openStream(String locator, Mailbox mbox) throws IOException {
+        ExternalPartTransfer transfer = ExternalPartTransfer.getInstance();
+        if (this instanceof ExternalRangedDownload && transfer.getParallelParts() > 1) {
+            InputStream in = ExternalRangedInputStream.open((ExternalRangedDownload) this, locator, mbox, transfer);
+            if (in != null) {
+                return in;
+            }
+        }
+        return readStreamFromStore(locator, mbox);
+    }
+
+    /**
+     * Counts a stream opened on a blob, and moves a blob on probation into the local cache on its second read.
+     *
+     * @return the blob to read from
+     */
+    private Blob countRead(Blob blob) throws IOException {
+        if (probation == null || !(blob instanceof ExternalBlob) || ((ExternalBlob) blob).getLocator() == null) {
+            return blob;
+        }
+        ExternalBlob eblob = (ExternalBlob) blob;
+        String locator = eblob.getLocator();
+        ProbationFile pf;
+        synchronized (probation) {
+            pf = probation.get(locator);
+            if (pf == null || !pf.file.equals(blob.getFile()) || ++pf.reads < 2) {
+                return blob;
+            }
+            probation.remove(locator);
+        }
+
+        FileCache.Item cached;
+        InputStream in = new FileInputStream(pf.file);
+        try {
+            cached = localCache.put(locator, in);
+            ZimbraPerf.COUNTER_EXTERNAL_CACHE_ADMIT.increment();
+        } finally {
+            ByteUtil.closeStream(in);
+            synchronized (probation) {
+                retire(pf);
+            }
+        }
+        ExternalBlob promoted = new ExternalBlob(cached);
+        promoted.setLocator(locator);
+        promoted.setMbox(eblob.getMbox());
+        return promoted;
+    }
+
+    private ProbationFile getFromProbation(String locator) {
+        if (probation == null) {
+            return null;
+        }
+        synchronized (probation) {
+            return probation.get(locator);
+        }
+    }
+
+    private ProbationFile putOnProbation(String locator, InputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            ByteUtil.closeStream(in);
+            throw new IOException("SHA-256 digest not found", e);
+        }
+        File file = probationDir.getNewIncomingFile();
+        try {
+            ByteUtil.copy(new DigestInputStream(in, digest), true, new FileOutputStream(file), true);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        ProbationFile pf = new ProbationFile(file, ByteUtil.encodeFSSafeBase64(digest.digest()));
+        synchronized (probation) {
+            ProbationFile old = probation.put(locator, pf);
+            if (old != null) { // read concurrently
+                pf.reads = old.reads;
+                retire(old);
+            }
+        }
+        return pf;
+    }
+
+    private static ExternalBlob toBlob(ProbationFile pf, String locator, Mailbox mbox) {
+        ExternalBlob blob = new ExternalBlob(pf.file, pf.file.length(), pf.digest);
+        blob.setLocator(locator);
+        blob.setMbox(mbox);
+        return blob;
+    }
+
     protected Blob getLocalBlob(Mailbox mbox, String locator) throws IOException {
         return getLocalBlob(mbox, locator, true);
     }
@@ -325,5 +517,22 @@ public abstract class ExternalStoreManager extends StoreManager implements Exter
     @VisibleForTesting
     public void clearCache() {
         localCache.removeAll();
+        if (probation != null) {
+            synchronized (probation) {
+                for (ProbationFile pf : probation.values()) {
+                    pf.file.delete();
+                }
+                probation.clear();
+                for (ProbationFile pf : retired) {
+                    pf.file.delete();
+                }
+                retired.clear();
+            }
+        }
+    }
+
+    @VisibleForTesting
+    boolean isCached(String locator) {
+        return localCache.get(locator) != null;
     }
 }
@@ -17,16 +17,38 @@
 package com.zimbra.cs.store.external;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.localconfig.ServerLC;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.StagedBlob;
 
 /**
  * ContentAddressableStoreManager which supports SIS (single instance server) operations.
  * The store contains a single copy of each unique blob and tracks reference count when more than one object is associated with that blob.
  * Blobs are only deleted when the reference count reaches zero.
+ * <p>
+ * Locators staged in the last few minutes are remembered, so that another copy of the same content, e.g. a message
+ * delivered by LMTP to several recipients, is staged by adding a reference to the blob instead of uploading it again.
  */
 public abstract class SisStore extends ContentAddressableStoreManager {
 
+    private final Cache<String, Boolean> recent = createRecent(ServerLC.external_store_sis_recent_max.intValue(),
+            ServerLC.external_store_sis_recent_ttl_secs.intValue());
+
+    private static Cache<String, Boolean> createRecent(int maxSize, int ttlSecs) {
+        if (maxSize <= 0 || ttlSecs <= 0) {
+            return null;
+        }
+        return CacheBuilder.newBuilder().maximumSize(maxSize).expireAfterWrite(ttlSecs, TimeUnit.SECONDS).build();
+    }
+
     /**
      * Retrieve a blob from the remote system based on content hash. The remote system is expected to increment reference count if a blob is found
      * @param hash: The content hash of the blob
@@ -35,6 +57,43 @@ public abstract class SisStore extends ContentAddressableStoreManager {
      */
     public abstract Blob getSisBlob(byte[] hash) throws IOException;
 
+    /**
+     * Increment the reference count of a blob in the remote system, without retrieving it.
+     * The default implementation uses {@link #getSisBlob(byte[])}; stores should override it when they can do better.
+     * @param hash: The content hash of the blob
+     * @return true if the blob exists and its reference count was incremented, false if it does not exist
+     * @throws IOException
+     */
+    protected boolean addReference(byte[] hash) throws IOException {
+        return getSisBlob(hash) != null;
+    }
+
+    @Override
+    public StagedBlob stage(Blob blob, Mailbox mbox) throws IOException, ServiceException {
+        if (recent == null || !supports(StoreFeature.SINGLE_INSTANCE_SERVER_CREATE)) {
+            return super.stage(blob, mbox);
+        }
+        if (!(blob instanceof ExternalUploadedBlob)) {
+            byte[] hash = getHash(blob);
+            String locator = getLocator(hash);
+            if (recent.getIfPresent(locator) != null) {
+                if (addReference(hash)) {
+                    ZimbraLog.store.debug("added reference to recently staged locator %s", locator);
+                    ZimbraPerf.COUNTER_EXTERNAL_SIS_RECENT_HIT.increment(100);
+                    return new ExternalStagedBlob(mbox, blob.getDigest(), blob.getRawSize(), locator);
+                }
+                // deleted from the store since
+                recent.invalidate(locator);
+            }
+            ZimbraPerf.COUNTER_EXTERNAL_SIS_RECENT_HIT.increment(0);
+        }
+        StagedBlob staged = super.stage(blob, mbox);
+        if (staged != null) {
+            recent.put(staged.getLocator(), Boolean.TRUE);
+        }
+        return staged;
+    }
+
     @Override
     public boolean supports(StoreFeature feature) {
         switch (feature) {
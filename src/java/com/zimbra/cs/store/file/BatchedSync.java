@@ -0,0 +1,190 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.util.SystemUtil;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.localconfig.ServerLC;
+
+/**
+ * Defers the fsync of blob files, and of the directories they are linked into, so that the blobs of concurrent
+ * deliveries are synced together. Enabled by LC {@code zimbra_store_batched_fsync}.
+ * <p>
+ * A thread registers what it has written with {@link #addFile(File)} and {@link #addDirectory(File)}, and calls
+ * {@link #await()} before the mailbox transaction commits, i.e. before its redo record is logged and the database
+ * commits. A blob renamed or linked into the mailbox is registered again under its new name, as the incoming file
+ * may be gone by the time the batch is synced. The first waiter syncs everything registered so far, while the
+ * threads arriving meanwhile queue up for the next batch, in the same way as the redo log's fsync.
+ */
+final class BatchedSync {
+
+    private static boolean enabled = ServerLC.zimbra_store_batched_fsync.booleanValue() &&
+            !DebugConfig.disableMessageStoreFsync;
+
+    private static final Object lock = new Object();
+    private static Set<File> files = new LinkedHashSet<File>();
+    private static Set<File> dirs = new LinkedHashSet<File>();
+    private static long added = 0;  // sequence of the last registration
+    private static long synced = 0; // everything registered up to this sequence is on disk
+    private static boolean syncing = false;
+    private static long syncedFiles = 0;
+    private static final ThreadLocal<Long> awaiting = new ThreadLocal<Long>();
+
+    private BatchedSync() {
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    @VisibleForTesting
+    static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    /**
+     * Returns the number of files synced so far, not counting those deleted before their batch was synced.
+     */
+    @VisibleForTesting
+    static long getSyncedFileCount() {
+        synchronized (lock) {
+            return syncedFiles;
+        }
+    }
+
+    /**
+     * Registers a blob file whose data needs to be synced.
+     */
+    static void addFile(File file) {
+        add(file, false);
+    }
+
+    /**
+     * Registers a directory in which a blob was created.
+     */
+    static void addDirectory(File dir) {
+        if (!SystemUtil.ON_WINDOWS) { // directories can't be opened for fsync on Windows
+            add(dir, true);
+        }
+    }
+
+    private static void add(File file, boolean dir) {
+        long seq;
+        synchronized (lock) {
+            (dir ? dirs : files).add(file);
+            seq = ++added;
+        }
+        awaiting.set(seq);
+    }
+
+    /**
+     * Waits until everything the current thread registered is on disk.
+     */
+    static void await() throws IOException {
+        Long seq = awaiting.get();
+        if (seq == null) {
+            return;
+        }
+        while (true) {
+            Set<File> batchFiles;
+            Set<File> batchDirs;
+            long batchEnd;
+            synchronized (lock) {
+                boolean interrupted = false;
+                while (syncing && synced < seq) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                if (synced >= seq) {
+                    awaiting.remove();
+                    return;
+                }
+                // sync the batch in this thread
+                syncing = true;
+                batchFiles = files;
+                batchDirs = dirs;
+                batchEnd = added;
+                files = new LinkedHashSet<File>();
+                dirs = new LinkedHashSet<File>();
+            }
+            boolean success = false;
+            int count = 0;
+            try {
+                for (File file : batchFiles) {
+                    if (sync(file)) {
+                        count++;
+                    }
+                }
+                for (File dir : batchDirs) {
+                    sync(dir);
+                }
+                success = true;
+                ZimbraLog.store.debug("synced %d blobs in %d directories", batchFiles.size(), batchDirs.size());
+            } finally {
+                synchronized (lock) {
+                    syncing = false;
+                    if (success) {
+                        synced = batchEnd;
+                        syncedFiles += count;
+                    } else {
+                        // leave the batch to the next waiter
+                        batchFiles.addAll(files);
+                        batchDirs.addAll(dirs);
+                        files = batchFiles;
+                        dirs = batchDirs;
+                    }
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns false if the file no longer exists: it was deleted, or renamed or linked under a name that was
+     * registered as well.
+     */
+    private static boolean sync(File file) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        return true;
+    }
+}
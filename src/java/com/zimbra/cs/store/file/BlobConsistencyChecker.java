@@ -20,31 +20,41 @@ package com.zimbra.cs.store.file;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPInputStream;
 
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.TreeMultimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.AdminConstants;
 import com.zimbra.common.soap.Element;
 import com.zimbra.common.soap.MailConstants;
 import com.zimbra.common.util.ByteUtil;
-import com.zimbra.common.util.FileUtil;
 import com.zimbra.common.util.Log;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.db.DbBlobConsistency;
 import com.zimbra.cs.db.DbPool;
 import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.localconfig.ServerLC;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.store.BlobCodec;
 import com.zimbra.cs.store.StoreManager;
 import com.zimbra.cs.volume.Volume;
 import com.zimbra.cs.volume.VolumeManager;
@@ -161,6 +171,14 @@ public class BlobConsistencyChecker {
             }
         }
 
+        void addAll(Results other) {
+            missingBlobs.putAll(other.missingBlobs);
+            incorrectSize.putAll(other.incorrectSize);
+            unexpectedBlobs.putAll(other.unexpectedBlobs);
+            incorrectModContent.putAll(other.incorrectModContent);
+            usedBlobs.putAll(other.usedBlobs);
+        }
+
         public boolean hasInconsistency() {
             return !(missingBlobs.isEmpty() && incorrectSize.isEmpty() &&
                 unexpectedBlobs.isEmpty() && incorrectModContent.isEmpty());
@@ -238,6 +256,52 @@ public class BlobConsistencyChecker {
     public BlobConsistencyChecker() {
     }
 
+    /**
+     * Server-wide resources shared by all checks, so that concurrent requests don't multiply the I/O load.
+     * Directories are checked by {@code zimbra_blob_check_threads} workers, which together stat no more than
+     * {@code zimbra_blob_check_max_files_per_sec} files and read no more than {@code zimbra_blob_check_max_kb_per_sec}
+     * for size checks (0 means unlimited).
+     */
+    private static final class Workers {
+        static final int THREADS = Math.max(ServerLC.zimbra_blob_check_threads.intValue(), 1);
+        static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(THREADS,
+                new ThreadFactoryBuilder().setNameFormat("BlobConsistencyChecker-%d").setDaemon(true).build());
+        static final Budget FILES = new Budget(ServerLC.zimbra_blob_check_max_files_per_sec.intValue());
+        static final Budget BYTES = new Budget(ServerLC.zimbra_blob_check_max_kb_per_sec.intValue() * 1024L);
+    }
+
+    private static final class Budget {
+        private final long perSec;
+        private long next = 0;
+
+        Budget(long perSec) {
+            this.perSec = perSec;
+        }
+
+        /**
+         * Sleeps as long as the callers together are ahead of the budget.
+         */
+        void spend(long amount) {
+            if (perSec <= 0 || amount <= 0) {
+                return;
+            }
+            long delay;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long start = Math.max(next, now);
+                delay = start - now;
+                next = start + TimeUnit.SECONDS.toNanos(1) * amount / perSec;
+            }
+            if (delay > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
     public Results check(Collection<Short> volumeIds, int mboxId, boolean checkSize, boolean reportUsedBlobs)
     throws ServiceException {
         StoreManager sm = StoreManager.getInstance();
@@ -251,7 +315,8 @@ public class BlobConsistencyChecker {
         results = new Results();
         Mailbox mbox = MailboxManager.getInstance().getMailboxById(mailboxId);
         DbConnection conn = null;
-
+        Deque<Pending> pending = new ArrayDeque<Pending>();
+        boolean success = false;
         try {
             conn = DbPool.getConnection();
 
@@ -284,30 +349,72 @@ public class BlobConsistencyChecker {
                         }
                         minId += (numGroups * filesPerGroup);
                     }
-                    try {
-                        check(volumeId, blobDir, blobsById);
-                    } catch (IOException e) {
-                        throw ServiceException.FAILURE("Unable to check " + blobDir, e);
+                    // Check the directory in the background, while the next group is looked up.
+                    pending.add(submit(volumeId, blobDir, blobsById));
+                    if (pending.size() > Workers.THREADS * 2) {
+                        results.addAll(await(pending.poll()));
                     }
 
                     group++;
                     minId = group * filesPerGroup; // Set minId to the smallest id in the next group
                 }
             }
+            while (!pending.isEmpty()) {
+                results.addAll(await(pending.poll()));
+            }
+            success = true;
         } finally {
+            if (!success) {
+                // Don't leave directory checks running after the check failed or was interrupted.
+                for (Pending p : pending) {
+                    p.future.cancel(true);
+                }
+            }
             DbPool.quietClose(conn);
         }
         return results;
     }
 
+    private static final class Pending {
+        final String blobDir;
+        final Future<Results> future;
+
+        Pending(String blobDir, Future<Results> future) {
+            this.blobDir = blobDir;
+            this.future = future;
+        }
+    }
+
+    private Pending submit(final short volumeId, final String blobDir, final Multimap<Integer, BlobInfo> blobsById) {
+        return new Pending(blobDir, Workers.EXECUTOR.submit(new Callable<Results>() {
+            @Override
+            public Results call() throws IOException {
+                return check(volumeId, blobDir, blobsById);
+            }
+        }));
+    }
+
+    private Results await(Pending pending) throws ServiceException {
+        try {
+            return pending.future.get();
+        } catch (InterruptedException e) {
+            pending.future.cancel(true);
+            throw ServiceException.INTERRUPTED("checking " + pending.blobDir);
+        } catch (ExecutionException e) {
+            throw ServiceException.FAILURE("Unable to check " + pending.blobDir, e.getCause());
+        }
+    }
+
     private static final Pattern PAT_BLOB_FILENAME = Pattern.compile("([0-9]+)-([0-9]+)\\.msg");
 
     /**
-     * Reconciles blobs against the files in the given directory and adds any inconsistencies
-     * to the current result set.
+     * Reconciles blobs against the files in the given directory.
+     *
+     * @return the inconsistencies found in the directory
      */
-    private void check(short volumeId, String blobDirPath, Multimap<Integer, BlobInfo> blobsById)
+    private Results check(short volumeId, String blobDirPath, Multimap<Integer, BlobInfo> blobsById)
     throws IOException {
+        Results dirResults = new Results();
         Multimap<Integer, BlobInfo> revisions = HashMultimap.create();
         File blobDir = new File(blobDirPath);
         File[] files = blobDir.listFiles();
@@ -316,6 +423,7 @@ public class BlobConsistencyChecker {
         }
         log.info("Comparing %d items to %d files in %s.", blobsById.size(), files.length, blobDirPath);
         for (File file : files) {
+            Workers.FILES.spend(1);
             // Parse id and mod_content value from filename.
             Matcher matcher = PAT_BLOB_FILENAME.matcher(file.getName());
             int itemId = 0;
@@ -343,17 +451,17 @@ public class BlobConsistencyChecker {
                 unexpected.volumeId = volumeId;
                 unexpected.path = file.getAbsolutePath();
                 unexpected.fileSize = file.length();
-                results.unexpectedBlobs.put(itemId, unexpected);
+                dirResults.unexpectedBlobs.put(itemId, unexpected);
             } else {
                 blob.fileSize = file.length();
                 blob.fileModContent = modContent;
                 if (reportUsedBlobs) {
-                    results.usedBlobs.put(blob.itemId, blob);
+                    dirResults.usedBlobs.put(blob.itemId, blob);
                 }
                 if (checkSize) {
                     blob.fileDataSize = getDataSize(file, blob.dbSize);
                     if (blob.dbSize != blob.fileDataSize) {
-                        results.incorrectSize.put(blob.itemId, blob);
+                        dirResults.incorrectSize.put(blob.itemId, blob);
                     }
                 }
             }
@@ -361,17 +469,17 @@ public class BlobConsistencyChecker {
 
         // Any remaining items have missing blobs.
         for (BlobInfo blob : blobsById.values()) {
-            results.missingBlobs.put(blob.itemId, blob);
+            dirResults.missingBlobs.put(blob.itemId, blob);
         }
 
         // Redefining incorrect revisions for all items that support single revision
         // If there exists a single item with the same itemID in both missingBlobs and unexpectedBlobs
         // and if there aren't any items with same itemId in revisions then it is categorised as incorrect revision
-        Iterator<Integer> keyIterator = results.missingBlobs.keySet().iterator();
+        Iterator<Integer> keyIterator = dirResults.missingBlobs.keySet().iterator();
         while (keyIterator.hasNext()) {
             int itemId = keyIterator.next();
-            List<BlobInfo> missingBlobs = new ArrayList<BlobInfo>(results.missingBlobs.get(itemId));
-            List<BlobInfo> unexpectedBlobs = new ArrayList<BlobInfo>(results.unexpectedBlobs.get(itemId));
+            List<BlobInfo> missingBlobs = new ArrayList<BlobInfo>(dirResults.missingBlobs.get(itemId));
+            List<BlobInfo> unexpectedBlobs = new ArrayList<BlobInfo>(dirResults.unexpectedBlobs.get(itemId));
             if (missingBlobs.size() == 1 && unexpectedBlobs.size() == 1 && revisions.get(itemId).size() == 0) {
                 BlobInfo incorrectRevision = new BlobInfo();
                 BlobInfo missingBlob = missingBlobs.get(0);
@@ -385,18 +493,25 @@ public class BlobConsistencyChecker {
                 incorrectRevision.fileSize = unexpectedBlob.fileSize;
                 incorrectRevision.fileModContent = unexpectedBlob.fileModContent;
 
-                results.incorrectModContent.put(incorrectRevision.itemId, incorrectRevision);
+                dirResults.incorrectModContent.put(incorrectRevision.itemId, incorrectRevision);
                 keyIterator.remove();
-                results.unexpectedBlobs.removeAll(itemId);
+                dirResults.unexpectedBlobs.removeAll(itemId);
             }
         }
+        return dirResults;
     }
 
     protected long getDataSize(File file, long expected)
     throws IOException {
         long fileLen = file.length();
-        if (fileLen != expected && FileUtil.isGzipped(file)) {
-            return ByteUtil.getDataLength(new GZIPInputStream(new FileInputStream(file)));
+        if (fileLen != expected && BlobCodec.isCompressed(file)) {
+            Workers.BYTES.spend(fileLen);
+            InputStream in = BlobCodec.decompress(new FileInputStream(file));
+            try {
+                return ByteUtil.getDataLength(in);
+            } finally {
+                ByteUtil.closeStream(in);
+            }
         } else {
             return fileLen;
         }
@@ -27,10 +27,15 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.collections.MultiMap;
 import org.apache.commons.collections.map.MultiValueMap;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zimbra.common.localconfig.DebugConfig;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.Pair;
@@ -40,6 +45,7 @@ import com.zimbra.cs.db.DbMailbox;
 import com.zimbra.cs.db.DbPool;
 import com.zimbra.cs.db.DbPool.DbConnection;
 import com.zimbra.cs.db.DbVolumeBlobs;
+import com.zimbra.cs.localconfig.ServerLC;
 import com.zimbra.cs.mailbox.MailServiceException;
 import com.zimbra.cs.store.MailboxBlob.MailboxBlobInfo;
 import com.zimbra.cs.util.SpoolingCache;
@@ -56,6 +62,8 @@ public class BlobDeduper {
     private long totalSizeSaved = 0;
     private Map<Short, String> volumeBlobsProgress = new LinkedHashMap<Short, String>();
     private Map<Short, String> blobDigestsProgress = new LinkedHashMap<Short, String>();
+    private int maxFilesPerSec = 0;
+    private long nextFileSlot = 0;
     
     private final static BlobDeduper SINGLETON = new BlobDeduper();
 
@@ -66,28 +74,67 @@ public class BlobDeduper {
         return SINGLETON;
     }
 
-    private Pair<Integer, Long> processDigest(String digest, Volume volume) throws ServiceException {
+    /**
+     * Dedupes a batch of digests, and checkpoints the blobs that are done in one transaction.
+     */
+    private Pair<Integer, Long> processDigests(List<String> digests, Volume volume) throws ServiceException {
         // get the blobs
         DbConnection conn = null;
-        List<BlobReference> blobs;
+        Map<String, List<BlobReference>> blobsByDigest;
         try {
             conn = DbPool.getConnection();
-            blobs = DbVolumeBlobs.getBlobReferences(conn, digest, volume);
+            blobsByDigest = DbVolumeBlobs.getBlobReferences(conn, digests, volume);
         } finally {
             DbPool.quietClose(conn);
         }
-        // dedupe the paths
-        if (blobs.size() > 1) {
-            ZimbraLog.misc.debug("Deduping " + blobs.size() + " files for digest " + digest + " volume " + volume.getId());
-            return deDupe(blobs);
-        } else if (blobs.size() == 1) { 
-            // mark the blob as processed if there is only one blob for given digest.
-            markBlobAsProcessed(blobs.get(0));
+        int linksCreated = 0;
+        long sizeSaved = 0;
+        List<Long> processed = new ArrayList<Long>();
+        for (Map.Entry<String, List<BlobReference>> entry : blobsByDigest.entrySet()) {
+            List<BlobReference> blobs = entry.getValue();
+            throttle(blobs.size());
+            // dedupe the paths
+            if (blobs.size() > 1) {
+                ZimbraLog.misc.debug("Deduping " + blobs.size() + " files for digest " + entry.getKey() + " volume " + volume.getId());
+                Pair<Integer, Long> pair = deDupe(blobs, processed);
+                linksCreated += pair.getFirst();
+                sizeSaved += pair.getSecond();
+            } else if (blobs.size() == 1) {
+                // mark the blob as processed if there is only one blob for given digest.
+                processed.add(blobs.get(0).getId());
+            }
+            if (isStopProcessing()) {
+                break;
+            }
+        }
+        markBlobsAsProcessed(processed);
+        return new Pair<Integer, Long>(linksCreated, sizeSaved);
+    }
+
+    /**
+     * Sleeps as long as the deduper is ahead of {@code zimbra_dedupe_max_files_per_sec}.
+     */
+    private void throttle(int files) {
+        if (maxFilesPerSec <= 0) {
+            return;
+        }
+        long delay;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long start = Math.max(nextFileSlot, now);
+            delay = start - now;
+            nextFileSlot = start + TimeUnit.SECONDS.toNanos(files) / maxFilesPerSec;
+        }
+        if (delay > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
-        return new Pair<Integer,Long>(0, Long.valueOf(0));
     }
 
-    private Pair<Integer, Long> deDupe(List<BlobReference> blobs) throws ServiceException {
+    private Pair<Integer, Long> deDupe(List<BlobReference> blobs, List<Long> processed) {
         int linksCreated = 0;
         long sizeSaved = 0;
         long srcInodeNum = 0;
@@ -169,7 +216,7 @@ public class BlobDeduper {
                     continue;
                 }
                 if (srcInodeNum == blob.getFileInfo().getInodeNum()) {
-                    markBlobAsProcessed(blob);
+                    processed.add(blob.getId());
                     continue;
                 }
                 // create the links for paths in two steps.
@@ -181,7 +228,7 @@ public class BlobDeduper {
                     IO.link(holdPath, tempPath);
                     File destFile = new File(path);
                     tempFile.renameTo(destFile);
-                    markBlobAsProcessed(blob);
+                    processed.add(blob.getId());
                     linksCreated++;
                     sizeSaved += blob.getFileInfo().getSize();
                 } catch (IOException e) {
@@ -202,11 +249,14 @@ public class BlobDeduper {
         return new Pair<Integer,Long>(linksCreated, sizeSaved);
     }
         
-    private void markBlobAsProcessed(BlobReference blob) throws ServiceException {
+    private void markBlobsAsProcessed(List<Long> ids) throws ServiceException {
+        if (ids.isEmpty()) {
+            return;
+        }
         DbConnection conn = null;
         try {
             conn = DbPool.getConnection();
-            DbVolumeBlobs.updateProcessed(conn, blob.getId(), true);
+            DbVolumeBlobs.updateProcessed(conn, ids, true);
             conn.commit();
         } finally {
             DbPool.quietClose(conn);
@@ -243,7 +293,7 @@ public class BlobDeduper {
     }
     
     public synchronized Map<Short, String> getVolumeBlobsProgress() {
-        return volumeBlobsProgress;
+        return new LinkedHashMap<Short, String>(volumeBlobsProgress);
     }
     
     public synchronized void setVolumeBlobsProgress(short volumeId, String str) {
@@ -251,7 +301,7 @@ public class BlobDeduper {
     }
 
     public synchronized Map<Short, String> getBlobDigestsProgress() {
-        return blobDigestsProgress;
+        return new LinkedHashMap<Short, String>(blobDigestsProgress);
     }
     
     public synchronized void setBlobDigestsProgress(short volumeId, String str) {
@@ -314,25 +364,126 @@ public class BlobDeduper {
             totalSizeSaved = 0;
             volumeBlobsProgress.clear();
             blobDigestsProgress.clear();
+            maxFilesPerSec = ServerLC.zimbra_dedupe_max_files_per_sec.intValue();
+            nextFileSlot = 0;
         }
-        Thread thread = new BlobDeduperThread(volumeIds);
+        Thread thread = new BlobDeduperThread(volumeIds, Math.max(ServerLC.zimbra_dedupe_threads.intValue(), 1),
+                Math.max(ServerLC.zimbra_dedupe_batch_size.intValue(), 1));
         thread.setName("BlobDeduper");
         thread.start();
     }
-    
+
+    /**
+     * Runs tasks in a fixed number of threads. Submitting blocks while all threads are busy and the queue is full, so
+     * that the caller can stream work from a cursor without holding all of it in memory.
+     */
+    private static final class WorkerPool {
+        private final ThreadPoolExecutor executor;
+        private Throwable failure;
+
+        WorkerPool(int threads) {
+            executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(threads * 2),
+                    new ThreadFactoryBuilder().setNameFormat("BlobDeduper-%d").setDaemon(true).build(),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+
+        void submit(final Task task) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        synchronized (WorkerPool.this) {
+                            if (failure == null) {
+                                failure = t;
+                            }
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Waits for the submitted tasks, and rethrows the first failure.
+         */
+        void finish() throws ServiceException {
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                throw ServiceException.INTERRUPTED("interrupted while waiting for dedupe tasks");
+            }
+            synchronized (this) {
+                if (failure instanceof ServiceException) {
+                    throw (ServiceException) failure;
+                } else if (failure != null) {
+                    throw ServiceException.FAILURE("dedupe task failed", failure);
+                }
+            }
+        }
+    }
+
+    /**
+     * Completion of mailbox groups that are scanned in parallel. The checkpoint only advances past groups that are all
+     * done, so that a resumed run rescans whatever was in flight.
+     */
+    static final class GroupProgress {
+        private final List<Integer> groupIds;
+        private final boolean[] done;
+        private int completed = 0;
+        private int next = 0; // first group that is not done
+
+        GroupProgress(List<Integer> groupIds) {
+            this.groupIds = groupIds;
+            this.done = new boolean[groupIds.size()];
+        }
+
+        /**
+         * Marks the group at the index as done.
+         *
+         * @return the group ID to checkpoint, or -1 if the checkpoint doesn't move
+         */
+        synchronized int complete(int index) {
+            done[index] = true;
+            completed++;
+            int start = next;
+            while (next < done.length && done[next]) {
+                next++;
+            }
+            return next > start ? groupIds.get(next - 1) : -1;
+        }
+
+        synchronized int getCompleted() {
+            return completed;
+        }
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
     private class BlobDeduperThread extends Thread {
         List<Short> volumeIds;
+        final int numThreads;
+        final int batchSize;
 
-        public BlobDeduperThread(List<Short> volumeIds) {
+        public BlobDeduperThread(List<Short> volumeIds, int numThreads, int batchSize) {
             this.volumeIds = volumeIds;
+            this.numThreads = numThreads;
+            this.batchSize = batchSize;
         }
-        
+
         private void populateVolumeBlobs(short volumeId, int groupId, int lastSyncDate, int currentSyncDate) throws ServiceException {
             DbConnection conn = null;
             Iterable<MailboxBlobInfo> allBlobs = null;
-            try {      
+            try {
                 conn = DbPool.getConnection();
                 allBlobs = DbMailItem.getAllBlobs(conn, groupId, volumeId, lastSyncDate, currentSyncDate);
+                int uncommitted = 0;
                 for (MailboxBlobInfo info : allBlobs) {
                     try {
                         DbVolumeBlobs.addBlobReference(conn, info);
@@ -342,13 +493,17 @@ public class BlobDeduper {
                             throw se;
                         }
                     }
+                    if (++uncommitted >= batchSize) {
+                        conn.commit();
+                        uncommitted = 0;
+                    }
                 }
                 conn.commit();
             } finally {
                 DbPool.quietClose(conn);
             }
         }
-        
+
         private List<Integer> getSortedGroupIds() throws ServiceException {
             DbConnection conn = null;
             try {
@@ -362,9 +517,9 @@ public class BlobDeduper {
                 DbPool.quietClose(conn);
             }
         }
-        
+
         private void populateVolumeBlobs(Volume vol) throws ServiceException {
-            VolumeMetadata metadata = vol.getMetadata();
+            final VolumeMetadata metadata = vol.getMetadata();
             boolean resumed = false;
             if (metadata.getCurrentSyncDate() == 0) {
                 // this is not a resume. update the current sync date.
@@ -372,68 +527,135 @@ public class BlobDeduper {
             } else { // this is resumed request.
                 resumed = true;
             }
+            final short volumeId = vol.getId();
             if (DebugConfig.disableMailboxGroups) {
-                populateVolumeBlobs(vol.getId(), -1, metadata.getLastSyncDate(), metadata.getCurrentSyncDate());
-                setVolumeBlobsProgress(vol.getId(), "1/1");
+                populateVolumeBlobs(volumeId, -1, metadata.getLastSyncDate(), metadata.getCurrentSyncDate());
+                setVolumeBlobsProgress(volumeId, "1/1");
             } else {
-                List<Integer> groupIds = getSortedGroupIds();
-                for (int i = 0; i < groupIds.size(); i++) {
-                    if (resumed && groupIds.get(i) <= metadata.getGroupId()) {
-                        continue;
+                // Groups are scanned in parallel, see GroupProgress.
+                final List<Integer> groupIds = new ArrayList<Integer>();
+                for (int groupId : getSortedGroupIds()) {
+                    if (!resumed || groupId > metadata.getGroupId()) {
+                        groupIds.add(groupId);
                     }
-                    populateVolumeBlobs(vol.getId(), groupIds.get(i), metadata.getLastSyncDate(), metadata.getCurrentSyncDate());
-                    metadata.setGroupId(groupIds.get(i));
-                    vol = updateMetadata(vol.getId(), metadata);
-                    setVolumeBlobsProgress(vol.getId(), i+1 + "/" + groupIds.size());
-                    if (isStopProcessing()) {
-                        ZimbraLog.misc.info("Recieved the stop signal. Stopping the deduplication process.");
-                        throw ServiceException.INTERRUPTED("received stop signal");
+                }
+                final GroupProgress progress = new GroupProgress(groupIds);
+                WorkerPool pool = new WorkerPool(numThreads);
+                try {
+                    for (int i = 0; i < groupIds.size() && !isStopProcessing(); i++) {
+                        final int index = i;
+                        pool.submit(new Task() {
+                            @Override
+                            public void run() throws ServiceException {
+                                if (isStopProcessing()) {
+                                    return;
+                                }
+                                populateVolumeBlobs(volumeId, groupIds.get(index), metadata.getLastSyncDate(),
+                                        metadata.getCurrentSyncDate());
+                                synchronized (progress) { // keeps checkpoints in order
+                                    int checkpoint = progress.complete(index);
+                                    if (checkpoint > 0) {
+                                        metadata.setGroupId(checkpoint);
+                                        updateMetadata(volumeId, metadata);
+                                    }
+                                    setVolumeBlobsProgress(volumeId, progress.getCompleted() + "/" + groupIds.size());
+                                }
+                            }
+                        });
                     }
+                } finally {
+                    pool.finish();
+                }
+                if (isStopProcessing()) {
+                    ZimbraLog.misc.info("Recieved the stop signal. Stopping the deduplication process.");
+                    throw ServiceException.INTERRUPTED("received stop signal");
                 }
             }
             // reset group-id and update currentSync and lastSync.
             metadata.setLastSyncDate(metadata.getCurrentSyncDate());
             metadata.setCurrentSyncDate(0);
             metadata.setGroupId(0);
-            vol = updateMetadata(vol.getId(), metadata);
+            vol = updateMetadata(volumeId, metadata);
             // if this is a resumed sync, run another sync to catch up to current date.
             if (resumed) {
                 populateVolumeBlobs(vol);
             }
         }
-        
-        public void run() {   
-            for (short volumeId : volumeIds) {
-                try {
-                    ZimbraLog.misc.info("Running deduper for volume %d", volumeId);
-                    Volume vol = VolumeManager.getInstance().getVolume(volumeId);
-                    // populate the volume_blox table first;
-                    populateVolumeBlobs(vol);
-                    SpoolingCache<String> digests;
-                    DbConnection conn = null;
-                    try {
-                        conn = DbPool.getConnection();
-                        digests = DbVolumeBlobs.getUniqueDigests(conn, vol);
-                    } finally {
-                        DbPool.quietClose(conn);
+
+        private void processDigests(final Volume vol) throws ServiceException, IOException {
+            SpoolingCache<String> digests;
+            DbConnection conn = null;
+            try {
+                conn = DbPool.getConnection();
+                digests = DbVolumeBlobs.getUniqueDigests(conn, vol);
+            } finally {
+                DbPool.quietClose(conn);
+            }
+            final short volumeId = vol.getId();
+            final int total = digests.size();
+            final AtomicInteger count = new AtomicInteger();
+            setBlobDigestsProgress(volumeId, count + "/" + total);
+            WorkerPool pool = new WorkerPool(numThreads);
+            try {
+                List<String> batch = new ArrayList<String>(batchSize);
+                for (String digest : digests) {
+                    if (isStopProcessing()) {
+                        break;
                     }
-                    int count = 0;
-                    setBlobDigestsProgress(volumeId, count + "/" + digests.size());
-                    for (String digest : digests) {
-                        Pair<Integer, Long> pair = processDigest(digest, vol);
-                        incrementCountAndSize(pair.getFirst(), pair.getSecond());
-                        count++;
-                        setBlobDigestsProgress(volumeId, count + "/" + digests.size());
-                        if (isStopProcessing()) {
-                            ZimbraLog.misc.info("Recieved the stop signal. Stopping the deduplication process.");
-                            break;
+                    batch.add(digest);
+                    if (batch.size() < batchSize) {
+                        continue;
+                    }
+                    final List<String> submitted = batch;
+                    batch = new ArrayList<String>(batchSize);
+                    pool.submit(new Task() {
+                        @Override
+                        public void run() throws ServiceException {
+                            processBatch(submitted, vol, count, total);
                         }
+                    });
+                }
+                if (!batch.isEmpty() && !isStopProcessing()) {
+                    processBatch(batch, vol, count, total);
+                }
+            } finally {
+                pool.finish();
+                digests.cleanup();
+            }
+            if (isStopProcessing()) {
+                ZimbraLog.misc.info("Recieved the stop signal. Stopping the deduplication process.");
+            }
+        }
+
+        private void processBatch(List<String> batch, Volume vol, AtomicInteger count, int total)
+                throws ServiceException {
+            if (isStopProcessing()) {
+                return;
+            }
+            Pair<Integer, Long> pair = processDigests(batch, vol);
+            incrementCountAndSize(pair.getFirst(), pair.getSecond());
+            setBlobDigestsProgress(vol.getId(), count.addAndGet(batch.size()) + "/" + total);
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (short volumeId : volumeIds) {
+                    if (isStopProcessing()) {
+                        break;
+                    }
+                    try {
+                        ZimbraLog.misc.info("Running deduper for volume %d with %d threads", volumeId, numThreads);
+                        Volume vol = VolumeManager.getInstance().getVolume(volumeId);
+                        // populate the volume_blox table first;
+                        populateVolumeBlobs(vol);
+                        processDigests(vol);
+                    } catch (Throwable t) {
+                        ZimbraLog.misc.error("error while performing deduplication", t);
                     }
-                } catch (Throwable t) {
-                    ZimbraLog.misc.error("error while performing deduplication", t);
-                } finally {
-                    resetProgress();
                 }
+            } finally {
+                resetProgress();
             }
             ZimbraLog.misc.info("Deduping done. Total of " + totalLinksCreated
                     + " links created and saved approximately " + totalSizeSaved + " bytes.");
@@ -0,0 +1,456 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Pair;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.Server;
+import com.zimbra.cs.db.DbMailItem;
+import com.zimbra.cs.db.DbPool;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.localconfig.ServerLC;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.MailServiceException;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MessageCache;
+import com.zimbra.cs.store.MailboxBlob;
+import com.zimbra.cs.store.MailboxBlob.MailboxBlobInfo;
+import com.zimbra.cs.store.StoreManager;
+import com.zimbra.cs.util.SpoolingCache;
+import com.zimbra.cs.util.Zimbra;
+import com.zimbra.cs.volume.Volume;
+import com.zimbra.cs.volume.VolumeManager;
+
+/**
+ * Moves the blobs of old items from the primary message volumes to the current secondary message volume (HSM).
+ * <p>
+ * Items dated more than {@code zimbraHsmAge} ago, and at least {@code zimbra_hsm_min_size_kb} large, are selected
+ * per mailbox. Their blobs are copied to the secondary volume by {@code zimbra_hsm_threads} threads, and each copy is
+ * verified against the digest of the item before it is used. The locators of a batch of
+ * {@code zimbra_hsm_batch_size} copied blobs are then updated in one transaction under the mailbox lock. Items that
+ * changed or went away meanwhile keep their original blob. The originals of moved blobs are deleted
+ * {@code zimbra_hsm_delete_delay_secs} later, since a reader that looked an item up before the update may still open
+ * its original blob. They are recorded in {@code zimbra_hsm_delete_journal} until then, so that a restart deletes
+ * them on startup rather than leaving them behind. Copies are throttled to {@code zimbra_hsm_max_kb_per_sec}.
+ * <p>
+ * The mover runs every {@code zimbra_hsm_interval_mins} minutes if that is set.
+ */
+public final class BlobMover {
+
+    private boolean inProgress = false;
+    private boolean stopProcessing = false;
+    private int totalMoved = 0;
+    private long totalBytesMoved = 0;
+    private long maxBytesPerSec = 0;
+    private long nextByteSlot = 0;
+    private PendingBlobDeletes pendingDeletes;
+
+    private static final BlobMover SINGLETON = new BlobMover();
+
+    private BlobMover() {
+    }
+
+    public static BlobMover getInstance() {
+        return SINGLETON;
+    }
+
+    /**
+     * Deletes the originals left over from before a restart, and schedules the mover if
+     * {@code zimbra_hsm_interval_mins} is set.
+     */
+    public static void startup() {
+        long interval = TimeUnit.MINUTES.toMillis(ServerLC.zimbra_hsm_interval_mins.intValue());
+        if (!(StoreManager.getInstance() instanceof FileBlobStore)) {
+            if (interval > 0) {
+                ZimbraLog.store.info("HSM is not supported by %s",
+                        StoreManager.getInstance().getClass().getSimpleName());
+            }
+            return;
+        }
+        getInstance().getPendingDeletes().deleteDue(System.currentTimeMillis());
+        if (interval <= 0) {
+            return;
+        }
+        Zimbra.sTimer.schedule(new MoveTask(), interval, interval);
+    }
+
+    @VisibleForTesting
+    synchronized PendingBlobDeletes getPendingDeletes() {
+        if (pendingDeletes == null) {
+            pendingDeletes = new PendingBlobDeletes(new File(ServerLC.zimbra_hsm_delete_journal.value()));
+        }
+        return pendingDeletes;
+    }
+
+    private static final class MoveTask extends TimerTask {
+        @Override
+        public void run() {
+            try {
+                getInstance().process();
+            } catch (MailServiceException e) {
+                if (MailServiceException.TRY_AGAIN.equals(e.getCode())) {
+                    ZimbraLog.store.debug("Skipping scheduled HSM run: %s", e.getMessage());
+                } else {
+                    ZimbraLog.store.warn("Failed to start HSM", e);
+                }
+            } catch (Throwable t) { // don't kill the shared timer
+                ZimbraLog.store.warn("Failed to start HSM", t);
+            }
+        }
+    }
+
+    /**
+     * Starts moving blobs in a background thread.
+     */
+    public void process() throws ServiceException {
+        synchronized (this) {
+            if (inProgress) {
+                throw MailServiceException.TRY_AGAIN("HSM is already in progress. Only one request can be run at a time.");
+            }
+            inProgress = true;
+            totalMoved = 0;
+            totalBytesMoved = 0;
+            maxBytesPerSec = ServerLC.zimbra_hsm_max_kb_per_sec.intValue() * 1024L;
+            nextByteSlot = 0;
+        }
+        Thread thread = new BlobMoverThread(Math.max(ServerLC.zimbra_hsm_threads.intValue(), 1),
+                Math.max(ServerLC.zimbra_hsm_batch_size.intValue(), 1));
+        thread.setName("BlobMover");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stopProcessing() {
+        if (inProgress) {
+            ZimbraLog.store.info("Setting stopProcessing flag.");
+            stopProcessing = true;
+        }
+    }
+
+    private synchronized boolean isStopProcessing() {
+        return stopProcessing;
+    }
+
+    public synchronized boolean isRunning() {
+        return inProgress;
+    }
+
+    private synchronized void resetProgress() {
+        inProgress = false;
+        stopProcessing = false;
+    }
+
+    private synchronized void incrementCountAndSize(int count, long size) {
+        totalMoved += count;
+        totalBytesMoved += size;
+    }
+
+    /**
+     * @return the number of blobs moved by the current or last run, and their size on the primary volumes
+     */
+    public synchronized Pair<Integer, Long> getCountAndSize() {
+        return new Pair<Integer, Long>(totalMoved, totalBytesMoved);
+    }
+
+    /**
+     * Sleeps as long as the mover is ahead of {@code zimbra_hsm_max_kb_per_sec}.
+     */
+    private void throttle(long bytes) {
+        if (maxBytesPerSec <= 0) {
+            return;
+        }
+        long delay;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long start = Math.max(nextByteSlot, now);
+            delay = start - now;
+            nextByteSlot = start + TimeUnit.SECONDS.toNanos(1) * bytes / maxBytesPerSec;
+        }
+        if (delay > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @VisibleForTesting
+    class BlobMoverThread extends Thread {
+        final int numThreads;
+        final int batchSize;
+        private FileBlobStore store;
+        private ExecutorService workers;
+
+        BlobMoverThread(int numThreads, int batchSize) {
+            this.numThreads = numThreads;
+            this.batchSize = batchSize;
+        }
+
+        /**
+         * @return false if the store doesn't support HSM
+         */
+        @VisibleForTesting
+        boolean open() {
+            StoreManager sm = StoreManager.getInstance();
+            if (!(sm instanceof FileBlobStore)) {
+                ZimbraLog.store.warn("HSM is not supported by %s", sm.getClass().getSimpleName());
+                return false;
+            }
+            store = (FileBlobStore) sm;
+            workers = Executors.newFixedThreadPool(numThreads,
+                    new ThreadFactoryBuilder().setNameFormat("BlobMover-%d").setDaemon(true).build());
+            return true;
+        }
+
+        @VisibleForTesting
+        void close() {
+            if (workers != null) {
+                workers.shutdownNow();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!open()) {
+                    return;
+                }
+                VolumeManager mgr = VolumeManager.getInstance();
+                Volume dest = mgr.getCurrentSecondaryMessageVolume();
+                if (dest == null) {
+                    ZimbraLog.store.info("No current secondary message volume, nothing to move.");
+                    return;
+                }
+                List<Short> sources = new ArrayList<Short>();
+                for (Volume vol : mgr.getAllVolumes()) {
+                    if (vol.getType() == Volume.TYPE_MESSAGE) {
+                        sources.add(vol.getId());
+                    }
+                }
+                Server server = Provisioning.getInstance().getLocalServer();
+                int maxDate = (int) ((System.currentTimeMillis() - server.getHsmAge()) / 1000);
+                long minSize = ServerLC.zimbra_hsm_min_size_kb.intValue() * 1024L;
+                boolean revisions = server.isHsmMovePreviousRevisions();
+                ZimbraLog.store.info("Starting HSM from volumes %s to volume %d", sources, dest.getId());
+
+                for (int mboxId : MailboxManager.getInstance().getMailboxIds()) {
+                    if (isStopProcessing()) {
+                        ZimbraLog.store.info("Stopping HSM at mailbox %d", mboxId);
+                        break;
+                    }
+                    try {
+                        Mailbox mbox = MailboxManager.getInstance().getMailboxById(mboxId);
+                        moveBlobs(mbox, DbMailItem.getMailItemTableName(mbox), "id", sources, dest, maxDate, minSize);
+                        moveBlobs(mbox, DbMailItem.getMailItemTableName(mbox, true), "id", sources, dest, maxDate, minSize);
+                        if (revisions) {
+                            moveBlobs(mbox, DbMailItem.getRevisionTableName(mbox), "item_id", sources, dest, maxDate, minSize);
+                            moveBlobs(mbox, DbMailItem.getRevisionTableName(mbox, true), "item_id", sources, dest, maxDate, minSize);
+                        }
+                    } catch (ServiceException e) {
+                        ZimbraLog.store.warn("Unable to move blobs of mailbox %d", mboxId, e);
+                    }
+                }
+                Pair<Integer, Long> moved = getCountAndSize();
+                ZimbraLog.store.info("HSM done, moved %d blobs (%d bytes)", moved.getFirst(), moved.getSecond());
+            } catch (Throwable t) {
+                ZimbraLog.store.error("HSM failed", t);
+            } finally {
+                close();
+                resetProgress();
+            }
+        }
+
+        @VisibleForTesting
+        void moveBlobs(Mailbox mbox, String tableName, String idColumn, List<Short> sources, Volume dest,
+                int maxDate, long minSize) throws ServiceException {
+            SpoolingCache<MailboxBlobInfo> blobs;
+            DbConnection conn = null;
+            try {
+                conn = DbPool.getConnection(mbox);
+                blobs = DbMailItem.getBlobsToMove(conn, mbox, tableName, idColumn, sources, maxDate, minSize);
+            } finally {
+                DbPool.quietClose(conn);
+            }
+            try {
+                List<MailboxBlobInfo> batch = new ArrayList<MailboxBlobInfo>(Math.min(blobs.size(), batchSize));
+                for (MailboxBlobInfo info : blobs) {
+                    batch.add(info);
+                    if (batch.size() >= batchSize) {
+                        moveBatch(mbox, tableName, idColumn, batch, dest);
+                        batch.clear();
+                        if (isStopProcessing()) {
+                            return;
+                        }
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    moveBatch(mbox, tableName, idColumn, batch, dest);
+                }
+            } finally {
+                blobs.cleanup();
+            }
+        }
+
+        /**
+         * Copies a batch of blobs in parallel, points their items at the copies in one transaction, and deletes the
+         * originals after the grace period.
+         */
+        @VisibleForTesting
+        void moveBatch(final Mailbox mbox, String tableName, String idColumn, List<MailboxBlobInfo> batch,
+                final Volume dest) throws ServiceException {
+            List<Future<MailboxBlob[]>> futures = new ArrayList<Future<MailboxBlob[]>>(batch.size());
+            for (final MailboxBlobInfo info : batch) {
+                futures.add(workers.submit(new Callable<MailboxBlob[]>() {
+                    @Override
+                    public MailboxBlob[] call() throws Exception {
+                        return copy(mbox, info, dest);
+                    }
+                }));
+            }
+            // original and copy of each blob that was copied successfully
+            List<MailboxBlobInfo> copied = new ArrayList<MailboxBlobInfo>(batch.size());
+            List<MailboxBlob[]> copies = new ArrayList<MailboxBlob[]>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                MailboxBlobInfo info = batch.get(i);
+                try {
+                    MailboxBlob[] pair = Uninterruptibles.getUninterruptibly(futures.get(i));
+                    if (pair != null) {
+                        copied.add(info);
+                        copies.add(pair);
+                    }
+                } catch (ExecutionException e) {
+                    ZimbraLog.store.warn("Unable to copy blob of item %d-%d in mailbox %d", info.itemId, info.revision,
+                            mbox.getId(), e.getCause());
+                }
+            }
+            if (copied.isEmpty()) {
+                return;
+            }
+
+            List<MailboxBlob> originals = new ArrayList<MailboxBlob>(copied.size());
+            List<MailboxBlob> unused = new ArrayList<MailboxBlob>();
+            long bytes = 0;
+            DbConnection conn = null;
+            mbox.lock.lock();
+            try {
+                conn = DbPool.getConnection(mbox);
+                for (int i = 0; i < copied.size(); i++) {
+                    MailboxBlobInfo info = copied.get(i);
+                    MailboxBlob[] pair = copies.get(i);
+                    if (DbMailItem.updateLocatorAndDigest(conn, mbox, tableName, idColumn, info.itemId, info.revision,
+                            dest.getLocator(), info.digest) > 0) {
+                        originals.add(pair[0]);
+                    } else { // deleted or rewritten since it was selected
+                        unused.add(pair[1]);
+                    }
+                }
+                conn.commit();
+                // cached items still carry the old locator
+                mbox.purge(MailItem.Type.MESSAGE);
+                for (MailboxBlobInfo info : copied) {
+                    MessageCache.purge(info.digest);
+                }
+            } catch (ServiceException e) {
+                DbPool.quietRollback(conn);
+                unused.clear();
+                for (MailboxBlob[] pair : copies) {
+                    unused.add(pair[1]);
+                }
+                deleteQuietly(unused);
+                throw e;
+            } finally {
+                DbPool.quietClose(conn);
+                mbox.lock.release();
+            }
+
+            for (MailboxBlob original : originals) {
+                bytes += original.getLocalBlob().getFile().length();
+            }
+            deleteQuietly(unused);
+            deleteLater(originals);
+            incrementCountAndSize(originals.size(), bytes);
+            ZimbraLog.store.debug("Moved %d of %d blobs from %s of mailbox %d", originals.size(), batch.size(),
+                    tableName, mbox.getId());
+        }
+
+        /**
+         * Deletes the originals of moved blobs once readers that looked their items up before the move are done.
+         */
+        private void deleteLater(List<MailboxBlob> originals) {
+            long delay = TimeUnit.SECONDS.toMillis(ServerLC.zimbra_hsm_delete_delay_secs.intValue());
+            if (originals.isEmpty()) {
+                return;
+            } else if (delay <= 0) {
+                deleteQuietly(originals);
+                return;
+            }
+            getPendingDeletes().add(originals, delay);
+        }
+
+        /**
+         * @return the original and the verified copy, or {@code null} if the blob can't be moved
+         */
+        private MailboxBlob[] copy(Mailbox mbox, MailboxBlobInfo info, Volume dest)
+        throws IOException, ServiceException {
+            MailboxBlob src = store.getMailboxBlob(mbox, info.itemId, info.revision, info.locator, true);
+            if (src == null) {
+                ZimbraLog.store.warn("Missing blob of item %d-%d in mailbox %d", info.itemId, info.revision, mbox.getId());
+                return null;
+            }
+            throttle(src.getLocalBlob().getFile().length());
+            MailboxBlob copy = store.copy(src.getLocalBlob(), mbox, info.itemId, info.revision, dest.getId());
+            // read back what was written, rather than trusting the digest cached from the source
+            String digest = new VolumeBlob(copy.getLocalBlob().getFile(), dest.getId()).getDigest();
+            if (!digest.equals(info.digest)) {
+                ZimbraLog.store.warn("Digest mismatch copying blob of item %d-%d in mailbox %d (%s != %s)",
+                        info.itemId, info.revision, mbox.getId(), digest, info.digest);
+                store.delete(copy);
+                return null;
+            }
+            return new MailboxBlob[] { src, copy };
+        }
+
+        private void deleteQuietly(List<MailboxBlob> blobs) {
+            for (MailboxBlob blob : blobs) {
+                try {
+                    store.delete(blob);
+                } catch (IOException e) {
+                    ZimbraLog.store.warn("Unable to delete %s", blob.getLocalBlob().getPath(), e);
+                }
+            }
+        }
+    }
+}
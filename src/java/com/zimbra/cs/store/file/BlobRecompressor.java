@@ -0,0 +1,390 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.CliUtil;
+import com.zimbra.cs.db.DbBlobConsistency;
+import com.zimbra.cs.db.DbMailbox;
+import com.zimbra.cs.db.DbPool;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.store.BlobCodec;
+import com.zimbra.cs.store.BlobInputStream;
+import com.zimbra.cs.store.FileDescriptorCache;
+import com.zimbra.cs.volume.Volume;
+import com.zimbra.cs.volume.VolumeManager;
+
+/**
+ * Rewrites the blobs of message volumes with the codec the volume is configured with, e.g. after
+ * {@code zimbra_blob_compression_codec_<volume id>} was changed. Uncompressed blobs larger than the volume's
+ * compression threshold are compressed as well.
+ * <p>
+ * Blobs are rewritten to a temporary file next to the original, which is then renamed over it, so that readers see
+ * either version, and the digest and size of the item don't change. Blobs that have more than one link (deduped)
+ * are skipped, so that they keep sharing disk space. Volumes with compression disabled are skipped. A file as large
+ * as the size the DB records for its item is taken as uncompressed without looking at its content. Since the tool
+ * runs outside of any mailbox transaction, the DB is checked again after each rename, and a blob that was deleted or
+ * moved meanwhile is removed again.
+ */
+public class BlobRecompressor {
+
+    private static final String LO_HELP = "help";
+    private static final String LO_VERBOSE = "verbose";
+    private static final String LO_VOLUMES = "volumes";
+    private static final String LO_CODEC = "codec";
+    private static final String LO_SLEEP = "sleep";
+    private static final String TEMP_SUFFIX = ".recompress";
+
+    private Options options;
+    private List<Short> volumeIds = new ArrayList<Short>();
+    private BlobCodec codec;
+    private long sleep = 0;
+    private boolean verbose = false;
+    private long recompressed = 0;
+    private long skipped = 0;
+    private long bytesBefore = 0;
+    private long bytesAfter = 0;
+    private Map<Integer, Integer> groupIds = new HashMap<Integer, Integer>();
+
+    private BlobRecompressor() {
+        options = new Options();
+
+        options.addOption(new Option("h", LO_HELP, false, "Display this help message."));
+        options.addOption(new Option("v", LO_VERBOSE, false, "Display verbose output.  Display stack trace on error."));
+
+        Option o = new Option(null, LO_VOLUMES, true,
+            "Specify which volumes to recompress.  If not specified, recompress all compressed message volumes.");
+        o.setArgName("volume-ids");
+        options.addOption(o);
+
+        o = new Option(null, LO_CODEC, true, "Codec to recompress with, instead of the one configured for the volume.");
+        o.setArgName("name");
+        options.addOption(o);
+
+        o = new Option(null, LO_SLEEP, true, "Milliseconds to sleep after each blob, to limit the I/O load.");
+        o.setArgName("ms");
+        options.addOption(o);
+    }
+
+    private void usage(String errorMsg) {
+        int exitStatus = 0;
+
+        if (errorMsg != null) {
+            System.err.println(errorMsg);
+            exitStatus = 1;
+        }
+        HelpFormatter format = new HelpFormatter();
+        format.printHelp(new PrintWriter(System.err, true), 80,
+            "zmblobrecompress [options] start", null, options, 2, 2,
+            "\nThe \"start\" command is required, to avoid unintentionally rewriting blobs.  " +
+            "Id values are separated by commas.");
+        System.exit(exitStatus);
+    }
+
+    private void parseArgs(String[] args)
+    throws ParseException {
+        GnuParser parser = new GnuParser();
+        CommandLine cl = parser.parse(options, args);
+
+        if (CliUtil.hasOption(cl, LO_HELP)) {
+            usage(null);
+        }
+        if (cl.getArgs().length == 0 || !cl.getArgs()[0].equals("start")) {
+            usage(null);
+        }
+
+        String volumeList = CliUtil.getOptionValue(cl, LO_VOLUMES);
+        if (volumeList != null) {
+            for (String id : volumeList.split(",")) {
+                try {
+                    volumeIds.add(Short.parseShort(id));
+                } catch (NumberFormatException e) {
+                    usage("Invalid volume id: " + id);
+                }
+            }
+        }
+
+        String codecName = CliUtil.getOptionValue(cl, LO_CODEC);
+        if (codecName != null) {
+            codec = BlobCodec.getCodec(codecName);
+            if (codec == null) {
+                usage("Unknown codec: " + codecName);
+            }
+        }
+
+        String sleepValue = CliUtil.getOptionValue(cl, LO_SLEEP);
+        if (sleepValue != null) {
+            try {
+                sleep = Long.parseLong(sleepValue);
+            } catch (NumberFormatException e) {
+                usage("Invalid sleep: " + sleepValue);
+            }
+        }
+
+        verbose = CliUtil.hasOption(cl, LO_VERBOSE);
+    }
+
+    private void run()
+    throws Exception {
+        CliUtil.toolSetup();
+        DbPool.startup();
+        try {
+            List<Volume> volumes = new ArrayList<Volume>();
+            VolumeManager mgr = VolumeManager.getInstance();
+            if (volumeIds.isEmpty()) {
+                volumes.addAll(mgr.getAllVolumes());
+            } else {
+                for (short id : volumeIds) {
+                    volumes.add(mgr.getVolume(id));
+                }
+            }
+
+            for (Volume vol : volumes) {
+                if (vol.getType() == Volume.TYPE_INDEX) {
+                    if (!volumeIds.isEmpty()) {
+                        System.err.format("Skipping index volume %d.\n", vol.getId());
+                    }
+                    continue;
+                }
+                if (!vol.isCompressBlobs()) {
+                    if (!volumeIds.isEmpty()) {
+                        System.err.format("Skipping volume %d, compression is disabled.\n", vol.getId());
+                    }
+                    continue;
+                }
+                BlobCodec target = codec != null ? codec : BlobCodec.getCodec(vol.getId());
+                System.out.format("Recompressing volume %d (%s) with %s.\n", vol.getId(), vol.getRootPath(),
+                    target.getName());
+                File incoming = new File(vol.getIncomingMsgDir());
+                recompressDir(vol, new File(vol.getRootPath()), incoming, target);
+            }
+        } finally {
+            DbPool.shutdown();
+        }
+        System.out.format("Recompressed %d blobs, skipped %d.  Size before %d bytes, after %d bytes.\n",
+            recompressed, skipped, bytesBefore, bytesAfter);
+    }
+
+    private void recompressDir(Volume vol, File dir, File incoming, BlobCodec target)
+    throws InterruptedException, ServiceException {
+        if (dir.equals(incoming)) {
+            return;
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                recompressDir(vol, file, incoming, target);
+            } else if (file.getName().endsWith(TEMP_SUFFIX)) { // left behind by an earlier run
+                file.delete();
+            } else if (file.getName().endsWith(".msg")) {
+                try {
+                    if (recompress(vol, file, target)) {
+                        recompressed++;
+                        if (sleep > 0) {
+                            Thread.sleep(sleep);
+                        }
+                    } else {
+                        skipped++;
+                    }
+                } catch (IOException e) {
+                    skipped++;
+                    System.err.format("Unable to recompress %s: %s\n", file.getPath(), e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if the blob was left as it is
+     */
+    private boolean recompress(Volume vol, File file, BlobCodec target)
+    throws IOException, ServiceException {
+        BlobLocation loc = BlobLocation.parse(vol, file);
+        if (loc == null) {
+            if (verbose) {
+                System.out.format("%s: not a blob of this volume\n", file.getPath());
+            }
+            return false;
+        }
+        long rawSize = getReferencedSize(vol, loc);
+        if (rawSize < 0) {
+            if (verbose) {
+                System.out.format("%s: not referenced\n", file.getPath());
+            }
+            return false;
+        }
+        BlobCodec current = BlobCodec.detect(file, rawSize);
+        long size = file.length();
+        if (current == target || (current == null && size <= vol.getCompressionThreshold()) ||
+                getLinkCount(file) > 1) {
+            return false;
+        }
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        try {
+            target.compress(file, temp, !DebugConfig.disableMessageStoreFsync);
+            if (temp.length() >= size && current == null) { // not worth compressing
+                return false;
+            }
+            if (!file.exists()) { // deleted meanwhile
+                return false;
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("unable to rename " + temp.getPath());
+            }
+            FileDescriptorCache fdcache = BlobInputStream.getFileDescriptorCache();
+            if (fdcache != null) {
+                fdcache.remove(file.getPath()); // Prevent stale cache read.
+            }
+            // The blob may have been deleted or moved to another volume between the check above and the rename,
+            // which then brought it back.  Mailboxes delete blobs after committing, so the DB tells.
+            if (getReferencedSize(vol, loc) < 0) {
+                file.delete();
+                if (verbose) {
+                    System.out.format("%s: deleted or moved meanwhile\n", file.getPath());
+                }
+                return false;
+            }
+            bytesBefore += size;
+            bytesAfter += file.length();
+            if (verbose) {
+                System.out.format("%s: %s %d bytes -> %s %d bytes\n", file.getPath(),
+                    current == null ? "uncompressed" : current.getName(), size, target.getName(), file.length());
+            }
+            return true;
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * @return the uncompressed size of the blob, or -1 if no item or revision references it
+     */
+    private long getReferencedSize(Volume vol, BlobLocation loc) throws ServiceException {
+        DbConnection conn = DbPool.getConnection();
+        try {
+            Integer groupId = groupIds.get(loc.mboxId);
+            if (groupId == null) {
+                Mailbox.MailboxData data = DbMailbox.getMailboxStats(conn, loc.mboxId);
+                groupId = data != null ? data.schemaGroupId : -1;
+                groupIds.put(loc.mboxId, groupId);
+            }
+            return groupId > 0 ? DbBlobConsistency.getBlobSize(conn, loc.mboxId, groupId, loc.itemId,
+                    loc.revision, vol.getId()) : -1;
+        } finally {
+            conn.closeQuietly();
+        }
+    }
+
+    /**
+     * Mailbox, item and revision of a blob file, as laid out by {@link FileBlobStore#getBlobPath(int, int, int, short)}.
+     */
+    private static final class BlobLocation {
+        final int mboxId;
+        final int itemId;
+        final int revision;
+
+        private BlobLocation(int mboxId, int itemId, int revision) {
+            this.mboxId = mboxId;
+            this.itemId = itemId;
+            this.revision = revision;
+        }
+
+        /**
+         * @return null if the file is not where the blob it is named after belongs
+         */
+        static BlobLocation parse(Volume vol, File file) throws ServiceException {
+            String name = file.getName();
+            File mboxDir = file.getParentFile(); // <mailbox>/msg/<item group>/<blob>
+            for (int i = 0; i < 2 && mboxDir != null; i++) {
+                mboxDir = mboxDir.getParentFile();
+            }
+            if (mboxDir == null) {
+                return null;
+            }
+            try {
+                int mboxId = Integer.parseInt(mboxDir.getName());
+                String base = name.substring(0, name.length() - ".msg".length());
+                int dash = base.indexOf('-');
+                int itemId = Integer.parseInt(dash < 0 ? base : base.substring(0, dash));
+                int revision = dash < 0 ? -1 : Integer.parseInt(base.substring(dash + 1));
+                if (!file.getPath().equals(FileBlobStore.getBlobPath(mboxId, itemId, revision, vol.getId()))) {
+                    return null;
+                }
+                return new BlobLocation(mboxId, itemId, revision);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private static int getLinkCount(File file) throws IOException {
+        try {
+            return (Integer) Files.getAttribute(file.toPath(), "unix:nlink");
+        } catch (UnsupportedOperationException e) {
+            return 1;
+        } catch (IllegalArgumentException e) {
+            return 1;
+        }
+    }
+
+    public static void main(String[] args) {
+        BlobRecompressor app = new BlobRecompressor();
+
+        try {
+            app.parseArgs(args);
+        } catch (ParseException e) {
+            app.usage(e.getMessage());
+        }
+
+        try {
+            app.run();
+        } catch (Exception e) {
+            if (app.verbose) {
+                e.printStackTrace(new PrintWriter(System.err, true));
+            } else {
+                String msg = e.getMessage();
+                if (msg == null) {
+                    msg = e.toString();
+                }
+                System.err.println(msg);
+            }
+            System.exit(1);
+        }
+    }
+
+}
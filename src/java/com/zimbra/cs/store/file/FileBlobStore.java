@@ -29,6 +29,7 @@ import com.zimbra.common.util.SystemUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.BlobCodec;
 import com.zimbra.cs.store.BlobBuilder;
 import com.zimbra.cs.store.BlobInputStream;
 import com.zimbra.cs.store.FileDescriptorCache;
@@ -171,12 +172,12 @@ public final class FileBlobStore extends StoreManager {
                 FileUtil.copy(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
                 destCompressed = src.isCompressed();
             } else {
-                FileUtil.compress(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
+                BlobCodec.getCodec(destVolume.getId()).compress(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
                 destCompressed = true;
             }
         } else {
             if (src.isCompressed()) {
-                FileUtil.uncompress(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
+                BlobCodec.uncompress(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
             } else {
                 FileUtil.copy(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
             }
@@ -248,10 +249,15 @@ public final class FileBlobStore extends StoreManager {
                     throw e;
                 }
             }
+            if (BatchedSync.isEnabled()) {
+                // the incoming file registered when it was written may be gone by the time the batch is synced
+                BatchedSync.addFile(dest);
+                BatchedSync.addDirectory(dest.getParentFile());
+            }
         } else {
             // src and dest are on different volumes and can't be hard linked.
             // Do a copy instead.
-            FileUtil.copy(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
+            copy(srcFile, dest);
         }
         String destLocator = Short.toString(destVolumeId);
         VolumeBlob vblob = (VolumeBlob) new VolumeBlob(dest, destVolumeId).copyCachedDataFrom(src);
@@ -294,9 +300,14 @@ public final class FileBlobStore extends StoreManager {
             }
             if (!renamed)
                 throw new IOException("Unable to rename " + srcPath + " to " + destPath);
+            if (BatchedSync.isEnabled()) {
+                // the incoming file was registered under its old name
+                BatchedSync.addFile(destFile);
+                BatchedSync.addDirectory(destFile.getParentFile());
+            }
         } else {
             // Can't rename across volumes.  Copy then delete instead.
-            FileUtil.copy(srcFile, destFile, !DebugConfig.disableMessageStoreFsync);
+            copy(srcFile, destFile);
             srcFile.delete();
         }
 
@@ -304,6 +315,24 @@ public final class FileBlobStore extends StoreManager {
         return new VolumeMailboxBlob(destMbox, destItemId, destRevision, volume.getLocator(), vblob);
     }
 
+    /**
+     * Copies a blob file within a mailbox transaction, leaving the fsync to {@link #sync()} in batched mode.
+     */
+    private static void copy(File srcFile, File destFile) throws IOException {
+        if (BatchedSync.isEnabled()) {
+            FileUtil.copy(srcFile, destFile, false);
+            BatchedSync.addFile(destFile);
+            BatchedSync.addDirectory(destFile.getParentFile());
+        } else {
+            FileUtil.copy(srcFile, destFile, !DebugConfig.disableMessageStoreFsync);
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        BatchedSync.await();
+    }
+
     @Override
     public boolean delete(MailboxBlob mblob) throws IOException {
         if (mblob == null) {
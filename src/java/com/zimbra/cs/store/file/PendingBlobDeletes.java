@@ -0,0 +1,187 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2014 Zimbra, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.store.file;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TimerTask;
+
+import com.google.common.base.Charsets;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.store.MailboxBlob;
+import com.zimbra.cs.store.StoreManager;
+import com.zimbra.cs.util.Zimbra;
+
+/**
+ * Blob files to delete at a later time, kept in a journal file so that a restart doesn't leak them.
+ * <p>
+ * Each line of the journal holds the due time, the volume and the path of one blob. Blobs are appended and the
+ * journal is synced before their deletion is scheduled. Once due blobs are deleted, the journal is rewritten with
+ * the remaining ones, or removed if there are none left.
+ */
+final class PendingBlobDeletes {
+
+    private final File journal;
+    private List<Entry> entries;
+
+    private static final class Entry {
+        final long due;
+        final short volumeId;
+        final File file;
+
+        Entry(long due, short volumeId, File file) {
+            this.due = due;
+            this.volumeId = volumeId;
+            this.file = file;
+        }
+    }
+
+    PendingBlobDeletes(File journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Records the blobs in the journal, and deletes them {@code delay} milliseconds from now.
+     */
+    synchronized void add(List<MailboxBlob> blobs, long delay) {
+        load();
+        long due = System.currentTimeMillis() + delay;
+        List<Entry> added = new ArrayList<Entry>(blobs.size());
+        for (MailboxBlob blob : blobs) {
+            added.add(new Entry(due, Short.parseShort(blob.getLocator()), blob.getLocalBlob().getFile()));
+        }
+        entries.addAll(added);
+        try {
+            write(journal, added, true);
+        } catch (IOException e) {
+            ZimbraLog.store.warn("Unable to record pending deletes in %s, %d blobs will be left behind on restart",
+                    journal, added.size(), e);
+        }
+        schedule(delay);
+    }
+
+    /**
+     * Deletes the blobs that are due at {@code now}, and schedules the deletion of the others.
+     */
+    synchronized void deleteDue(long now) {
+        load();
+        long next = Long.MAX_VALUE;
+        int deleted = 0;
+        for (Iterator<Entry> i = entries.iterator(); i.hasNext();) {
+            Entry entry = i.next();
+            if (entry.due > now) {
+                next = Math.min(next, entry.due);
+                continue;
+            }
+            try {
+                StoreManager.getInstance().delete(new VolumeBlob(entry.file, entry.volumeId));
+            } catch (IOException e) {
+                ZimbraLog.store.warn("Unable to delete %s", entry.file, e);
+            }
+            i.remove();
+            deleted++;
+        }
+        if (deleted == 0) {
+            return;
+        }
+        try {
+            if (entries.isEmpty()) {
+                if (!journal.delete() && journal.exists()) {
+                    throw new IOException("unable to delete " + journal);
+                }
+            } else {
+                File tmp = new File(journal.getPath() + ".tmp");
+                write(tmp, entries, false);
+                if (!tmp.renameTo(journal)) {
+                    throw new IOException("unable to rename " + tmp + " to " + journal);
+                }
+            }
+        } catch (IOException e) {
+            ZimbraLog.store.warn("Unable to update %s", journal, e);
+        }
+        if (next != Long.MAX_VALUE) {
+            schedule(next - now);
+        }
+    }
+
+    private void schedule(long delay) {
+        Zimbra.sTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    deleteDue(System.currentTimeMillis());
+                } catch (Throwable t) { // don't kill the shared timer
+                    ZimbraLog.store.warn("Unable to delete pending blobs", t);
+                }
+            }
+        }, Math.max(delay, 0));
+    }
+
+    private void load() {
+        if (entries != null) {
+            return;
+        }
+        entries = new ArrayList<Entry>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), Charsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ", 3);
+                try {
+                    entries.add(new Entry(Long.parseLong(fields[0]), Short.parseShort(fields[1]),
+                            new File(fields[2])));
+                } catch (RuntimeException e) { // torn last line
+                    ZimbraLog.store.warn("Skipping invalid line in %s: %s", journal, line);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // nothing pending
+        } catch (IOException e) {
+            ZimbraLog.store.warn("Unable to read %s", journal, e);
+        } finally {
+            ByteUtil.closeReader(reader);
+        }
+    }
+
+    private static void write(File file, List<Entry> list, boolean append) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file, append);
+        try {
+            Writer writer = new OutputStreamWriter(out, Charsets.UTF_8);
+            for (Entry entry : list) {
+                writer.write(entry.due + " " + entry.volumeId + " " + entry.file.getPath() + "\n");
+            }
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -17,11 +17,13 @@
 package com.zimbra.cs.store.file;
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.store.Blob;
 import com.zimbra.cs.store.BlobBuilder;
+import com.zimbra.cs.store.BlobCodec;
 import com.zimbra.cs.volume.VolumeManager;
 
 public final class VolumeBlobBuilder extends BlobBuilder {
@@ -57,6 +59,20 @@ public final class VolumeBlobBuilder extends BlobBuilder {
         return 0;
     }
 
+    @Override
+    protected BlobCodec getCompressionCodec() {
+        return BlobCodec.getCodec(getVolumeId());
+    }
+
+    @Override
+    protected void sync(FileChannel channel) throws IOException {
+        if (BatchedSync.isEnabled()) {
+            BatchedSync.addFile(blob.getFile());
+        } else {
+            super.sync(channel);
+        }
+    }
+
     @Override
     public Blob finish() throws IOException, ServiceException {
         if (isFinished()) {
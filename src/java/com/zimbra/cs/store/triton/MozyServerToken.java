@@ -19,7 +19,8 @@ package com.zimbra.cs.store.triton;
 import org.apache.commons.httpclient.HttpMethod;
 
 /**
- * String wrapper so Mozy token can be passed around and updated on each request if necessary
+ * String wrapper so Mozy token can be passed around and updated on each request if necessary.
+ * Parts of an upload are sent from a background thread, so access is synchronized.
  *
  */
 public class MozyServerToken {
@@ -29,14 +30,14 @@ public class MozyServerToken {
         super();
     }
 
-    public String getToken() {
+    public synchronized String getToken() {
         return token;
     }
 
     /**
      * Set token value based on TDS response header contained in HttpMethod
      */
-    public void setToken(HttpMethod method) {
+    public synchronized void setToken(HttpMethod method) {
         this.token = method.getResponseHeader(TritonHeaders.SERVER_TOKEN).getValue();
     }
 }
@@ -23,8 +23,10 @@ import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.methods.DeleteMethod;
 import org.apache.commons.httpclient.methods.GetMethod;
@@ -40,6 +42,8 @@ import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.service.UserServlet;
 import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.external.ExternalPartTransfer;
+import com.zimbra.cs.store.external.ExternalRangedDownload;
 import com.zimbra.cs.store.external.ExternalResumableIncomingBlob;
 import com.zimbra.cs.store.external.ExternalResumableUpload;
 import com.zimbra.cs.store.external.ExternalUploadedBlob;
@@ -48,13 +52,14 @@ import com.zimbra.cs.store.external.SisStore;
 /**
  * StoreManager implementation which uses the TDS Blob API for storing and retrieving blobs
  */
-public class TritonBlobStoreManager extends SisStore implements ExternalResumableUpload  {
+public class TritonBlobStoreManager extends SisStore implements ExternalResumableUpload, ExternalRangedDownload {
 
     private String url;
     private String blobApiUrl;
     enum HashType {SHA0, SHA256};
     private HashType hashType;
     private String emptyLocator;
+    private ExternalPartTransfer transfer;
 
     @VisibleForTesting
     public TritonBlobStoreManager(String url, HashType hashType) {
@@ -63,6 +68,12 @@ public class TritonBlobStoreManager extends SisStore implements ExternalResumabl
         this.hashType = hashType;
     }
 
+    @VisibleForTesting
+    TritonBlobStoreManager(String url, HashType hashType, ExternalPartTransfer transfer) {
+        this(url, hashType);
+        this.transfer = transfer;
+    }
+
     public TritonBlobStoreManager() {
         super();
     }
@@ -76,6 +87,9 @@ public class TritonBlobStoreManager extends SisStore implements ExternalResumabl
         if (hashType == null) {
             hashType = HashType.valueOf(LC.triton_hash_type.value());
         }
+        if (transfer == null) {
+            transfer = ExternalPartTransfer.getInstance().withPartSize(LC.triton_upload_buffer_size.intValue());
+        }
         MessageDigest digest = newDigest();
         emptyLocator = getLocator(digest.digest());
         ZimbraLog.store.info("TDS Blob store manager using url %s hashType %s",url, hashType);
@@ -100,6 +114,10 @@ public class TritonBlobStoreManager extends SisStore implements ExternalResumabl
 
     @Override
     public byte[] getHash(Blob blob) throws ServiceException, IOException {
+        if (hashType == HashType.SHA256) {
+            // BlobBuilder already computed the SHA-256 while the content was being received
+            return Base64.decodeBase64(blob.getDigest().replace(',', '/'));
+        }
         MessageDigest digest = newDigest();
         DigestInputStream dis = null;
         InputStream bis = null;
@@ -191,6 +209,48 @@ public class TritonBlobStoreManager extends SisStore implements ExternalResumabl
         }
     }
 
+    @Override
+    public RangeInputStream readStreamFromStore(String locator, Mailbox mbox, long start, long end) throws IOException {
+        HttpClient client = ZimbraHttpConnectionManager.getInternalHttpConnMgr().newHttpClient();
+        GetMethod get = new GetMethod(blobApiUrl + locator);
+        get.addRequestHeader(TritonHeaders.HASH_TYPE, hashType.toString());
+        get.addRequestHeader(TritonHeaders.RANGE, "bytes=" + start + "-" + (end - 1));
+        ZimbraLog.store.debug("getting %s range %d-%d", get.getURI(), start, end - 1);
+        int statusCode = HttpClientUtil.executeMethod(client, get);
+        if (statusCode == HttpStatus.SC_PARTIAL_CONTENT) {
+            return new RangeInputStream(new UserServlet.HttpInputStream(get),
+                    getBlobSize(get.getResponseHeader(TritonHeaders.CONTENT_RANGE)));
+        } else if (statusCode == HttpStatus.SC_OK && start == 0) { // the whole blob
+            return new RangeInputStream(new UserServlet.HttpInputStream(get), get.getResponseContentLength());
+        } else {
+            get.releaseConnection();
+            if (statusCode == HttpStatus.SC_NOT_FOUND && emptyLocator.equals(locator)) {
+                return new RangeInputStream(new ByteArrayInputStream(new byte[0]), 0);
+            }
+            throw new IOException("unexpected return code during ranged blob GET: " + statusCode + " " + get.getStatusText());
+        }
+    }
+
+    /**
+     * Returns the size of the blob from a "Content-Range: bytes first-last/size" header, or -1 if it isn't there.
+     */
+    @VisibleForTesting
+    static long getBlobSize(Header contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        String value = contentRange.getValue();
+        int slash = value.lastIndexOf('/');
+        if (slash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.substring(slash + 1).trim());
+        } catch (NumberFormatException e) { // "*"
+            return -1;
+        }
+    }
+
     @Override
     public boolean deleteFromStore(String locator, Mailbox mbox)
                     throws IOException {
@@ -212,7 +272,7 @@ public class TritonBlobStoreManager extends SisStore implements ExternalResumabl
 
     @Override
     public ExternalResumableIncomingBlob newIncomingBlob(String id, Object ctxt) throws IOException, ServiceException {
-        return new TritonIncomingBlob(id, url, getBlobBuilder(), ctxt, newDigest(), hashType);
+        return new TritonIncomingBlob(id, url, getBlobBuilder(), ctxt, newDigest(), hashType, transfer);
     }
 
     @Override
@@ -275,6 +335,11 @@ public class TritonBlobStoreManager extends SisStore implements ExternalResumabl
         }
     }
 
+    @Override
+    protected boolean addReference(byte[] hash) throws IOException {
+        return sisCreate(hash);
+    }
+
     @Override
     public Blob getSisBlob(byte[] hash) throws IOException {
         if (sisCreate(hash)) {
@@ -18,6 +18,9 @@ package com.zimbra.cs.store.triton;
 
 class TritonHeaders {
     static final String CONTENT_LENGTH = "Content-Length";
+    static final String CONTENT_MD5 = "Content-MD5";
+    static final String CONTENT_RANGE = "Content-Range";
+    static final String RANGE = "Range";
     static final String OBJECTID = "X-Objectid";
     static final String HASH_TYPE = "X-Mozy-Hash-Type";
     static final String LOCATION = "Location";
@@ -31,6 +31,7 @@ import com.zimbra.common.util.ZimbraHttpConnectionManager;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.store.Blob;
 import com.zimbra.cs.store.BlobBuilder;
+import com.zimbra.cs.store.external.ExternalPartTransfer;
 import com.zimbra.cs.store.external.ExternalResumableIncomingBlob;
 import com.zimbra.cs.store.external.ExternalResumableOutputStream;
 import com.zimbra.cs.store.triton.TritonBlobStoreManager.HashType;
@@ -45,12 +46,14 @@ public class TritonIncomingBlob extends ExternalResumableIncomingBlob {
     private final TritonUploadUrl uploadUrl;
     private final HashType hashType;
     private final MessageDigest digest;
+    private final ExternalPartTransfer transfer;
     private TritonIncomingOutputStream outStream;
     private AtomicLong written;
 
-    public TritonIncomingBlob(String id, String baseUrl, BlobBuilder blobBuilder, Object ctx, MessageDigest digest, HashType hashType) throws ServiceException, IOException {
+    public TritonIncomingBlob(String id, String baseUrl, BlobBuilder blobBuilder, Object ctx, MessageDigest digest, HashType hashType, ExternalPartTransfer transfer) throws ServiceException, IOException {
         super(id, blobBuilder, ctx);
         this.digest = digest;
+        this.transfer = transfer;
         this.hashType = hashType;
         this.baseUrl = baseUrl;
         serverToken = new MozyServerToken();
@@ -62,7 +65,7 @@ public class TritonIncomingBlob extends ExternalResumableIncomingBlob {
     protected ExternalResumableOutputStream getAppendingOutputStream(
                     BlobBuilder blobBuilder) {
         lastAccessTime = System.currentTimeMillis();
-        outStream = new TritonIncomingOutputStream(blobBuilder, digest, hashType, baseUrl, uploadUrl, serverToken, written);
+        outStream = new TritonIncomingOutputStream(blobBuilder, digest, hashType, baseUrl, uploadUrl, serverToken, written, transfer);
         return outStream;
     }
 
@@ -17,7 +17,6 @@
 package com.zimbra.cs.store.triton;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.util.concurrent.atomic.AtomicLong;
@@ -27,62 +26,50 @@ import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.methods.PostMethod;
 
 import com.zimbra.common.httpclient.HttpClientUtil;
-import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.util.ZimbraHttpConnectionManager;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.store.BlobBuilder;
-import com.zimbra.cs.store.external.ExternalResumableOutputStream;
+import com.zimbra.cs.store.external.ExternalMultipartOutputStream;
+import com.zimbra.cs.store.external.ExternalPartTransfer;
 import com.zimbra.cs.store.triton.TritonBlobStoreManager.HashType;
 
 /**
- * Output stream that writes to TDS, calculates digest, and buffers to local BlobBuilder
- *
+ * Output stream that writes to TDS in parts, calculates digest, and buffers to local BlobBuilder.
+ * <p>
+ * Each append must carry the server token returned by the previous one, so parts are sent one at a time, in order,
+ * while the caller goes on writing the next part.
  */
-public class TritonIncomingOutputStream extends ExternalResumableOutputStream {
+public class TritonIncomingOutputStream extends ExternalMultipartOutputStream {
 
     protected final String baseUrl;
     private final TritonUploadUrl uploadUrl;
     protected final MessageDigest digest;
     protected final HashType hashType;
     protected final MozyServerToken serverToken;
-    protected AtomicLong written;
-    protected ByteArrayOutputStream baos;
 
-    public TritonIncomingOutputStream(BlobBuilder blobBuilder, MessageDigest digest, HashType hashType, String baseUrl, TritonUploadUrl uploadUrl, MozyServerToken serverToken, AtomicLong written) {
-        super(blobBuilder);
+    public TritonIncomingOutputStream(BlobBuilder blobBuilder, MessageDigest digest, HashType hashType, String baseUrl, TritonUploadUrl uploadUrl, MozyServerToken serverToken, AtomicLong written, ExternalPartTransfer transfer) {
+        super(blobBuilder, transfer.withParallelParts(1), written);
         this.baseUrl = baseUrl;
         this.uploadUrl = uploadUrl;
         this.hashType = hashType;
         this.serverToken = serverToken;
         this.digest = digest;
-        this.written = written;
-        this.baos = new ByteArrayOutputStream(LC.triton_upload_buffer_size.intValue());
     }
 
     @Override
     protected void writeToExternal(byte[] b, int off, int len) throws IOException {
-        baos.write(b, off, len);
-        if (baos.size() >= LC.triton_upload_buffer_size.intValue()) {
-            sendHttpData();
-        }
+        // digest the data as it is written, rather than when its part is sent
+        digest.update(b, off, len);
+        super.writeToExternal(b, off, len);
     }
 
     @Override
-    public void flush() throws IOException {
-        if (baos.size() > 0) {
-            sendHttpData();
-        }
+    protected boolean isSessionStarted() {
+        return uploadUrl.isInitialized();
     }
 
     @Override
-    public void close() throws IOException {
-        super.close();
-        if (baos.size() > 0) {
-            sendHttpData();
-        }
-    }
-
-    private void sendHttpData() throws IOException {
+    protected void uploadPart(long offset, byte[] data, int len, String checksum) throws IOException {
         HttpClient client = ZimbraHttpConnectionManager.getInternalHttpConnMgr().newHttpClient();
         PostMethod post;
         boolean started = false;
@@ -94,32 +81,26 @@ public class TritonIncomingOutputStream extends ExternalResumableOutputStream {
         }
         try {
             ZimbraLog.store.info("posting to %s",post.getURI());
-            HttpClientUtil.addInputStreamToHttpMethod(post, new ByteArrayInputStream(baos.toByteArray()), baos.size(), "application/octet-stream");
-            post.addRequestHeader(TritonHeaders.CONTENT_LENGTH, baos.size()+"");
+            HttpClientUtil.addInputStreamToHttpMethod(post, new ByteArrayInputStream(data, 0, len), len, "application/octet-stream");
+            post.addRequestHeader(TritonHeaders.CONTENT_LENGTH, len+"");
+            post.addRequestHeader(TritonHeaders.CONTENT_MD5, checksum);
             post.addRequestHeader(TritonHeaders.HASH_TYPE, hashType.toString());
-            post.addRequestHeader("Content-Range", "bytes " + written.longValue() + "-" + (written.longValue()+baos.size()-1)+ "/*");
-            if (serverToken.getToken() != null) {
-                post.addRequestHeader(TritonHeaders.SERVER_TOKEN, serverToken.getToken());
+            post.addRequestHeader(TritonHeaders.CONTENT_RANGE, "bytes " + offset + "-" + (offset+len-1)+ "/*");
+            String token = serverToken.getToken();
+            if (token != null) {
+                post.addRequestHeader(TritonHeaders.SERVER_TOKEN, token);
             }
             int statusCode = HttpClientUtil.executeMethod(client, post);
             if (statusCode == HttpStatus.SC_OK) {
-                handleResponse(post);
+                serverToken.setToken(post);
             } else if (!started && statusCode == HttpStatus.SC_SEE_OTHER) {
-                started = true;
                 uploadUrl.setUploadUrl(post.getResponseHeader(TritonHeaders.LOCATION).getValue());
-                handleResponse(post);
+                serverToken.setToken(post);
             } else {
                 throw new IOException("Unable to append, bad response code "+statusCode);
             }
         } finally {
             post.releaseConnection();
         }
-        baos = new ByteArrayOutputStream(LC.triton_upload_buffer_size.intValue());
     }
-
-  private void handleResponse(PostMethod post) throws IOException {
-      serverToken.setToken(post);
-      written.set(written.longValue() + baos.size());
-      digest.update(baos.toByteArray());
-  }
 }
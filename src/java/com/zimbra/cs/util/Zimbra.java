@@ -63,6 +63,7 @@ import com.zimbra.cs.session.SessionCache;
 import com.zimbra.cs.session.WaitSetMgr;
 import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.store.StoreManager;
+import com.zimbra.cs.store.file.BlobMover;
 import com.zimbra.cs.zookeeper.CuratorManager;
 import com.zimbra.cs.zookeeper.Service;
 import com.zimbra.znative.Util;
@@ -325,6 +326,10 @@ public final class Zimbra {
                 PurgeThread.startup();
             }
 
+            if (app.supports(BlobMover.class.getName())) {
+                BlobMover.startup();
+            }
+
             if (app.supports(AutoProvisionThread.class.getName())) {
                 AutoProvisionThread.switchAutoProvThreadIfNecessary();
             }
@@ -451,6 +456,7 @@ public final class Zimbra {
             EhcacheManager.getInstance().shutdown();
         }
 
+        BlobMover.getInstance().stopProcessing();
         MailboxManager.getInstance().shutdown();
 
         if (sIsMailboxd) {